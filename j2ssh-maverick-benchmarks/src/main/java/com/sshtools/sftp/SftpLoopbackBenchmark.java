@@ -0,0 +1,123 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures whole file transfers through {@link SftpClient} against a
+ * {@link LoopbackSftpServer} in the same process. The server runs over
+ * in-memory pipes so the figures cover the SFTP request pipeline, read ahead
+ * and message handling of the client without any transport or network cost.
+ * 
+ * @author Lee David Painter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SftpLoopbackBenchmark {
+
+	@Param({ "1048576", "16777216" })
+	int fileSize;
+
+	File root;
+	File local;
+	File downloaded;
+	SftpClient sftp;
+
+	@Setup
+	public void setup() throws Exception {
+
+		root = File.createTempFile("sftp", "root");
+		root.delete();
+		root.mkdir();
+
+		local = File.createTempFile("sftp", "local");
+		downloaded = File.createTempFile("sftp", "downloaded");
+
+		byte[] data = new byte[fileSize];
+		new Random(0).nextBytes(data);
+		writeFile(local, data);
+		writeFile(new File(root, "source.bin"), data);
+
+		sftp = new SftpClient(new LoopbackSftpSession(root));
+	}
+
+	@TearDown
+	public void teardown() throws Exception {
+		sftp.quit();
+		local.delete();
+		downloaded.delete();
+
+		File[] files = root.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		root.delete();
+	}
+
+	@Benchmark
+	public void put() throws Exception {
+		sftp.put(local.getAbsolutePath(), "/upload.bin");
+	}
+
+	@Benchmark
+	public void get() throws Exception {
+		sftp.get("/source.bin", downloaded.getAbsolutePath());
+	}
+
+	static void writeFile(File file, byte[] data) throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(SftpLoopbackBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
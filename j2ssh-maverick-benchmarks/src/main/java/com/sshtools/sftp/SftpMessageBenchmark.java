@@ -0,0 +1,152 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sshtools.util.ByteArrayWriter;
+
+/**
+ * Measures the decoding of SFTP responses once they have been read from the
+ * channel: an SSH_FXP_NAME listing of 100 files as returned by a directory
+ * read, a single SSH_FXP_ATTRS and the header of an SSH_FXP_DATA message.
+ * 
+ * @author Lee David Painter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SftpMessageBenchmark {
+
+	static final int NAME_COUNT = 100;
+
+	File root;
+	SftpClient sftp;
+	SftpSubsystemChannel channel;
+	byte[] name;
+	byte[] attrs;
+	byte[] data;
+
+	@Setup
+	public void setup() throws Exception {
+
+		root = File.createTempFile("sftp", "root");
+		root.delete();
+		root.mkdir();
+
+		sftp = new SftpClient(new LoopbackSftpSession(root));
+		channel = sftp.getSubsystemChannel();
+
+		ByteArrayWriter msg = new ByteArrayWriter();
+		msg.write(SftpSubsystemChannel.SSH_FXP_NAME);
+		msg.writeInt(1);
+		msg.writeInt(NAME_COUNT);
+		for (int i = 0; i < NAME_COUNT; i++) {
+			String filename = "file" + i + ".txt";
+			msg.writeString(filename);
+			msg.writeString("-rw-r--r--   1 user     group    " + (i * 1024)
+					+ " Jan  1 00:00 " + filename);
+			writeAttributes(msg, i * 1024);
+		}
+		name = msg.toByteArray();
+
+		msg.reset();
+		msg.write(SftpSubsystemChannel.SSH_FXP_ATTRS);
+		msg.writeInt(2);
+		writeAttributes(msg, 65536);
+		attrs = msg.toByteArray();
+
+		msg.reset();
+		msg.write(SftpSubsystemChannel.SSH_FXP_DATA);
+		msg.writeInt(3);
+		msg.writeBinaryString(new byte[32768]);
+		data = msg.toByteArray();
+		msg.close();
+	}
+
+	@TearDown
+	public void teardown() throws Exception {
+		sftp.quit();
+		root.delete();
+	}
+
+	@Benchmark
+	public void parseName(Blackhole bh) throws Exception {
+		SftpMessage msg = new SftpMessage(name);
+		bh.consume(channel.extractFiles(msg, "/dir"));
+		msg.dispose();
+	}
+
+	@Benchmark
+	public void parseAttributes(Blackhole bh) throws Exception {
+		SftpMessage msg = new SftpMessage(attrs);
+		bh.consume(new SftpFileAttributes(channel, msg));
+		msg.dispose();
+	}
+
+	@Benchmark
+	public void parseData(Blackhole bh) throws Exception {
+		SftpMessage msg = new SftpMessage(data);
+		bh.consume(msg.getMessageId());
+		bh.consume(msg.readInt());
+		msg.dispose();
+	}
+
+	static void writeAttributes(ByteArrayWriter msg, long size)
+			throws Exception {
+		msg.writeInt(SftpFileAttributes.SSH_FILEXFER_ATTR_SIZE
+				| SftpFileAttributes.SSH_FILEXFER_ATTR_UIDGID
+				| SftpFileAttributes.SSH_FILEXFER_ATTR_PERMISSIONS
+				| SftpFileAttributes.SSH_FILEXFER_ATTR_ACCESSTIME);
+		msg.writeUINT64(size);
+		msg.writeInt(1000);
+		msg.writeInt(1000);
+		msg.writeInt(LoopbackSftpServer.S_IFREG | 0644);
+		msg.writeInt(1500000000);
+		msg.writeInt(1500000000);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(SftpMessageBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
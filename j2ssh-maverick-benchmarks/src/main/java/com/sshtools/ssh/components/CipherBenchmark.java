@@ -0,0 +1,106 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the cost of encrypting one packet in place with each of the
+ * default SSH2 ciphers, as the transport does for every outgoing packet.
+ * Authenticated ciphers are driven through
+ * {@link SshAEADCipher#encryptPacket(long, byte[], int, int)} so the figures
+ * include their tag. Run with <code>-prof gc</code> to see the bytes allocated
+ * per packet.
+ * 
+ * @author Lee David Painter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherBenchmark {
+
+	@Param({ "aes128-ctr", "aes256-ctr", "3des-ctr", "aes128-gcm@openssh.com",
+			"aes256-gcm@openssh.com", "chacha20-poly1305@openssh.com" })
+	String algorithm;
+
+	@Param({ "1024", "32768" })
+	int packetSize;
+
+	SshCipher cipher;
+	SshAEADCipher aead;
+	byte[] packet;
+	long sequenceNo;
+
+	@Setup
+	public void setup() throws Exception {
+
+		cipher = (SshCipher) ComponentManager.getInstance()
+				.supportedSsh2CiphersCS().getInstance(algorithm);
+
+		byte[] keydata = new byte[64];
+		for (int i = 0; i < keydata.length; i++) {
+			keydata[i] = (byte) i;
+		}
+		cipher.init(SshCipher.ENCRYPT_MODE, keydata, keydata);
+
+		if (cipher instanceof SshAEADCipher) {
+			aead = (SshAEADCipher) cipher;
+			packet = new byte[packetSize + aead.getTagLength()];
+		} else {
+			packet = new byte[packetSize];
+		}
+	}
+
+	@Benchmark
+	public void encryptPacket(Blackhole bh) throws Exception {
+		if (aead != null) {
+			aead.encryptPacket(sequenceNo++, packet, 0, packetSize);
+		} else {
+			cipher.transform(packet, 0, packet, 0, packetSize);
+		}
+		bh.consume(packet[0]);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(CipherBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
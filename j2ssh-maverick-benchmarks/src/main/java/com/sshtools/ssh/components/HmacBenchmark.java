@@ -0,0 +1,100 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the cost of signing and verifying one packet with each of the
+ * default SSH2 MAC algorithms. The MAC is written after the packet in the same
+ * array as the transport does. Run with <code>-prof gc</code> to see the bytes
+ * allocated per packet.
+ * 
+ * @author Lee David Painter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HmacBenchmark {
+
+	@Param({ "hmac-md5", "hmac-md5-96", "hmac-sha1", "hmac-sha1-96",
+			"hmac-sha2-256", "hmac-sha512", "hmac-sha2-256-etm@openssh.com",
+			"hmac-sha2-512-etm@openssh.com" })
+	String algorithm;
+
+	@Param({ "1024", "32768" })
+	int packetSize;
+
+	SshHmac mac;
+	byte[] packet;
+
+	@Setup
+	public void setup() throws Exception {
+
+		mac = (SshHmac) ComponentManager.getInstance().supportedHMacsCS()
+				.getInstance(algorithm);
+
+		byte[] keydata = new byte[64];
+		for (int i = 0; i < keydata.length; i++) {
+			keydata[i] = (byte) i;
+		}
+		mac.init(keydata);
+
+		packet = new byte[packetSize + mac.getMacLength()];
+		mac.generate(0, packet, 0, packetSize, packet, packetSize);
+	}
+
+	@Benchmark
+	public void generate(Blackhole bh) {
+		mac.generate(0, packet, 0, packetSize, packet, packetSize);
+		bh.consume(packet[packetSize]);
+	}
+
+	@Benchmark
+	public boolean verify() {
+		return mac.verify(0, packet, 0, packetSize, packet, packetSize);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(HmacBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
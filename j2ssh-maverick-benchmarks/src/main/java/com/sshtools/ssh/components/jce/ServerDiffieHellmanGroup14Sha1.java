@@ -0,0 +1,137 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components.jce;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.DHPublicKeySpec;
+
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.components.SshKeyPair;
+import com.sshtools.util.ByteArrayReader;
+import com.sshtools.util.ByteArrayWriter;
+
+/**
+ * The server side of diffie-hellman-group14-sha1, used by the loopback SSH
+ * server. The exchange hash and the secret are calculated exactly as the
+ * client calculates them, so once the exchange is complete the instance can
+ * be given to a {@link com.sshtools.ssh2.TransportProtocol} to derive the
+ * session keys.
+ * 
+ * @author Lee David Painter
+ */
+public class ServerDiffieHellmanGroup14Sha1 extends DiffieHellmanGroup14Sha1 {
+
+	/**
+	 * Process the client's SSH_MSG_KEXDH_INIT message.
+	 * 
+	 * @param clientIdentification
+	 * @param serverIdentification
+	 * @param clientKexInit
+	 * @param serverKexInit
+	 * @param hostKey
+	 *            the key pair used to sign the exchange hash
+	 * @param kexdhInit
+	 *            the SSH_MSG_KEXDH_INIT message
+	 * @return the SSH_MSG_KEXDH_REPLY message to send to the client
+	 * @throws SshException
+	 */
+	public byte[] performServerExchange(String clientIdentification,
+			String serverIdentification, byte[] clientKexInit,
+			byte[] serverKexInit, SshKeyPair hostKey, byte[] kexdhInit)
+			throws SshException {
+
+		this.clientId = clientIdentification;
+		this.serverId = serverIdentification;
+		this.clientKexInit = clientKexInit;
+		this.serverKexInit = serverKexInit;
+
+		if (kexdhInit[0] != SSH_MSG_KEXDH_INIT) {
+			throw new SshException("Key exchange failed [id=" + kexdhInit[0]
+					+ "]", SshException.KEY_EXCHANGE_FAILED);
+		}
+
+		ByteArrayReader bar = new ByteArrayReader(kexdhInit, 1,
+				kexdhInit.length - 1);
+		ByteArrayWriter reply = new ByteArrayWriter();
+		try {
+			e = bar.readBigInteger();
+
+			if (e.compareTo(ONE) <= 0 || e.compareTo(p.subtract(ONE)) >= 0) {
+				throw new SshException("Client sent an invalid DH value",
+						SshException.KEY_EXCHANGE_FAILED);
+			}
+
+			KeyPairGenerator generator = KeyPairGenerator
+					.getInstance(JCEAlgorithms.JCE_DH);
+			generator.initialize(new DHParameterSpec(p, g));
+			KeyPair pair = generator.generateKeyPair();
+			f = ((DHPublicKey) pair.getPublic()).getY();
+
+			KeyAgreement agreement = KeyAgreement
+					.getInstance(JCEAlgorithms.JCE_DH);
+			agreement.init(pair.getPrivate());
+			agreement.doPhase(
+					KeyFactory.getInstance(JCEAlgorithms.JCE_DH)
+							.generatePublic(new DHPublicKeySpec(e, p, g)),
+					true);
+			secret = new BigInteger(1, agreement.generateSecret());
+
+			this.hostKey = hostKey.getPublicKey().getEncoded();
+
+			calculateExchangeHash();
+
+			ByteArrayWriter sig = new ByteArrayWriter();
+			try {
+				sig.writeString(hostKey.getPublicKey().getAlgorithm());
+				sig.writeBinaryString(hostKey.getPrivateKey().sign(
+						exchangeHash));
+				signature = sig.toByteArray();
+			} finally {
+				sig.close();
+			}
+
+			reply.write(SSH_MSG_KEXDH_REPLY);
+			reply.writeBinaryString(this.hostKey);
+			reply.writeBigInteger(f);
+			reply.writeBinaryString(signature);
+			return reply.toByteArray();
+		} catch (SshException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new SshException("Failed to complete the DH key exchange",
+					SshException.KEY_EXCHANGE_FAILED, ex);
+		} finally {
+			try {
+				bar.close();
+				reply.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+}
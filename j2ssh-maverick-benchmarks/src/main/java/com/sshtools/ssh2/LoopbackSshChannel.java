@@ -0,0 +1,293 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import com.sshtools.util.ByteArrayWriter;
+import com.sshtools.util.LoopbackPipe;
+
+/**
+ * The server end of a channel opened on a {@link LoopbackSshServer}. Data
+ * received from the client is buffered in a pipe as large as the window
+ * advertised to the client, so the connection thread never blocks delivering
+ * it, and the window is adjusted as the data is consumed. Data written to the
+ * output streams is split into packets that fit the client's window.
+ * 
+ * @author Lee David Painter
+ */
+class LoopbackSshChannel {
+
+	static final int WINDOW_SPACE = 1048576;
+	static final int PACKET_SIZE = 32768;
+
+	LoopbackSshConnection connection;
+	String type;
+	int localId;
+	int remoteId;
+	long remoteWindow;
+	int remotePacket;
+
+	LoopbackPipe input = new LoopbackPipe(WINDOW_SPACE);
+	int consumed;
+	boolean eofSent;
+	boolean closeSent;
+	boolean closed;
+
+	Process process;
+	Socket socket;
+
+	LoopbackSshChannel(LoopbackSshConnection connection, String type,
+			int localId, int remoteId, long remoteWindow, int remotePacket) {
+		this.connection = connection;
+		this.type = type;
+		this.localId = localId;
+		this.remoteId = remoteId;
+		this.remoteWindow = remoteWindow;
+		this.remotePacket = remotePacket;
+	}
+
+	/**
+	 * Get the stream of data sent by the client.
+	 */
+	InputStream getInputStream() {
+		return new FilterInputStream(input.getInputStream()) {
+			public int read() throws IOException {
+				int b = super.read();
+				if (b > -1) {
+					consumed(1);
+				}
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0) {
+					consumed(read);
+				}
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Get a stream that sends SSH_MSG_CHANNEL_DATA. Closing it sends
+	 * SSH_MSG_CHANNEL_EOF followed by SSH_MSG_CHANNEL_CLOSE.
+	 */
+	OutputStream getOutputStream() {
+		return new ChannelOutputStream(0);
+	}
+
+	/**
+	 * Get a stream that sends SSH_MSG_CHANNEL_EXTENDED_DATA of type
+	 * SSH_EXTENDED_DATA_STDERR. Closing it has no effect on the channel.
+	 */
+	OutputStream getStderrOutputStream() {
+		return new ChannelOutputStream(1);
+	}
+
+	void dataReceived(byte[] buf, int off, int len) throws IOException {
+		if (!input.isClosed()) {
+			input.getOutputStream().write(buf, off, len);
+		}
+	}
+
+	void eofReceived() {
+		input.close();
+	}
+
+	synchronized void windowAdjusted(long bytes) {
+		remoteWindow += bytes;
+		notifyAll();
+	}
+
+	void consumed(int count) throws IOException {
+		int adjust = 0;
+		synchronized (this) {
+			consumed += count;
+			if (consumed >= WINDOW_SPACE / 2 && !closed) {
+				adjust = consumed;
+				consumed = 0;
+			}
+		}
+		if (adjust > 0) {
+			ByteArrayWriter msg = new ByteArrayWriter(9);
+			try {
+				msg.write(Ssh2Channel.SSH_MSG_WINDOW_ADJUST);
+				msg.writeInt(remoteId);
+				msg.writeInt(adjust);
+				connection.sendMessage(msg.toByteArray());
+			} finally {
+				msg.close();
+			}
+		}
+	}
+
+	void sendData(int dataType, byte[] buf, int off, int len)
+			throws IOException {
+
+		int header = dataType == 0 ? 9 : 13;
+
+		while (len > 0) {
+			int count;
+			synchronized (this) {
+				while (remoteWindow <= 0 && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				if (closed || eofSent) {
+					throw new IOException("Channel is closed");
+				}
+				count = (int) Math.min(Math.min(len, remoteWindow),
+						remotePacket);
+				remoteWindow -= count;
+			}
+
+			byte[] msg = new byte[header + count];
+			int pos = 0;
+			if (dataType == 0) {
+				msg[pos++] = Ssh2Channel.SSH_MSG_CHANNEL_DATA;
+				pos = putInt(msg, pos, remoteId);
+			} else {
+				msg[pos++] = Ssh2Channel.SSH_MSG_CHANNEL_EXTENDED_DATA;
+				pos = putInt(msg, pos, remoteId);
+				pos = putInt(msg, pos, dataType);
+			}
+			pos = putInt(msg, pos, count);
+			System.arraycopy(buf, off, msg, pos, count);
+			connection.sendMessage(msg);
+
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Send the exit status of a command.
+	 */
+	void sendExitStatus(int status) throws IOException {
+		ByteArrayWriter msg = new ByteArrayWriter();
+		try {
+			msg.write(Ssh2Channel.SSH_MSG_CHANNEL_REQUEST);
+			msg.writeInt(remoteId);
+			msg.writeString("exit-status");
+			msg.writeBoolean(false);
+			msg.writeInt(status);
+			connection.sendMessage(msg.toByteArray());
+		} finally {
+			msg.close();
+		}
+	}
+
+	/**
+	 * Send SSH_MSG_CHANNEL_EOF and SSH_MSG_CHANNEL_CLOSE unless they have
+	 * already been sent.
+	 */
+	void close() {
+		boolean sendEOF;
+		boolean sendClose;
+		synchronized (this) {
+			sendEOF = !eofSent && !closed;
+			sendClose = !closeSent;
+			eofSent = true;
+			closeSent = true;
+			notifyAll();
+		}
+
+		try {
+			if (sendEOF) {
+				connection.sendMessage(new byte[] {
+						Ssh2Channel.SSH_MSG_CHANNEL_EOF,
+						(byte) (remoteId >> 24), (byte) (remoteId >> 16),
+						(byte) (remoteId >> 8), (byte) remoteId });
+			}
+			if (sendClose) {
+				connection.sendMessage(new byte[] {
+						Ssh2Channel.SSH_MSG_CHANNEL_CLOSE,
+						(byte) (remoteId >> 24), (byte) (remoteId >> 16),
+						(byte) (remoteId >> 8), (byte) remoteId });
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * The client has closed the channel; release everything attached to it.
+	 */
+	void closeReceived() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+
+		input.close();
+		close();
+
+		if (process != null) {
+			process.destroy();
+		}
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	static int putInt(byte[] buf, int pos, int value) {
+		buf[pos++] = (byte) (value >> 24);
+		buf[pos++] = (byte) (value >> 16);
+		buf[pos++] = (byte) (value >> 8);
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+
+	class ChannelOutputStream extends OutputStream {
+
+		int dataType;
+
+		ChannelOutputStream(int dataType) {
+			this.dataType = dataType;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			sendData(dataType, b, off, len);
+		}
+
+		public void close() {
+			if (dataType == 0) {
+				LoopbackSshChannel.this.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,666 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import com.sshtools.logging.Log;
+import com.sshtools.sftp.LoopbackSftpServer;
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.SshIOException;
+import com.sshtools.ssh.SshTransport;
+import com.sshtools.ssh.components.ComponentManager;
+import com.sshtools.ssh.components.SshAEADCipher;
+import com.sshtools.ssh.components.SshCipher;
+import com.sshtools.ssh.components.SshHmac;
+import com.sshtools.ssh.components.jce.ServerDiffieHellmanGroup14Sha1;
+import com.sshtools.util.ByteArrayReader;
+import com.sshtools.util.ByteArrayWriter;
+import com.sshtools.util.IOStreamConnector;
+import com.sshtools.util.PacketBuffer;
+
+/**
+ * A single connection to a {@link LoopbackSshServer}. The packets are framed,
+ * encrypted and verified by a {@link TransportProtocol} in the server role;
+ * this class performs the server side of key exchange, password
+ * authentication and the connection protocol for session and direct-tcpip
+ * channels.
+ * 
+ * @author Lee David Painter
+ */
+class LoopbackSshConnection implements Runnable {
+
+	static final String IDENTIFICATION = "SSH-2.0-J2SSH_Maverick_Loopback";
+
+	static final int SSH_OPEN_ADMINISTRATIVELY_PROHIBITED = 1;
+	static final int SSH_OPEN_CONNECT_FAILED = 2;
+	static final int SSH_OPEN_UNKNOWN_CHANNEL_TYPE = 3;
+
+	LoopbackSshServer server;
+	SshTransport io;
+	TransportProtocol transport = new TransportProtocol();
+	String clientIdentification;
+	Hashtable<Integer, LoopbackSshChannel> channels = new Hashtable<Integer, LoopbackSshChannel>();
+	int nextChannelId;
+	boolean authenticated;
+
+	LoopbackSshConnection(LoopbackSshServer server, SshTransport io) {
+		this.server = server;
+		this.io = io;
+	}
+
+	public void run() {
+		try {
+			OutputStream out = io.getOutputStream();
+			out.write((IDENTIFICATION + "\r\n").getBytes());
+			out.flush();
+			clientIdentification = readIdentification(io.getInputStream());
+
+			Ssh2Context context = new Ssh2Context();
+			context.setKeyReExchangeDisabled(true);
+
+			transport.transportContext = context;
+			transport.provider = io;
+			transport.transportIn = new DataInputStream(io.getInputStream());
+			transport.transportOut = out;
+			transport.localIdentification = IDENTIFICATION;
+			transport.remoteIdentification = clientIdentification;
+			transport.incomingMessage = new byte[transport.incomingCipherLength];
+			transport.currentState = TransportProtocol.NEGOTIATING_PROTOCOL;
+
+			byte[] msg = readTransportMessage();
+			if (msg[0] != TransportProtocol.SSH_MSG_KEX_INIT) {
+				throw new SshException("Expected SSH_MSG_KEX_INIT [id="
+						+ msg[0] + "]", SshException.PROTOCOL_VIOLATION);
+			}
+			performKeyExchange(msg);
+
+			while (transport.isConnected()) {
+				processMessage(transport.readPacket());
+			}
+		} catch (Throwable t) {
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Loopback connection terminated", t);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Close the connection and every channel open on it.
+	 */
+	void close() {
+		transport.currentState = TransportProtocol.DISCONNECTED;
+		for (Enumeration<LoopbackSshChannel> e = channels.elements(); e
+				.hasMoreElements();) {
+			e.nextElement().closeReceived();
+		}
+		channels.clear();
+		try {
+			io.close();
+		} catch (IOException e) {
+		}
+		server.connections.removeElement(this);
+	}
+
+	void sendMessage(byte[] msg) throws IOException {
+		try {
+			transport.sendMessage(msg, true);
+		} catch (SshException e) {
+			throw new SshIOException(e);
+		}
+	}
+
+	String readIdentification(InputStream in) throws IOException {
+		StringBuffer line = new StringBuffer();
+		int ch;
+		while ((ch = in.read()) != '\n') {
+			if (ch == -1) {
+				throw new IOException("EOF reading client identification");
+			}
+			if (ch != '\r') {
+				line.append((char) ch);
+			}
+			if (line.length() > 255) {
+				throw new IOException("Client identification is too long");
+			}
+		}
+		if (!line.toString().startsWith("SSH-2.0-")) {
+			throw new IOException("Unsupported client identification "
+					+ line);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Read the next message of a key exchange, skipping any
+	 * SSH_MSG_IGNORE or SSH_MSG_DEBUG.
+	 */
+	byte[] readTransportMessage() throws SshException {
+		byte[] msg;
+		do {
+			msg = transport.readMessage();
+			if (msg[0] == TransportProtocol.SSH_MSG_DISCONNECT) {
+				transport.processMessage(msg);
+			}
+		} while (msg[0] == TransportProtocol.SSH_MSG_IGNORE
+				|| msg[0] == TransportProtocol.SSH_MSG_DEBUG);
+		return msg;
+	}
+
+	void performKeyExchange(byte[] clientKexInit) throws SshException,
+			IOException {
+
+		Ssh2Context context = transport.transportContext;
+		String hostKeyAlgorithm = server.getHostKey().getPublicKey()
+				.getAlgorithm();
+		String ciphers = context.supportedCiphersCS().list(
+				context.getPreferredCipherCS());
+		String macs = context.supportedMacsCS().list(
+				context.getPreferredMacCS());
+
+		byte[] serverKexInit;
+		ByteArrayWriter baw = new ByteArrayWriter();
+		try {
+			synchronized (transport.kexqueue) {
+				transport.currentState = TransportProtocol.PERFORMING_KEYEXCHANGE;
+
+				byte[] cookie = new byte[16];
+				ComponentManager.getInstance().getRND().nextBytes(cookie);
+				baw.write(TransportProtocol.SSH_MSG_KEX_INIT);
+				baw.write(cookie);
+				baw.writeString(ServerDiffieHellmanGroup14Sha1.DIFFIE_HELLMAN_GROUP14_SHA1);
+				baw.writeString(hostKeyAlgorithm);
+				baw.writeString(ciphers);
+				baw.writeString(ciphers);
+				baw.writeString(macs);
+				baw.writeString(macs);
+				baw.writeString(Ssh2Context.COMPRESSION_NONE);
+				baw.writeString(Ssh2Context.COMPRESSION_NONE);
+				baw.writeString("");
+				baw.writeString("");
+				baw.writeBoolean(false);
+				baw.writeInt(0);
+				serverKexInit = baw.toByteArray();
+				transport.sendMessage(serverKexInit, true);
+			}
+		} finally {
+			baw.close();
+		}
+
+		// The client's preferences decide each component
+		ByteArrayReader bar = new ByteArrayReader(clientKexInit, 17,
+				clientKexInit.length - 17);
+		SshCipher encryption;
+		SshCipher decryption;
+		SshHmac outgoingMac = null;
+		SshHmac incomingMac = null;
+		try {
+			transport.selectNegotiatedComponent(bar.readString(),
+					ServerDiffieHellmanGroup14Sha1.DIFFIE_HELLMAN_GROUP14_SHA1);
+			transport.selectNegotiatedComponent(bar.readString(),
+					hostKeyAlgorithm);
+			decryption = (SshCipher) context.supportedCiphersCS()
+					.getInstance(
+							transport.selectNegotiatedComponent(
+									bar.readString(), ciphers));
+			encryption = (SshCipher) context.supportedCiphersSC()
+					.getInstance(
+							transport.selectNegotiatedComponent(
+									bar.readString(), ciphers));
+			String macCS = bar.readString();
+			String macSC = bar.readString();
+			if (!(decryption instanceof SshAEADCipher)) {
+				incomingMac = (SshHmac) context.supportedMacsCS().getInstance(
+						transport.selectNegotiatedComponent(macCS, macs));
+			}
+			if (!(encryption instanceof SshAEADCipher)) {
+				outgoingMac = (SshHmac) context.supportedMacsSC().getInstance(
+						transport.selectNegotiatedComponent(macSC, macs));
+			}
+			transport.selectNegotiatedComponent(bar.readString(),
+					Ssh2Context.COMPRESSION_NONE);
+			transport.selectNegotiatedComponent(bar.readString(),
+					Ssh2Context.COMPRESSION_NONE);
+		} finally {
+			bar.close();
+		}
+
+		ServerDiffieHellmanGroup14Sha1 keyExchange = new ServerDiffieHellmanGroup14Sha1();
+		transport.keyExchange = keyExchange;
+
+		sendMessage(keyExchange.performServerExchange(clientIdentification,
+				IDENTIFICATION, clientKexInit, serverKexInit,
+				server.getHostKey(), readTransportMessage()));
+
+		if (transport.sessionIdentifier == null) {
+			transport.sessionIdentifier = keyExchange.getExchangeHash();
+		}
+
+		sendMessage(new byte[] { TransportProtocol.SSH_MSG_NEWKEYS });
+
+		// The server encrypts with the server to client keys
+		encryption.init(SshCipher.ENCRYPT_MODE, transport.makeSshKey('B'),
+				transport.makeSshKey('D'));
+		transport.outgoingCipherLength = encryption.getBlockSize();
+		if (encryption instanceof SshAEADCipher) {
+			transport.outgoingMacLength = ((SshAEADCipher) encryption)
+					.getTagLength();
+		} else {
+			outgoingMac.init(transport.makeSshKey('F'));
+			transport.outgoingMacLength = outgoingMac.getMacLength();
+		}
+		transport.encryption = encryption;
+		transport.outgoingMac = outgoingMac;
+
+		byte[] msg = readTransportMessage();
+		if (msg[0] != TransportProtocol.SSH_MSG_NEWKEYS) {
+			throw new SshException("Expected SSH_MSG_NEWKEYS [id=" + msg[0]
+					+ "]", SshException.PROTOCOL_VIOLATION);
+		}
+
+		decryption.init(SshCipher.DECRYPT_MODE, transport.makeSshKey('A'),
+				transport.makeSshKey('C'));
+		transport.incomingCipherLength = decryption.getBlockSize();
+		if (decryption instanceof SshAEADCipher) {
+			transport.incomingMacLength = ((SshAEADCipher) decryption)
+					.getTagLength();
+		} else {
+			incomingMac.init(transport.makeSshKey('E'));
+			transport.incomingMacLength = incomingMac.getMacLength();
+		}
+		transport.decryption = decryption;
+		transport.incomingMac = incomingMac;
+
+		synchronized (transport.kexqueue) {
+			transport.currentState = TransportProtocol.CONNECTED;
+			for (Enumeration<byte[]> e = transport.kexqueue.elements(); e
+					.hasMoreElements();) {
+				transport.sendMessage(e.nextElement(), true);
+			}
+			transport.kexqueue.removeAllElements();
+		}
+	}
+
+	void processMessage(PacketBuffer packet) throws SshException,
+			IOException {
+
+		byte[] msg;
+		try {
+			if (packet.get(0) == Ssh2Channel.SSH_MSG_CHANNEL_DATA) {
+				// Hand the data straight from the packet buffer to the channel
+				byte[] buf = packet.array();
+				int off = packet.offset();
+				LoopbackSshChannel channel = getChannel(readInt(buf, off + 1));
+				channel.dataReceived(buf, off + 9, readInt(buf, off + 5));
+				return;
+			}
+			msg = packet.toByteArray();
+		} finally {
+			packet.release();
+		}
+
+		switch (msg[0]) {
+		case TransportProtocol.SSH_MSG_KEX_INIT:
+			performKeyExchange(msg);
+			break;
+		case TransportProtocol.SSH_MSG_DISCONNECT:
+			transport.currentState = TransportProtocol.DISCONNECTED;
+			break;
+		case TransportProtocol.SSH_MSG_IGNORE:
+		case TransportProtocol.SSH_MSG_DEBUG:
+		case TransportProtocol.SSH_MSG_UNIMPLEMENTED:
+		case Ssh2Channel.SSH_MSG_CHANNEL_SUCCESS:
+		case Ssh2Channel.SSH_MSG_CHANNEL_FAILURE:
+			break;
+		case TransportProtocol.SSH_MSG_SERVICE_REQUEST: {
+			ByteArrayWriter baw = new ByteArrayWriter();
+			try {
+				baw.write(TransportProtocol.SSH_MSG_SERVICE_ACCEPT);
+				baw.writeBinaryString(readString(msg, 1));
+				sendMessage(baw.toByteArray());
+			} finally {
+				baw.close();
+			}
+			break;
+		}
+		case AuthenticationProtocol.SSH_MSG_USERAUTH_REQUEST:
+			processAuthentication(msg);
+			break;
+		case ConnectionProtocol.SSH_MSG_GLOBAL_REQUEST: {
+			ByteArrayReader bar = new ByteArrayReader(msg, 1, msg.length - 1);
+			try {
+				bar.readString();
+				if (bar.readBoolean()) {
+					sendMessage(new byte[] { ConnectionProtocol.SSH_MSG_REQUEST_FAILURE });
+				}
+			} finally {
+				bar.close();
+			}
+			break;
+		}
+		case ConnectionProtocol.SSH_MSG_CHANNEL_OPEN:
+			openChannel(msg);
+			break;
+		case Ssh2Channel.SSH_MSG_CHANNEL_REQUEST:
+			processChannelRequest(msg);
+			break;
+		case Ssh2Channel.SSH_MSG_WINDOW_ADJUST:
+			getChannel(readInt(msg, 1)).windowAdjusted(
+					readInt(msg, 5) & 0xFFFFFFFFL);
+			break;
+		case Ssh2Channel.SSH_MSG_CHANNEL_EXTENDED_DATA:
+			// Nothing reads extended data sent by the client, so give the
+			// window straight back
+			getChannel(readInt(msg, 1)).consumed(readInt(msg, 9));
+			break;
+		case Ssh2Channel.SSH_MSG_CHANNEL_EOF:
+			getChannel(readInt(msg, 1)).eofReceived();
+			break;
+		case Ssh2Channel.SSH_MSG_CHANNEL_CLOSE: {
+			LoopbackSshChannel channel = getChannel(readInt(msg, 1));
+			channels.remove(Integer.valueOf(channel.localId));
+			channel.closeReceived();
+			break;
+		}
+		default: {
+			byte[] unimplemented = new byte[5];
+			unimplemented[0] = TransportProtocol.SSH_MSG_UNIMPLEMENTED;
+			LoopbackSshChannel.putInt(unimplemented, 1,
+					(int) transport.incomingSequence - 1);
+			sendMessage(unimplemented);
+		}
+		}
+	}
+
+	void processAuthentication(byte[] msg) throws IOException {
+
+		ByteArrayReader bar = new ByteArrayReader(msg, 1, msg.length - 1);
+		ByteArrayWriter baw = new ByteArrayWriter();
+		try {
+			bar.readString();
+			bar.readString();
+			String method = bar.readString();
+
+			if (method.equals("password")) {
+				bar.readBoolean();
+				String password = bar.readString();
+				authenticated = server.password.equals(password);
+			}
+
+			if (authenticated) {
+				baw.write(AuthenticationProtocol.SSH_MSG_USERAUTH_SUCCESS);
+			} else {
+				baw.write(AuthenticationProtocol.SSH_MSG_USERAUTH_FAILURE);
+				baw.writeString("password");
+				baw.writeBoolean(false);
+			}
+			sendMessage(baw.toByteArray());
+		} finally {
+			bar.close();
+			baw.close();
+		}
+	}
+
+	void openChannel(byte[] msg) throws IOException {
+
+		ByteArrayReader bar = new ByteArrayReader(msg, 1, msg.length - 1);
+		try {
+			String type = bar.readString();
+			int remoteId = (int) bar.readInt();
+			long window = bar.readInt();
+			int packetSize = (int) bar.readInt();
+
+			if (!authenticated) {
+				openFailure(remoteId, SSH_OPEN_ADMINISTRATIVELY_PROHIBITED,
+						"Not authenticated");
+				return;
+			}
+
+			LoopbackSshChannel channel = new LoopbackSshChannel(this, type,
+					nextChannelId++, remoteId, window, packetSize);
+
+			if (type.equals("session")) {
+				openConfirmation(channel);
+			} else if (type.equals("direct-tcpip")) {
+				String host = bar.readString();
+				int port = (int) bar.readInt();
+				try {
+					InetAddress address = InetAddress.getByName(host);
+					if (!address.isLoopbackAddress()) {
+						openFailure(remoteId,
+								SSH_OPEN_ADMINISTRATIVELY_PROHIBITED,
+								"Only loopback destinations are allowed");
+						return;
+					}
+					channel.socket = new Socket(address, port);
+					channel.socket.setTcpNoDelay(true);
+				} catch (IOException e) {
+					openFailure(remoteId, SSH_OPEN_CONNECT_FAILED,
+							e.getMessage());
+					return;
+				}
+				openConfirmation(channel);
+				startForwarding(channel);
+			} else {
+				openFailure(remoteId, SSH_OPEN_UNKNOWN_CHANNEL_TYPE,
+						"Unsupported channel type " + type);
+			}
+		} finally {
+			bar.close();
+		}
+	}
+
+	void openConfirmation(LoopbackSshChannel channel) throws IOException {
+		channels.put(Integer.valueOf(channel.localId), channel);
+
+		ByteArrayWriter baw = new ByteArrayWriter();
+		try {
+			baw.write(ConnectionProtocol.SSH_MSG_CHANNEL_OPEN_CONFIRMATION);
+			baw.writeInt(channel.remoteId);
+			baw.writeInt(channel.localId);
+			baw.writeInt(LoopbackSshChannel.WINDOW_SPACE);
+			baw.writeInt(LoopbackSshChannel.PACKET_SIZE);
+			sendMessage(baw.toByteArray());
+		} finally {
+			baw.close();
+		}
+	}
+
+	void openFailure(int remoteId, int reason, String description)
+			throws IOException {
+		ByteArrayWriter baw = new ByteArrayWriter();
+		try {
+			baw.write(ConnectionProtocol.SSH_MSG_CHANNEL_OPEN_FAILURE);
+			baw.writeInt(remoteId);
+			baw.writeInt(reason);
+			baw.writeString(description == null ? "" : description);
+			baw.writeString("");
+			sendMessage(baw.toByteArray());
+		} finally {
+			baw.close();
+		}
+	}
+
+	void processChannelRequest(byte[] msg) throws IOException {
+
+		ByteArrayReader bar = new ByteArrayReader(msg, 1, msg.length - 1);
+		try {
+			LoopbackSshChannel channel = getChannel((int) bar.readInt());
+			String request = bar.readString();
+			boolean wantReply = bar.readBoolean();
+
+			Runnable task = null;
+			if (channel.type.equals("session") && channel.process == null) {
+				if (request.equals("exec")) {
+					task = startCommand(channel, bar.readString());
+				} else if (request.equals("subsystem")
+						&& bar.readString().equals("sftp")) {
+					task = startSftp(channel);
+				}
+			}
+
+			// The reply must reach the client before any output
+			if (wantReply) {
+				byte[] reply = new byte[5];
+				reply[0] = (byte) (task != null ? Ssh2Channel.SSH_MSG_CHANNEL_SUCCESS
+						: Ssh2Channel.SSH_MSG_CHANNEL_FAILURE);
+				LoopbackSshChannel.putInt(reply, 1, channel.remoteId);
+				sendMessage(reply);
+			}
+
+			if (task != null) {
+				startThread(task, "LoopbackSshServer-" + request + "-"
+						+ channel.localId);
+			}
+		} finally {
+			bar.close();
+		}
+	}
+
+	Runnable startCommand(final LoopbackSshChannel channel, String command) {
+
+		ProcessBuilder builder = new ProcessBuilder("/bin/sh", "-c", command);
+		builder.directory(server.root);
+		try {
+			channel.process = builder.start();
+		} catch (IOException e) {
+			return null;
+		}
+
+		return new Runnable() {
+			public void run() {
+				Process process = channel.process;
+				IOStreamConnector stdin = new IOStreamConnector();
+				stdin.connect(channel.getInputStream(),
+						process.getOutputStream());
+
+				final InputStream stderr = process.getErrorStream();
+				Thread errors = startThread(new Runnable() {
+					public void run() {
+						copy(stderr, channel.getStderrOutputStream());
+					}
+				}, "LoopbackSshServer-stderr-" + channel.localId);
+
+				copy(process.getInputStream(), channel.getOutputStream());
+
+				try {
+					errors.join();
+					channel.sendExitStatus(process.waitFor());
+				} catch (InterruptedException e) {
+				} catch (IOException e) {
+				}
+				channel.close();
+			}
+		};
+	}
+
+	Runnable startSftp(final LoopbackSshChannel channel) {
+		return new Runnable() {
+			public void run() {
+				try {
+					new LoopbackSftpServer(server.root).serve(
+							channel.getInputStream(), channel.getOutputStream());
+				} catch (IOException e) {
+				}
+				channel.close();
+			}
+		};
+	}
+
+	void startForwarding(final LoopbackSshChannel channel) throws IOException {
+
+		final Socket socket = channel.socket;
+
+		IOStreamConnector fromSocket = new IOStreamConnector();
+		fromSocket.setCloseInput(false);
+		fromSocket.connect(socket.getInputStream(), channel.getOutputStream());
+
+		IOStreamConnector toSocket = new IOStreamConnector();
+		toSocket.setCloseInput(false);
+		toSocket.setCloseOutput(false);
+		toSocket.addListener(new IOStreamConnector.IOStreamConnectorListener() {
+			public void connectorClosed(IOStreamConnector connector) {
+				try {
+					socket.shutdownOutput();
+				} catch (IOException e) {
+				}
+			}
+
+			public void connectorTimeout(IOStreamConnector connector) {
+			}
+
+			public void dataTransfered(byte[] data, int count) {
+			}
+		});
+		toSocket.connect(channel.getInputStream(), socket.getOutputStream());
+	}
+
+	static void copy(InputStream in, OutputStream out) {
+		byte[] buf = new byte[LoopbackSshChannel.PACKET_SIZE];
+		try {
+			int read;
+			while ((read = in.read(buf)) > -1) {
+				out.write(buf, 0, read);
+			}
+		} catch (IOException e) {
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	static Thread startThread(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	LoopbackSshChannel getChannel(int id) throws IOException {
+		LoopbackSshChannel channel = channels.get(Integer.valueOf(id));
+		if (channel == null) {
+			throw new IOException("Invalid channel id " + id);
+		}
+		return channel;
+	}
+
+	static int readInt(byte[] buf, int off) {
+		return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16)
+				| ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+	}
+
+	static byte[] readString(byte[] buf, int off) {
+		byte[] str = new byte[readInt(buf, off)];
+		System.arraycopy(buf, off + 4, str, 0, str.length);
+		return str;
+	}
+}
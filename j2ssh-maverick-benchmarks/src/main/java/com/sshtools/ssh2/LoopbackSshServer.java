@@ -0,0 +1,266 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Vector;
+
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.SshTransport;
+import com.sshtools.ssh.components.ComponentManager;
+import com.sshtools.ssh.components.SshKeyPair;
+import com.sshtools.util.LoopbackPipe;
+
+/**
+ * A minimal SSH2 server that runs in the same process as the client, so that
+ * the client APIs can be measured end to end without a live sshd. It is
+ * built on the client's own {@link TransportProtocol} framing and the ciphers
+ * and MACs of the {@link ComponentManager}, and supports:
+ * 
+ * <ul>
+ * <li>diffie-hellman-group14-sha1 key exchange with a generated ssh-rsa host
+ * key, and key re-exchange when the client requests it</li>
+ * <li>every cipher and MAC supported by the client, negotiated in the client's
+ * order of preference</li>
+ * <li>password authentication with a single password, randomly generated
+ * unless one is set</li>
+ * <li>session channels with exec requests run by /bin/sh in the root
+ * directory, and the sftp subsystem served by
+ * {@link com.sshtools.sftp.LoopbackSftpServer}</li>
+ * <li>direct-tcpip channels to destinations on the loopback interface</li>
+ * </ul>
+ * 
+ * <p>
+ * Clients connect either through in-memory pipes with {@link #connect()} or
+ * over a socket on the loopback interface after calling {@link #listen()}:
+ * </p>
+ * 
+ * <blockquote>
+ * 
+ * <pre>
+ * LoopbackSshServer server = new LoopbackSshServer(root);
+ * SshConnector con = SshConnector.createInstance();
+ * SshClient ssh = con.connect(server.connect(), &quot;user&quot;);
+ * PasswordAuthentication pwd = new PasswordAuthentication();
+ * pwd.setPassword(server.getPassword());
+ * ssh.authenticate(pwd);
+ * </pre>
+ * 
+ * </blockquote>
+ * 
+ * <p>
+ * It is intended only for benchmarks and tests. Any user name is accepted
+ * with the password, commands run with the rights of the process, and the
+ * host key changes with each instance.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class LoopbackSshServer {
+
+	File root;
+	String password;
+	SshKeyPair hostKey;
+	ServerSocket serverSocket;
+	Vector<LoopbackSshConnection> connections = new Vector<LoopbackSshConnection>();
+
+	/**
+	 * Create a server whose commands and SFTP subsystem work on the files
+	 * beneath a directory.
+	 * 
+	 * @param root
+	 * @throws SshException
+	 */
+	public LoopbackSshServer(File root) throws SshException {
+		this.root = root;
+		this.hostKey = ComponentManager.getInstance().generateRsaKeyPair(2048);
+
+		byte[] random = new byte[16];
+		ComponentManager.getInstance().getRND().nextBytes(random);
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < random.length; i++) {
+			buf.append(Integer.toHexString((random[i] & 0xFF) | 0x100)
+					.substring(1));
+		}
+		this.password = buf.toString();
+	}
+
+	/**
+	 * Set the password that clients must supply in place of the one
+	 * generated for the server.
+	 * 
+	 * @param password
+	 */
+	public void setPassword(String password) {
+		if (password == null) {
+			throw new IllegalArgumentException("A password is required");
+		}
+		this.password = password;
+	}
+
+	/**
+	 * Get the password that clients must supply.
+	 * 
+	 * @return String
+	 */
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * Get the host key of the server.
+	 * 
+	 * @return SshKeyPair
+	 */
+	public SshKeyPair getHostKey() {
+		return hostKey;
+	}
+
+	/**
+	 * Start a connection over in-memory pipes and return the client's end of
+	 * it, for use with {@link com.sshtools.ssh.SshConnector}.
+	 * 
+	 * @return SshTransport
+	 */
+	public SshTransport connect() {
+		LoopbackPipe toServer = new LoopbackPipe();
+		LoopbackPipe fromServer = new LoopbackPipe();
+
+		start(new LoopbackTransport(toServer.getInputStream(),
+				fromServer.getOutputStream(), null), "pipe");
+
+		return new LoopbackTransport(fromServer.getInputStream(),
+				toServer.getOutputStream(), null);
+	}
+
+	/**
+	 * Listen for connections on an ephemeral port of the loopback interface.
+	 * 
+	 * @return the port number
+	 * @throws IOException
+	 */
+	public synchronized int listen() throws IOException {
+
+		if (serverSocket == null) {
+			serverSocket = new ServerSocket(0, 50,
+					InetAddress.getByName("127.0.0.1"));
+
+			final ServerSocket listening = serverSocket;
+			LoopbackSshConnection.startThread(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							Socket socket = listening.accept();
+							socket.setTcpNoDelay(true);
+							start(new LoopbackTransport(
+									socket.getInputStream(),
+									socket.getOutputStream(), socket),
+									socket.getRemoteSocketAddress()
+											.toString());
+						}
+					} catch (IOException e) {
+					}
+				}
+			}, "LoopbackSshServer-accept");
+		}
+
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stop listening and close all connections.
+	 */
+	public synchronized void close() {
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+			}
+			serverSocket = null;
+		}
+
+		LoopbackSshConnection[] open = new LoopbackSshConnection[connections
+				.size()];
+		connections.copyInto(open);
+		for (int i = 0; i < open.length; i++) {
+			open[i].close();
+		}
+	}
+
+	void start(SshTransport io, String name) {
+		LoopbackSshConnection connection = new LoopbackSshConnection(this, io);
+		connections.addElement(connection);
+		LoopbackSshConnection.startThread(connection, "LoopbackSshServer-"
+				+ name);
+	}
+
+	/**
+	 * An {@link SshTransport} over a pair of streams, optionally belonging to
+	 * a socket.
+	 */
+	static class LoopbackTransport implements SshTransport {
+
+		InputStream in;
+		OutputStream out;
+		Socket socket;
+
+		LoopbackTransport(InputStream in, OutputStream out, Socket socket) {
+			this.in = in;
+			this.out = out;
+			this.socket = socket;
+		}
+
+		public InputStream getInputStream() {
+			return in;
+		}
+
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		public String getHost() {
+			return "127.0.0.1";
+		}
+
+		public int getPort() {
+			return socket == null ? 0 : socket.getPort();
+		}
+
+		public SshTransport duplicate() throws IOException {
+			throw new IOException("The loopback transport cannot be duplicated");
+		}
+
+		public void close() throws IOException {
+			if (socket != null) {
+				socket.close();
+			} else {
+				in.close();
+				out.close();
+			}
+		}
+	}
+}
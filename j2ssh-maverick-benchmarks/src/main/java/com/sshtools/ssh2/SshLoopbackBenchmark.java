@@ -0,0 +1,183 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sshtools.net.SocketTransport;
+import com.sshtools.sftp.SftpClient;
+import com.sshtools.ssh.HostKeyVerification;
+import com.sshtools.ssh.PasswordAuthentication;
+import com.sshtools.ssh.SshConnector;
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.SshSession;
+import com.sshtools.ssh.SshTransport;
+import com.sshtools.ssh.components.SshPublicKey;
+
+/**
+ * Measures SFTP transfers and channel set up through the whole client stack
+ * against a {@link LoopbackSshServer}, so that the figures include
+ * encryption, channel flow control and the connection threads as well as the
+ * SFTP layer measured by
+ * {@link com.sshtools.sftp.SftpLoopbackBenchmark}. The client connects
+ * either through in-memory pipes or over a socket on the loopback interface.
+ * 
+ * @author Lee David Painter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SshLoopbackBenchmark {
+
+	@Param({ "aes128-ctr", "aes128-gcm@openssh.com",
+			"chacha20-poly1305@openssh.com" })
+	String cipher;
+
+	@Param({ "pipe", "socket" })
+	String transport;
+
+	@Param({ "16777216" })
+	int fileSize;
+
+	File root;
+	File local;
+	File downloaded;
+	LoopbackSshServer server;
+	Ssh2Client ssh;
+	SftpClient sftp;
+
+	@Setup
+	public void setup() throws Exception {
+
+		root = File.createTempFile("ssh", "root");
+		root.delete();
+		root.mkdir();
+
+		local = File.createTempFile("ssh", "local");
+		downloaded = File.createTempFile("ssh", "downloaded");
+
+		byte[] data = new byte[fileSize];
+		new Random(0).nextBytes(data);
+		writeFile(local, data);
+		writeFile(new File(root, "source.bin"), data);
+
+		server = new LoopbackSshServer(root);
+		server.setPassword("benchmark");
+
+		SshConnector con = SshConnector.createInstance();
+		Ssh2Context context = con.getContext();
+		context.setPreferredCipherCS(cipher);
+		context.setPreferredCipherSC(cipher);
+		context.setHostKeyVerification(new HostKeyVerification() {
+			public boolean verifyHost(String host, SshPublicKey pk)
+					throws SshException {
+				return true;
+			}
+		});
+
+		SshTransport io;
+		if (transport.equals("pipe")) {
+			io = server.connect();
+		} else {
+			// SocketTransport leaves Nagle's algorithm enabled, which would
+			// hold back the second of two small writes for a delayed ACK
+			SocketTransport socket = new SocketTransport("127.0.0.1",
+					server.listen());
+			socket.setTcpNoDelay(true);
+			io = socket;
+		}
+		ssh = con.connect(io, "benchmark");
+		PasswordAuthentication pwd = new PasswordAuthentication();
+		pwd.setPassword(server.getPassword());
+		ssh.authenticate(pwd);
+
+		sftp = new SftpClient(ssh);
+	}
+
+	@TearDown
+	public void teardown() throws Exception {
+		sftp.quit();
+		ssh.disconnect();
+		server.close();
+		local.delete();
+		downloaded.delete();
+
+		File[] files = root.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		root.delete();
+	}
+
+	@Benchmark
+	public void put() throws Exception {
+		sftp.put(local.getAbsolutePath(), "/upload.bin");
+	}
+
+	@Benchmark
+	public void get() throws Exception {
+		sftp.get("/source.bin", downloaded.getAbsolutePath());
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void openSession() throws Exception {
+		SshSession session = ssh.openSessionChannel();
+		session.close();
+	}
+
+	static void writeFile(File file, byte[] data) throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(SshLoopbackBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sshtools.ssh.components.ComponentManager;
+import com.sshtools.ssh.components.SshAEADCipher;
+import com.sshtools.ssh.components.SshCipher;
+import com.sshtools.ssh.components.SshHmac;
+import com.sshtools.util.PacketBuffer;
+
+/**
+ * Measures packet encoding and decoding through {@link TransportProtocol} with
+ * the keys in place that a connection would have after key exchange. The
+ * encode benchmark pads, signs and encrypts one SSH_MSG_CHANNEL_DATA packet
+ * and writes it to a discarding stream; the roundTrip benchmark writes it
+ * through a second transport and reads it back, verifying and decrypting it.
+ * 
+ * @author Lee David Painter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportProtocolCodecBenchmark {
+
+	@Param({ "none", "aes128-ctr/hmac-sha2-256",
+			"aes128-ctr/hmac-sha2-256-etm@openssh.com",
+			"aes128-gcm@openssh.com", "chacha20-poly1305@openssh.com" })
+	String algorithms;
+
+	@Param({ "1024", "32768" })
+	int payloadSize;
+
+	TransportProtocol encoder;
+	TransportProtocol writer;
+	TransportProtocol reader;
+	LoopbackStream loopback = new LoopbackStream();
+	byte[] payload;
+
+	@Setup
+	public void setup() throws Exception {
+
+		Ssh2Context context = new Ssh2Context();
+		context.setKeyReExchangeDisabled(true);
+
+		encoder = createWriter(context, new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		writer = createWriter(context, loopback.out);
+
+		reader = new TransportProtocol();
+		reader.transportContext = context;
+		reader.currentState = TransportProtocol.CONNECTED;
+		reader.incomingMessage = new byte[reader.incomingCipherLength];
+		reader.transportIn = new DataInputStream(loopback.in);
+
+		if (!algorithms.equals("none")) {
+			String[] names = algorithms.split("/");
+			byte[] keydata = new byte[64];
+			for (int i = 0; i < keydata.length; i++) {
+				keydata[i] = (byte) i;
+			}
+
+			initWriter(encoder, names, keydata);
+			initWriter(writer, names, keydata);
+
+			SshCipher decryption = createCipher(names[0]);
+			decryption.init(SshCipher.DECRYPT_MODE, keydata, keydata);
+			reader.decryption = decryption;
+			reader.incomingCipherLength = decryption.getBlockSize();
+
+			if (decryption instanceof SshAEADCipher) {
+				reader.incomingMacLength = ((SshAEADCipher) decryption)
+						.getTagLength();
+			} else {
+				reader.incomingMac = createMac(names[1]);
+				reader.incomingMac.init(keydata);
+				reader.incomingMacLength = reader.incomingMac.getMacLength();
+			}
+		}
+
+		payload = new byte[payloadSize + 9];
+		payload[0] = 94; // SSH_MSG_CHANNEL_DATA
+	}
+
+	@Benchmark
+	public void encode() throws Exception {
+		encoder.sendMessage(payload, true);
+	}
+
+	@Benchmark
+	public void roundTrip(Blackhole bh) throws Exception {
+		writer.sendMessage(payload, true);
+		PacketBuffer packet = reader.readPacket();
+		bh.consume(packet.get(0));
+		packet.release();
+	}
+
+	static TransportProtocol createWriter(Ssh2Context context, OutputStream out) {
+		TransportProtocol transport = new TransportProtocol();
+		transport.transportContext = context;
+		transport.currentState = TransportProtocol.CONNECTED;
+		transport.transportOut = out;
+		return transport;
+	}
+
+	static void initWriter(TransportProtocol transport, String[] names,
+			byte[] keydata) throws Exception {
+		SshCipher encryption = createCipher(names[0]);
+		encryption.init(SshCipher.ENCRYPT_MODE, keydata, keydata);
+		transport.encryption = encryption;
+		transport.outgoingCipherLength = encryption.getBlockSize();
+
+		if (encryption instanceof SshAEADCipher) {
+			transport.outgoingMacLength = ((SshAEADCipher) encryption)
+					.getTagLength();
+		} else {
+			transport.outgoingMac = createMac(names[1]);
+			transport.outgoingMac.init(keydata);
+			transport.outgoingMacLength = transport.outgoingMac.getMacLength();
+		}
+	}
+
+	static SshCipher createCipher(String name) throws Exception {
+		return (SshCipher) ComponentManager.getInstance()
+				.supportedSsh2CiphersCS().getInstance(name);
+	}
+
+	static SshHmac createMac(String name) throws Exception {
+		return (SshHmac) ComponentManager.getInstance().supportedHMacsCS()
+				.getInstance(name);
+	}
+
+	/**
+	 * A single threaded stream that hands back whatever was last written to
+	 * it, reusing its buffer once everything written has been read.
+	 */
+	static class LoopbackStream {
+
+		byte[] buffer = new byte[65536];
+		int readPos;
+		int writePos;
+
+		OutputStream out = new OutputStream() {
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) {
+				if (readPos == writePos) {
+					readPos = writePos = 0;
+				}
+				if (writePos + len > buffer.length) {
+					byte[] tmp = new byte[Math.max(buffer.length * 2, writePos
+							+ len)];
+					System.arraycopy(buffer, 0, tmp, 0, writePos);
+					buffer = tmp;
+				}
+				System.arraycopy(b, off, buffer, writePos, len);
+				writePos += len;
+			}
+		};
+
+		InputStream in = new InputStream() {
+			public int read() {
+				return readPos < writePos ? buffer[readPos++] & 0xFF : -1;
+			}
+
+			public int read(byte[] b, int off, int len) {
+				int count = Math.min(len, writePos - readPos);
+				if (count <= 0) {
+					return -1;
+				}
+				System.arraycopy(buffer, readPos, b, off, count);
+				readPos += count;
+				return count;
+			}
+
+			public int available() {
+				return writePos - readPos;
+			}
+		};
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(TransportProtocolCodecBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
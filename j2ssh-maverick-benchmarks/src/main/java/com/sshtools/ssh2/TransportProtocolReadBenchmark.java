@@ -0,0 +1,155 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sshtools.ssh.message.SshChannelMessage;
+import com.sshtools.util.ByteArrayWriter;
+import com.sshtools.util.PacketBuffer;
+
+/**
+ * Measures the cost of decoding inbound packets. Each operation reads one
+ * unencrypted SSH_MSG_CHANNEL_DATA packet from an in-memory stream so that the
+ * figures reflect only the framing and buffer management of
+ * {@link TransportProtocol}. Run with <code>-prof gc</code> to see the bytes
+ * allocated per packet.
+ * 
+ * @author Lee David Painter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportProtocolReadBenchmark {
+
+	@Param({ "1024", "32768" })
+	int payloadSize;
+
+	TransportProtocol transport;
+
+	@Setup
+	public void setup() throws Exception {
+
+		Ssh2Context context = new Ssh2Context();
+		context.setKeyReExchangeDisabled(true);
+
+		transport = new TransportProtocol();
+		transport.transportContext = context;
+		transport.incomingMessage = new byte[transport.incomingCipherLength];
+		transport.transportIn = new DataInputStream(new ReplayInputStream(
+				createPacket(payloadSize)));
+	}
+
+	@Benchmark
+	public void copyingRead(Blackhole bh) throws Exception {
+		bh.consume(transport.readMessage());
+	}
+
+	@Benchmark
+	public void pooledRead(Blackhole bh) throws Exception {
+		PacketBuffer packet = transport.readPacket();
+		bh.consume(packet.get(0));
+		packet.release();
+	}
+
+	@Benchmark
+	public void pooledChannelMessage(Blackhole bh) throws Exception {
+		SshChannelMessage msg = new SshChannelMessage(transport.readPacket());
+		bh.consume(msg.readInt());
+		msg.release();
+	}
+
+	static byte[] createPacket(int payloadSize) throws Exception {
+
+		ByteArrayWriter payload = new ByteArrayWriter();
+		payload.write(94); // SSH_MSG_CHANNEL_DATA
+		payload.writeInt(0);
+		payload.writeBinaryString(new byte[payloadSize]);
+
+		int len = payload.size();
+		int padlen = 4 + (8 - ((len + 9) % 8)) % 8;
+
+		ByteArrayWriter packet = new ByteArrayWriter();
+		packet.writeInt(len + padlen + 1);
+		packet.write(padlen);
+		packet.write(payload.toByteArray());
+		packet.write(new byte[padlen]);
+		return packet.toByteArray();
+	}
+
+	/**
+	 * Replays the same packet forever without allocating.
+	 */
+	static class ReplayInputStream extends InputStream {
+
+		byte[] data;
+		int pos;
+
+		ReplayInputStream(byte[] data) {
+			this.data = data;
+		}
+
+		public int read() {
+			int b = data[pos++] & 0xFF;
+			if (pos == data.length) {
+				pos = 0;
+			}
+			return b;
+		}
+
+		public int read(byte[] buf, int off, int len) {
+			int count = Math.min(len, data.length - pos);
+			System.arraycopy(data, pos, buf, off, count);
+			pos += count;
+			if (pos == data.length) {
+				pos = 0;
+			}
+			return count;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(TransportProtocolReadBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sshtools.ssh2.Ssh2Context;
+
+/**
+ * Compares platform threads with virtual threads for the blocking threads
+ * the API starts. Each connection of a port forward runs two
+ * {@link IOStreamConnector}s, so the benchmark drives many connectors that
+ * spend most of their time blocked on a read, as they would with a large
+ * number of mostly idle tunnels.
+ * 
+ * <p>
+ * The relay benchmark measures throughput: each operation hands one chunk
+ * to every connector and waits until all of them have written it out. The
+ * startParked benchmark measures the cost of starting the connectors until
+ * every one is blocked reading, and reports the growth of the resident set
+ * size in kilobytes as the residentKb counter where /proc is available.
+ * Virtual threads require a Java 21 or later runtime.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+@Fork(1)
+public class ThreadFactoryBenchmark {
+
+	static final int CHUNK_SIZE = 1024;
+
+	@State(Scope.Benchmark)
+	public static class Connectors {
+
+		@Param({ "platform", "virtual" })
+		String threads;
+
+		@Param({ "100", "2000" })
+		int connectors;
+
+		ThreadFactory factory;
+		QueueInputStream[] sources;
+		IOStreamConnector[] running;
+		Semaphore received = new Semaphore(0);
+		byte[] chunk = new byte[CHUNK_SIZE];
+
+		/**
+		 * Start the connectors and wait until each is blocked reading.
+		 */
+		void start() throws Exception {
+			if (factory == null) {
+				factory = createFactory(threads);
+			}
+			CountDownLatch parked = new CountDownLatch(connectors);
+			sources = new QueueInputStream[connectors];
+			running = new IOStreamConnector[connectors];
+			for (int i = 0; i < connectors; i++) {
+				sources[i] = new QueueInputStream(parked);
+				running[i] = new IOStreamConnector();
+				running[i].setThreadFactory(factory);
+				running[i].setBufferSize(CHUNK_SIZE);
+				running[i].connect(sources[i], new SignallingOutputStream(
+						received));
+			}
+			parked.await();
+		}
+
+		void stop() {
+			if (running != null) {
+				for (int i = 0; i < running.length; i++) {
+					running[i].close();
+				}
+				running = null;
+				sources = null;
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class RelayState extends Connectors {
+
+		@Setup(Level.Trial)
+		public void startConnectors() throws Exception {
+			start();
+		}
+
+		@TearDown(Level.Trial)
+		public void stopConnectors() {
+			stop();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class StartState extends Connectors {
+
+		@TearDown(Level.Invocation)
+		public void stopConnectors() {
+			stop();
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Footprint {
+
+		public long residentKb;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			residentKb = 0;
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public void relay(RelayState state) throws Exception {
+		for (int i = 0; i < state.sources.length; i++) {
+			state.sources[i].queue.put(state.chunk);
+		}
+		state.received.acquire(state.sources.length);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3)
+	@Measurement(iterations = 10)
+	public void startParked(StartState state, Footprint footprint)
+			throws Exception {
+		long before = residentKb();
+		state.start();
+		long after = residentKb();
+		if (before > 0 && after > before) {
+			footprint.residentKb += after - before;
+		}
+	}
+
+	static ThreadFactory createFactory(String threads) throws Exception {
+		if ("virtual".equals(threads)) {
+			Ssh2Context context = new Ssh2Context();
+			context.enableVirtualThreads();
+			return context.getThreadFactory();
+		}
+		return new Ssh2Context().getThreadFactory();
+	}
+
+	/**
+	 * Read the resident set size of this process from /proc, or return zero
+	 * when it is not available.
+	 */
+	static long residentKb() {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(
+					"/proc/self/status"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("VmRSS:")) {
+						String value = line.substring(6).trim();
+						return Long.parseLong(value.substring(0,
+								value.indexOf(' ')));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+		}
+		return 0;
+	}
+
+	/**
+	 * An input stream that blocks until a chunk is queued for it. Blocking on
+	 * a java.util.concurrent queue allows a virtual thread to unmount from its
+	 * carrier while it waits.
+	 */
+	static class QueueInputStream extends InputStream {
+
+		LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+		CountDownLatch parked;
+		byte[] current;
+		int pos;
+
+		QueueInputStream(CountDownLatch parked) {
+			this.parked = parked;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (current == null || pos == current.length) {
+				if (parked != null) {
+					parked.countDown();
+					parked = null;
+				}
+				try {
+					current = queue.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				pos = 0;
+			}
+			int count = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, buf, off, count);
+			pos += count;
+			return count;
+		}
+
+		public int available() {
+			return current == null ? 0 : current.length - pos;
+		}
+	}
+
+	/**
+	 * Releases a permit for every chunk written.
+	 */
+	static class SignallingOutputStream extends OutputStream {
+
+		Semaphore received;
+
+		SignallingOutputStream(Semaphore received) {
+			this.received = received;
+		}
+
+		public void write(int b) {
+			received.release();
+		}
+
+		public void write(byte[] buf, int off, int len) {
+			received.release();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(ThreadFactoryBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
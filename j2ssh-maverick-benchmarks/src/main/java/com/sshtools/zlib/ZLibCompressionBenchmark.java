@@ -0,0 +1,101 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.zlib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sshtools.ssh.compression.SshCompression;
+
+/**
+ * Measures {@link ZLibCompression} on packet sized payloads of text, which is
+ * typical of interactive and command output. The compression streams are
+ * continuous as they are on a connection, so the round trip benchmark
+ * inflates each packet immediately after deflating it.
+ * 
+ * @author Lee David Painter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZLibCompressionBenchmark {
+
+	@Param({ "1024", "32768" })
+	int payloadSize;
+
+	@Param({ "6" })
+	int level;
+
+	ZLibCompression deflater;
+	ZLibCompression inflater;
+	byte[] payload;
+
+	@Setup
+	public void setup() throws Exception {
+
+		deflater = new ZLibCompression();
+		deflater.init(SshCompression.DEFLATER, level);
+		inflater = new ZLibCompression();
+		inflater.init(SshCompression.INFLATER, level);
+
+		StringBuffer text = new StringBuffer();
+		for (int i = 0; text.length() < payloadSize; i++) {
+			text.append("-rw-r--r--   1 user     group    ").append(i * 4093)
+					.append(" Jan  1 00:00 file").append(i).append(".txt\n");
+		}
+		payload = text.substring(0, payloadSize).getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public void compress(Blackhole bh) throws Exception {
+		bh.consume(deflater.compress(payload, 0, payload.length));
+	}
+
+	@Benchmark
+	public void roundTrip(Blackhole bh) throws Exception {
+		byte[] compressed = deflater.compress(payload, 0, payload.length);
+		bh.consume(inflater.uncompress(compressed, 0, compressed.length));
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(ZLibCompressionBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -44,6 +44,7 @@ import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.SshTransport;
 import com.sshtools.ssh.SshTunnel;
 import com.sshtools.ssh.components.ComponentManager;
+import com.sshtools.ssh2.Ssh2Context;
 import com.sshtools.util.ByteArrayReader;
 import com.sshtools.util.IOStreamConnector;
 
@@ -1226,6 +1227,7 @@ public class ForwardingClient implements Client {
 
 				// glue forwarding channel in to connection to server out
 				rx = new IOStreamConnector();
+				rx.setThreadFactory(Ssh2Context.getThreadFactory(ssh.getContext()));
 				rx.addListener(listener);
 				// rx.setCloseInput(true);
 				rx.connect(channel.getInputStream(), channel.getTransport()
@@ -1233,6 +1235,7 @@ public class ForwardingClient implements Client {
 
 				// glue connection to server in to forwarding channel out
 				tx = new IOStreamConnector();
+				tx.setThreadFactory(Ssh2Context.getThreadFactory(ssh.getContext()));
 				tx.addListener(listener);
 				// tx.setCloseOutput(false);
 				tx.connect(channel.getTransport().getInputStream(),
@@ -1417,7 +1420,8 @@ public class ForwardingClient implements Client {
 						continue;
 					}
 
-					Thread t = new Thread() {
+					Thread t = Ssh2Context.getThreadFactory(ssh.getContext())
+							.newThread(new Runnable() {
 
 						public void run() {
 							try {
@@ -1454,7 +1458,7 @@ public class ForwardingClient implements Client {
 								}
 							}
 						}
-					};
+					});
 					t.start();
 				}
 			} catch (IOException ioe) {
@@ -1484,7 +1488,7 @@ public class ForwardingClient implements Client {
 								: InetAddress.getByName(addressToBind));
 
 				/* Create a thread and start it */
-				thread = new Thread(this);
+				thread = Ssh2Context.getThreadFactory(ssh.getContext()).newThread(this);
 				thread.setDaemon(true);
 				thread.setName("SocketListener " + addressToBind + ":"
 						+ String.valueOf(portToBind));
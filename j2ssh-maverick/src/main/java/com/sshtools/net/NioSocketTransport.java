@@ -0,0 +1,398 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sshtools.logging.Log;
+import com.sshtools.ssh.NonBlockingTransport;
+import com.sshtools.ssh.NonBlockingTransportListener;
+import com.sshtools.ssh.SocketTimeoutSupport;
+import com.sshtools.ssh.SshTransport;
+
+/**
+ * <p>
+ * A non-blocking socket transport created by a {@link NioTransportEngine}.
+ * Incoming data is read by the engine's I/O thread into a buffer from which
+ * the InputStream is served, so the transport can be used for the blocking
+ * protocol negotiation and authentication phases and then switched to event
+ * driven processing once a {@link NonBlockingTransportListener} is set.
+ * </p>
+ * 
+ * <p>
+ * Reading from the socket is suspended whenever the buffer holds more than
+ * {@link #setMaximumBufferSize(int)} bytes so that a slow consumer cannot
+ * exhaust memory.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class NioSocketTransport implements NonBlockingTransport,
+		SocketTimeoutSupport {
+
+	NioTransportEngine engine;
+	NioTransportEngine.IOThread thread;
+	SocketChannel channel;
+	SelectionKey key;
+	String hostname;
+	int port;
+
+	byte[] buf = new byte[32768];
+	int readpos = 0;
+	int writepos = 0;
+	boolean eof = false;
+	boolean suspended = false;
+	int maximumBufferSize = 262144;
+
+	Object writeLock = new Object();
+	boolean writeBlocked = false;
+
+	volatile boolean closed = false;
+	boolean closeNotified = false;
+	int soTimeout = 0;
+
+	volatile NonBlockingTransportListener listener;
+	AtomicInteger pendingEvents = new AtomicInteger();
+
+	NioInputStream in = new NioInputStream();
+	NioOutputStream out = new NioOutputStream();
+
+	Runnable dispatchTask = new Runnable() {
+		public void run() {
+			int events;
+			do {
+				events = pendingEvents.get();
+				NonBlockingTransportListener l = listener;
+				if (l != null) {
+					try {
+						l.onDataAvailable();
+
+						boolean notifyClose;
+						synchronized (NioSocketTransport.this) {
+							notifyClose = eof && !closeNotified;
+							closeNotified |= notifyClose;
+						}
+						if (notifyClose) {
+							l.onClosed();
+						}
+					} catch (Throwable t) {
+						Log.error(this, "Transport listener caught exception",
+								t);
+					}
+				}
+			} while (pendingEvents.addAndGet(-events) != 0);
+		}
+	};
+
+	NioSocketTransport(NioTransportEngine engine,
+			NioTransportEngine.IOThread thread, SocketChannel channel,
+			String hostname, int port) {
+		this.engine = engine;
+		this.thread = thread;
+		this.channel = channel;
+		this.hostname = hostname;
+		this.port = port;
+	}
+
+	public String getHost() {
+		return hostname;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return in;
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return out;
+	}
+
+	public SshTransport duplicate() throws IOException {
+		return engine.connect(hostname, port);
+	}
+
+	public void setTransportListener(NonBlockingTransportListener listener) {
+		this.listener = listener;
+		if (listener != null) {
+			synchronized (this) {
+				if (writepos == readpos && !eof) {
+					return;
+				}
+			}
+			engine.dispatch(this);
+		}
+	}
+
+	public synchronized void setSoTimeout(int soTimeout) throws IOException {
+		this.soTimeout = soTimeout;
+	}
+
+	public synchronized int getSoTimeout() throws IOException {
+		return soTimeout;
+	}
+
+	/**
+	 * Set the number of bytes that may be buffered before the transport stops
+	 * reading from the socket.
+	 * 
+	 * @param maximumBufferSize
+	 */
+	public synchronized void setMaximumBufferSize(int maximumBufferSize) {
+		this.maximumBufferSize = maximumBufferSize;
+	}
+
+	public void close() throws IOException {
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			eof = true;
+			notifyAll();
+		}
+
+		synchronized (writeLock) {
+			writeLock.notifyAll();
+		}
+
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} finally {
+			thread.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Called by the I/O thread when the socket has data to read.
+	 */
+	void readable(ByteBuffer readBuffer) {
+
+		int read;
+		try {
+			readBuffer.clear();
+			read = channel.read(readBuffer);
+		} catch (IOException ex) {
+			failed(ex);
+			return;
+		}
+
+		if (read == -1) {
+			synchronized (this) {
+				eof = true;
+				notifyAll();
+			}
+			key.cancel();
+			engine.dispatch(this);
+			return;
+		}
+
+		if (read > 0) {
+			synchronized (this) {
+				if (read > buf.length - writepos) {
+					System.arraycopy(buf, readpos, buf, 0, writepos - readpos);
+					writepos -= readpos;
+					readpos = 0;
+				}
+				if (read > buf.length - writepos) {
+					byte[] tmp = new byte[Math.max(buf.length * 2, writepos
+							+ read)];
+					System.arraycopy(buf, 0, tmp, 0, writepos);
+					buf = tmp;
+				}
+				readBuffer.flip();
+				readBuffer.get(buf, writepos, read);
+				writepos += read;
+
+				if (writepos - readpos >= maximumBufferSize) {
+					suspended = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				}
+				notifyAll();
+			}
+			engine.dispatch(this);
+		}
+	}
+
+	/**
+	 * Called by the I/O thread when the socket can accept more data.
+	 */
+	void writable() {
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		synchronized (writeLock) {
+			writeBlocked = false;
+			writeLock.notifyAll();
+		}
+	}
+
+	void failed(IOException ex) {
+		if (Log.isDebugEnabled()) {
+			Log.debug(this, "Transport to " + hostname + ":" + port
+					+ " failed", ex);
+		}
+		synchronized (this) {
+			eof = true;
+			notifyAll();
+		}
+		try {
+			close();
+		} catch (IOException e) {
+		}
+		engine.dispatch(this);
+	}
+
+	private void resumeReading() {
+		thread.execute(new Runnable() {
+			public void run() {
+				if (key != null && key.isValid()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				}
+			}
+		});
+	}
+
+	class NioInputStream extends InputStream {
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int ret = read(b, 0, 1);
+			return ret > 0 ? b[0] & 0xFF : -1;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			boolean resume = false;
+			int count;
+
+			synchronized (NioSocketTransport.this) {
+
+				long started = System.currentTimeMillis();
+				while (readpos == writepos && !eof) {
+					try {
+						if (soTimeout > 0) {
+							long remaining = soTimeout
+									- (System.currentTimeMillis() - started);
+							if (remaining <= 0) {
+								throw new SocketTimeoutException(
+										"Read timed out");
+							}
+							NioSocketTransport.this.wait(remaining);
+						} else {
+							NioSocketTransport.this.wait();
+						}
+					} catch (InterruptedException ex) {
+						throw new InterruptedIOException(
+								"The blocking operation was interrupted");
+					}
+				}
+
+				if (readpos == writepos) {
+					return -1;
+				}
+
+				count = Math.min(len, writepos - readpos);
+				System.arraycopy(buf, readpos, b, off, count);
+				readpos += count;
+
+				if (suspended && writepos - readpos < maximumBufferSize / 2) {
+					suspended = false;
+					resume = true;
+				}
+			}
+
+			if (resume) {
+				resumeReading();
+			}
+			return count;
+		}
+
+		public int available() throws IOException {
+			synchronized (NioSocketTransport.this) {
+				return writepos - readpos;
+			}
+		}
+
+		public void close() throws IOException {
+			NioSocketTransport.this.close();
+		}
+	}
+
+	class NioOutputStream extends OutputStream {
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+
+			ByteBuffer data = ByteBuffer.wrap(b, off, len);
+
+			synchronized (writeLock) {
+				while (data.hasRemaining()) {
+					if (closed) {
+						throw new IOException("The transport is closed");
+					}
+					if (channel.write(data) == 0) {
+						awaitWritable();
+					}
+				}
+			}
+		}
+
+		private void awaitWritable() throws IOException {
+			writeBlocked = true;
+			thread.execute(new Runnable() {
+				public void run() {
+					if (key != null && key.isValid()) {
+						key.interestOps(key.interestOps()
+								| SelectionKey.OP_WRITE);
+					}
+				}
+			});
+			try {
+				while (writeBlocked && !closed) {
+					writeLock.wait(1000);
+				}
+			} catch (InterruptedException ex) {
+				throw new InterruptedIOException(
+						"The blocking operation was interrupted");
+			}
+		}
+
+		public void close() throws IOException {
+			NioSocketTransport.this.close();
+		}
+	}
+}
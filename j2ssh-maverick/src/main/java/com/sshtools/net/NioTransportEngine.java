@@ -0,0 +1,311 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sshtools.logging.Log;
+
+/**
+ * <p>
+ * A selector driven I/O engine that multiplexes many SSH connections over a
+ * small, fixed number of I/O threads. Connections created by the engine are
+ * {@link NioSocketTransport} instances which can be passed to the
+ * {@link com.sshtools.ssh.SshConnector} like any other transport; once the
+ * connection has been authenticated incoming messages are decoded and routed
+ * as data arrives, without a message pump thread per connection.
+ * </p>
+ * 
+ * <blockquote>
+ * 
+ * <pre>
+ * NioTransportEngine engine = new NioTransportEngine();
+ * SshConnector con = SshConnector.createInstance();
+ * SshClient ssh = con.connect(engine.connect(&quot;titan&quot;, 22), &quot;lee&quot;, true);
+ * </pre>
+ * 
+ * </blockquote>
+ * 
+ * <p>
+ * The I/O threads only ever move bytes between the sockets and each
+ * connection's buffers. Message processing is handed to an {@link Executor},
+ * serialized per connection; the default executor only creates additional
+ * threads when existing ones are blocked, for example whilst a key
+ * re-exchange is waiting on the remote side.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class NioTransportEngine {
+
+	IOThread[] threads;
+	Executor executor;
+	ExecutorService ownedExecutor;
+	int nextThread = 0;
+	volatile boolean running = true;
+
+	/**
+	 * Create an engine with one I/O thread per available processor.
+	 * 
+	 * @throws IOException
+	 */
+	public NioTransportEngine() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create an engine with the given number of I/O threads.
+	 * 
+	 * @param ioThreads
+	 * @throws IOException
+	 */
+	public NioTransportEngine(int ioThreads) throws IOException {
+		this(ioThreads, null, null);
+	}
+
+	/**
+	 * Create an engine with the given number of I/O threads whose own
+	 * executor creates its worker threads with the supplied factory, for
+	 * example the {@link com.sshtools.ssh2.Ssh2Context#getThreadFactory()
+	 * context's factory}.
+	 * 
+	 * @param ioThreads
+	 * @param threadFactory
+	 * @throws IOException
+	 */
+	public NioTransportEngine(int ioThreads, ThreadFactory threadFactory)
+			throws IOException {
+		this(ioThreads, null, threadFactory);
+	}
+
+	/**
+	 * Create an engine with the given number of I/O threads that processes
+	 * incoming messages on the supplied executor. If the executor is
+	 * <code>null</code> the engine creates and manages its own.
+	 * 
+	 * @param ioThreads
+	 * @param executor
+	 * @throws IOException
+	 */
+	public NioTransportEngine(int ioThreads, Executor executor)
+			throws IOException {
+		this(ioThreads, executor, null);
+	}
+
+	NioTransportEngine(int ioThreads, Executor executor,
+			final ThreadFactory threadFactory) throws IOException {
+
+		if (ioThreads < 1) {
+			throw new IllegalArgumentException(
+					"There must be at least one I/O thread");
+		}
+
+		if (executor == null) {
+			ownedExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				int count = 0;
+
+				ThreadFactory factory = threadFactory == null ? Executors
+						.defaultThreadFactory() : threadFactory;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = factory.newThread(r);
+					t.setName("NioTransportEngine-Worker-" + (++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			executor = ownedExecutor;
+		}
+		this.executor = executor;
+
+		threads = new IOThread[ioThreads];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new IOThread(i);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Connect to a host and register the connection with one of the engine's
+	 * I/O threads.
+	 * 
+	 * @param hostname
+	 * @param port
+	 * @return the connected transport
+	 * @throws IOException
+	 */
+	public NioSocketTransport connect(String hostname, int port)
+			throws IOException {
+
+		if (!running) {
+			throw new IOException("The transport engine has been shutdown");
+		}
+
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().setSendBufferSize(65535);
+			channel.socket().setReceiveBufferSize(65535);
+			channel.connect(new InetSocketAddress(hostname, port));
+			channel.configureBlocking(false);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+
+		IOThread thread;
+		synchronized (this) {
+			thread = threads[nextThread++ % threads.length];
+		}
+
+		NioSocketTransport transport = new NioSocketTransport(this, thread,
+				channel, hostname, port);
+		thread.register(transport);
+		return transport;
+	}
+
+	/**
+	 * Stop the I/O threads and close any connections that are still
+	 * registered.
+	 */
+	public void shutdown() {
+		running = false;
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].shutdown();
+		}
+		if (ownedExecutor != null) {
+			ownedExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Schedule delivery of pending notifications for a transport. Only one
+	 * delivery task is ever outstanding per transport.
+	 */
+	void dispatch(NioSocketTransport transport) {
+		if (transport.pendingEvents.getAndIncrement() == 0) {
+			executor.execute(transport.dispatchTask);
+		}
+	}
+
+	class IOThread extends Thread {
+
+		Selector selector;
+		ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		ByteBuffer readBuffer = ByteBuffer.allocate(32768);
+
+		IOThread(int id) throws IOException {
+			super("NioTransportEngine-IO-" + id);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void execute(Runnable r) {
+			tasks.add(r);
+			selector.wakeup();
+		}
+
+		void register(final NioSocketTransport transport) {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						transport.key = transport.channel.register(selector,
+								SelectionKey.OP_READ, transport);
+					} catch (IOException ex) {
+						transport.failed(ex);
+					}
+				}
+			});
+		}
+
+		void shutdown() {
+			execute(new Runnable() {
+				public void run() {
+					for (Iterator<SelectionKey> it = selector.keys()
+							.iterator(); it.hasNext();) {
+						SelectionKey key = it.next();
+						try {
+							((NioSocketTransport) key.attachment()).close();
+						} catch (IOException e) {
+						}
+					}
+					try {
+						selector.close();
+					} catch (IOException e) {
+					}
+				}
+			});
+		}
+
+		public void run() {
+
+			while (running) {
+				try {
+					selector.select();
+
+					Runnable r;
+					while ((r = tasks.poll()) != null) {
+						r.run();
+					}
+
+					if (!selector.isOpen()) {
+						break;
+					}
+
+					for (Iterator<SelectionKey> it = selector.selectedKeys()
+							.iterator(); it.hasNext();) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						NioSocketTransport transport = (NioSocketTransport) key
+								.attachment();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isWritable()) {
+							transport.writable();
+						}
+						if (key.isValid() && key.isReadable()) {
+							transport.readable(readBuffer);
+						}
+					}
+				} catch (Throwable t) {
+					Log.error(this, "I/O thread caught exception", t);
+				}
+			}
+
+			Runnable r;
+			while ((r = tasks.poll()) != null) {
+				r.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,761 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.net;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sshtools.logging.Log;
+import com.sshtools.sftp.SftpClient;
+import com.sshtools.sftp.SftpStatusException;
+import com.sshtools.ssh.ChannelOpenException;
+import com.sshtools.ssh.SshAuthentication;
+import com.sshtools.ssh.SshClient;
+import com.sshtools.ssh.SshConnector;
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.SshSession;
+import com.sshtools.ssh.SshTransport;
+import com.sshtools.ssh2.Ssh2Context;
+
+/**
+ * <p>
+ * A thread-safe pool of authenticated connections. Rather than paying for a
+ * socket, a key exchange and authentication every time a session or SFTP
+ * channel is needed, the pool opens the channel on a connection it already
+ * holds for the same host, port, user and authentication, and only connects
+ * again once every such connection has reached its channel limit.
+ * </p>
+ * 
+ * <pre>
+ * SshConnectionPool pool = new SshConnectionPool(SshConnector.createInstance());
+ * PasswordAuthentication pwd = new PasswordAuthentication();
+ * pwd.setPassword(&quot;xxxxx&quot;);
+ * 
+ * SshSession session = pool.openSessionChannel(&quot;beagle2&quot;, 22, &quot;lee&quot;, pwd);
+ * SftpClient sftp = pool.openSftpClient(&quot;beagle2&quot;, 22, &quot;lee&quot;, pwd);
+ * </pre>
+ * 
+ * <p>
+ * Connections are shared by all the callers that pass the same host, port,
+ * user name and {@link SshAuthentication}. The authentication is compared
+ * with its <code>equals</code> method, which for the authentication classes
+ * of this API means the same instance; callers should therefore reuse one
+ * authentication object for each set of credentials.
+ * </p>
+ * 
+ * <p>
+ * A connection is used until it has as many channels open as the channel
+ * limit of its context, or as many as the server would accept. When the
+ * channels left free on the connections for a host fall to
+ * {@link #getChannelHeadroom()}, another connection is opened in the
+ * background so that later callers do not wait for it. At least
+ * {@link #getPrewarmedConnections()} connections are kept open for each host
+ * that has been used, and connections without channels are disconnected once
+ * they have been idle for {@link #getMaximumIdleTime()}. Connections that
+ * have been lost are dropped whenever the pool is used, or by
+ * {@link #maintain()}.
+ * </p>
+ * 
+ * <p>
+ * The pool does not close the channels it opens; callers close them when
+ * they are done, as they would any other channel. Connections obtained with
+ * {@link #getConnection(String, int, String, SshAuthentication)} are shared
+ * and must not be disconnected by the caller.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class SshConnectionPool {
+
+	public static final long DEFAULT_MAXIMUM_IDLE_TIME = 300000;
+	public static final int DEFAULT_MAXIMUM_CONNECTIONS = 10;
+	public static final int DEFAULT_CHANNEL_HEADROOM = 2;
+
+	SshConnector connector;
+	Hashtable<Key, HostConnections> hosts = new Hashtable<Key, HostConnections>();
+	long maxIdleTime = DEFAULT_MAXIMUM_IDLE_TIME;
+	int maxConnections = DEFAULT_MAXIMUM_CONNECTIONS;
+	int channelHeadroom = DEFAULT_CHANNEL_HEADROOM;
+	int prewarmed = 0;
+	boolean buffered = true;
+	boolean closed;
+
+	AtomicLong created = new AtomicLong();
+	AtomicLong reused = new AtomicLong();
+	AtomicLong failed = new AtomicLong();
+	AtomicLong evicted = new AtomicLong();
+	AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * Create a pool that makes its connections with a connector.
+	 * 
+	 * @param connector
+	 */
+	public SshConnectionPool(SshConnector connector) {
+		this.connector = connector;
+	}
+
+	/**
+	 * Set the time in milliseconds after which a connection without any
+	 * channels open is disconnected.
+	 * 
+	 * @param maxIdleTime
+	 */
+	public void setMaximumIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public long getMaximumIdleTime() {
+		return maxIdleTime;
+	}
+
+	/**
+	 * Set the most connections that may be open at once for each host, port,
+	 * user and authentication.
+	 * 
+	 * @param maxConnections
+	 */
+	public void setMaximumConnections(int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException(
+					"The maximum number of connections must be greater or equal to 1");
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaximumConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Set how many free channels a host's connections should have between
+	 * them before another connection is opened in the background. Zero only
+	 * connects once every connection is full, in the caller's thread.
+	 * 
+	 * @param channelHeadroom
+	 */
+	public void setChannelHeadroom(int channelHeadroom) {
+		this.channelHeadroom = channelHeadroom;
+	}
+
+	public int getChannelHeadroom() {
+		return channelHeadroom;
+	}
+
+	/**
+	 * Set the number of connections to keep open for each host once it has
+	 * been used, even when they are idle. Missing connections are opened in
+	 * the background.
+	 * 
+	 * @param prewarmed
+	 */
+	public void setPrewarmedConnections(int prewarmed) {
+		this.prewarmed = prewarmed;
+	}
+
+	public int getPrewarmedConnections() {
+		return prewarmed;
+	}
+
+	/**
+	 * Set whether connections are made buffered, with a background thread
+	 * routing their messages. This is the default, since the channels of a
+	 * pooled connection are usually used from different threads.
+	 * 
+	 * @param buffered
+	 */
+	public void setBuffered(boolean buffered) {
+		this.buffered = buffered;
+	}
+
+	public boolean isBuffered() {
+		return buffered;
+	}
+
+	/**
+	 * Open a session channel on a pooled connection.
+	 * 
+	 * @param host
+	 * @param port
+	 * @param username
+	 * @param auth
+	 * @return SshSession
+	 * @throws SshException
+	 * @throws ChannelOpenException
+	 */
+	public SshSession openSessionChannel(String host, int port,
+			String username, SshAuthentication auth) throws SshException,
+			ChannelOpenException {
+		Key key = new Key(host, port, username, auth);
+		for (int attempt = 0;; attempt++) {
+			SshClient ssh = getConnection(key);
+			try {
+				return ssh.openSessionChannel();
+			} catch (ChannelOpenException ex) {
+				if (!retry(key, ssh, ex, attempt)) {
+					throw ex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Open an SFTP client on a pooled connection. Call
+	 * {@link SftpClient#quit()} when done to close its channel; the
+	 * connection stays in the pool.
+	 * 
+	 * @param host
+	 * @param port
+	 * @param username
+	 * @param auth
+	 * @return SftpClient
+	 * @throws SshException
+	 * @throws SftpStatusException
+	 * @throws ChannelOpenException
+	 */
+	public SftpClient openSftpClient(String host, int port, String username,
+			SshAuthentication auth) throws SshException, SftpStatusException,
+			ChannelOpenException {
+		Key key = new Key(host, port, username, auth);
+		for (int attempt = 0;; attempt++) {
+			SshClient ssh = getConnection(key);
+			try {
+				return new SftpClient(ssh);
+			} catch (ChannelOpenException ex) {
+				if (!retry(key, ssh, ex, attempt)) {
+					throw ex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get a connected and authenticated connection with room for another
+	 * channel, connecting if none of the pooled connections have room. The
+	 * connection is shared and must not be disconnected.
+	 * 
+	 * @param host
+	 * @param port
+	 * @param username
+	 * @param auth
+	 * @return SshClient
+	 * @throws SshException
+	 *             if a connection could not be made, or every connection
+	 *             allowed is full
+	 */
+	public SshClient getConnection(String host, int port, String username,
+			SshAuthentication auth) throws SshException {
+		return getConnection(new Key(host, port, username, auth));
+	}
+
+	/**
+	 * Open connections to a host until there are
+	 * {@link #getPrewarmedConnections()} of them, in the caller's thread.
+	 * 
+	 * @param host
+	 * @param port
+	 * @param username
+	 * @param auth
+	 * @throws SshException
+	 */
+	public void prewarm(String host, int port, String username,
+			SshAuthentication auth) throws SshException {
+		Key key = new Key(host, port, username, auth);
+		while (true) {
+			HostConnections connections;
+			synchronized (this) {
+				checkClosed();
+				connections = getHostConnections(key);
+				connections.removeDead();
+				if (connections.size() + connections.connecting >= Math.max(
+						1, Math.min(prewarmed, maxConnections))) {
+					return;
+				}
+				connections.connecting++;
+			}
+			open(key, connections);
+		}
+	}
+
+	SshClient getConnection(Key key) throws SshException {
+
+		maintain();
+
+		boolean background = false;
+		HostConnections connections;
+		PooledConnection pooled = null;
+
+		synchronized (this) {
+			while (true) {
+				checkClosed();
+				connections = getHostConnections(key);
+				connections.removeDead();
+
+				pooled = connections.select();
+				if (pooled != null) {
+					pooled.lastUsed = System.currentTimeMillis();
+					reused.incrementAndGet();
+					background = connections.needsConnection(pooled);
+					if (background) {
+						connections.connecting++;
+					}
+					break;
+				}
+
+				if (connections.size() + connections.connecting < maxConnections) {
+					connections.connecting++;
+					break;
+				}
+
+				if (connections.connecting == 0) {
+					throw new SshException("All " + connections.size()
+							+ " connections to " + key
+							+ " are at their channel limit",
+							SshException.CHANNEL_FAILURE);
+				}
+
+				// Another thread is connecting; wait for it to finish
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new SshException(
+							"Interrupted waiting for a connection to " + key,
+							SshException.INTERNAL_ERROR);
+				}
+			}
+		}
+
+		if (pooled == null) {
+			return open(key, connections).ssh;
+		}
+
+		if (background) {
+			openInBackground(key, connections);
+		}
+
+		return pooled.ssh;
+	}
+
+	/**
+	 * Decide whether an open that failed for want of resources should be
+	 * tried again on another connection.
+	 */
+	boolean retry(Key key, SshClient ssh, ChannelOpenException ex,
+			int attempt) {
+		if (ex.getReason() != ChannelOpenException.RESOURCE_SHORTAGE
+				|| attempt >= maxConnections) {
+			return false;
+		}
+		synchronized (this) {
+			HostConnections connections = hosts.get(key);
+			if (connections != null) {
+				PooledConnection pooled = connections.find(ssh);
+				if (pooled != null) {
+					// The server will not open any more channels than this
+					pooled.limit = Math.max(1, ssh.getChannelCount());
+				}
+			}
+		}
+		if (Log.isDebugEnabled()) {
+			Log.debug(this, "Connection to " + key
+					+ " refused a channel; trying another connection");
+		}
+		return true;
+	}
+
+	/**
+	 * Drop the connections that have been lost, disconnect those that have
+	 * been idle for longer than {@link #getMaximumIdleTime()} and top up each
+	 * host to {@link #getPrewarmedConnections()}.
+	 */
+	public void maintain() {
+		Vector<PooledConnection> expired = new Vector<PooledConnection>();
+		Vector<Key> warm = new Vector<Key>();
+		Vector<HostConnections> warming = new Vector<HostConnections>();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			for (Enumeration<Key> e = hosts.keys(); e.hasMoreElements();) {
+				Key key = e.nextElement();
+				HostConnections connections = hosts.get(key);
+				connections.removeDead();
+
+				for (int i = connections.size() - 1; i >= 0
+						&& connections.size() > prewarmed; i--) {
+					PooledConnection pooled = connections.elementAt(i);
+					if (pooled.ssh.getChannelCount() > 0) {
+						pooled.lastUsed = now;
+					} else if (now - pooled.lastUsed >= maxIdleTime) {
+						connections.removeElementAt(i);
+						expired.addElement(pooled);
+					}
+				}
+
+				if (connections.connecting == 0
+						&& connections.size() < Math.min(prewarmed,
+								maxConnections)) {
+					connections.connecting++;
+					warm.addElement(key);
+					warming.addElement(connections);
+				}
+			}
+		}
+
+		for (int i = 0; i < expired.size(); i++) {
+			evicted.incrementAndGet();
+			PooledConnection pooled = expired.elementAt(i);
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Disconnecting idle connection to "
+						+ pooled.key);
+			}
+			pooled.ssh.disconnect();
+		}
+
+		for (int i = 0; i < warm.size(); i++) {
+			openInBackground(warm.elementAt(i), warming.elementAt(i));
+		}
+	}
+
+	/**
+	 * Close the pool and disconnect all of its connections, along with any
+	 * channels still open on them.
+	 */
+	public void close() {
+		Vector<PooledConnection> all = new Vector<PooledConnection>();
+		synchronized (this) {
+			closed = true;
+			for (Enumeration<HostConnections> e = hosts.elements(); e
+					.hasMoreElements();) {
+				all.addAll(e.nextElement());
+			}
+			hosts.clear();
+			notifyAll();
+		}
+		for (int i = 0; i < all.size(); i++) {
+			all.elementAt(i).ssh.disconnect();
+		}
+	}
+
+	/**
+	 * Connect and add the connection to the pool. The caller must already
+	 * have counted the connection as connecting.
+	 */
+	PooledConnection open(Key key, HostConnections connections)
+			throws SshException {
+		PooledConnection pooled = null;
+		try {
+			pooled = new PooledConnection(key, connect(key.host, key.port,
+					key.username, key.auth));
+			created.incrementAndGet();
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Opened pooled connection to " + key);
+			}
+			return pooled;
+		} catch (SshException ex) {
+			failed.incrementAndGet();
+			throw ex;
+		} finally {
+			boolean discard = false;
+			synchronized (this) {
+				connections.connecting--;
+				if (pooled != null) {
+					if (closed) {
+						discard = true;
+					} else {
+						connections.addElement(pooled);
+					}
+				}
+				notifyAll();
+			}
+			if (discard) {
+				pooled.ssh.disconnect();
+			}
+		}
+	}
+
+	void openInBackground(final Key key, final HostConnections connections) {
+		Runnable r = new Runnable() {
+			public void run() {
+				try {
+					open(key, connections);
+				} catch (Throwable t) {
+					if (Log.isDebugEnabled()) {
+						Log.debug(SshConnectionPool.this,
+								"Failed to open pooled connection to "
+								+ key, t);
+					}
+				}
+			}
+		};
+
+		Thread thread;
+		try {
+			thread = connector.getContext().getThreadFactory().newThread(r);
+		} catch (SshException e) {
+			thread = Ssh2Context.PLATFORM_THREADS.newThread(r);
+		}
+		thread.setDaemon(true);
+		thread.setName("SshConnectionPool " + key);
+		thread.start();
+	}
+
+	/**
+	 * Make a new connection and authenticate it.
+	 */
+	protected SshClient connect(String host, int port, String username,
+			SshAuthentication auth) throws SshException {
+
+		SshTransport transport;
+		try {
+			transport = createTransport(host, port);
+		} catch (IOException ex) {
+			throw new SshException(ex.getMessage(), SshException.CONNECT_FAILED,
+					ex);
+		}
+
+		SshClient ssh = connector.connect(transport, username, buffered, null);
+		boolean authenticated = false;
+		try {
+			authenticated = ssh.authenticate(auth) == SshAuthentication.COMPLETE;
+		} finally {
+			if (!authenticated) {
+				ssh.disconnect();
+			}
+		}
+
+		if (!authenticated) {
+			throw new SshException("Authentication failed for " + username
+					+ "@" + host + ":" + port, SshException.CONNECT_FAILED);
+		}
+		return ssh;
+	}
+
+	/**
+	 * Create the transport for a new connection.
+	 */
+	protected SshTransport createTransport(String host, int port)
+			throws IOException {
+		return new SocketTransport(host, port);
+	}
+
+	HostConnections getHostConnections(Key key) {
+		HostConnections connections = hosts.get(key);
+		if (connections == null) {
+			connections = new HostConnections();
+			hosts.put(key, connections);
+		}
+		return connections;
+	}
+
+	void checkClosed() throws SshException {
+		if (closed) {
+			throw new SshException("The connection pool is closed",
+					SshException.BAD_API_USAGE);
+		}
+	}
+
+	/**
+	 * The number of connections currently open.
+	 * 
+	 * @return int
+	 */
+	public synchronized int getConnectionCount() {
+		int count = 0;
+		for (Enumeration<HostConnections> e = hosts.elements(); e
+				.hasMoreElements();) {
+			count += e.nextElement().size();
+		}
+		return count;
+	}
+
+	/**
+	 * The number of connections the pool has made.
+	 * 
+	 * @return long
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * The number of times a channel was placed on an existing connection.
+	 * 
+	 * @return long
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * The number of connections that failed to connect or authenticate.
+	 * 
+	 * @return long
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * The number of connections disconnected because they were idle.
+	 * 
+	 * @return long
+	 */
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	/**
+	 * The number of connections dropped because they had been lost.
+	 * 
+	 * @return long
+	 */
+	public long getDiscardedCount() {
+		return discarded.get();
+	}
+
+	/**
+	 * The connections for one host, port, user and authentication, in the
+	 * order they were made.
+	 */
+	class HostConnections extends Vector<PooledConnection> {
+
+		private static final long serialVersionUID = 1L;
+
+		int connecting;
+
+		void removeDead() {
+			for (int i = size() - 1; i >= 0; i--) {
+				PooledConnection pooled = elementAt(i);
+				if (!pooled.ssh.isConnected()) {
+					removeElementAt(i);
+					discarded.incrementAndGet();
+					if (Log.isDebugEnabled()) {
+						Log.debug(SshConnectionPool.this,
+								"Dropping lost connection to " + pooled.key);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Select the busiest connection that still has room for a channel,
+		 * so that channels are packed onto as few connections as possible
+		 * and the rest can become idle.
+		 */
+		PooledConnection select() {
+			PooledConnection selected = null;
+			int busiest = -1;
+			for (int i = 0; i < size(); i++) {
+				PooledConnection pooled = elementAt(i);
+				int count = pooled.ssh.getChannelCount();
+				if (count < pooled.getLimit() && count > busiest) {
+					busiest = count;
+					selected = pooled;
+				}
+			}
+			return selected;
+		}
+
+		PooledConnection find(SshClient ssh) {
+			for (int i = 0; i < size(); i++) {
+				if (elementAt(i).ssh == ssh) {
+					return elementAt(i);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Whether the free channels, not counting the one about to be opened
+		 * on the selected connection, have fallen below the headroom.
+		 */
+		boolean needsConnection(PooledConnection selected) {
+			if (connecting > 0 || size() >= maxConnections) {
+				return false;
+			}
+			if (size() < prewarmed) {
+				return true;
+			}
+			int free = -1;
+			for (int i = 0; i < size(); i++) {
+				PooledConnection pooled = elementAt(i);
+				free += Math.max(0,
+						pooled.getLimit() - pooled.ssh.getChannelCount());
+			}
+			return free < channelHeadroom;
+		}
+	}
+
+	static class PooledConnection {
+		Key key;
+		SshClient ssh;
+		int limit = Integer.MAX_VALUE;
+		long lastUsed;
+
+		PooledConnection(Key key, SshClient ssh) {
+			this.key = key;
+			this.ssh = ssh;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		int getLimit() {
+			return Math.min(limit, ssh.getContext().getChannelLimit());
+		}
+	}
+
+	static class Key {
+		String host;
+		int port;
+		String username;
+		SshAuthentication auth;
+
+		Key(String host, int port, String username, SshAuthentication auth) {
+			this.host = host;
+			this.port = port;
+			this.username = username;
+			this.auth = auth;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return host.equalsIgnoreCase(other.host) && port == other.port
+					&& username.equals(other.username)
+					&& auth.equals(other.auth);
+		}
+
+		public int hashCode() {
+			return host.toLowerCase().hashCode() ^ (port * 31)
+					^ username.hashCode() ^ auth.hashCode();
+		}
+
+		public String toString() {
+			return username + "@" + host + ":" + port;
+		}
+	}
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+import com.sshtools.logging.Log;
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.SshIOException;
+import com.sshtools.util.UnsignedInteger64;
+
+/**
+ * <p>
+ * Brings a file that already exists at its destination up to date by
+ * transferring only the blocks that differ. Both copies of the file are
+ * hashed in fixed size blocks, the remote copy by the server when it
+ * supports the <code>check-file</code> extension, and each run of blocks
+ * whose hashes do not match is transferred to the same offset with the usual
+ * pipelined requests. The destination is then truncated to the length of the
+ * source.
+ * </p>
+ * 
+ * <p>
+ * Blocks are compared at the same offsets in both files, so this suits files
+ * that are changed in place or appended to rather than ones with data
+ * inserted part way through. When the server cannot hash a file an upload
+ * reads the remote blocks to hash them locally instead, trading writes for
+ * reads, while a download simply transfers the whole file since reading the
+ * remote blocks would cost as much as downloading them.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+class DeltaTransfer {
+
+	SftpSubsystemChannel channel;
+	int hashBlockSize;
+	String algorithms;
+	int blocksize;
+	int readBlocksize;
+	int outstandingRequests;
+	FileTransferProgress progress;
+
+	long transferred;
+
+	DeltaTransfer(SftpSubsystemChannel channel, int hashBlockSize,
+			String algorithms, FileTransferProgress progress) {
+		this.channel = channel;
+		this.hashBlockSize = hashBlockSize;
+		this.algorithms = algorithms;
+		this.progress = progress;
+	}
+
+	/**
+	 * Update a remote file, opened for reading and writing, from a local
+	 * file. The progress is started with the number of bytes that will be
+	 * sent but is left for the caller to complete.
+	 */
+	void upload(File local, UploadSource source, SftpFile file,
+			long remoteLength, String remotePath) throws SftpStatusException,
+			SshException, TransferCancelledException {
+
+		try {
+			long length = source.length();
+
+			SftpFileChecksum theirs = getRemoteChecksum(file.getHandle(),
+					remoteLength, true);
+			SftpFileChecksum ours = null;
+			if (theirs != null) {
+				ours = getLocalChecksum(local, theirs.getAlgorithm());
+			}
+
+			Vector<long[]> ranges = getChangedRanges(ours, theirs, length);
+			start(ranges, remotePath);
+
+			for (int i = 0; i < ranges.size(); i++) {
+				long[] range = ranges.elementAt(i);
+				channel.performOptimizedWrite(file.getHandle(), blocksize,
+						outstandingRequests, new RangeUploadSource(source,
+								range[1]), new RangeProgress(range[0]),
+						range[0]);
+				transferred += range[1] - range[0];
+			}
+
+			if (length < remoteLength) {
+				SftpFileAttributes attrs = new SftpFileAttributes(channel,
+						SftpFileAttributes.SSH_FILEXFER_TYPE_REGULAR);
+				attrs.setSize(new UnsignedInteger64(length));
+				channel.setAttributes(file, attrs);
+			}
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
+		} catch (IOException ex) {
+			throw new SshException(ex);
+		}
+	}
+
+	/**
+	 * Update a local file from a remote file opened for reading. The progress
+	 * is started with the number of bytes that will be received but is left
+	 * for the caller to complete.
+	 */
+	void download(SftpFile file, long remoteLength, File local,
+			String remotePath) throws SftpStatusException, SshException,
+			TransferCancelledException {
+
+		RandomAccessFile raf = null;
+		try {
+			SftpFileChecksum theirs = getRemoteChecksum(file.getHandle(),
+					remoteLength, false);
+			SftpFileChecksum ours = null;
+			if (theirs != null) {
+				ours = getLocalChecksum(local, theirs.getAlgorithm());
+			}
+
+			Vector<long[]> ranges = getChangedRanges(theirs, ours,
+					remoteLength);
+			start(ranges, remotePath);
+
+			raf = new RandomAccessFile(local, "rw");
+			DownloadTarget target = new RangeDownloadTarget(raf.getChannel());
+			for (int i = 0; i < ranges.size(); i++) {
+				long[] range = ranges.elementAt(i);
+				channel.performOptimizedRead(file.getHandle(), range[1]
+						- range[0], readBlocksize, target,
+						outstandingRequests, new RangeProgress(range[0]),
+						range[0]);
+				transferred += range[1] - range[0];
+			}
+
+			raf.setLength(remoteLength);
+		} catch (IOException ex) {
+			throw new SftpStatusException(SftpStatusException.SSH_FX_FAILURE,
+					"Failed to update " + local.getAbsolutePath() + ": "
+							+ ex.getMessage());
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+	}
+
+	void start(Vector<long[]> ranges, String remotePath) {
+		if (progress != null) {
+			long total = 0;
+			for (int i = 0; i < ranges.size(); i++) {
+				long[] range = ranges.elementAt(i);
+				total += range[1] - range[0];
+			}
+			progress.started(total, remotePath);
+		}
+	}
+
+	/**
+	 * Get the hashes of the blocks of a remote file, from the server if it
+	 * supports the <code>check-file</code> extension, otherwise by reading the
+	 * file if <code>read</code> is set.
+	 * 
+	 * @return the checksum, or <code>null</code> if it cannot be obtained
+	 */
+	SftpFileChecksum getRemoteChecksum(byte[] handle, long length,
+			boolean read) throws SftpStatusException, SshException,
+			TransferCancelledException {
+
+		if (channel.supportsExtension("check-file")
+				|| channel.supportsExtension("check-file-handle")) {
+			try {
+				SftpFileChecksum checksum = channel.checkFile(handle,
+						algorithms, 0, 0, hashBlockSize);
+				if (checksum.getHashCount() == (length + hashBlockSize - 1)
+						/ hashBlockSize) {
+					return checksum;
+				}
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Server returned " + checksum.getHashCount()
+							+ " hashes for a file of " + length + " bytes");
+				}
+			} catch (SftpStatusException ex) {
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Server failed to hash the file", ex);
+				}
+			}
+		}
+
+		if (!read) {
+			return null;
+		}
+
+		StringTokenizer t = new StringTokenizer(algorithms, ",");
+		while (t.hasMoreTokens()) {
+			SftpFileChecksum.Hasher hasher;
+			try {
+				hasher = new SftpFileChecksum.Hasher(t.nextToken().trim(), 0,
+						hashBlockSize);
+			} catch (NoSuchAlgorithmException e) {
+				continue;
+			}
+			try {
+				channel.performOptimizedRead(handle, length, readBlocksize,
+						hasher, outstandingRequests, null, 0);
+				return hasher.getChecksum();
+			} catch (IOException ex) {
+				throw new SshException(ex);
+			}
+		}
+		return null;
+	}
+
+	SftpFileChecksum getLocalChecksum(File local, String algorithm)
+			throws IOException {
+		InputStream in = new FileInputStream(local);
+		try {
+			return SftpFileChecksum.calculate(in, algorithm, 0, hashBlockSize);
+		} catch (NoSuchAlgorithmException ex) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Get the ranges of the source whose blocks are missing from, or differ
+	 * in, the destination. The whole source is returned when either checksum
+	 * is missing.
+	 */
+	Vector<long[]> getChangedRanges(SftpFileChecksum source,
+			SftpFileChecksum destination, long length) {
+
+		Vector<long[]> ranges = new Vector<long[]>();
+		if (source == null || destination == null) {
+			if (length > 0) {
+				ranges.addElement(new long[] { 0, length });
+			}
+			return ranges;
+		}
+
+		long[] range = null;
+		for (int i = 0; i < source.getHashCount(); i++) {
+			if (i < destination.getHashCount()
+					&& source.matches(i, destination, i)) {
+				range = null;
+				continue;
+			}
+			long start = (long) i * hashBlockSize;
+			long end = Math.min(start + hashBlockSize, length);
+			if (range == null) {
+				range = new long[] { start, end };
+				ranges.addElement(range);
+			} else {
+				range[1] = end;
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Reports the progress of a range as the progress of the whole
+	 * transfer.
+	 */
+	class RangeProgress implements FileTransferProgress {
+		long start;
+
+		RangeProgress(long start) {
+			this.start = start;
+		}
+
+		public void started(long bytesTotal, String remoteFile) {
+		}
+
+		public boolean isCancelled() {
+			return progress != null && progress.isCancelled();
+		}
+
+		public void progressed(long bytesSoFar) {
+			if (progress != null) {
+				progress.progressed(transferred + bytesSoFar - start);
+			}
+		}
+
+		public void completed() {
+		}
+	}
+
+	/**
+	 * Limits an upload to the end of a range.
+	 */
+	static class RangeUploadSource implements UploadSource {
+		UploadSource source;
+		long end;
+
+		RangeUploadSource(UploadSource source, long end) {
+			this.source = source;
+			this.end = end;
+		}
+
+		public long length() {
+			return end;
+		}
+
+		public void read(long offset, byte[] buf, int off, int len)
+				throws IOException {
+			source.read(offset, buf, off, len);
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * Writes a range of a download into the existing file, which is left
+	 * intact should the download fail.
+	 */
+	static class RangeDownloadTarget extends FileChannelDownloadTarget {
+
+		RangeDownloadTarget(FileChannel channel) {
+			super(channel);
+		}
+
+		public void truncate(long length) {
+		}
+	}
+}
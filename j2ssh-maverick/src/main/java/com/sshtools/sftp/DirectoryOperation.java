@@ -97,6 +97,10 @@ public class DirectoryOperation {
 		unchangedFiles.addElement(f);
 	}
 
+	void addRecursedDirectory(File f) {
+		recursedDirectories.addElement(f);
+	}
+
 	/**
 	 * Returns a list of new files that will be transfered in the directory
 	 * operation
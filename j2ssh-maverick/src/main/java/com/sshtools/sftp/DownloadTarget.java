@@ -0,0 +1,81 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * The destination of a file download. The data returned by each read
+ * request is handed to the target together with its offset in the file.
+ * </p>
+ * 
+ * <p>
+ * A target that supports random access receives the data of each response
+ * as soon as it arrives, in whatever order the responses are read, so a
+ * pipelined download needs no buffer to put them back in order. Other
+ * targets receive the data strictly in file order.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public interface DownloadTarget {
+
+	/**
+	 * Can data be written at any offset, in any order?
+	 * 
+	 * @return boolean
+	 */
+	public boolean isRandomAccess();
+
+	/**
+	 * Write a block of the file.
+	 * 
+	 * @param offset
+	 *            the offset of the block in the file
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public void write(long offset, byte[] buf, int off, int len)
+			throws IOException;
+
+	/**
+	 * Discard anything written at or beyond <code>length</code>. This is
+	 * called on a random access target when a download ends, with the length
+	 * of the data received contiguously. After a failure only that data is
+	 * left for a later attempt to resume from; after success anything beyond
+	 * the end of the file, such as space reserved for a file that has since
+	 * shrunk, is removed.
+	 * 
+	 * @param length
+	 * @throws IOException
+	 */
+	public void truncate(long length) throws IOException;
+
+	/**
+	 * Close the target.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * A {@link DownloadTarget} that writes each block straight to its offset in
+ * a local file with positional <code>FileChannel</code> writes.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class FileChannelDownloadTarget implements DownloadTarget {
+
+	RandomAccessFile file;
+	FileChannel channel;
+
+	/**
+	 * Write to a local file.
+	 * 
+	 * @param file
+	 *            the local file
+	 * @param append
+	 *            keep the existing content of the file, otherwise the file is
+	 *            truncated
+	 * @throws IOException
+	 */
+	public FileChannelDownloadTarget(File file, boolean append)
+			throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		if (!append) {
+			channel.truncate(0);
+		}
+	}
+
+	/**
+	 * Write to an open channel. The channel is not closed by
+	 * {@link #close()}.
+	 * 
+	 * @param channel
+	 */
+	public FileChannelDownloadTarget(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	public boolean isRandomAccess() {
+		return true;
+	}
+
+	public void write(long offset, byte[] buf, int off, int len)
+			throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(buf, off, len);
+		while (data.hasRemaining()) {
+			offset += channel.write(data, offset);
+		}
+	}
+
+	public void truncate(long length) throws IOException {
+		channel.truncate(length);
+	}
+
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+	}
+}
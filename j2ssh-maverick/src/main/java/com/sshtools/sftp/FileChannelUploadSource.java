@@ -0,0 +1,87 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * An {@link UploadSource} that reads a local file with positional
+ * <code>FileChannel</code> reads.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class FileChannelUploadSource implements UploadSource {
+
+	RandomAccessFile file;
+	FileChannel channel;
+
+	/**
+	 * Read a local file.
+	 * 
+	 * @param file
+	 * @throws FileNotFoundException
+	 */
+	public FileChannelUploadSource(File file) throws FileNotFoundException {
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+	}
+
+	/**
+	 * Read from an open channel. The channel is not closed by
+	 * {@link #close()}.
+	 * 
+	 * @param channel
+	 */
+	public FileChannelUploadSource(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	public long length() throws IOException {
+		return channel.size();
+	}
+
+	public void read(long offset, byte[] buf, int off, int len)
+			throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(buf, off, len);
+		while (data.hasRemaining()) {
+			int count = channel.read(data, offset);
+			if (count < 0) {
+				throw new EOFException(
+						"The local file is shorter than expected");
+			}
+			offset += count;
+		}
+	}
+
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * A {@link DownloadTarget} that copies each block into a memory mapping of
+ * the local file, avoiding a system call per block. The file is sized to
+ * the expected length up front and mapped in regions of
+ * {@link #REGION_SIZE} bytes as they are needed. Data beyond the expected
+ * length, should the remote file have grown, is written through the file
+ * channel.
+ * </p>
+ * 
+ * <p>
+ * A mapping is only released when it is garbage collected, and on some
+ * platforms the file cannot be truncated or deleted until then.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class MappedFileDownloadTarget implements DownloadTarget {
+
+	public static final int REGION_SIZE = MappedRegions.REGION_SIZE;
+
+	RandomAccessFile file;
+	FileChannel channel;
+	long length;
+	MappedRegions regions;
+
+	/**
+	 * Write to a local file.
+	 * 
+	 * @param file
+	 *            the local file
+	 * @param length
+	 *            the expected length of the file
+	 * @param append
+	 *            keep the existing content of the file, otherwise the file is
+	 *            truncated first
+	 * @throws IOException
+	 */
+	public MappedFileDownloadTarget(File file, long length, boolean append)
+			throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		this.length = length;
+		if (!append) {
+			channel.truncate(0);
+		}
+		if (this.file.length() < length) {
+			this.file.setLength(length);
+		}
+		this.regions = new MappedRegions(channel,
+				FileChannel.MapMode.READ_WRITE, length);
+	}
+
+	public boolean isRandomAccess() {
+		return true;
+	}
+
+	public void write(long offset, byte[] buf, int off, int len)
+			throws IOException {
+		while (len > 0) {
+			if (offset >= length) {
+				ByteBuffer data = ByteBuffer.wrap(buf, off, len);
+				while (data.hasRemaining()) {
+					offset += channel.write(data, offset);
+				}
+				return;
+			}
+			ByteBuffer slice = regions.slice(offset);
+			int count = Math.min(len, slice.remaining());
+			slice.put(buf, off, count);
+			offset += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	public void truncate(long length) throws IOException {
+		regions.release();
+		file.setLength(length);
+	}
+
+	public void close() throws IOException {
+		regions.release();
+		file.close();
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * An {@link UploadSource} that copies the data of each request out of a
+ * read-only memory mapping of the local file, which is mapped in regions of
+ * {@link #REGION_SIZE} bytes as they are needed.
+ * </p>
+ * 
+ * <p>
+ * A mapping is only released when it is garbage collected, and on some
+ * platforms the file cannot be modified or deleted until then.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class MappedFileUploadSource implements UploadSource {
+
+	public static final int REGION_SIZE = MappedRegions.REGION_SIZE;
+
+	RandomAccessFile file;
+	FileChannel channel;
+	long length;
+	MappedRegions regions;
+
+	/**
+	 * Read a local file.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public MappedFileUploadSource(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		this.length = channel.size();
+		this.regions = new MappedRegions(channel, FileChannel.MapMode.READ_ONLY,
+				length);
+	}
+
+	/**
+	 * Read from an open channel. The channel is not closed by
+	 * {@link #close()}.
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 */
+	public MappedFileUploadSource(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.length = channel.size();
+		this.regions = new MappedRegions(channel, FileChannel.MapMode.READ_ONLY,
+				length);
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public void read(long offset, byte[] buf, int off, int len)
+			throws IOException {
+		if (offset + len > length) {
+			throw new EOFException("The local file is shorter than expected");
+		}
+		while (len > 0) {
+			ByteBuffer slice = regions.slice(offset);
+			int count = Math.min(len, slice.remaining());
+			slice.get(buf, off, count);
+			offset += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	public void close() throws IOException {
+		regions.release();
+		if (file != null) {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps the regions of a local file on demand for memory mapped transfers.
+ * Regions of {@link #REGION_SIZE} bytes are mapped as they are needed and
+ * only the most recently mapped are kept.
+ * 
+ * @author Lee David Painter
+ */
+class MappedRegions {
+
+	static final int REGION_SIZE = 64 * 1024 * 1024;
+
+	static final int MAX_REGIONS = 4;
+
+	FileChannel channel;
+	FileChannel.MapMode mode;
+	long length;
+	long[] regionStart = new long[MAX_REGIONS];
+	MappedByteBuffer[] regions = new MappedByteBuffer[MAX_REGIONS];
+	int next = 0;
+
+	/**
+	 * @param channel
+	 *            the channel of the local file
+	 * @param mode
+	 *            the mode in which the regions are mapped
+	 * @param length
+	 *            the length of the file that may be mapped
+	 */
+	MappedRegions(FileChannel channel, FileChannel.MapMode mode, long length) {
+		this.channel = channel;
+		this.mode = mode;
+		this.length = length;
+	}
+
+	/**
+	 * Get a buffer positioned at <code>offset</code>, with the rest of the
+	 * region containing it remaining. The offset must be less than the
+	 * length.
+	 */
+	synchronized ByteBuffer slice(long offset) throws IOException {
+		ByteBuffer slice = region(offset).duplicate();
+		slice.position((int) (offset % REGION_SIZE));
+		return slice;
+	}
+
+	private MappedByteBuffer region(long offset) throws IOException {
+		long start = offset - (offset % REGION_SIZE);
+		for (int i = 0; i < MAX_REGIONS; i++) {
+			if (regions[i] != null && regionStart[i] == start) {
+				return regions[i];
+			}
+		}
+		MappedByteBuffer region = channel.map(mode, start, Math.min(
+				REGION_SIZE, length - start));
+		regionStart[next] = start;
+		regions[next] = region;
+		next = (next + 1) % MAX_REGIONS;
+		return region;
+	}
+
+	/**
+	 * Drop every mapping so that they can be garbage collected.
+	 */
+	synchronized void release() {
+		for (int i = 0; i < MAX_REGIONS; i++) {
+			regions[i] = null;
+		}
+	}
+}
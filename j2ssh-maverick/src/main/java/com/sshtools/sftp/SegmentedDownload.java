@@ -0,0 +1,68 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.File;
+
+/**
+ * <p>
+ * Downloads a remote file as a number of segments fetched in parallel, each
+ * written directly to its offsets in the local file.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+class SegmentedDownload extends SegmentedTransfer {
+
+	int readBlocksize;
+
+	SegmentedDownload(SftpClient client, String remotePath, File localFile,
+			FileTransferProgress progress) {
+		super(client, remotePath, localFile, progress);
+	}
+
+	void transferSegment(SftpSubsystemChannel channel, final Segment segment)
+			throws Throwable {
+
+		SftpFile remote = channel.openFile(remotePath,
+				SftpSubsystemChannel.OPEN_READ);
+
+		SftpReadAhead reader = new SftpReadAhead(channel, remote.getHandle(),
+				new FileChannelDownloadTarget(file), readBlocksize,
+				outstandingRequests) {
+			void progressed(long position) throws TransferCancelledException {
+				SegmentedDownload.this.progressed(segment, position);
+			}
+		};
+
+		try {
+			if (reader.read(segment.position, segment.end) < segment.end) {
+				throw new SftpStatusException(SftpStatusException.SSH_FX_EOF,
+						"The remote file is shorter than expected");
+			}
+		} finally {
+			try {
+				channel.closeFile(remote);
+			} catch (Exception e) {
+			}
+		}
+	}
+}
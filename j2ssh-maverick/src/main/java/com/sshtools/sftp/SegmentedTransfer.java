@@ -0,0 +1,379 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+
+import com.sshtools.logging.Log;
+import com.sshtools.ssh.SshClient;
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh2.Ssh2Context;
+
+/**
+ * <p>
+ * Transfers a single file as a number of segments, each over its own SFTP
+ * channel, so that one large transfer is not limited by the window of a
+ * single channel or connection. Each segment records how far it has
+ * progressed in a state file alongside the local file so that an
+ * interrupted transfer can be resumed segment by segment.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+abstract class SegmentedTransfer {
+
+	static final String STATE_SUFFIX = ".segments";
+	static final long STATE_INTERVAL = 1000;
+
+	SftpClient client;
+	String remotePath;
+	File localFile;
+	File stateFile;
+	FileChannel file;
+	FileTransferProgress progress;
+	int blocksize;
+	int outstandingRequests;
+	long length;
+	long modified;
+
+	Vector<Segment> segments = new Vector<Segment>();
+	Vector<SftpSubsystemChannel> channels = new Vector<SftpSubsystemChannel>();
+	Vector<SshClient> connections = new Vector<SshClient>();
+
+	long transfered;
+	long lastStateSave;
+	volatile Throwable error;
+
+	SegmentedTransfer(SftpClient client, String remotePath, File localFile,
+			FileTransferProgress progress) {
+		this.client = client;
+		this.remotePath = remotePath;
+		this.localFile = localFile;
+		this.stateFile = new File(localFile.getPath() + STATE_SUFFIX);
+		this.progress = progress;
+	}
+
+	/**
+	 * Transfer the given segment over the given channel.
+	 */
+	abstract void transferSegment(SftpSubsystemChannel channel,
+			Segment segment) throws Throwable;
+
+	/**
+	 * Verify the transfer once every segment has completed. The default
+	 * implementation does nothing.
+	 */
+	void verify() throws SftpStatusException, SshException {
+	}
+
+	/**
+	 * Split the remaining part of the file into segments. When resuming, the
+	 * segments saved by an earlier attempt are used if the file has not
+	 * changed since, otherwise the transfer starts at <code>position</code>.
+	 * 
+	 * @return <code>true</code> if the saved segments were used
+	 */
+	boolean createSegments(int streams, long position, boolean resume) {
+
+		if (resume && loadState()) {
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Resuming " + segments.size()
+						+ " segments from " + stateFile);
+			}
+			return true;
+		}
+
+		long remaining = length - position;
+		long count = Math.max(1, Math.min(streams,
+				(remaining + blocksize - 1) / blocksize));
+		long size = remaining / count;
+		for (int i = 0; i < count; i++) {
+			long start = position + (i * size);
+			long end = i == count - 1 ? length : start + size;
+			segments.addElement(new Segment(start, end));
+		}
+		return false;
+	}
+
+	/**
+	 * Open the channels, run every segment on its own thread and wait for
+	 * them to complete. The first failure stops the remaining segments.
+	 */
+	void transfer(boolean separateConnections) throws SftpStatusException,
+			SshException, TransferCancelledException {
+
+		long total = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.elementAt(i);
+			transfered += segment.position - segment.start;
+			total += segment.end - segment.start;
+		}
+
+		if (progress != null) {
+			progress.started(total, remotePath);
+			if (transfered > 0) {
+				progress.progressed(transfered);
+			}
+		}
+
+		try {
+			for (int i = 0; i < segments.size(); i++) {
+				if (segments.elementAt(i).isComplete()) {
+					channels.addElement(null);
+				} else {
+					channels.addElement(openChannel(separateConnections));
+				}
+			}
+
+			Thread[] threads = new Thread[segments.size()];
+			for (int i = 0; i < threads.length; i++) {
+				if (channels.elementAt(i) != null) {
+					threads[i] = Ssh2Context.getThreadFactory(
+							client.sftp.getContext()).newThread(
+							new SegmentRunner(i));
+					threads[i].setName("SftpSegment-" + i + " " + remotePath);
+					threads[i].start();
+				}
+			}
+
+			for (int i = 0; i < threads.length; i++) {
+				if (threads[i] != null) {
+					try {
+						threads[i].join();
+					} catch (InterruptedException e) {
+						failed(new TransferCancelledException());
+						i--;
+					}
+				}
+			}
+		} finally {
+			closeChannels();
+		}
+
+		if (error == null) {
+			for (int i = 0; i < segments.size(); i++) {
+				if (!segments.elementAt(i).isComplete()) {
+					error = new SftpStatusException(
+							SftpStatusException.SSH_FX_FAILURE,
+							"Segment " + i + " of " + remotePath
+									+ " did not complete");
+				}
+			}
+		}
+
+		if (error == null) {
+			try {
+				verify();
+			} catch (Throwable t) {
+				error = t;
+			}
+		}
+
+		if (error != null) {
+			saveState();
+			if (error instanceof SftpStatusException) {
+				throw (SftpStatusException) error;
+			} else if (error instanceof SshException) {
+				throw (SshException) error;
+			} else if (error instanceof TransferCancelledException) {
+				throw (TransferCancelledException) error;
+			} else if (error instanceof IOException) {
+				throw new SftpStatusException(
+						SftpStatusException.SSH_FX_FAILURE,
+						"Failed to access local file " + localFile + ": "
+								+ error.getMessage());
+			}
+			throw new SshException(error);
+		}
+
+		stateFile.delete();
+
+		if (progress != null) {
+			progress.completed();
+		}
+	}
+
+	SftpSubsystemChannel openChannel(boolean separateConnection)
+			throws SftpStatusException, SshException {
+		if (channels.isEmpty()) {
+			return client.sftp;
+		}
+		SshClient ssh = client.ssh;
+		if (separateConnection) {
+			ssh = ssh.duplicate();
+			connections.addElement(ssh);
+		}
+		return client.openSubsystemChannel(ssh);
+	}
+
+	void closeChannels() {
+		for (int i = 0; i < channels.size(); i++) {
+			SftpSubsystemChannel channel = channels.elementAt(i);
+			if (channel != null && channel != client.sftp) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		for (int i = 0; i < connections.size(); i++) {
+			connections.elementAt(i).disconnect();
+		}
+		channels.removeAllElements();
+		connections.removeAllElements();
+	}
+
+	/**
+	 * Record the progress of a segment, saving the state of the transfer
+	 * periodically so that it may be resumed.
+	 */
+	void progressed(Segment segment, long position)
+			throws TransferCancelledException {
+		synchronized (this) {
+			transfered += position - segment.position;
+			segment.position = position;
+			if (progress != null) {
+				progress.progressed(transfered);
+			}
+			long now = System.currentTimeMillis();
+			if (now - lastStateSave >= STATE_INTERVAL) {
+				lastStateSave = now;
+				saveState();
+			}
+		}
+		checkCancelled();
+	}
+
+	void checkCancelled() throws TransferCancelledException {
+		if (error != null
+				|| (progress != null && progress.isCancelled())) {
+			throw new TransferCancelledException();
+		}
+	}
+
+	synchronized void failed(Throwable t) {
+		if (error == null) {
+			error = t;
+		}
+	}
+
+	synchronized void saveState() {
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					stateFile));
+			try {
+				out.writeLong(length);
+				out.writeLong(modified);
+				out.writeInt(segments.size());
+				for (int i = 0; i < segments.size(); i++) {
+					Segment segment = segments.elementAt(i);
+					out.writeLong(segment.start);
+					out.writeLong(segment.end);
+					out.writeLong(segment.position);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Failed to save transfer state to "
+						+ stateFile, e);
+			}
+		}
+	}
+
+	boolean loadState() {
+		if (!stateFile.exists()) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(
+					stateFile));
+			try {
+				if (in.readLong() != length || in.readLong() != modified) {
+					return false;
+				}
+				int count = in.readInt();
+				Vector<Segment> saved = new Vector<Segment>();
+				for (int i = 0; i < count; i++) {
+					Segment segment = new Segment(in.readLong(), in.readLong());
+					segment.position = in.readLong();
+					if (segment.start < 0 || segment.end > length
+							|| segment.position < segment.start
+							|| segment.position > segment.end) {
+						return false;
+					}
+					saved.addElement(segment);
+				}
+				segments = saved;
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	static class Segment {
+		long start;
+		long end;
+		volatile long position;
+
+		Segment(long start, long end) {
+			this.start = start;
+			this.end = end;
+			this.position = start;
+		}
+
+		boolean isComplete() {
+			return position >= end;
+		}
+	}
+
+	class SegmentRunner implements Runnable {
+		int index;
+
+		SegmentRunner(int index) {
+			this.index = index;
+		}
+
+		public void run() {
+			try {
+				transferSegment(channels.elementAt(index),
+						segments.elementAt(index));
+			} catch (Throwable t) {
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Segment " + index + " of " + remotePath
+							+ " failed", t);
+				}
+				failed(t);
+			}
+		}
+	}
+}
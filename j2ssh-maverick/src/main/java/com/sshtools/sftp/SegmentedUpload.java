@@ -0,0 +1,96 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.File;
+import java.util.LinkedList;
+
+import com.sshtools.ssh.SshException;
+
+/**
+ * <p>
+ * Uploads a local file as a number of segments written in parallel, each
+ * read from its offsets in the local file straight into the write requests.
+ * The size of the remote file is checked once every segment has been
+ * written.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+class SegmentedUpload extends SegmentedTransfer {
+
+	UploadSource source;
+
+	SegmentedUpload(SftpClient client, String remotePath, File localFile,
+			FileTransferProgress progress) {
+		super(client, remotePath, localFile, progress);
+	}
+
+	void transferSegment(SftpSubsystemChannel channel, Segment segment)
+			throws Throwable {
+
+		SftpFile remote = channel.openFile(remotePath,
+				SftpSubsystemChannel.OPEN_WRITE);
+		byte[] handle = remote.getHandle();
+		LinkedList<SftpResponseFuture> requests = new LinkedList<SftpResponseFuture>();
+
+		try {
+			long offset = segment.position;
+			long acknowledged = segment.position;
+			while (true) {
+
+				while (requests.size() < outstandingRequests
+						&& offset < segment.end) {
+					int len = (int) Math.min(blocksize, segment.end - offset);
+					requests.addLast(channel.getResponseFuture(channel
+							.postWriteRequest(handle, offset, source, len)));
+					offset += len;
+				}
+
+				if (requests.isEmpty()) {
+					break;
+				}
+
+				// Every request but the last of the segment is a full block
+				channel.getOKRequestStatus(requests.removeFirst()
+						.getRequestId());
+				acknowledged = Math.min(acknowledged + blocksize, segment.end);
+				progressed(segment, acknowledged);
+			}
+		} finally {
+			channel.discardResponses(requests);
+			try {
+				channel.closeFile(remote);
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	void verify() throws SftpStatusException, SshException {
+		long size = client.sftp.getAttributes(remotePath).getSize()
+				.longValue();
+		if (size != length) {
+			throw new SftpStatusException(SftpStatusException.SSH_FX_FAILURE,
+					"The remote file is " + size + " bytes but " + length
+							+ " bytes were expected");
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Caches the attributes of remote files by absolute path so that repeated
+ * <code>SSH_FXP_STAT</code> and <code>SSH_FXP_LSTAT</code> requests for a
+ * path that has just been looked at are answered locally. Entries expire
+ * after a fixed time and the least recently used entries are evicted once
+ * the cache is full. The cache is filled from directory listings as well as
+ * from the responses to stat requests, and the channels sharing it
+ * invalidate the paths they write, rename, remove or change the attributes
+ * of.
+ * </p>
+ * 
+ * <p>
+ * Changes made by other clients are only seen once an entry expires, or
+ * after it has been invalidated with {@link #invalidate(String)} or
+ * {@link #clear()}.
+ * </p>
+ * 
+ * <pre>
+ * SftpClient sftp = new SftpClient(ssh);
+ * sftp.setAttributeCache(new SftpAttributeCache(5000, 10000));
+ * </pre>
+ * 
+ * @author Lee David Painter
+ */
+public class SftpAttributeCache {
+
+	long ttl;
+	int maxEntries;
+	LinkedHashMap<String, CachedAttributes> entries;
+	Hashtable<String, String> handles = new Hashtable<String, String>();
+	Hashtable<String, String> writeHandles = new Hashtable<String, String>();
+	Hashtable<String, Integer> writing = new Hashtable<String, Integer>();
+
+	/**
+	 * Create a cache.
+	 * 
+	 * @param ttl
+	 *            the time in milliseconds that attributes are cached for
+	 * @param maxEntries
+	 *            the maximum number of paths to cache
+	 */
+	public SftpAttributeCache(long ttl, int maxEntries) {
+		if (ttl <= 0) {
+			throw new IllegalArgumentException(
+					"The time to live must be greater than zero");
+		}
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException(
+					"The maximum number of entries must be greater or equal to 1");
+		}
+		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, CachedAttributes>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CachedAttributes> eldest) {
+				return size() > SftpAttributeCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get the time in milliseconds that attributes are cached for.
+	 * 
+	 * @return long
+	 */
+	public long getTimeToLive() {
+		return ttl;
+	}
+
+	/**
+	 * Get the maximum number of paths cached.
+	 * 
+	 * @return int
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Get the number of paths currently cached.
+	 * 
+	 * @return int
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Remove all of the cached attributes.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Remove the cached attributes of a path, for example after it has been
+	 * changed by another client.
+	 * 
+	 * @param path
+	 *            the absolute path
+	 */
+	public synchronized void invalidate(String path) {
+		path = normalize(path);
+		if (path == null) {
+			entries.clear();
+		} else {
+			entries.remove(path);
+		}
+	}
+
+	/**
+	 * Get a copy of the cached attributes of a path.
+	 * 
+	 * @param path
+	 * @param link
+	 *            <code>true</code> for the attributes of a symbolic link
+	 *            itself rather than its target
+	 * @return the attributes, or <code>null</code> if they are not cached
+	 */
+	synchronized SftpFileAttributes get(String path, boolean link) {
+		path = normalize(path);
+		if (path == null || writing.containsKey(path)) {
+			return null;
+		}
+		CachedAttributes entry = entries.get(path);
+		if (entry == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		SftpFileAttributes attrs = null;
+		if (link) {
+			if (now < entry.lstatExpires) {
+				attrs = entry.lstat;
+			}
+		} else if (now < entry.statExpires) {
+			attrs = entry.stat;
+		}
+		if (attrs == null) {
+			if (now >= entry.statExpires && now >= entry.lstatExpires) {
+				entries.remove(path);
+			}
+			return null;
+		}
+		return new SftpFileAttributes(attrs);
+	}
+
+	/**
+	 * Cache the attributes of a path. The attributes of anything other than
+	 * a symbolic link are the same whether or not links are followed, so
+	 * those returned without following links are cached for both.
+	 */
+	synchronized void put(String path, boolean link, SftpFileAttributes attrs) {
+		path = normalize(path);
+		if (path == null || attrs == null || writing.containsKey(path)) {
+			return;
+		}
+		CachedAttributes entry = entries.get(path);
+		if (entry == null) {
+			entry = new CachedAttributes();
+			entries.put(path, entry);
+		}
+		attrs = new SftpFileAttributes(attrs);
+		long expires = System.currentTimeMillis() + ttl;
+		if (link) {
+			entry.lstat = attrs;
+			entry.lstatExpires = expires;
+			if (attrs.isLink()) {
+				return;
+			}
+		}
+		entry.stat = attrs;
+		entry.statExpires = expires;
+	}
+
+	/**
+	 * A path has been created, changed or removed. Its parent directory is
+	 * invalidated too since its modification time changes.
+	 */
+	synchronized void changed(String path) {
+		path = normalize(path);
+		if (path == null) {
+			entries.clear();
+			return;
+		}
+		entries.remove(path);
+		int idx = path.lastIndexOf('/');
+		if (idx > -1) {
+			entries.remove(idx == 0 ? "/" : path.substring(0, idx));
+		}
+	}
+
+	/**
+	 * A path has been renamed or removed, invalidate it and everything
+	 * beneath it.
+	 */
+	synchronized void removed(String path) {
+		changed(path);
+		path = normalize(path);
+		if (path != null) {
+			String prefix = path.endsWith("/") ? path : path + "/";
+			for (Iterator<String> it = entries.keySet().iterator(); it
+					.hasNext();) {
+				if (it.next().startsWith(prefix)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A file has been opened. The attributes of a file open for writing are
+	 * not cached until it is closed.
+	 */
+	synchronized void opened(byte[] handle, String path, boolean write) {
+		String key = key(handle);
+		handles.put(key, path);
+		if (write) {
+			writeHandles.put(key, path);
+			path = normalize(path);
+			if (path != null) {
+				Integer count = writing.get(path);
+				writing.put(path, Integer.valueOf(count == null ? 1 : count
+						.intValue() + 1));
+			}
+			changed(path);
+		}
+	}
+
+	/**
+	 * A handle has been closed.
+	 */
+	synchronized void closed(byte[] handle) {
+		String key = key(handle);
+		handles.remove(key);
+		String path = writeHandles.remove(key);
+		if (path != null) {
+			path = normalize(path);
+			if (path != null) {
+				Integer count = writing.remove(path);
+				if (count != null && count.intValue() > 1) {
+					writing.put(path, Integer.valueOf(count.intValue() - 1));
+				}
+			}
+			changed(path);
+		}
+	}
+
+	/**
+	 * The attributes of an open file have been changed.
+	 */
+	synchronized void changed(byte[] handle) {
+		String path = handles.get(key(handle));
+		if (path == null) {
+			entries.clear();
+		} else {
+			changed(path);
+		}
+	}
+
+	/**
+	 * Normalize a path so that equivalent absolute paths share an entry.
+	 * Relative paths cannot be cached and are returned as <code>null</code>.
+	 */
+	static String normalize(String path) {
+		if (path == null || !path.startsWith("/")) {
+			return null;
+		}
+		if (path.indexOf("//") > -1) {
+			StringBuffer buf = new StringBuffer(path.length());
+			for (int i = 0; i < path.length(); i++) {
+				char ch = path.charAt(i);
+				if (ch != '/' || i == 0 || path.charAt(i - 1) != '/') {
+					buf.append(ch);
+				}
+			}
+			path = buf.toString();
+		}
+		if (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	static String key(byte[] handle) {
+		char[] chars = new char[handle.length];
+		for (int i = 0; i < handle.length; i++) {
+			chars[i] = (char) (handle[i] & 0xFF);
+		}
+		return new String(chars);
+	}
+
+	static class CachedAttributes {
+		SftpFileAttributes stat;
+		SftpFileAttributes lstat;
+		long statExpires;
+		long lstatExpires;
+	}
+}
@@ -0,0 +1,563 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sshtools.logging.Log;
+import com.sshtools.ssh.ChannelOpenException;
+import com.sshtools.ssh.SshClient;
+import com.sshtools.ssh.SshException;
+
+/**
+ * <p>
+ * A bounded, thread-safe pool of SFTP channels opened over one or more
+ * connections. A thread leases a channel for its exclusive use and releases
+ * it back to the pool when it is done, so that concurrent requests do not
+ * each pay for opening and initializing a channel, nor share the working
+ * directory and other state of a single {@link SftpClient}.
+ * </p>
+ * 
+ * <pre>
+ * SftpChannelPool pool = new SftpChannelPool(ssh, 8);
+ * SftpSubsystemChannel sftp = pool.lease(30000);
+ * try {
+ * 	SftpFileAttributes attrs = sftp.getAttributes(&quot;/var/log/messages&quot;);
+ * 	....
+ * } catch (SshException ex) {
+ * 	pool.invalidate(sftp);
+ * 	sftp = null;
+ * 	throw ex;
+ * } finally {
+ * 	if (sftp != null) {
+ * 		pool.release(sftp);
+ * 	}
+ * }
+ * </pre>
+ * 
+ * <p>
+ * New channels are opened on the connection with the fewest channels. A
+ * channel is checked before it is leased; it is discarded if it or its
+ * connection has closed, or if it has not been used for
+ * {@link #getValidationInterval()} and fails to answer a request for the
+ * default directory. Channels left idle for longer than
+ * {@link #getMaximumIdleTime()} are closed whenever the pool is used, or by
+ * {@link #evictIdleChannels()}.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class SftpChannelPool {
+
+	public static final long DEFAULT_MAXIMUM_IDLE_TIME = 60000;
+	public static final long DEFAULT_VALIDATION_INTERVAL = 30000;
+
+	Vector<SshClient> connections = new Vector<SshClient>();
+	int maxChannels;
+	long maxIdleTime = DEFAULT_MAXIMUM_IDLE_TIME;
+	long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+	SftpAttributeCache cache;
+
+	LinkedList<PooledChannel> idle = new LinkedList<PooledChannel>();
+	Hashtable<SftpSubsystemChannel, PooledChannel> leased = new Hashtable<SftpSubsystemChannel, PooledChannel>();
+	int reserved;
+	boolean closed;
+
+	AtomicLong leases = new AtomicLong();
+	AtomicLong leaseTimeouts = new AtomicLong();
+	AtomicLong totalLeaseWait = new AtomicLong();
+	AtomicLong maxLeaseWait = new AtomicLong();
+	AtomicLong created = new AtomicLong();
+	AtomicLong discarded = new AtomicLong();
+	AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * Create a pool of channels opened over a single connection.
+	 * 
+	 * @param ssh
+	 * @param maxChannels
+	 *            the most channels that may be open at once
+	 */
+	public SftpChannelPool(SshClient ssh, int maxChannels) {
+		this(new SshClient[] { ssh }, maxChannels);
+	}
+
+	/**
+	 * Create a pool of channels spread over several connections.
+	 * 
+	 * @param connections
+	 * @param maxChannels
+	 *            the most channels that may be open at once
+	 */
+	public SftpChannelPool(SshClient[] connections, int maxChannels) {
+		if (maxChannels < 1) {
+			throw new IllegalArgumentException(
+					"The maximum number of channels must be greater or equal to 1");
+		}
+		for (int i = 0; i < connections.length; i++) {
+			this.connections.addElement(connections[i]);
+		}
+		this.maxChannels = maxChannels;
+	}
+
+	/**
+	 * Add another connection for new channels to be opened on.
+	 * 
+	 * @param ssh
+	 */
+	public synchronized void addConnection(SshClient ssh) {
+		connections.addElement(ssh);
+	}
+
+	/**
+	 * Set the time in milliseconds after which an idle channel is closed.
+	 * 
+	 * @param maxIdleTime
+	 */
+	public void setMaximumIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public long getMaximumIdleTime() {
+		return maxIdleTime;
+	}
+
+	/**
+	 * Set how long in milliseconds a channel may go unused before it is
+	 * checked with a request to the server when it is next leased. Zero
+	 * checks every channel before it is leased.
+	 * 
+	 * @param validationInterval
+	 */
+	public void setValidationInterval(long validationInterval) {
+		this.validationInterval = validationInterval;
+	}
+
+	public long getValidationInterval() {
+		return validationInterval;
+	}
+
+	/**
+	 * Share a cache of file attributes between the channels of the pool.
+	 * This applies to channels opened after it is set.
+	 * 
+	 * @param cache
+	 */
+	public void setAttributeCache(SftpAttributeCache cache) {
+		this.cache = cache;
+	}
+
+	public SftpAttributeCache getAttributeCache() {
+		return cache;
+	}
+
+	/**
+	 * Lease a channel, waiting for as long as it takes for one to become
+	 * available.
+	 * 
+	 * @return SftpSubsystemChannel
+	 * @throws SshException
+	 */
+	public SftpSubsystemChannel lease() throws SshException {
+		return lease(0);
+	}
+
+	/**
+	 * Lease a channel, opening a new one if the pool has no idle channels and
+	 * is not full, otherwise waiting for one to be released.
+	 * 
+	 * @param timeout
+	 *            the most time in milliseconds to wait, or zero to wait
+	 *            indefinitely
+	 * @return SftpSubsystemChannel
+	 * @throws SshException
+	 *             if no channel became available in time or one could not be
+	 *             opened
+	 */
+	public SftpSubsystemChannel lease(long timeout) throws SshException {
+
+		long started = System.currentTimeMillis();
+
+		while (true) {
+			evictIdleChannels();
+
+			PooledChannel pooled = null;
+			synchronized (this) {
+				while (!closed && idle.isEmpty()
+						&& idle.size() + leased.size() + reserved >= maxChannels) {
+					long wait = 0;
+					if (timeout > 0) {
+						wait = timeout - (System.currentTimeMillis() - started);
+						if (wait <= 0) {
+							leaseTimeouts.incrementAndGet();
+							throw new SshException(
+									"Timed out waiting for an SFTP channel",
+									SshException.CHANNEL_FAILURE);
+						}
+					}
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						throw new SshException(
+								"Interrupted waiting for an SFTP channel",
+								SshException.INTERNAL_ERROR);
+					}
+				}
+
+				if (closed) {
+					throw new SshException("The SFTP channel pool is closed",
+							SshException.BAD_API_USAGE);
+				}
+
+				// The channel being checked or opened still counts towards
+				// the size of the pool
+				if (!idle.isEmpty()) {
+					pooled = idle.removeFirst();
+				}
+				reserved++;
+			}
+
+			boolean usable = false;
+			try {
+				if (pooled == null) {
+					pooled = open();
+					usable = true;
+				} else {
+					usable = validate(pooled);
+					if (!usable) {
+						discard(pooled);
+					}
+				}
+			} finally {
+				synchronized (this) {
+					reserved--;
+					if (usable) {
+						leased.put(pooled.channel, pooled);
+					} else {
+						notifyAll();
+					}
+				}
+			}
+
+			if (!usable) {
+				continue;
+			}
+
+			long waited = System.currentTimeMillis() - started;
+			leases.incrementAndGet();
+			totalLeaseWait.addAndGet(waited);
+			long max;
+			while (waited > (max = maxLeaseWait.get())
+					&& !maxLeaseWait.compareAndSet(max, waited)) {
+			}
+
+			return pooled.channel;
+		}
+	}
+
+	/**
+	 * Return a leased channel to the pool.
+	 * 
+	 * @param channel
+	 */
+	public void release(SftpSubsystemChannel channel) {
+		PooledChannel pooled;
+		synchronized (this) {
+			pooled = leased.remove(channel);
+			if (pooled == null) {
+				throw new IllegalArgumentException(
+						"The channel was not leased from this pool");
+			}
+			if (!closed && !channel.isClosed()) {
+				pooled.lastUsed = System.currentTimeMillis();
+				idle.addFirst(pooled);
+				notifyAll();
+				return;
+			}
+			notifyAll();
+		}
+		discard(pooled);
+	}
+
+	/**
+	 * Close a leased channel rather than returning it to the pool, for
+	 * example after it has failed.
+	 * 
+	 * @param channel
+	 */
+	public void invalidate(SftpSubsystemChannel channel) {
+		PooledChannel pooled;
+		synchronized (this) {
+			pooled = leased.remove(channel);
+			if (pooled == null) {
+				throw new IllegalArgumentException(
+						"The channel was not leased from this pool");
+			}
+			notifyAll();
+		}
+		discard(pooled);
+	}
+
+	/**
+	 * Close the channels that have been idle for longer than
+	 * {@link #getMaximumIdleTime()}.
+	 */
+	public void evictIdleChannels() {
+		Vector<PooledChannel> expired = new Vector<PooledChannel>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			while (!idle.isEmpty()
+					&& now - idle.getLast().lastUsed >= maxIdleTime) {
+				expired.addElement(idle.removeLast());
+			}
+		}
+		for (int i = 0; i < expired.size(); i++) {
+			evicted.incrementAndGet();
+			close(expired.elementAt(i));
+		}
+	}
+
+	/**
+	 * Close the pool and its idle channels. Leased channels are closed when
+	 * they are released.
+	 */
+	public void close() {
+		Vector<PooledChannel> channels;
+		synchronized (this) {
+			closed = true;
+			channels = new Vector<PooledChannel>(idle);
+			idle.clear();
+			notifyAll();
+		}
+		for (int i = 0; i < channels.size(); i++) {
+			close(channels.elementAt(i));
+		}
+	}
+
+	/**
+	 * Open a channel on the connection with the fewest channels.
+	 */
+	PooledChannel open() throws SshException {
+
+		SshClient ssh = null;
+		synchronized (this) {
+			int fewest = Integer.MAX_VALUE;
+			for (int i = 0; i < connections.size(); i++) {
+				SshClient candidate = connections.elementAt(i);
+				if (!candidate.isConnected()) {
+					continue;
+				}
+				int count = 0;
+				for (int j = 0; j < idle.size(); j++) {
+					if (idle.get(j).ssh == candidate) {
+						count++;
+					}
+				}
+				for (PooledChannel pooled : leased.values()) {
+					if (pooled.ssh == candidate) {
+						count++;
+					}
+				}
+				if (count < fewest) {
+					fewest = count;
+					ssh = candidate;
+				}
+			}
+		}
+
+		if (ssh == null) {
+			throw new SshException("None of the pool's connections are open",
+					SshException.CONNECTION_CLOSED);
+		}
+
+		SftpSubsystemChannel channel = openChannel(ssh);
+		channel.setAttributeCache(cache);
+		created.incrementAndGet();
+
+		if (Log.isDebugEnabled()) {
+			Log.debug(this, "Opened pooled SFTP channel "
+					+ created.get());
+		}
+		return new PooledChannel(ssh, channel);
+	}
+
+	/**
+	 * Open and initialize a new SFTP channel on a connection.
+	 */
+	protected SftpSubsystemChannel openChannel(SshClient ssh)
+			throws SshException {
+		try {
+			SftpSubsystemChannel channel = new SftpSubsystemChannel(
+					SftpClient.openSftpSession(ssh));
+			channel.initialize();
+			return channel;
+		} catch (ChannelOpenException ex) {
+			throw new SshException(ex.getMessage(),
+					SshException.CHANNEL_FAILURE);
+		} catch (UnsupportedEncodingException ex) {
+			throw new SshException(ex.getMessage(),
+					SshException.CHANNEL_FAILURE);
+		}
+	}
+
+	/**
+	 * Check that an idle channel can still be used.
+	 */
+	boolean validate(PooledChannel pooled) {
+		if (pooled.channel.isClosed() || !pooled.ssh.isConnected()) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		if (now - pooled.lastUsed >= validationInterval) {
+			try {
+				pooled.channel.getDefaultDirectory();
+			} catch (Exception e) {
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Pooled SFTP channel failed validation", e);
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void discard(PooledChannel pooled) {
+		discarded.incrementAndGet();
+		close(pooled);
+	}
+
+	void close(PooledChannel pooled) {
+		try {
+			pooled.channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * The number of channels currently leased.
+	 * 
+	 * @return int
+	 */
+	public synchronized int getLeasedCount() {
+		return leased.size();
+	}
+
+	/**
+	 * The number of open channels waiting to be leased.
+	 * 
+	 * @return int
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * The number of leases granted.
+	 * 
+	 * @return long
+	 */
+	public long getLeaseCount() {
+		return leases.get();
+	}
+
+	/**
+	 * The number of leases that timed out waiting for a channel.
+	 * 
+	 * @return long
+	 */
+	public long getLeaseTimeoutCount() {
+		return leaseTimeouts.get();
+	}
+
+	/**
+	 * The total time in milliseconds that granted leases waited, including
+	 * the time taken to open new channels.
+	 * 
+	 * @return long
+	 */
+	public long getTotalLeaseWaitTime() {
+		return totalLeaseWait.get();
+	}
+
+	/**
+	 * The average time in milliseconds that granted leases waited.
+	 * 
+	 * @return long
+	 */
+	public long getAverageLeaseWaitTime() {
+		long count = leases.get();
+		return count == 0 ? 0 : totalLeaseWait.get() / count;
+	}
+
+	/**
+	 * The longest time in milliseconds that a granted lease waited.
+	 * 
+	 * @return long
+	 */
+	public long getMaximumLeaseWaitTime() {
+		return maxLeaseWait.get();
+	}
+
+	/**
+	 * The number of channels the pool has opened.
+	 * 
+	 * @return long
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * The number of channels closed because they failed, failed validation
+	 * or were invalidated.
+	 * 
+	 * @return long
+	 */
+	public long getDiscardedCount() {
+		return discarded.get();
+	}
+
+	/**
+	 * The number of channels closed because they were idle.
+	 * 
+	 * @return long
+	 */
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	static class PooledChannel {
+		SshClient ssh;
+		SftpSubsystemChannel channel;
+		long lastUsed;
+
+		PooledChannel(SshClient ssh, SftpSubsystemChannel channel) {
+			this.ssh = ssh;
+			this.channel = channel;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+}
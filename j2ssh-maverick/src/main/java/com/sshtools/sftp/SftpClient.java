@@ -30,6 +30,7 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Enumeration;
@@ -46,6 +47,7 @@ import com.sshtools.ssh.SshClient;
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.SshIOException;
 import com.sshtools.ssh.SshSession;
+import com.sshtools.ssh2.Ssh2Client;
 import com.sshtools.ssh2.Ssh2Session;
 import com.sshtools.util.EOLProcessor;
 import com.sshtools.util.IOUtil;
@@ -61,16 +63,26 @@ import com.sshtools.util.UnsignedInteger64;
  */
 public class SftpClient implements Client {
 	SftpSubsystemChannel sftp;
+	SshClient ssh;
 	String cwd;
 	String lcwd;
 
 	private int blocksize = 4096;
+	private int readBlocksize = 0;
 	private int asyncRequests = 100;
 	private int buffersize = -1;
+	private int concurrentStreams = 1;
+	private boolean separateConnections = false;
+	private boolean mappedDownloads = false;
+	private boolean mappedUploads = false;
+	private boolean deltaTransfers = false;
+	private int deltaBlockSize = DEFAULT_DELTA_BLOCK_SIZE;
 
 	// Default permissions is determined by default_permissions ^ umask
 	int umask = 0022;
 
+	static final int SFTP_WINDOW_SPACE = 8 * 1024 * 1024;
+
 	/*
 	 * public static final int TYPE_REGULAR = 1; public static final int
 	 * TYPE_DIRECTORY = 2; public static final int TYPE_SYMLINK = 3; public
@@ -78,6 +90,17 @@ public class SftpClient implements Client {
 	 * 5;
 	 */
 
+	/**
+	 * The default size of the blocks compared by delta transfers.
+	 */
+	public static final int DEFAULT_DELTA_BLOCK_SIZE = 65536;
+
+	/**
+	 * The hash algorithms used to compare the blocks of delta transfers, in
+	 * order of preference.
+	 */
+	public static final String DELTA_HASH_ALGORITHMS = "sha256,sha1,md5";
+
 	/**
 	 * Instructs the client to use a binary transfer mode when used with {@link
 	 * setTransferMode(int)}
@@ -150,7 +173,21 @@ public class SftpClient implements Client {
 	public SftpClient(SshClient ssh, int Max_Version)
 			throws SftpStatusException, SshException, ChannelOpenException {
 
-		SshSession session = ssh.openSessionChannel();
+		initSftp(openSftpSession(ssh), Max_Version);
+	}
+
+	static SshSession openSftpSession(SshClient ssh) throws SshException,
+			ChannelOpenException {
+
+		SshSession session;
+		if (ssh instanceof Ssh2Client) {
+			// Open with enough window space for the read ahead to fill the
+			// link, the read ahead itself bounds the data in flight
+			session = ((Ssh2Client) ssh).openSessionChannel(
+					SFTP_WINDOW_SPACE, 32768, null);
+		} else {
+			session = ssh.openSessionChannel();
+		}
 
 		/**
 		 * Start the SFTP server
@@ -158,7 +195,7 @@ public class SftpClient implements Client {
 		Ssh2Session ssh2 = (Ssh2Session) session;
 		if (!ssh2.startSubsystem("sftp")) {
 			if (Log.isDebugEnabled()) {
-				Log.debug(this,
+				Log.debug(SftpClient.class,
 						"The SFTP subsystem failed to start, attempting to execute provider "
 								+ ssh.getContext().getSFTPProvider());
 			}
@@ -172,12 +209,34 @@ public class SftpClient implements Client {
 						SshException.CHANNEL_FAILURE);
 			}
 		}
+		return session;
+	}
 
-		initSftp(session, Max_Version);
+	/**
+	 * Open and initialize another SFTP channel with the same protocol
+	 * version as this client's channel.
+	 */
+	SftpSubsystemChannel openSubsystemChannel(SshClient ssh)
+			throws SftpStatusException, SshException {
+		try {
+			SftpSubsystemChannel channel = new SftpSubsystemChannel(
+					openSftpSession(ssh), sftp.this_MAX_VERSION);
+			channel.initialize();
+			channel.setCharsetEncoding(sftp.getCharsetEncoding());
+			channel.setAttributeCache(sftp.getAttributeCache());
+			return channel;
+		} catch (ChannelOpenException ex) {
+			throw new SshException(ex.getMessage(),
+					SshException.CHANNEL_FAILURE);
+		} catch (UnsupportedEncodingException ex) {
+			throw new SshException(ex.getMessage(),
+					SshException.CHANNEL_FAILURE);
+		}
 	}
 
 	private void initSftp(SshSession session, int Max_Version)
 			throws SftpStatusException, SshException {
+		ssh = session.getClient();
 		sftp = new SftpSubsystemChannel(session, Max_Version);
 
 		try {
@@ -202,7 +261,9 @@ public class SftpClient implements Client {
 	/**
 	 * Sets the block size used when transferring files, defaults to the
 	 * optimized setting of 32768. You should not increase this value as the
-	 * remote server may not be able to support higher blocksizes.
+	 * remote server may not be able to support higher blocksizes. Unless a
+	 * block size is set downloads use the largest read that the server
+	 * supports.
 	 * 
 	 * @param blocksize
 	 */
@@ -212,6 +273,7 @@ public class SftpClient implements Client {
 					"Block size must be greater than 512");
 		}
 		this.blocksize = blocksize;
+		this.readBlocksize = blocksize;
 	}
 
 	/**
@@ -335,6 +397,133 @@ public class SftpClient implements Client {
 
 	}
 
+	/**
+	 * Set the number of SFTP channels used to transfer a single file. When
+	 * greater than one, files transferred in binary mode with
+	 * {@link #get(String, String, FileTransferProgress, boolean)} or
+	 * {@link #put(String, String, FileTransferProgress, boolean)} are split
+	 * into this many segments which are transferred in parallel. Directory
+	 * copies use this many workers, each transferring whole files over its
+	 * own channel. The default is 1.
+	 * 
+	 * @param concurrentStreams
+	 */
+	public void setConcurrentStreams(int concurrentStreams) {
+		if (concurrentStreams < 1) {
+			throw new IllegalArgumentException(
+					"Concurrent streams must be greater or equal to 1");
+		}
+		this.concurrentStreams = concurrentStreams;
+	}
+
+	public int getConcurrentStreams() {
+		return concurrentStreams;
+	}
+
+	/**
+	 * Cache the attributes of remote files so that paths which have just been
+	 * looked at, or listed, are not requested from the server again until
+	 * their attributes expire. Paths are invalidated when this client writes,
+	 * renames, removes or changes the attributes of them. Pass
+	 * <code>null</code>, the default, to disable caching.
+	 * 
+	 * @param cache
+	 */
+	public void setAttributeCache(SftpAttributeCache cache) {
+		sftp.setAttributeCache(cache);
+	}
+
+	public SftpAttributeCache getAttributeCache() {
+		return sftp.getAttributeCache();
+	}
+
+	/**
+	 * Open each additional stream of a segmented transfer on its own
+	 * connection, created with {@link SshClient#duplicate()}, rather than as
+	 * another channel on this client's connection. This avoids sharing a
+	 * single transport when it, rather than the channel window, limits the
+	 * transfer rate.
+	 * 
+	 * @param separateConnections
+	 */
+	public void setSeparateConnections(boolean separateConnections) {
+		this.separateConnections = separateConnections;
+	}
+
+	public boolean isSeparateConnections() {
+		return separateConnections;
+	}
+
+	/**
+	 * Write files downloaded in binary mode by
+	 * {@link #get(String, String, FileTransferProgress, boolean)} through a
+	 * memory mapping of the local file rather than with positional file
+	 * channel writes. See {@link MappedFileDownloadTarget}.
+	 * 
+	 * @param mappedDownloads
+	 */
+	public void setMemoryMappedDownloads(boolean mappedDownloads) {
+		this.mappedDownloads = mappedDownloads;
+	}
+
+	public boolean isMemoryMappedDownloads() {
+		return mappedDownloads;
+	}
+
+	/**
+	 * Read files uploaded in binary mode by
+	 * {@link #put(String, String, FileTransferProgress, boolean)} through a
+	 * memory mapping of the local file rather than with positional file
+	 * channel reads. See {@link MappedFileUploadSource}.
+	 * 
+	 * @param mappedUploads
+	 */
+	public void setMemoryMappedUploads(boolean mappedUploads) {
+		this.mappedUploads = mappedUploads;
+	}
+
+	public boolean isMemoryMappedUploads() {
+		return mappedUploads;
+	}
+
+	/**
+	 * Transfer only the changed blocks of files that already exist at their
+	 * destination. When set, binary mode {@link #put(String, String,
+	 * FileTransferProgress, boolean)} and {@link #get(String, String,
+	 * FileTransferProgress, boolean)} behave as {@link #putDelta(String,
+	 * String, FileTransferProgress)} and {@link #getDelta(String, String,
+	 * FileTransferProgress)}, which also resume interrupted transfers, and
+	 * the directory copy methods use them for files that have changed.
+	 * 
+	 * @param deltaTransfers
+	 */
+	public void setDeltaTransfers(boolean deltaTransfers) {
+		this.deltaTransfers = deltaTransfers;
+	}
+
+	public boolean isDeltaTransfers() {
+		return deltaTransfers;
+	}
+
+	/**
+	 * Set the size of the blocks compared by delta transfers. Smaller blocks
+	 * transfer less of a file with scattered changes at the cost of more
+	 * hashes to compute and exchange.
+	 * 
+	 * @param deltaBlockSize
+	 */
+	public void setDeltaBlockSize(int deltaBlockSize) {
+		if (deltaBlockSize < 1) {
+			throw new IllegalArgumentException(
+					"Delta block size must be greater than zero");
+		}
+		this.deltaBlockSize = deltaBlockSize;
+	}
+
+	public int getDeltaBlockSize() {
+		return deltaBlockSize;
+	}
+
 	/**
 	 * Sets the umask used by this client. <blockquote>
 	 * 
@@ -722,18 +911,56 @@ public class SftpClient implements Client {
 
 		SftpFile file = sftp.openDirectory(actual);
 		Vector<SftpFile> children = new Vector<SftpFile>();
-		while (sftp.listChildren(file, children) > -1) {
-			;
+		try {
+			// The reader does not own a handle it is given, so the
+			// directory is closed here once the reader has finished
+			SftpDirectoryReader dir = sftp.readDirectory(file,
+					SftpDirectoryReader.DEFAULT_OUTSTANDING_REQUESTS);
+			try {
+				while (dir.hasNext()) {
+					children.addElement(dir.next());
+				}
+			} finally {
+				dir.close();
+			}
+		} finally {
+			file.close();
 		}
-		file.close();
 		SftpFile[] files = new SftpFile[children.size()];
-		int index = 0;
-		for (Enumeration<SftpFile> e = children.elements(); e.hasMoreElements();) {
-			files[index++] = e.nextElement();
-		}
+		children.copyInto(files);
 		return files;
 	}
 
+	/**
+	 * <p>
+	 * Read the contents of a remote directory as a stream of entries rather
+	 * than waiting for the whole listing. Several requests are kept in flight
+	 * so the entries arrive at the rate the server can list them, while
+	 * memory use is bounded however large the directory. The reader must be
+	 * closed if it is not read to the end.
+	 * </p>
+	 * 
+	 * @param path
+	 *            the path on the remote server to list
+	 * 
+	 * @return SftpDirectoryReader
+	 * 
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public SftpDirectoryReader readDirectory(String path)
+			throws SftpStatusException, SshException {
+
+		String actual = resolveRemotePath(path);
+
+		if (Log.isDebugEnabled()) {
+			Log.debug(this, "Reading directory " + actual);
+		}
+
+		return sftp.readDirectory(actual,
+				SftpDirectoryReader.DEFAULT_OUTSTANDING_REQUESTS);
+	}
+
 	/**
 	 * <p>
 	 * Changes the local working directory.
@@ -967,27 +1194,23 @@ public class SftpClient implements Client {
 			throws FileNotFoundException, SftpStatusException, SshException,
 			TransferCancelledException {
 
+		if (transferMode == MODE_BINARY) {
+			if (deltaTransfers) {
+				return getDelta(remote, local, progress);
+			}
+			if (concurrentStreams > 1) {
+				return getSegmented(remote, local, progress, resume);
+			}
+			return getBinary(remote, local, progress, resume);
+		}
+
 		// Moved here to ensure that stream is closed in finally
 		OutputStream out = null;
 		SftpFileAttributes attrs = null;
 
 		// Perform local file operations first, then if it throws an exception
 		// the server hasn't been unnecessarily loaded.
-		File localPath = resolveLocalPath(local);
-		if (!localPath.exists()) {
-			File parent = new File(localPath.getParent());
-			parent.mkdirs();
-		}
-
-		if (localPath.isDirectory()) {
-			int idx;
-			if ((idx = remote.lastIndexOf('/')) > -1) {
-				localPath = new File(localPath, remote.substring(idx));
-			} else {
-				localPath = new File(localPath, remote);
-			}
-
-		}
+		File localPath = resolveLocalFile(remote, local);
 
 		// Check that file exists before we create a file
 		stat(remote);
@@ -1089,6 +1312,211 @@ public class SftpClient implements Client {
 		}
 	}
 
+	/**
+	 * <p>
+	 * Download the remote file to the local computer as a number of segments
+	 * fetched in parallel over {@link #getConcurrentStreams()} SFTP channels.
+	 * Each segment is written directly to its offset in the local file.
+	 * </p>
+	 * 
+	 * <p>
+	 * While the transfer is in progress the position of each segment is
+	 * saved to a file named after the local file with a
+	 * <code>.segments</code> suffix. If the transfer is interrupted it can be
+	 * resumed, segment by segment, by passing <code>true</code> for
+	 * <code>resume</code>, provided that the remote file has not changed.
+	 * </p>
+	 * 
+	 * @param remote
+	 *            the path/name of the remote file
+	 * @param local
+	 *            the path/name to place the file on the local computer
+	 * @param progress
+	 * @param resume
+	 *            attempt to resume an interrupted download
+	 * 
+	 * @return the downloaded file's attributes
+	 * 
+	 * @throws FileNotFoundException
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 * @throws TransferCancelledException
+	 */
+	public SftpFileAttributes getSegmented(String remote, String local,
+			FileTransferProgress progress, boolean resume)
+			throws FileNotFoundException, SftpStatusException, SshException,
+			TransferCancelledException {
+
+		File localPath = resolveLocalFile(remote, local);
+		String remotePath = resolveRemotePath(remote);
+		SftpFileAttributes attrs = sftp.getAttributes(remotePath);
+
+		SegmentedDownload download = new SegmentedDownload(this, remotePath,
+				localPath, progress);
+		download.length = attrs.getSize().longValue();
+		download.modified = attrs.getModifiedTime().longValue();
+		download.blocksize = Math.min(blocksize, 32768);
+		download.outstandingRequests = asyncRequests;
+		download.readBlocksize = readBlocksize;
+
+		long position = 0;
+		if (!resume) {
+			download.stateFile.delete();
+		} else if (localPath.exists() && !download.stateFile.exists()) {
+			position = localPath.length();
+			if (position > download.length) {
+				throw new SftpStatusException(
+						SftpStatusException.INVALID_RESUME_STATE,
+						"The local file size is greater than the remote file");
+			}
+		}
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(localPath, "rw");
+			if (!resume) {
+				file.setLength(0);
+			}
+			file.setLength(download.length);
+			download.file = file.getChannel();
+
+			download.createSegments(concurrentStreams, position, resume);
+			download.transfer(separateConnections);
+		} catch (IOException ex) {
+			throw new SftpStatusException(SftpStatusException.SSH_FX_FAILURE,
+					"Failed to open outputstream to " + local);
+		} finally {
+			try {
+				if (file != null) {
+					file.close();
+				}
+			} catch (IOException ex) {
+			}
+		}
+
+		localPath.setLastModified(download.modified * 1000);
+
+		return attrs;
+	}
+
+	/**
+	 * Download a file in binary mode, writing each response straight to its
+	 * offset in the local file.
+	 */
+	private SftpFileAttributes getBinary(String remote, String local,
+			FileTransferProgress progress, boolean resume)
+			throws SftpStatusException, SshException,
+			TransferCancelledException {
+
+		File localPath = resolveLocalFile(remote, local);
+		SftpFileAttributes attrs = stat(remote);
+
+		long position = 0;
+		if (resume && localPath.exists()) {
+			position = localPath.length();
+		}
+
+		DownloadTarget target;
+		try {
+			if (mappedDownloads) {
+				target = new MappedFileDownloadTarget(localPath, attrs
+						.getSize().longValue(), position > 0);
+			} else {
+				target = new FileChannelDownloadTarget(localPath, position > 0);
+			}
+		} catch (IOException ex) {
+			throw new SftpStatusException(SftpStatusException.SSH_FX_FAILURE,
+					"Failed to open outputstream to " + local);
+		}
+
+		attrs = get(remote, target, progress, position);
+
+		localPath.setLastModified(attrs.getModifiedTime().longValue() * 1000);
+
+		return attrs;
+	}
+
+	/**
+	 * <p>
+	 * Download a remote file in binary mode, transferring only the blocks
+	 * that differ from the local file if it already exists. The server must
+	 * support the <code>check-file</code> extension for the blocks to be
+	 * compared; otherwise the whole file is downloaded.
+	 * </p>
+	 * 
+	 * @param remote
+	 * @param local
+	 * @param progress
+	 *            started with the number of bytes to be downloaded
+	 * @return the downloaded file's attributes
+	 * @throws FileNotFoundException
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 * @throws TransferCancelledException
+	 */
+	public SftpFileAttributes getDelta(String remote, String local,
+			FileTransferProgress progress) throws FileNotFoundException,
+			SftpStatusException, SshException, TransferCancelledException {
+
+		File localPath = resolveLocalFile(remote, local);
+		if (!localPath.isFile()) {
+			return getBinary(remote, local, progress, false);
+		}
+
+		String remotePath = resolveRemotePath(remote);
+		SftpFileAttributes attrs = sftp.getAttributes(remotePath);
+
+		SftpFile file = sftp.openFile(remotePath,
+				SftpSubsystemChannel.OPEN_READ);
+		try {
+			createDeltaTransfer(sftp, progress).download(file,
+					attrs.getSize().longValue(), localPath, remotePath);
+		} finally {
+			sftp.closeFile(file);
+		}
+
+		localPath.setLastModified(attrs.getModifiedTime().longValue() * 1000);
+
+		if (progress != null) {
+			progress.completed();
+		}
+
+		return attrs;
+	}
+
+	DeltaTransfer createDeltaTransfer(SftpSubsystemChannel channel,
+			FileTransferProgress progress) {
+		DeltaTransfer delta = new DeltaTransfer(channel, deltaBlockSize,
+				DELTA_HASH_ALGORITHMS, progress);
+		delta.blocksize = blocksize;
+		delta.readBlocksize = readBlocksize;
+		delta.outstandingRequests = asyncRequests;
+		return delta;
+	}
+
+	/**
+	 * Resolve the local file a remote file is downloaded to, creating its
+	 * parent directory if necessary.
+	 */
+	private File resolveLocalFile(String remote, String local) {
+		File localPath = resolveLocalPath(local);
+		if (!localPath.exists()) {
+			File parent = new File(localPath.getParent());
+			parent.mkdirs();
+		}
+
+		if (localPath.isDirectory()) {
+			int idx;
+			if ((idx = remote.lastIndexOf('/')) > -1) {
+				localPath = new File(localPath, remote.substring(idx));
+			} else {
+				localPath = new File(localPath, remote);
+			}
+
+		}
+		return localPath;
+	}
+
 	/**
 	 * Download the remote file into the local file.
 	 * 
@@ -1457,43 +1885,80 @@ public class SftpClient implements Client {
 			FileTransferProgress progress, long position)
 			throws SftpStatusException, SshException,
 			TransferCancelledException {
+		return get(remote, new OutputStreamDownloadTarget(local), progress,
+				position);
+	}
 
-		String remotePath = resolveRemotePath(remote);
-		SftpFileAttributes attrs = sftp.getAttributes(remotePath);
+	/**
+	 * <p>
+	 * Download the remote file writing it to a {@link DownloadTarget}. If the
+	 * target supports random access the data of each response is written to
+	 * its offset as soon as it is received. The target is closed by this
+	 * method even if the operation fails.
+	 * </p>
+	 * 
+	 * @param remote
+	 *            the path/name of the remote file
+	 * @param target
+	 *            the target to write
+	 * @param progress
+	 * @param position
+	 *            the position within the file to start reading from
+	 * 
+	 * @return the downloaded file's attributes
+	 * 
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 * @throws TransferCancelledException
+	 */
+	public SftpFileAttributes get(String remote, DownloadTarget target,
+			FileTransferProgress progress, long position)
+			throws SftpStatusException, SshException,
+			TransferCancelledException {
 
-		if (position > attrs.getSize().longValue()) {
-			throw new SftpStatusException(
-					SftpStatusException.INVALID_RESUME_STATE,
-					"The local file size is greater than the remote file");
-		}
+		String remotePath = resolveRemotePath(remote);
+		SftpFileAttributes attrs;
+		SftpFile file;
 
-		if (progress != null) {
-			progress.started(attrs.getSize().longValue() - position, remotePath);
-		}
+		try {
+			attrs = sftp.getAttributes(remotePath);
 
-		SftpFile file;
+			if (position > attrs.getSize().longValue()) {
+				throw new SftpStatusException(
+						SftpStatusException.INVALID_RESUME_STATE,
+						"The local file size is greater than the remote file");
+			}
 
-		if (transferMode == MODE_TEXT && sftp.getVersion() > 3) {
-			file = sftp.openFile(remotePath, SftpSubsystemChannel.OPEN_READ
-					| SftpSubsystemChannel.OPEN_TEXT);
+			if (progress != null) {
+				progress.started(attrs.getSize().longValue() - position,
+						remotePath);
+			}
 
-		} else {
-			file = sftp.openFile(remotePath, SftpSubsystemChannel.OPEN_READ);
+			if (transferMode == MODE_TEXT && sftp.getVersion() > 3) {
+				file = sftp.openFile(remotePath, SftpSubsystemChannel.OPEN_READ
+						| SftpSubsystemChannel.OPEN_TEXT);
+
+			} else {
+				file = sftp.openFile(remotePath, SftpSubsystemChannel.OPEN_READ);
 
+			}
+		} catch (SftpStatusException ex) {
+			closeTarget(target);
+			throw ex;
+		} catch (SshException ex) {
+			closeTarget(target);
+			throw ex;
 		}
 
 		try {
 			sftp.performOptimizedRead(file.getHandle(), attrs.getSize()
-					.longValue(), blocksize, local, asyncRequests, progress,
-					position);
+					.longValue() - position, readBlocksize, target,
+					asyncRequests, progress, position);
 		} catch (TransferCancelledException tce) {
 			throw tce;
 		} finally {
 
-			try {
-				local.close();
-			} catch (Throwable t) {
-			}
+			closeTarget(target);
 			try {
 				sftp.closeFile(file);
 			} catch (SftpStatusException ex) {
@@ -1507,6 +1972,13 @@ public class SftpClient implements Client {
 		return attrs;
 	}
 
+	private void closeTarget(DownloadTarget target) {
+		try {
+			target.close();
+		} catch (Throwable t) {
+		}
+	}
+
 	/**
 	 * Create an InputStream for reading a remote file.
 	 * 
@@ -1708,6 +2180,18 @@ public class SftpClient implements Client {
 	public void put(String local, String remote, FileTransferProgress progress,
 			boolean resume) throws FileNotFoundException, SftpStatusException,
 			SshException, TransferCancelledException {
+
+		if (transferMode == MODE_BINARY) {
+			if (deltaTransfers) {
+				putDelta(local, remote, progress);
+			} else if (concurrentStreams > 1) {
+				putSegmented(local, remote, progress, resume);
+			} else {
+				putBinary(local, remote, progress, resume);
+			}
+			return;
+		}
+
 		File localPath = resolveLocalPath(local);
 
 		InputStream in = new FileInputStream(localPath);
@@ -1754,6 +2238,318 @@ public class SftpClient implements Client {
 
 	}
 
+	/**
+	 * Upload a file in binary mode, reading the data of each request straight
+	 * from the local file into the request.
+	 */
+	private void putBinary(String local, String remote,
+			FileTransferProgress progress, boolean resume)
+			throws FileNotFoundException, SftpStatusException, SshException,
+			TransferCancelledException {
+
+		File localPath = resolveLocalPath(local);
+		if (!localPath.exists()) {
+			throw new FileNotFoundException(localPath.getAbsolutePath());
+		}
+
+		long remoteLength = -1;
+		try {
+			SftpFileAttributes attrs = stat(remote);
+			if (attrs.isDirectory()) {
+				remote += (remote.endsWith("/") ? "" : "/")
+						+ localPath.getName();
+				attrs = stat(remote);
+			}
+			remoteLength = attrs.getSize().longValue();
+		} catch (SftpStatusException ex) {
+			// file didnt exist so there is nothing to resume
+		}
+
+		long position = 0;
+		if (resume && remoteLength >= 0) {
+			if (localPath.length() <= remoteLength) {
+				throw new SftpStatusException(
+						SftpStatusException.INVALID_RESUME_STATE,
+						"The remote file size is greater than the local file");
+			}
+			position = remoteLength;
+		}
+
+		UploadSource source;
+		try {
+			if (mappedUploads) {
+				source = new MappedFileUploadSource(localPath);
+			} else {
+				source = new FileChannelUploadSource(localPath);
+			}
+		} catch (IOException ex) {
+			throw new SftpStatusException(SftpStatusException.SSH_FX_FAILURE,
+					"Failed to open " + localPath.getAbsolutePath());
+		}
+
+		put(source, remote, progress, position);
+	}
+
+	/**
+	 * <p>
+	 * Upload a local file in binary mode, transferring only the blocks that
+	 * differ from the remote file if it already exists, and truncating the
+	 * remote file if the local file is shorter. The remote blocks are hashed
+	 * by the server if it supports the <code>check-file</code> extension;
+	 * otherwise they are read and hashed locally, which trades uploading the
+	 * whole file for downloading it.
+	 * </p>
+	 * 
+	 * @param local
+	 * @param remote
+	 * @param progress
+	 *            started with the number of bytes to be uploaded
+	 * @throws FileNotFoundException
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 * @throws TransferCancelledException
+	 */
+	public void putDelta(String local, String remote,
+			FileTransferProgress progress) throws FileNotFoundException,
+			SftpStatusException, SshException, TransferCancelledException {
+
+		File localPath = resolveLocalPath(local);
+		if (!localPath.exists()) {
+			throw new FileNotFoundException(localPath.getAbsolutePath());
+		}
+
+		SftpFileAttributes attrs = null;
+		try {
+			attrs = stat(remote);
+			if (attrs.isDirectory()) {
+				remote += (remote.endsWith("/") ? "" : "/")
+						+ localPath.getName();
+				attrs = stat(remote);
+			}
+		} catch (SftpStatusException ex) {
+			attrs = null;
+		}
+
+		if (attrs == null || !attrs.isFile()) {
+			putBinary(local, remote, progress, false);
+			return;
+		}
+
+		String remotePath = resolveRemotePath(remote);
+
+		UploadSource source;
+		try {
+			if (mappedUploads) {
+				source = new MappedFileUploadSource(localPath);
+			} else {
+				source = new FileChannelUploadSource(localPath);
+			}
+		} catch (IOException ex) {
+			throw new SftpStatusException(SftpStatusException.SSH_FX_FAILURE,
+					"Failed to open " + localPath.getAbsolutePath());
+		}
+
+		try {
+			SftpFile file = sftp.openFile(remotePath,
+					SftpSubsystemChannel.OPEN_READ
+							| SftpSubsystemChannel.OPEN_WRITE);
+			try {
+				createDeltaTransfer(sftp, progress).upload(localPath, source,
+						file, attrs.getSize().longValue(), remotePath);
+			} finally {
+				sftp.closeFile(file);
+			}
+		} finally {
+			closeSource(source);
+		}
+
+		if (progress != null) {
+			progress.completed();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Upload a local file to the remote computer in binary mode, reading the
+	 * data of each write request from an {@link UploadSource} directly into
+	 * the request. The source is closed by this method even if the operation
+	 * fails.
+	 * </p>
+	 * 
+	 * @param source
+	 *            the local file
+	 * @param remote
+	 *            the path/name of the remote file
+	 * @param progress
+	 * @param position
+	 *            the position in the file to start writing from, the remote
+	 *            file is appended to when this is greater than zero
+	 * 
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 * @throws TransferCancelledException
+	 */
+	public void put(UploadSource source, String remote,
+			FileTransferProgress progress, long position)
+			throws SftpStatusException, SshException,
+			TransferCancelledException {
+
+		String remotePath = resolveRemotePath(remote);
+		SftpFile file;
+
+		try {
+			SftpFileAttributes attrs = new SftpFileAttributes(sftp,
+					SftpFileAttributes.SSH_FILEXFER_TYPE_REGULAR);
+			attrs.setPermissions(new UnsignedInteger32(0666 ^ umask));
+
+			if (position > 0) {
+				file = sftp.openFile(remotePath,
+						SftpSubsystemChannel.OPEN_APPEND
+								| SftpSubsystemChannel.OPEN_WRITE, attrs);
+			} else {
+				file = sftp.openFile(remotePath,
+						SftpSubsystemChannel.OPEN_CREATE
+								| SftpSubsystemChannel.OPEN_TRUNCATE
+								| SftpSubsystemChannel.OPEN_WRITE, attrs);
+			}
+
+			if (progress != null) {
+				try {
+					progress.started(source.length() - position, remotePath);
+				} catch (IOException ex1) {
+					sftp.closeFile(file);
+					throw new SshException(
+							"Failed to determine local file size",
+							SshException.INTERNAL_ERROR);
+				}
+			}
+		} catch (SftpStatusException ex) {
+			closeSource(source);
+			throw ex;
+		} catch (SshException ex) {
+			closeSource(source);
+			throw ex;
+		}
+
+		try {
+			sftp.performOptimizedWrite(file.getHandle(), blocksize,
+					asyncRequests, source, progress, position);
+		} finally {
+			closeSource(source);
+			sftp.closeFile(file);
+		}
+
+		if (progress != null) {
+			progress.completed();
+		}
+	}
+
+	private void closeSource(UploadSource source) {
+		try {
+			source.close();
+		} catch (Throwable t) {
+		}
+	}
+
+	/**
+	 * <p>
+	 * Upload a local file to the remote computer as a number of segments
+	 * written in parallel over {@link #getConcurrentStreams()} SFTP channels.
+	 * Each segment is read directly from its offset in the local file and the
+	 * size of the remote file is verified once all segments have completed.
+	 * </p>
+	 * 
+	 * <p>
+	 * While the transfer is in progress the position of each segment is
+	 * saved to a file named after the local file with a
+	 * <code>.segments</code> suffix, and an interrupted transfer can be
+	 * resumed by passing <code>true</code> for <code>resume</code> provided
+	 * that the local file has not changed.
+	 * </p>
+	 * 
+	 * @param local
+	 * @param remote
+	 * @param progress
+	 * @param resume
+	 *            attempt to resume after an interrupted transfer
+	 * 
+	 * @throws FileNotFoundException
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 * @throws TransferCancelledException
+	 */
+	public void putSegmented(String local, String remote,
+			FileTransferProgress progress, boolean resume)
+			throws FileNotFoundException, SftpStatusException, SshException,
+			TransferCancelledException {
+
+		File localPath = resolveLocalPath(local);
+		RandomAccessFile file = new RandomAccessFile(localPath, "r");
+
+		try {
+			long remoteLength = -1;
+			try {
+				SftpFileAttributes attrs = stat(remote);
+				if (attrs.isDirectory()) {
+					remote += (remote.endsWith("/") ? "" : "/")
+							+ localPath.getName();
+					attrs = stat(remote);
+				}
+				remoteLength = attrs.getSize().longValue();
+			} catch (SftpStatusException ex) {
+				// file didnt exist so there is nothing to resume
+			}
+
+			String remotePath = resolveRemotePath(remote);
+
+			SegmentedUpload upload = new SegmentedUpload(this, remotePath,
+					localPath, progress);
+			upload.length = localPath.length();
+			upload.modified = localPath.lastModified();
+			upload.blocksize = Math.min(blocksize, 32768);
+			upload.outstandingRequests = asyncRequests;
+			upload.file = file.getChannel();
+			if (mappedUploads) {
+				upload.source = new MappedFileUploadSource(upload.file);
+			} else {
+				upload.source = new FileChannelUploadSource(upload.file);
+			}
+
+			long position = 0;
+			if (!resume) {
+				upload.stateFile.delete();
+			} else if (!upload.stateFile.exists() && remoteLength > 0) {
+				if (remoteLength > upload.length) {
+					throw new SftpStatusException(
+							SftpStatusException.INVALID_RESUME_STATE,
+							"The remote file size is greater than the local file");
+				}
+				position = remoteLength;
+			}
+
+			if (!upload.createSegments(concurrentStreams, position, resume)
+					&& position == 0) {
+				SftpFileAttributes attrs = new SftpFileAttributes(sftp,
+						SftpFileAttributes.SSH_FILEXFER_TYPE_REGULAR);
+				attrs.setPermissions(new UnsignedInteger32(0666 ^ umask));
+				sftp.closeFile(sftp.openFile(remotePath,
+						SftpSubsystemChannel.OPEN_CREATE
+								| SftpSubsystemChannel.OPEN_TRUNCATE
+								| SftpSubsystemChannel.OPEN_WRITE, attrs));
+			}
+
+			upload.transfer(separateConnections);
+		} catch (IOException ex) {
+			throw new SftpStatusException(SftpStatusException.SSH_FX_FAILURE,
+					"Failed to open " + localPath.getAbsolutePath());
+		} finally {
+			try {
+				file.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
 	/**
 	 * Upload a file to the remote computer
 	 * 
@@ -2157,6 +2953,154 @@ public class SftpClient implements Client {
 
 	}
 
+	/**
+	 * <p>
+	 * Copy a file on the remote computer. If the server supports the
+	 * <code>copy-file</code> or <code>copy-data</code> extension it copies
+	 * the file itself; otherwise the contents are read and written back over
+	 * the connection.
+	 * </p>
+	 * 
+	 * @param source
+	 *            the path of the file to copy
+	 * @param destination
+	 *            the path of the copy
+	 * @param overwrite
+	 *            replace the destination if it exists
+	 * 
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public void copyRemoteFile(String source, String destination,
+			boolean overwrite) throws SftpStatusException, SshException {
+		String from = resolveRemotePath(source);
+		String to = resolveRemotePath(destination);
+
+		if (sftp.supportsExtension("copy-file")) {
+			sftp.copyFile(from, to, overwrite);
+			return;
+		}
+
+		int flags = SftpSubsystemChannel.OPEN_WRITE
+				| SftpSubsystemChannel.OPEN_CREATE
+				| SftpSubsystemChannel.OPEN_TRUNCATE;
+		if (!overwrite) {
+			flags |= SftpSubsystemChannel.OPEN_EXCLUSIVE;
+		}
+
+		if (sftp.supportsExtension("copy-data")) {
+			SftpFile in = sftp.openFile(from, SftpSubsystemChannel.OPEN_READ);
+			try {
+				SftpFile out = sftp.openFile(to, flags);
+				try {
+					sftp.copyData(in.getHandle(), 0, 0, out.getHandle(), 0);
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			return;
+		}
+
+		try {
+			InputStream in = new SftpFileInputStream(sftp.openFile(from,
+					SftpSubsystemChannel.OPEN_READ));
+			try {
+				OutputStream out = new SftpFileOutputStream(sftp.openFile(
+						to, flags));
+				try {
+					byte[] buf = new byte[32768];
+					int read;
+					while ((read = in.read(buf)) > -1) {
+						out.write(buf, 0, read);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
+		} catch (IOException ex) {
+			throw new SshException(ex);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Get a hash of a remote file with the first of a list of algorithms
+	 * that is available. See {@link #checkFile(String, String, int)}.
+	 * </p>
+	 * 
+	 * @param path
+	 * @param algorithms
+	 * @return SftpFileChecksum
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public SftpFileChecksum checkFile(String path, String algorithms)
+			throws SftpStatusException, SshException {
+		return checkFile(path, algorithms, 0);
+	}
+
+	/**
+	 * <p>
+	 * Get the hashes of a remote file, either of the whole file or of each
+	 * block of it. If the server supports the <code>check-file</code>
+	 * extension it hashes the file itself and only the hashes are returned;
+	 * otherwise the file is read over the connection and hashed locally.
+	 * </p>
+	 * 
+	 * @param path
+	 *            the path of the file
+	 * @param algorithms
+	 *            a comma separated list of algorithms in order of preference,
+	 *            for example <code>sha256,sha1,md5</code>
+	 * @param blockSize
+	 *            the size of the blocks to hash separately, or zero for a
+	 *            single hash of the whole file
+	 * @return SftpFileChecksum
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public SftpFileChecksum checkFile(String path, String algorithms,
+			int blockSize) throws SftpStatusException, SshException {
+		String actual = resolveRemotePath(path);
+
+		if (sftp.supportsExtension("check-file")
+				|| sftp.supportsExtension("check-file-name")) {
+			return sftp.checkFile(actual, algorithms, 0, 0, blockSize);
+		}
+
+		try {
+			InputStream in = new SftpFileInputStream(sftp.openFile(actual,
+					SftpSubsystemChannel.OPEN_READ));
+			try {
+				StringTokenizer t = new StringTokenizer(algorithms, ",");
+				while (t.hasMoreTokens()) {
+					try {
+						return SftpFileChecksum.calculate(in, t.nextToken()
+								.trim(), 0, blockSize);
+					} catch (NoSuchAlgorithmException e) {
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
+		} catch (IOException ex) {
+			throw new SshException(ex);
+		}
+
+		throw new SftpStatusException(
+				SftpStatusException.SSH_FX_OP_UNSUPPORTED,
+				"None of the hash algorithms " + algorithms
+						+ " are available");
+	}
+
 	/**
 	 * <p>
 	 * Remove a file or directory from the remote computer.
@@ -2343,7 +3287,9 @@ public class SftpClient implements Client {
 	}
 
 	/**
-	 * Copy the contents of a local directory into a remote directory.
+	 * Copy the contents of a local directory into a remote directory. The
+	 * tree is copied by {@link #getConcurrentStreams()} workers, each
+	 * transferring one file at a time over its own SFTP channel.
 	 * 
 	 * @param localdir
 	 *            the path to the local directory
@@ -2371,11 +3317,6 @@ public class SftpClient implements Client {
 			String remotedir, boolean recurse, boolean sync, boolean commit,
 			FileTransferProgress progress) throws FileNotFoundException,
 			SftpStatusException, SshException, TransferCancelledException {
-		DirectoryOperation op = new DirectoryOperation();
-
-		// Record the previous
-		// String pwd = pwd();
-		// String lpwd = lpwd();
 
 		File local = resolveLocalPath(localdir);
 
@@ -2383,124 +3324,40 @@ public class SftpClient implements Client {
 		remotedir += (remotedir.endsWith("/") ? "" : "/");
 
 		// Setup the remote directory if were committing
-		if (commit) {
-			try {
-				sftp.getAttributes(remotedir);
-			} catch (SftpStatusException ex) {
+		boolean exists = true;
+		try {
+			sftp.getAttributes(remotedir);
+		} catch (SftpStatusException ex) {
+			if (commit) {
 				mkdirs(remotedir);
 			}
+			exists = false;
 		}
 
-		// List the local files and verify against the remote server
-		String[] ls = local.list();
-		File source;
-		if (ls != null) {
-			for (int i = 0; i < ls.length; i++) {
-				source = new File(local, ls[i]);
-				if (source.isDirectory() && !source.getName().equals(".")
-						&& !source.getName().equals("..")) {
-					if (recurse) {
-						// File f = new File(local, source.getName());
-						op.addDirectoryOperation(
-								copyLocalDirectory(source.getAbsolutePath(),
-										remotedir + source.getName(), recurse,
-										sync, commit, progress), source);
-					}
-				} else if (source.isFile()) {
-
-					boolean newFile = false;
-					boolean unchangedFile = false;
-
-					try {
-						SftpFileAttributes attrs = sftp.getAttributes(remotedir
-								+ source.getName());
-						unchangedFile = ((source.length() == attrs.getSize()
-								.longValue()) && ((source.lastModified() / 1000) == attrs
-								.getModifiedTime().longValue()));
-
-					} catch (SftpStatusException ex) {
-						newFile = true;
-					}
-
-					try {
-
-						if (commit && !unchangedFile) { // BPS - Added
-							// !unChangedFile test.
-							// Why would want to
-							// copy that has been
-							// determined to be
-							// unchanged?
-							put(source.getAbsolutePath(),
-									remotedir + source.getName(), progress);
-							SftpFileAttributes attrs = sftp
-									.getAttributes(remotedir + source.getName());
-							attrs.setTimes(
-									new UnsignedInteger64(
-											source.lastModified() / 1000),
-									new UnsignedInteger64(
-											source.lastModified() / 1000));
-							sftp.setAttributes(remotedir + source.getName(),
-									attrs);
-						}
-
-						if (unchangedFile) {
-							op.addUnchangedFile(source);
-						} else if (!newFile) {
-							op.addUpdatedFile(source);
-						} else {
-							op.addNewFile(source);
-						}
-
-					} catch (SftpStatusException ex) {
-						op.addFailedTransfer(source, ex);
-					}
-				}
-			}
-		}
-
-		if (sync) {
-			// List the contents of the new remote directory and remove any
-			// files/directories that were not updated
-			try {
-				SftpFile[] files = ls(remotedir);
-				SftpFile file;
-
-				File f;
-
-				for (int i = 0; i < files.length; i++) {
-					file = files[i];
-
-					// Create a local file object to test for its existence
-					f = new File(local, file.getFilename());
-
-					if (!op.containsFile(f) && !file.getFilename().equals(".")
-							&& !file.getFilename().equals("..")) {
-						op.addDeletedFile(file);
-
-						if (commit) {
-							if (file.isDirectory()) {
-								// Recurse through the directory, deleting stuff
-								recurseMarkForDeletion(file, op);
-
-								if (commit) {
-									rm(file.getAbsolutePath(), true, true);
-								}
-							} else if (file.isFile()) {
-								rm(file.getAbsolutePath());
-							}
-						}
-					}
-				}
-			} catch (SftpStatusException ex2) {
-				// Ignore since if it does not exist we cant delete it
-			}
-		}
+		return createTreeSync(recurse, sync, commit, progress)
+				.copyLocalDirectory(local, remotedir, exists);
+	}
 
-		// Return the operation details
-		return op;
+	/**
+	 * Create the engine used to copy directories. The directory tree is
+	 * walked and its files transferred by {@link #getConcurrentStreams()}
+	 * workers, each with its own SFTP channel.
+	 */
+	private TreeSync createTreeSync(boolean recurse, boolean sync,
+			boolean commit, FileTransferProgress progress) {
+		TreeSync tree = new TreeSync(this, recurse, sync, commit, progress);
+		tree.streams = concurrentStreams;
+		tree.separateConnections = separateConnections;
+		tree.blocksize = blocksize;
+		tree.readBlocksize = readBlocksize;
+		tree.outstandingRequests = asyncRequests;
+		tree.textMode = transferMode == MODE_TEXT;
+		tree.mappedDownloads = mappedDownloads;
+		tree.deltaTransfers = deltaTransfers;
+		return tree;
 	}
 
-	private void recurseMarkForDeletion(SftpFile file, DirectoryOperation op)
+	void recurseMarkForDeletion(SftpFile file, DirectoryOperation op)
 			throws SftpStatusException, SshException {
 		SftpFile[] list = ls(file.getAbsolutePath());
 		op.addDeletedFile(file);
@@ -2517,7 +3374,7 @@ public class SftpClient implements Client {
 		}
 	}
 
-	private void recurseMarkForDeletion(File file, DirectoryOperation op)
+	void recurseMarkForDeletion(File file, DirectoryOperation op)
 			throws SftpStatusException, SshException {
 		String[] list = file.list();
 		op.addDeletedFile(file);
@@ -2621,7 +3478,9 @@ public class SftpClient implements Client {
 	}
 
 	/**
-	 * Copy the contents of a remote directory to a local directory
+	 * Copy the contents of a remote directory to a local directory. The tree
+	 * is copied by {@link #getConcurrentStreams()} workers, each transferring
+	 * one file at a time over its own SFTP channel.
 	 * 
 	 * @param remotedir
 	 *            the remote directory whose contents will be copied.
@@ -2650,24 +3509,11 @@ public class SftpClient implements Client {
 			String localdir, boolean recurse, boolean sync, boolean commit,
 			FileTransferProgress progress) throws FileNotFoundException,
 			SftpStatusException, SshException, TransferCancelledException {
-		// Create an operation object to hold the information
-		DirectoryOperation op = new DirectoryOperation();
-
-		// Record the previous working directoies
-		String pwd = pwd();
-		// String lpwd = lpwd();
-		cd(remotedir);
-
-		// Setup the local cwd
-		String base = remotedir;
-
-		if (base.endsWith("/"))
-			base = base.substring(0, base.length() - 1);
-
-		int idx = base.lastIndexOf('/');
-
-		if (idx != -1) {
-			base = base.substring(idx + 1);
+		String remotePath = sftp.getAbsolutePath(resolveRemotePath(remotedir));
+		SftpFileAttributes attrs = sftp.getAttributes(remotePath);
+		if (!attrs.isDirectory()) {
+			throw new SftpStatusException(SftpStatusException.SSH_FX_FAILURE,
+					remotedir + " is not a directory");
 		}
 
 		File local = new File(localdir);
@@ -2676,101 +3522,8 @@ public class SftpClient implements Client {
 			local = new File(lpwd(), localdir);
 		}
 
-		if (!local.exists() && commit) {
-			local.mkdir();
-		}
-
-		SftpFile[] files = ls();
-		SftpFile file;
-		File f;
-
-		for (int i = 0; i < files.length; i++) {
-			file = files[i];
-
-			if (file.isDirectory() && !file.getFilename().equals(".")
-					&& !file.getFilename().equals("..")) {
-				if (recurse) {
-					f = new File(local, file.getFilename());
-					op.addDirectoryOperation(
-							copyRemoteDirectory(
-									file.getFilename(),
-									local.getAbsolutePath() + "/"
-											+ file.getFilename(), recurse,
-									sync, commit, progress), f);
-				}
-			} else if (file.isFile()) {
-				f = new File(local, file.getFilename());
-
-				if (f.exists()
-						&& (f.length() == file.getAttributes().getSize()
-								.longValue())
-						&& ((f.lastModified() / 1000) == file.getAttributes()
-								.getModifiedTime().longValue())) {
-					if (commit) {
-						op.addUnchangedFile(f);
-					} else {
-						op.addUnchangedFile(file);
-					}
-
-					continue;
-				}
-
-				try {
-
-					if (f.exists()) {
-						if (commit) {
-							op.addUpdatedFile(f);
-						} else {
-							op.addUpdatedFile(file);
-						}
-					} else {
-						if (commit) {
-							op.addNewFile(f);
-						} else {
-							op.addNewFile(file);
-						}
-					}
-
-					if (commit) {
-						// Get the file
-						get(file.getFilename(), f.getAbsolutePath(), progress);
-					}
-
-				} catch (SftpStatusException ex) {
-					op.addFailedTransfer(f, ex);
-				}
-			}
-		}
-
-		if (sync) {
-			// List the contents of the new local directory and remove any
-			// files/directories that were not updated
-			String[] contents = local.list();
-			File f2;
-			if (contents != null) {
-				for (int i = 0; i < contents.length; i++) {
-					f2 = new File(local, contents[i]);
-					if (!op.containsFile(f2)) {
-						op.addDeletedFile(f2);
-
-						if (f2.isDirectory() && !f2.getName().equals(".")
-								&& !f2.getName().equals("..")) {
-							recurseMarkForDeletion(f2, op);
-
-							if (commit) {
-								IOUtil.recurseDeleteDirectory(f2);
-							}
-						} else if (commit) {
-							f2.delete();
-						}
-					}
-				}
-			}
-		}
-
-		cd(pwd);
-
-		return op;
+		return createTreeSync(recurse, sync, commit, progress)
+				.copyRemoteDirectory(remotePath, local);
 	}
 
 	/**
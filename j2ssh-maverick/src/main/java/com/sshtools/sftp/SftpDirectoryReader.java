@@ -0,0 +1,196 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.SshIOException;
+
+/**
+ * <p>
+ * Streams the entries of a remote directory. Several
+ * <code>SSH_FXP_READDIR</code> requests are kept in flight on the directory
+ * handle, so each batch of entries is usually already waiting by the time
+ * the previous one has been consumed, while no more than that number of
+ * batches is ever held in memory. The handle is closed once the last entry
+ * has been returned, or by {@link #close()} if the listing is abandoned.
+ * </p>
+ * 
+ * <pre>
+ * SftpDirectoryReader dir = sftp.readDirectory(&quot;/var/log&quot;);
+ * try {
+ * 	while (dir.hasNext()) {
+ * 		SftpFile file = dir.next();
+ * 		....
+ * 	}
+ * } finally {
+ * 	dir.close();
+ * }
+ * </pre>
+ * 
+ * @author Lee David Painter
+ */
+public class SftpDirectoryReader {
+
+	/**
+	 * The default number of <code>SSH_FXP_READDIR</code> requests kept in
+	 * flight.
+	 */
+	public static final int DEFAULT_OUTSTANDING_REQUESTS = 4;
+
+	SftpSubsystemChannel sftp;
+	SftpFile dir;
+	boolean closeHandle;
+	int outstandingRequests;
+	LinkedList<SftpResponseFuture> requests = new LinkedList<SftpResponseFuture>();
+	SftpFile[] batch = new SftpFile[0];
+	int index = 0;
+	boolean eof = false;
+	boolean closed = false;
+
+	SftpDirectoryReader(SftpSubsystemChannel sftp, SftpFile dir,
+			boolean closeHandle, int outstandingRequests) {
+		this.sftp = sftp;
+		this.dir = dir;
+		this.closeHandle = closeHandle;
+		this.outstandingRequests = Math.max(1, outstandingRequests);
+	}
+
+	/**
+	 * Get the directory being read.
+	 * 
+	 * @return SftpFile
+	 */
+	public SftpFile getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Are there any more entries? This waits for the next batch of entries
+	 * from the server if the current batch has been consumed.
+	 * 
+	 * @return boolean
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public boolean hasNext() throws SftpStatusException, SshException {
+		try {
+			while (index >= batch.length) {
+				if (eof || closed) {
+					close();
+					return false;
+				}
+				readBatch();
+			}
+			return true;
+		} catch (SftpStatusException ex) {
+			closeQuietly();
+			throw ex;
+		} catch (SshException ex) {
+			closeQuietly();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Get the next entry.
+	 * 
+	 * @return SftpFile
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public SftpFile next() throws SftpStatusException, SshException {
+		if (!hasNext()) {
+			throw new SshException("There are no more directory entries",
+					SshException.BAD_API_USAGE);
+		}
+		return batch[index++];
+	}
+
+	private void readBatch() throws SftpStatusException, SshException {
+
+		while (requests.size() < outstandingRequests) {
+			requests.addLast(sftp.getResponseFuture(sftp
+					.postReadDirectoryRequest(dir.getHandle())));
+		}
+
+		SftpMessage bar = requests.removeFirst().get();
+		try {
+			if (bar.getType() == SftpSubsystemChannel.SSH_FXP_NAME) {
+				batch = sftp.extractFiles(bar, dir.getAbsolutePath());
+				index = 0;
+			} else if (bar.getType() == SftpSubsystemChannel.SSH_FXP_STATUS) {
+				int status = (int) bar.readInt();
+
+				if (status == SftpStatusException.SSH_FX_EOF) {
+					eof = true;
+					return;
+				}
+
+				if (sftp.getVersion() >= 3) {
+					String desc = bar.readString().trim();
+					throw new SftpStatusException(status, desc);
+				}
+				throw new SftpStatusException(status);
+			} else {
+				sftp.close();
+				throw new SshException(
+						"The server responded with an unexpected message",
+						SshException.CHANNEL_FAILURE);
+			}
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
+		} catch (IOException ex) {
+			throw new SshException(ex);
+		} finally {
+			bar.dispose();
+		}
+	}
+
+	/**
+	 * Stop reading the directory, collecting any responses still outstanding
+	 * and closing the handle if it was opened for this listing.
+	 * 
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public void close() throws SftpStatusException, SshException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		batch = new SftpFile[0];
+		index = 0;
+		sftp.discardResponses(requests);
+		if (closeHandle) {
+			sftp.closeFile(dir);
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (Exception e) {
+		}
+	}
+}
@@ -168,6 +168,30 @@ public class SftpFileAttributes {
 
 	}
 
+	/**
+	 * Creates a copy of another FileAttributes object.
+	 */
+	SftpFileAttributes(SftpFileAttributes attrs) {
+		this.sftp = attrs.sftp;
+		this.version = attrs.version;
+		this.type = attrs.type;
+		this.flags = attrs.flags;
+		this.size = attrs.size;
+		this.uid = attrs.uid;
+		this.gid = attrs.gid;
+		this.permissions = attrs.permissions;
+		this.atime = attrs.atime;
+		this.atime_nano = attrs.atime_nano;
+		this.createtime = attrs.createtime;
+		this.createtime_nano = attrs.createtime_nano;
+		this.mtime = attrs.mtime;
+		this.mtime_nano = attrs.mtime_nano;
+		this.username = attrs.username;
+		this.group = attrs.group;
+		this.acls.addAll(attrs.acls);
+		this.extendedAttributes.putAll(attrs.extendedAttributes);
+	}
+
 	public int getType() {
 		return type;
 	}
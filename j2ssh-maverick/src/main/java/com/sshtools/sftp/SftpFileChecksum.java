@@ -0,0 +1,289 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>
+ * The hashes of a remote file, or of a range within it, as returned by the
+ * <code>check-file</code> extension or computed by
+ * {@link SftpClient#checkFile(String, String, int)}. When a block size was
+ * requested there is one hash for each block of the range, the last of which
+ * may be shorter than the others; otherwise there is a single hash of the
+ * whole range.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class SftpFileChecksum {
+
+	String algorithm;
+	long offset;
+	int blockSize;
+	byte[] hashes;
+	int hashLength;
+
+	SftpFileChecksum(String algorithm, long offset, int blockSize,
+			byte[] hashes) {
+		this.algorithm = algorithm;
+		this.offset = offset;
+		this.blockSize = blockSize;
+		this.hashes = hashes;
+		this.hashLength = getHashLength(algorithm);
+		if (hashLength == 0 || blockSize == 0) {
+			hashLength = hashes.length;
+		}
+	}
+
+	/**
+	 * The algorithm used, in the form named by the <code>check-file</code>
+	 * extension, for example <code>sha256</code>.
+	 * 
+	 * @return String
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * The position in the file that the first hash starts from.
+	 * 
+	 * @return long
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * The size of the blocks hashed, or zero if the range was hashed whole.
+	 * 
+	 * @return int
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * The number of hashes.
+	 * 
+	 * @return int
+	 */
+	public int getHashCount() {
+		return hashLength == 0 ? 0 : hashes.length / hashLength;
+	}
+
+	/**
+	 * Get the hash of a block.
+	 * 
+	 * @param block
+	 * @return byte[]
+	 */
+	public byte[] getHash(int block) {
+		byte[] hash = new byte[hashLength];
+		System.arraycopy(hashes, block * hashLength, hash, 0, hashLength);
+		return hash;
+	}
+
+	/**
+	 * Get the hash of the whole range, or of the first block.
+	 * 
+	 * @return byte[]
+	 */
+	public byte[] getHash() {
+		return getHash(0);
+	}
+
+	/**
+	 * Get all of the hashes, one after the other.
+	 * 
+	 * @return byte[]
+	 */
+	public byte[] getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * Does a block have the same hash as another checksum's block?
+	 * 
+	 * @param block
+	 * @param other
+	 * @param otherBlock
+	 * @return boolean
+	 */
+	public boolean matches(int block, SftpFileChecksum other, int otherBlock) {
+		if (!algorithm.equals(other.algorithm)
+				|| hashLength != other.hashLength) {
+			return false;
+		}
+		int i = block * hashLength;
+		int j = otherBlock * hashLength;
+		for (int n = 0; n < hashLength; n++) {
+			if (hashes[i + n] != other.hashes[j + n]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hash the data read from a stream in the same way as the
+	 * <code>check-file</code> extension, for example to compare a local file
+	 * with a checksum of a remote one.
+	 * 
+	 * @param in
+	 *            the data to hash, read until the end of the stream
+	 * @param algorithm
+	 *            the algorithm, as named by the <code>check-file</code>
+	 *            extension
+	 * @param offset
+	 *            the position in the file that the stream starts from
+	 * @param blockSize
+	 *            the size of the blocks to hash separately, or zero for a
+	 *            single hash
+	 * @return SftpFileChecksum
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 *             if the algorithm is not available
+	 */
+	public static SftpFileChecksum calculate(InputStream in, String algorithm,
+			long offset, int blockSize) throws IOException,
+			NoSuchAlgorithmException {
+
+		Hasher hasher = new Hasher(algorithm, offset, blockSize);
+		byte[] buf = new byte[32768];
+		int read;
+		while ((read = in.read(buf)) > -1) {
+			hasher.write(buf, 0, read);
+		}
+		return hasher.getChecksum();
+	}
+
+	/**
+	 * Get the length of the hashes of one of the algorithms named by the
+	 * <code>check-file</code> extension.
+	 * 
+	 * @param algorithm
+	 * @return the length in bytes, or zero if the algorithm is unknown
+	 */
+	public static int getHashLength(String algorithm) {
+		if (algorithm.equals("md5")) {
+			return 16;
+		} else if (algorithm.equals("sha1")) {
+			return 20;
+		} else if (algorithm.equals("sha224")) {
+			return 28;
+		} else if (algorithm.equals("sha256")) {
+			return 32;
+		} else if (algorithm.equals("sha384")) {
+			return 48;
+		} else if (algorithm.equals("sha512")) {
+			return 64;
+		} else if (algorithm.equals("crc32")) {
+			return 4;
+		}
+		return 0;
+	}
+
+	/**
+	 * Get the JCE name of one of the algorithms named by the
+	 * <code>check-file</code> extension.
+	 * 
+	 * @param algorithm
+	 * @return the JCE name, or <code>null</code> if it has none
+	 */
+	public static String getJCEName(String algorithm) {
+		if (algorithm.equals("md5")) {
+			return "MD5";
+		} else if (algorithm.equals("sha1")) {
+			return "SHA-1";
+		} else if (algorithm.equals("sha224")) {
+			return "SHA-224";
+		} else if (algorithm.equals("sha256")) {
+			return "SHA-256";
+		} else if (algorithm.equals("sha384")) {
+			return "SHA-384";
+		} else if (algorithm.equals("sha512")) {
+			return "SHA-512";
+		}
+		return null;
+	}
+
+	/**
+	 * Hashes the data written to it in blocks.
+	 */
+	static class Hasher extends OutputStream {
+		String algorithm;
+		long offset;
+		int blockSize;
+		MessageDigest digest;
+		ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+		long remaining;
+		boolean pending;
+
+		Hasher(String algorithm, long offset, int blockSize)
+				throws NoSuchAlgorithmException {
+			String name = getJCEName(algorithm);
+			if (name == null) {
+				throw new NoSuchAlgorithmException(algorithm);
+			}
+			this.digest = MessageDigest.getInstance(name);
+			this.algorithm = algorithm;
+			this.offset = offset;
+			this.blockSize = blockSize;
+			this.remaining = blockSize;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] buf, int off, int len) throws IOException {
+			while (len > 0) {
+				int count = blockSize > 0 ? (int) Math.min(len, remaining)
+						: len;
+				digest.update(buf, off, count);
+				pending = true;
+				off += count;
+				len -= count;
+				if (blockSize > 0 && (remaining -= count) == 0) {
+					hashes.write(digest.digest());
+					remaining = blockSize;
+					pending = false;
+				}
+			}
+		}
+
+		SftpFileChecksum getChecksum() throws IOException {
+			if (pending || blockSize == 0) {
+				hashes.write(digest.digest());
+				pending = false;
+			}
+			return new SftpFileChecksum(algorithm, offset, blockSize,
+					hashes.toByteArray());
+		}
+	}
+}
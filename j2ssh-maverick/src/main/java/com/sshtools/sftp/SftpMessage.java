@@ -24,11 +24,13 @@ import java.io.IOException;
 
 import com.sshtools.ssh.message.Message;
 import com.sshtools.util.ByteArrayReader;
+import com.sshtools.util.PacketBuffer;
 
 public class SftpMessage extends ByteArrayReader implements Message {
 
 	int type;
 	int requestId;
+	PacketBuffer packet;
 
 	SftpMessage(byte[] msg) throws IOException {
 		super(msg);
@@ -36,6 +38,26 @@ public class SftpMessage extends ByteArrayReader implements Message {
 		requestId = (int) readInt();
 	}
 
+	SftpMessage(PacketBuffer packet) throws IOException {
+		super(packet.array(), packet.offset(), packet.length());
+		this.packet = packet;
+		type = read();
+		requestId = (int) readInt();
+	}
+
+	/**
+	 * Dispose of the message, returning its buffer to the pool if it was read
+	 * into a pooled buffer.
+	 */
+	public void dispose() {
+		PacketBuffer tmp = packet;
+		if (tmp != null) {
+			packet = null;
+			tmp.release();
+		}
+		super.dispose();
+	}
+
 	public int getType() {
 		return type;
 	}
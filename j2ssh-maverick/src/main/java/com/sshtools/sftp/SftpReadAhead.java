@@ -0,0 +1,403 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import com.sshtools.logging.Log;
+import com.sshtools.ssh.SshException;
+
+/**
+ * <p>
+ * Reads a range of a remote file by keeping a window of read requests in
+ * flight, passing the data to a {@link DownloadTarget}. A target that
+ * supports random access is given each response as soon as it has been read
+ * from the channel; otherwise the data is passed in file order.
+ * </p>
+ * 
+ * <p>
+ * The window follows the bandwidth-delay product of the link. The round trip
+ * time of each request and the rate at which data arrives are measured, and
+ * once per round the window is set to twice the number of requests needed to
+ * sustain the best recent rate over the shortest round trip seen. It
+ * therefore opens up quickly on a long, fast link and shrinks again when
+ * responses merely start to queue, without needing to be tuned by hand.
+ * </p>
+ * 
+ * <p>
+ * The first read on a channel probes the largest read the server will
+ * honour by asking for {@link #MAX_READ_LENGTH} bytes; a short response that
+ * does not reach the end of the file gives the server's limit, which is then
+ * remembered by the channel. Servers that advertise the
+ * <code>limits@openssh.com</code> extension are asked directly instead.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+class SftpReadAhead {
+
+	/**
+	 * The read length that all servers are expected to support.
+	 */
+	static final int DEFAULT_READ_LENGTH = 32768;
+
+	/**
+	 * The largest read requested; this is the limit of the OpenSSH server.
+	 */
+	static final int MAX_READ_LENGTH = 261120;
+
+	static final int MIN_WINDOW = 4;
+	static final int RATE_ROUNDS = 8;
+	static final long MIN_RTT_EXPIRY = 10000000000L;
+
+	SftpSubsystemChannel sftp;
+	byte[] handle;
+	DownloadTarget target;
+	int blocksize;
+	int readLength;
+	int window;
+	int maxWindow;
+	boolean probing;
+
+	long minRtt = Long.MAX_VALUE;
+	long minRttStamp;
+	boolean roundStarted = false;
+	long roundStart;
+	long roundBytes;
+	int roundCount;
+	double[] rates = new double[RATE_ROUNDS];
+	int rounds;
+
+	LinkedList<ReadRequest> requests = new LinkedList<ReadRequest>();
+	LinkedList<ReadRequest> abandoned = new LinkedList<ReadRequest>();
+	long reached;
+
+	/**
+	 * @param sftp
+	 *            the channel to read from
+	 * @param handle
+	 *            the handle of the open file
+	 * @param target
+	 *            where to write the data
+	 * @param blocksize
+	 *            the largest read to request, or zero to request the largest
+	 *            read the server supports
+	 * @param outstandingRequests
+	 *            the initial size of the window
+	 */
+	SftpReadAhead(SftpSubsystemChannel sftp, byte[] handle,
+			DownloadTarget target, int blocksize, int outstandingRequests) {
+		this.sftp = sftp;
+		this.handle = handle;
+		this.target = target;
+		this.blocksize = blocksize;
+		this.window = Math.max(1, outstandingRequests);
+	}
+
+	/**
+	 * Called once all of the data up to <code>position</code> has been
+	 * written.
+	 */
+	void progressed(long position) throws TransferCancelledException {
+	}
+
+	/**
+	 * Read the file from <code>position</code> up to <code>end</code>.
+	 * 
+	 * @return the position reached, less than <code>end</code> if the end of
+	 *         the file was reached first
+	 */
+	long read(long position, long end) throws SftpStatusException,
+			SshException, TransferCancelledException, IOException {
+
+		readLength = sftp.maxReadLength;
+		if (readLength == 0) {
+			readLength = sftp.queryReadLimits();
+		}
+		probing = readLength == 0;
+		if (probing) {
+			readLength = MAX_READ_LENGTH;
+		}
+		if (blocksize > 0 && blocksize < readLength) {
+			readLength = blocksize;
+		}
+		resize(window);
+
+		boolean ordered = !target.isRandomAccess();
+		long offset = position;
+		reached = position;
+		try {
+			while (true) {
+
+				int limit = probing ? 1 : window;
+				while (requests.size() < limit && offset < end) {
+					int len = (int) Math.min(readLength, end - offset);
+					requests.addLast(post(offset, len));
+					offset += len;
+				}
+
+				if (requests.isEmpty()) {
+					return reached = Math.min(offset, end);
+				}
+
+				// Wait for the first request, then with a random access
+				// target take any others that have already been answered.
+				// The list stays in offset order as the remainder of a short
+				// read takes the place of the request it completes.
+				boolean eof = false;
+				boolean first = true;
+				for (ListIterator<ReadRequest> it = requests.listIterator(); it
+						.hasNext();) {
+					ReadRequest request = it.next();
+					if (!first && (ordered || !request.future.isDone())) {
+						if (ordered) {
+							break;
+						}
+						continue;
+					}
+					first = false;
+
+					SftpMessage msg = request.future.get();
+					it.remove();
+					int count;
+					try {
+						count = readData(request, msg);
+					} catch (SftpStatusException ex) {
+						if (!probing || request.length <= DEFAULT_READ_LENGTH) {
+							throw ex;
+						}
+						// Assume the server could not cope with the size of
+						// the probe and fall back to the length every server
+						// supports
+						if (Log.isDebugEnabled()) {
+							Log.debug(this, "Read of " + request.length
+									+ " bytes failed, reading "
+									+ DEFAULT_READ_LENGTH + " bytes at a time");
+						}
+						sftp.maxReadLength = DEFAULT_READ_LENGTH;
+						readLength = DEFAULT_READ_LENGTH;
+						probing = false;
+						resize(window);
+						offset = request.offset;
+						continue;
+					} finally {
+						msg.dispose();
+					}
+
+					if (count < 0) {
+						// The file ends here, nothing beyond can be read
+						end = Math.min(end, request.offset);
+						eof = true;
+						continue;
+					}
+
+					if (probing) {
+						probed(request, count, end);
+					} else {
+						sample(request, count);
+					}
+
+					if (count < request.length) {
+						// Short read, request the rest in its place
+						long pos = request.offset + count;
+						it.add(post(pos, request.length - count));
+					}
+				}
+
+				if (eof) {
+					for (Iterator<ReadRequest> it = requests.iterator(); it
+							.hasNext();) {
+						ReadRequest request = it.next();
+						if (request.offset >= end) {
+							it.remove();
+							abandoned.addLast(request);
+						}
+					}
+				}
+
+				long pos = requests.isEmpty() ? Math.min(offset, end)
+						: requests.getFirst().offset;
+				if (pos > reached) {
+					reached = pos;
+					progressed(reached);
+				}
+			}
+		} finally {
+			LinkedList<SftpResponseFuture> outstanding = new LinkedList<SftpResponseFuture>();
+			for (ReadRequest request : requests) {
+				outstanding.add(request.future);
+			}
+			for (ReadRequest request : abandoned) {
+				outstanding.add(request.future);
+			}
+			requests.clear();
+			abandoned.clear();
+			sftp.discardResponses(outstanding);
+		}
+	}
+
+	private ReadRequest post(long offset, int len) throws SftpStatusException,
+			SshException {
+		long posted = System.nanoTime();
+		return new ReadRequest(sftp.getResponseFuture(sftp.postReadRequest(
+				handle, offset, len)), offset, len, posted);
+	}
+
+	/**
+	 * Write the data from a response.
+	 * 
+	 * @return the number of bytes, or -1 at the end of the file
+	 */
+	private int readData(ReadRequest request, SftpMessage msg)
+			throws SftpStatusException, SshException, IOException {
+
+		if (msg.getType() == SftpSubsystemChannel.SSH_FXP_DATA) {
+			int count = (int) msg.readInt();
+			if (count > request.length) {
+				throw new SshException(
+						"The server returned more data than requested",
+						SshException.PROTOCOL_VIOLATION);
+			}
+			target.write(request.offset, msg.array(), msg.getPosition(), count);
+			return count;
+		} else if (msg.getType() == SftpSubsystemChannel.SSH_FXP_STATUS) {
+			int status = (int) msg.readInt();
+			if (status == SftpStatusException.SSH_FX_EOF) {
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Received file EOF");
+				}
+				return -1;
+			}
+			if (sftp.getVersion() >= 3) {
+				String desc = msg.readString().trim();
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Received status " + desc);
+				}
+				throw new SftpStatusException(status, desc);
+			}
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Received status " + status);
+			}
+			throw new SftpStatusException(status);
+		} else {
+			sftp.close();
+			throw new SshException(
+					"The server responded with an unexpected message",
+					SshException.CHANNEL_FAILURE);
+		}
+	}
+
+	/**
+	 * Learn the server's maximum read length from the response to the first
+	 * request.
+	 */
+	private void probed(ReadRequest request, int count, long end) {
+		probing = false;
+		if (count < request.length) {
+			readLength = Math.max(1, count);
+			if (request.offset + count < end && end < Long.MAX_VALUE) {
+				sftp.maxReadLength = readLength;
+			}
+		} else if (request.length == MAX_READ_LENGTH) {
+			sftp.maxReadLength = MAX_READ_LENGTH;
+		}
+		if (Log.isDebugEnabled()) {
+			Log.debug(this, "Server returned " + count + " bytes for a read of "
+					+ request.length + ", reading " + readLength
+					+ " bytes at a time");
+		}
+		resize(window);
+	}
+
+	/**
+	 * Record the round trip time and rate of a response, resizing the window
+	 * at the end of each round.
+	 */
+	private void sample(ReadRequest request, int count) {
+
+		long now = request.future.completed;
+		long rtt = Math.max(1, now - request.posted);
+
+		if (rtt < minRtt || now - minRttStamp > MIN_RTT_EXPIRY) {
+			minRtt = rtt;
+			minRttStamp = now;
+		}
+
+		if (!roundStarted) {
+			roundStarted = true;
+			roundStart = now;
+			roundBytes = 0;
+			roundCount = 0;
+			return;
+		}
+
+		roundBytes += count;
+		roundCount++;
+
+		long elapsed = now - roundStart;
+		if (roundCount < window || elapsed < minRtt || elapsed <= 0) {
+			return;
+		}
+
+		rates[rounds++ % RATE_ROUNDS] = (double) roundBytes / elapsed;
+		double rate = 0;
+		for (int i = 0; i < RATE_ROUNDS; i++) {
+			rate = Math.max(rate, rates[i]);
+		}
+
+		double bdp = rate * minRtt;
+		resize((int) Math.min(Integer.MAX_VALUE,
+				Math.ceil(2 * bdp / readLength)));
+
+		if (Log.isDebugEnabled()) {
+			Log.debug(this, "Read rate " + (long) (rate * 1000000000D)
+					+ " bytes/s minimum rtt " + (minRtt / 1000) + "us window "
+					+ window + " requests of " + readLength + " bytes");
+		}
+
+		roundStart = now;
+		roundBytes = 0;
+		roundCount = 0;
+	}
+
+	private void resize(int target) {
+		maxWindow = Math.max(MIN_WINDOW, sftp.getMaxReadAhead() / readLength);
+		window = Math.max(MIN_WINDOW, Math.min(maxWindow, target));
+	}
+
+	static class ReadRequest {
+		SftpResponseFuture future;
+		long offset;
+		int length;
+		long posted;
+
+		ReadRequest(SftpResponseFuture future, long offset, int length,
+				long posted) {
+			this.future = future;
+			this.offset = offset;
+			this.length = length;
+			this.posted = posted;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import com.sshtools.logging.Log;
+import com.sshtools.ssh.SshException;
+import com.sshtools.util.UnsignedInteger32;
+
+/**
+ * <p>
+ * The pending response to a request posted on an {@link SftpSubsystemChannel}.
+ * Any number of threads may have requests outstanding on the same channel; a
+ * single thread at a time reads the responses and completes the future with
+ * the matching request id, waking only the thread waiting for it.
+ * </p>
+ * 
+ * <p>
+ * The response can be collected by calling {@link #get()} or delivered to an
+ * {@link SftpResponseListener}, in which case the channel starts a thread to
+ * read responses if no other thread is waiting.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class SftpResponseFuture {
+
+	SftpSubsystemChannel sftp;
+	UnsignedInteger32 requestId;
+	SftpMessage response;
+	SshException error;
+	SftpResponseListener listener;
+	volatile boolean done = false;
+	boolean promoted = false;
+	boolean timed = false;
+	long completed;
+
+	SftpResponseFuture(SftpSubsystemChannel sftp, UnsignedInteger32 requestId) {
+		this.sftp = sftp;
+		this.requestId = requestId;
+	}
+
+	/**
+	 * Get the id of the request this response belongs to.
+	 * 
+	 * @return UnsignedInteger32
+	 */
+	public UnsignedInteger32 getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * Has the response been received, or the request failed?
+	 * 
+	 * @return boolean
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Wait for the response to the request.
+	 * 
+	 * @return SftpMessage
+	 * @throws SshException
+	 */
+	public SftpMessage get() throws SshException {
+		return sftp.awaitResponse(this, 0);
+	}
+
+	/**
+	 * Wait for the response to the request for up to <code>timeout</code>
+	 * milliseconds. The calling thread does not read from the channel itself;
+	 * the responses are read by the channel's response reader thread, which
+	 * is started if necessary, so the call returns as soon as the timeout
+	 * expires.
+	 * 
+	 * @param timeout
+	 * @return SftpMessage
+	 * @throws SshException
+	 */
+	public SftpMessage get(long timeout) throws SshException {
+		return sftp.awaitResponse(this, timeout);
+	}
+
+	/**
+	 * Deliver the response to a listener rather than waiting for it. If the
+	 * response has already been received the listener is called immediately.
+	 * 
+	 * @param listener
+	 */
+	public void setListener(SftpResponseListener listener) {
+		boolean pending;
+		synchronized (this) {
+			pending = !done;
+			if (pending) {
+				this.listener = listener;
+			}
+		}
+		if (pending) {
+			sftp.startResponseReader();
+		} else {
+			notifyListener(listener);
+		}
+	}
+
+	void complete(SftpMessage response) {
+		SftpResponseListener l;
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			this.response = response;
+			completed = System.nanoTime();
+			done = true;
+			l = listener;
+			notifyAll();
+		}
+		if (l != null) {
+			notifyListener(l);
+		}
+	}
+
+	void fail(SshException error) {
+		SftpResponseListener l;
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			this.error = error;
+			done = true;
+			l = listener;
+			notifyAll();
+		}
+		if (l != null) {
+			notifyListener(l);
+		}
+	}
+
+	/**
+	 * Collect the result, removing this future from the channel.
+	 */
+	SftpMessage take() throws SshException {
+		sftp.responses.remove(requestId);
+		if (error != null) {
+			throw error;
+		}
+		return response;
+	}
+
+	private void notifyListener(SftpResponseListener l) {
+		try {
+			SftpMessage msg;
+			try {
+				msg = take();
+			} catch (SshException ex) {
+				l.requestFailed(requestId, ex);
+				return;
+			}
+			l.responseReceived(requestId, msg);
+		} catch (Throwable t) {
+			Log.error(this, "SFTP response listener failed", t);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import com.sshtools.ssh.SshException;
+import com.sshtools.util.UnsignedInteger32;
+
+/**
+ * <p>
+ * Interface for receiving the response to an SFTP request asynchronously.
+ * The methods are called by the thread reading responses from the
+ * {@link SftpSubsystemChannel} and should return quickly as no further
+ * responses are read until they do.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public interface SftpResponseListener {
+
+	/**
+	 * The response to a request has been received. The listener takes
+	 * ownership of the message and should dispose of it once processed.
+	 * 
+	 * @param requestId
+	 * @param response
+	 */
+	public void responseReceived(UnsignedInteger32 requestId,
+			SftpMessage response);
+
+	/**
+	 * No response will be received for a request because the channel failed
+	 * or was closed.
+	 * 
+	 * @param requestId
+	 * @param error
+	 */
+	public void requestFailed(UnsignedInteger32 requestId, SshException error);
+}
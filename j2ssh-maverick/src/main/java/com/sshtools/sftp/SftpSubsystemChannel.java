@@ -24,22 +24,27 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.Enumeration;
+import java.util.Collection;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.sshtools.events.Event;
 import com.sshtools.events.EventServiceImplementation;
 import com.sshtools.events.J2SSHEventCodes;
 import com.sshtools.logging.Log;
 import com.sshtools.ssh.Packet;
+import com.sshtools.ssh.SshContext;
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.SshIOException;
 import com.sshtools.ssh.SshSession;
 import com.sshtools.ssh.SubsystemChannel;
-import com.sshtools.ssh.message.Message;
-import com.sshtools.ssh.message.MessageHolder;
+import com.sshtools.ssh2.Ssh2Context;
 import com.sshtools.util.Base64;
 import com.sshtools.util.ByteArrayReader;
 import com.sshtools.util.UnsignedInteger32;
@@ -154,8 +159,14 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 	int serverVersion = -1;
 
 	UnsignedInteger32 requestId = new UnsignedInteger32(0);
-	Hashtable<UnsignedInteger32, SftpMessage> responses = new Hashtable<UnsignedInteger32, SftpMessage>();
-	SftpThreadSynchronizer sync = new SftpThreadSynchronizer();
+	ConcurrentHashMap<UnsignedInteger32, SftpResponseFuture> responses = new ConcurrentHashMap<UnsignedInteger32, SftpResponseFuture>();
+	ConcurrentLinkedQueue<SftpResponseFuture> waiters = new ConcurrentLinkedQueue<SftpResponseFuture>();
+	AtomicBoolean reading = new AtomicBoolean();
+	volatile SshException readError;
+	Thread responseReader;
+	int maxReadLength = 0;
+	int maxReadAhead = 4 * 1024 * 1024;
+	SftpAttributeCache cache;
 	Hashtable<String, byte[]> extensions = new Hashtable<String, byte[]>();
 
 	/**
@@ -289,7 +300,8 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 	}
 
 	public void close() throws IOException {
-		responses.clear();
+		failResponses(new SshException("The SFTP channel has been closed",
+				SshException.CHANNEL_FAILURE));
 		super.close();
 	}
 
@@ -386,15 +398,232 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			packet.write(SSH_FXP_EXTENDED);
 			packet.writeUINT32(id);
 			packet.writeString(request);
+			if (requestData != null) {
+				packet.write(requestData);
+			}
 
 			sendMessage(packet);
 
 			return getResponse(id);
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
 		} catch (IOException ex) {
 			throw new SshException(SshException.INTERNAL_ERROR, ex);
 		}
 	}
 
+	/**
+	 * Copy a file on the server with the <code>copy-file</code> extension,
+	 * without its contents passing over the connection. Check
+	 * {@link #supportsExtension(String)} first.
+	 * 
+	 * @param source
+	 *            the absolute path of the file to copy
+	 * @param destination
+	 *            the absolute path of the copy
+	 * @param overwrite
+	 *            replace the destination if it exists
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public void copyFile(String source, String destination, boolean overwrite)
+			throws SftpStatusException, SshException {
+
+		checkExtension("copy-file");
+
+		try {
+			UnsignedInteger32 requestId = nextRequestId();
+			Packet msg = createPacket();
+			msg.write(SSH_FXP_EXTENDED);
+			msg.writeUINT32(requestId);
+			msg.writeString("copy-file");
+			msg.writeString(source, CHARSET_ENCODING);
+			msg.writeString(destination, CHARSET_ENCODING);
+			msg.writeBoolean(overwrite);
+
+			sendMessage(msg);
+
+			getOKRequestStatus(requestId);
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
+		} catch (IOException ex) {
+			throw new SshException(ex);
+		} finally {
+			if (cache != null) {
+				cache.changed(destination);
+			}
+		}
+	}
+
+	/**
+	 * Copy data between two open files on the server with the
+	 * <code>copy-data</code> extension, without the data passing over the
+	 * connection. Check {@link #supportsExtension(String)} first.
+	 * 
+	 * @param readHandle
+	 *            the handle of a file opened for reading
+	 * @param readOffset
+	 *            the position to copy from
+	 * @param length
+	 *            the number of bytes to copy, or zero to copy to the end of
+	 *            the file
+	 * @param writeHandle
+	 *            the handle of a file opened for writing, which may be the
+	 *            same file provided the ranges do not overlap
+	 * @param writeOffset
+	 *            the position to copy to
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public void copyData(byte[] readHandle, long readOffset, long length,
+			byte[] writeHandle, long writeOffset) throws SftpStatusException,
+			SshException {
+
+		checkExtension("copy-data");
+
+		try {
+			UnsignedInteger32 requestId = nextRequestId();
+			Packet msg = createPacket();
+			msg.write(SSH_FXP_EXTENDED);
+			msg.writeUINT32(requestId);
+			msg.writeString("copy-data");
+			msg.writeBinaryString(readHandle);
+			msg.writeUINT64(readOffset);
+			msg.writeUINT64(length);
+			msg.writeBinaryString(writeHandle);
+			msg.writeUINT64(writeOffset);
+
+			sendMessage(msg);
+
+			getOKRequestStatus(requestId);
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
+		} catch (IOException ex) {
+			throw new SshException(ex);
+		} finally {
+			if (cache != null) {
+				cache.changed(writeHandle);
+			}
+		}
+	}
+
+	/**
+	 * Ask the server to hash a file with the <code>check-file-name</code>
+	 * extension, so that it can be compared without being downloaded. Check
+	 * {@link #supportsExtension(String)} for <code>check-file</code> first.
+	 * 
+	 * @param path
+	 *            the absolute path of the file
+	 * @param algorithms
+	 *            a comma separated list of hash algorithms in order of
+	 *            preference, for example <code>sha256,sha1,md5</code>
+	 * @param offset
+	 *            the position to start hashing from
+	 * @param length
+	 *            the number of bytes to hash, or zero to hash to the end of
+	 *            the file
+	 * @param blockSize
+	 *            the size of the blocks to hash separately, or zero for a
+	 *            single hash of the whole range
+	 * @return SftpFileChecksum
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public SftpFileChecksum checkFile(String path, String algorithms,
+			long offset, long length, int blockSize)
+			throws SftpStatusException, SshException {
+		try {
+			byte[] name = path.getBytes(CHARSET_ENCODING);
+			return checkFile("check-file-name", name, algorithms, offset,
+					length, blockSize);
+		} catch (UnsupportedEncodingException ex) {
+			throw new SshException(ex);
+		}
+	}
+
+	/**
+	 * Ask the server to hash an open file with the
+	 * <code>check-file-handle</code> extension. See
+	 * {@link #checkFile(String, String, long, long, int)}.
+	 * 
+	 * @param handle
+	 * @param algorithms
+	 * @param offset
+	 * @param length
+	 * @param blockSize
+	 * @return SftpFileChecksum
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public SftpFileChecksum checkFile(byte[] handle, String algorithms,
+			long offset, long length, int blockSize)
+			throws SftpStatusException, SshException {
+		return checkFile("check-file-handle", handle, algorithms, offset,
+				length, blockSize);
+	}
+
+	SftpFileChecksum checkFile(String request, byte[] file,
+			String algorithms, long offset, long length, int blockSize)
+			throws SftpStatusException, SshException {
+
+		if (!supportsExtension(request)) {
+			checkExtension("check-file");
+		}
+
+		try {
+			UnsignedInteger32 requestId = nextRequestId();
+			Packet msg = createPacket();
+			msg.write(SSH_FXP_EXTENDED);
+			msg.writeUINT32(requestId);
+			msg.writeString(request);
+			msg.writeBinaryString(file);
+			msg.writeString(algorithms);
+			msg.writeUINT64(offset);
+			msg.writeUINT64(length);
+			msg.writeInt(blockSize);
+
+			sendMessage(msg);
+
+			SftpMessage bar = getResponse(requestId);
+			try {
+				if (bar.getType() == SSH_FXP_EXTENDED_REPLY) {
+					bar.readString(); // check-file
+					String algorithm = bar.readString();
+					byte[] hashes = new byte[bar.available()];
+					bar.readFully(hashes);
+					return new SftpFileChecksum(algorithm, offset, blockSize,
+							hashes);
+				} else if (bar.getType() == SSH_FXP_STATUS) {
+					int status = (int) bar.readInt();
+					if (version >= 3) {
+						String desc = bar.readString().trim();
+						throw new SftpStatusException(status, desc);
+					}
+					throw new SftpStatusException(status);
+				} else {
+					close();
+					throw new SshException(
+							"The server responded with an unexpected message",
+							SshException.CHANNEL_FAILURE);
+				}
+			} finally {
+				bar.dispose();
+			}
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
+		} catch (IOException ex) {
+			throw new SshException(ex);
+		}
+	}
+
+	void checkExtension(String name) throws SftpStatusException {
+		if (!supportsExtension(name)) {
+			throw new SftpStatusException(
+					SftpStatusException.SSH_FX_OP_UNSUPPORTED,
+					"The server does not support the " + name + " extension");
+		}
+	}
+
 	/**
 	 * Change the permissions of a file.
 	 * 
@@ -481,6 +710,10 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			throw ex.getRealException();
 		} catch (IOException ex) {
 			throw new SshException(ex, SshException.INTERNAL_ERROR);
+		} finally {
+			if (cache != null) {
+				cache.changed(path);
+			}
 		}
 	}
 
@@ -501,21 +734,34 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 					"The handle is not an open file handle!");
 		}
 
+		getOKRequestStatus(postSetAttributesRequest(file.getHandle(), attrs));
+	}
+
+	/**
+	 * Send an FSETSTAT request for an open handle without waiting for the
+	 * response.
+	 */
+	UnsignedInteger32 postSetAttributesRequest(byte[] handle,
+			SftpFileAttributes attrs) throws SshException {
 		try {
 			UnsignedInteger32 requestId = nextRequestId();
 			Packet msg = createPacket();
 			msg.write(SSH_FXP_FSETSTAT);
 			msg.writeInt(requestId.longValue());
-			msg.writeBinaryString(file.getHandle());
+			msg.writeBinaryString(handle);
 			msg.write(attrs.toByteArray());
 
 			sendMessage(msg);
 
-			getOKRequestStatus(requestId);
+			return requestId;
 		} catch (SshIOException ex) {
 			throw ex.getRealException();
 		} catch (IOException ex) {
 			throw new SshException(ex);
+		} finally {
+			if (cache != null) {
+				cache.changed(handle);
+			}
 		}
 	}
 
@@ -558,6 +804,46 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 		}
 	}
 
+	/**
+	 * Send a write request for an open file, reading the data from an
+	 * {@link UploadSource} straight into the request, but do not wait for
+	 * the response from the server.
+	 * 
+	 * @param handle
+	 * @param position
+	 *            the position in the remote file, which is also the offset
+	 *            the data is read from in the source
+	 * @param source
+	 * @param len
+	 * @return UnsignedInteger32
+	 * @throws SshException
+	 */
+	public UnsignedInteger32 postWriteRequest(byte[] handle, long position,
+			UploadSource source, int len) throws SftpStatusException,
+			SshException {
+
+		try {
+			UnsignedInteger32 requestId = nextRequestId();
+			Packet msg = createPacket();
+			msg.write(SSH_FXP_WRITE);
+			msg.writeInt(requestId.longValue());
+			msg.writeBinaryString(handle);
+			msg.writeUINT64(position);
+			msg.writeInt(len);
+			msg.reserve(len);
+			source.read(position, msg.array(), msg.position(), len);
+			msg.move(len);
+
+			sendMessage(msg);
+
+			return requestId;
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
+		} catch (IOException ex) {
+			throw new SshException(ex);
+		}
+	}
+
 	/**
 	 * Write a block of data to an open file.
 	 * 
@@ -641,53 +927,122 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 	 *            the position in the file to start writing to.
 	 * @throws SshException
 	 */
-	public void performOptimizedWrite(byte[] handle, int blocksize,
-			int outstandingRequests, java.io.InputStream in, int buffersize,
-			FileTransferProgress progress, long position)
+	public void performOptimizedWrite(final byte[] handle, final int blocksize,
+			int outstandingRequests, final java.io.InputStream in,
+			final int buffersize, FileTransferProgress progress, long position)
 			throws SftpStatusException, SshException,
 			TransferCancelledException {
 
-		try {
-			if (blocksize < 4096) {
-				throw new SshException("Block size cannot be less than 4096",
-						SshException.BAD_API_USAGE);
+		performOptimizedWrite(new WriteBlocks() {
+			java.io.InputStream buffered;
+			byte[] buf;
+
+			int post(long position) throws SftpStatusException, SshException,
+					IOException {
+				if (buf == null) {
+					buf = new byte[blocksize];
+					buffered = new java.io.BufferedInputStream(in,
+							buffersize <= 0 ? blocksize : buffersize);
+				}
+				int count = buffered.read(buf);
+				if (count == -1) {
+					return -1;
+				}
+				requestId = postWriteRequest(handle, position, buf, 0, count);
+				return count;
 			}
+		}, blocksize, outstandingRequests, progress, position);
+	}
 
-			if (position < 0)
-				throw new SshException(
-						"Position value must be greater than zero!",
-						SshException.BAD_API_USAGE);
+	/**
+	 * Performs an optimized write of a local file through asynchronous
+	 * messaging, reading the data of each request from an
+	 * {@link UploadSource} directly into the outgoing message.
+	 * 
+	 * @param handle
+	 *            the open file handle to write to
+	 * @param blocksize
+	 *            the block size to send data, should be between 4096 and 65535
+	 * @param outstandingRequests
+	 *            the maximum number of requests that can be outstanding at any
+	 *            one time
+	 * @param source
+	 *            the local file to write, this is not closed
+	 * @param progress
+	 *            provides progress information, may be null.
+	 * @param position
+	 *            the position in the file to start writing from.
+	 * @throws SshException
+	 */
+	public void performOptimizedWrite(final byte[] handle, final int blocksize,
+			int outstandingRequests, final UploadSource source,
+			FileTransferProgress progress, long position)
+			throws SftpStatusException, SshException,
+			TransferCancelledException {
 
-			if (position > 0) {
-				if (progress != null)
-					progress.progressed(position);
+		performOptimizedWrite(new WriteBlocks() {
+			int post(long position) throws SftpStatusException, SshException,
+					IOException {
+				int len = (int) Math.min(blocksize, source.length() - position);
+				if (len <= 0) {
+					return -1;
+				}
+				requestId = postWriteRequest(handle, position, source, len);
+				return len;
 			}
+		}, blocksize, outstandingRequests, progress, position);
+	}
 
-			if (buffersize <= 0) {
-				buffersize = blocksize;
-			}
+	/**
+	 * Posts the write requests of an optimized write, one block at a time.
+	 */
+	static abstract class WriteBlocks {
+
+		UnsignedInteger32 requestId;
+
+		/**
+		 * Post a write request for the block at <code>position</code>,
+		 * setting {@link #requestId}.
+		 * 
+		 * @return the length of the block, or -1 when there is no more data
+		 */
+		abstract int post(long position) throws SftpStatusException,
+				SshException, IOException;
+	}
 
-			byte[] buf = new byte[blocksize];
+	private void performOptimizedWrite(WriteBlocks blocks, int blocksize,
+			int outstandingRequests, FileTransferProgress progress,
+			long position) throws SftpStatusException, SshException,
+			TransferCancelledException {
 
-			long transfered = position;
-			int buffered = 0;
+		if (blocksize < 4096) {
+			throw new SshException("Block size cannot be less than 4096",
+					SshException.BAD_API_USAGE);
+		}
 
-			Vector<UnsignedInteger32> requests = new Vector<UnsignedInteger32>();
+		if (position < 0)
+			throw new SshException("Position value must be greater than zero!",
+					SshException.BAD_API_USAGE);
 
-			in = new java.io.BufferedInputStream(in, buffersize);
+		if (position > 0) {
+			if (progress != null)
+				progress.progressed(position);
+		}
+
+		LinkedList<SftpResponseFuture> requests = new LinkedList<SftpResponseFuture>();
 
-			UnsignedInteger32 requestId;
+		try {
+			long transfered = position;
 
 			while (true) {
 
-				buffered = in.read(buf);
-				if (buffered == -1)
+				int len = blocks.post(transfered);
+				if (len == -1) {
 					break;
+				}
+				requests.addLast(getResponseFuture(blocks.requestId));
 
-				requests.addElement(postWriteRequest(handle, transfered, buf,
-						0, buffered));
-
-				transfered += buffered;
+				transfered += len;
 
 				if (progress != null) {
 
@@ -698,19 +1053,13 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 				}
 
 				if (requests.size() > outstandingRequests) {
-					requestId = (UnsignedInteger32) requests.elementAt(0);
-					requests.removeElementAt(0);
-					getOKRequestStatus(requestId);
+					getOKRequestStatus(requests.removeFirst().getRequestId());
 				}
-
 			}
 
-			for (Enumeration<UnsignedInteger32> e = requests.elements(); e
-					.hasMoreElements();) {
-				getOKRequestStatus(e.nextElement());
+			while (!requests.isEmpty()) {
+				getOKRequestStatus(requests.removeFirst().getRequestId());
 			}
-
-			requests.removeAllElements();
 		} catch (SshIOException ex) {
 			throw ex.getRealException();
 		} catch (EOFException ex) {
@@ -734,29 +1083,27 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			throw new SshException(
 					"Resource Shortage: try reducing the local file buffer size",
 					SshException.BAD_API_USAGE);
+		} finally {
+			discardResponses(requests);
 		}
-
 	}
 
 	/**
 	 * Performs an optimized read of a file through use of asynchronous
-	 * messages. The total number of outstanding read requests is configurable.
-	 * This should be safe on file objects as the SSH protocol states that file
-	 * read operations should return the exact number of bytes requested in each
-	 * request. However the server is not required to return the exact number of
-	 * bytes on device files and so this method should not be used for device
-	 * files.
+	 * messages. See
+	 * {@link #performOptimizedRead(byte[], long, int, OutputStream, int, FileTransferProgress, long)}.
 	 * 
 	 * @param handle
 	 *            the open files handle
 	 * @param length
 	 *            the length of the file
 	 * @param blocksize
-	 *            the blocksize to read
+	 *            the largest read to request, or zero to use the largest read
+	 *            supported by the server
 	 * @param out
 	 *            an OutputStream to output the file into
 	 * @param outstandingRequests
-	 *            the maximum number of read requests to
+	 *            the initial number of outstanding read requests
 	 * @param progress
 	 * @throws SshException
 	 */
@@ -771,12 +1118,12 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 
 	/**
 	 * Performs an optimized read of a file through use of asynchronous
-	 * messages. The total number of outstanding read requests is configurable.
-	 * This should be safe on file objects as the SSH protocol states that file
-	 * read operations should return the exact number of bytes requested in each
-	 * request. However the server is not required to return the exact number of
-	 * bytes on device files and so this method should not be used for device
-	 * files.
+	 * messages. The number of outstanding read requests starts at
+	 * <code>outstandingRequests</code> and is then adjusted to suit the
+	 * measured bandwidth and round trip time of the link, up to
+	 * {@link #getMaxReadAhead()} bytes. Short reads are requested again so
+	 * this is also safe on servers that do not return the exact number of bytes
+	 * requested.
 	 * 
 	 * @param handle
 	 *            the open files handle
@@ -784,11 +1131,12 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 	 *            the amount of the file file to be read, equal to the file
 	 *            length when reading the whole file
 	 * @param blocksize
-	 *            the blocksize to read
+	 *            the largest read to request, or zero to use the largest read
+	 *            supported by the server
 	 * @param out
 	 *            an OutputStream to output the file into
 	 * @param outstandingRequests
-	 *            the maximum number of read requests to
+	 *            the initial number of outstanding read requests
 	 * @param progress
 	 * @param position
 	 *            the postition from which to start reading the file
@@ -799,6 +1147,43 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			FileTransferProgress progress, long position)
 			throws SftpStatusException, SshException,
 			TransferCancelledException {
+		performOptimizedRead(handle, length, blocksize,
+				new OutputStreamDownloadTarget(out), outstandingRequests,
+				progress, position);
+	}
+
+	/**
+	 * Performs an optimized read of a file through use of asynchronous
+	 * messages, writing the data to a {@link DownloadTarget}. When the target
+	 * supports random access each response is written to its offset as soon
+	 * as it is read, whatever order the responses arrive in. Such a target is
+	 * truncated to the data received contiguously from <code>position</code>
+	 * once the read ends; if the read fails this leaves only data that a
+	 * later attempt can resume from, and if it succeeds it removes any space
+	 * reserved beyond the end of a file that has shrunk.
+	 * 
+	 * @param handle
+	 *            the open files handle
+	 * @param length
+	 *            the amount of the file file to be read, equal to the file
+	 *            length when reading the whole file
+	 * @param blocksize
+	 *            the largest read to request, or zero to use the largest read
+	 *            supported by the server
+	 * @param target
+	 *            the target to write the file to, this is not closed
+	 * @param outstandingRequests
+	 *            the initial number of outstanding read requests
+	 * @param progress
+	 * @param position
+	 *            the postition from which to start reading the file
+	 * @throws SshException
+	 */
+	public void performOptimizedRead(byte[] handle, long length, int blocksize,
+			DownloadTarget target, int outstandingRequests,
+			final FileTransferProgress progress, long position)
+			throws SftpStatusException, SshException,
+			TransferCancelledException {
 
 		if (Log.isDebugEnabled()) {
 			Log.debug(this, "Performing optimized read length="
@@ -806,177 +1191,43 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 					+ blocksize + " outstandingRequests=" + outstandingRequests);
 		}
 
-		if (length <= 0) {
-			// We cannot perform an optimised read on this file since we don't
-			// know its length so
-			// here we assume its very large
-			length = Long.MAX_VALUE;
+		if (position < 0) {
+			throw new SshException(
+					"Position value must be greater than zero!",
+					SshException.BAD_API_USAGE);
 		}
 
-		try {
-			if (blocksize < 1 || blocksize > 32768) {
-				if (Log.isDebugEnabled()) {
-					Log.debug(this,
-							"Blocksize to large for some SFTP servers, reseting to 32K");
-				}
-				blocksize = 32768;
-			}
-
-			/**
-			 * LDP - Obtain the first block using a synchronous call. We do this
-			 * to determine if the server is conforming to the spec and
-			 * returning as much data as we have asked for. If not we
-			 * reconfigure the block size to the number of bytes returned.
-			 */
-
-			if (position < 0) {
-				throw new SshException(
-						"Position value must be greater than zero!",
-						SshException.BAD_API_USAGE);
-			}
-
-			byte[] tmp = new byte[blocksize];
-
-			int i = readFile(handle, new UnsignedInteger64(0), tmp, 0,
-					tmp.length);
-
-			// if i=-1 then eof so return, maybe should throw exception on null
-			// files?
-			if (i == -1) {
-				return;
-			}
-			// if the first block contains required data, write to the output
-			// buffer,
-			// write the portion of tmp needed to out
-			// change position
-			if (i > position) {
-				out.write(tmp, (int) position, (int) (i - position));
-				length = length - (i - position);
-				position = i;
-			}
-
-			// if the first block contains the whole portion of the file to be
-			// read, then return
-			if ((position + length) <= i) {
-				return;
-			}
-
-			// reconfigure the blocksize if necessary
-			if (i < blocksize && length > i) {
-				blocksize = i;
-			}
-
-			tmp = null;
+		long end = position + length;
+		if (length <= 0 || end < 0) {
+			// We cannot perform an optimised read on this file since we don't
+			// know its length so here we assume its very large
+			end = Long.MAX_VALUE;
+		}
 
-			long numBlocks = length / blocksize;
-			long osr = outstandingRequests;
+		if (position > 0) {
+			if (progress != null)
+				progress.progressed(position);
+		}
 
-			if (position > 0) {
-				if (progress != null)
+		SftpReadAhead reader = new SftpReadAhead(this, handle, target,
+				blocksize, outstandingRequests) {
+			void progressed(long position) throws TransferCancelledException {
+				if (progress != null) {
 					progress.progressed(position);
-			}
-
-			Vector<UnsignedInteger32> requests = new Vector<UnsignedInteger32>(
-					outstandingRequests);
-			long offset = position;
-
-			if (numBlocks < osr) {
-				osr = numBlocks + 1;
-			}
-
-			if (osr <= 0) {
-				if (Log.isDebugEnabled()) {
-					Log.debug(this,
-							"We calculated zero outstanding requests! numBlocks="
-									+ numBlocks + " outstandingRequests="
-									+ outstandingRequests + " blocksize="
-									+ blocksize + " length=" + length
-									+ " position=" + position);
-				}
-				osr = 1; // We need at least one or there will be trouble.
-			}
-
-			long expected = numBlocks + 2;
-			int completed = 0;
-			long transfered = position;
-
-			// Fire an initial round of requests
-			for (i = 0; i < osr; i++) {
-				if (Log.isDebugEnabled()) {
-					Log.debug(this, "Posting request for file offset "
-							+ offset);
-				}
-				requests.addElement(postReadRequest(handle, offset, blocksize));
-				offset += blocksize;
-
-				if (progress != null && progress.isCancelled()) {
-					throw new TransferCancelledException();
+					if (progress.isCancelled()) {
+						throw new TransferCancelledException();
+					}
 				}
 			}
+		};
 
-			UnsignedInteger32 requestId;
-			int dataLen;
-			while (true) {
-				requestId = (UnsignedInteger32) requests.elementAt(0);
-				requests.removeElementAt(0);
-				SftpMessage bar = getResponse(requestId);
-				if (bar.getType() == SSH_FXP_DATA) {
-					dataLen = (int) bar.readInt();
-					// tmp = bar.readBinaryString();
-					if (Log.isDebugEnabled()) {
-						Log.debug(this, "Get " + dataLen
-								+ " bytes of data");
-					}
-					out.write(bar.array(), bar.getPosition(), dataLen);
-					completed++;
-					bar.dispose();
-					if (progress != null) {
-						progress.progressed(transfered += dataLen);
-					}
-				} else if (bar.getType() == SSH_FXP_STATUS) {
-					int status = (int) bar.readInt();
-					if (status == SftpStatusException.SSH_FX_EOF) {
-						if (Log.isDebugEnabled()) {
-							Log.debug(this, "Received file EOF");
-						}
-						return;
-					}
-					if (version >= 3) {
-						String desc = bar.readString().trim();
-						if (Log.isDebugEnabled()) {
-							Log.debug(this, "Received status " + desc);
-						}
-						throw new SftpStatusException(status, desc);
-					}
-					if (Log.isDebugEnabled()) {
-						Log.debug(this, "Received status " + status);
-					}
-					throw new SftpStatusException(status);
-				} else {
-					close();
-					throw new SshException(
-							"The server responded with an unexpected message",
-							SshException.CHANNEL_FAILURE);
-				}
-				/**
-				 * If the file length is incorrect we could be stuck in an
-				 * endless loop so we check for an empty request list. This
-				 * could only happen if the file length is incorrect.
-				 */
-				if (requests.isEmpty()
-						|| completed + requests.size() < expected) {
-					if (Log.isDebugEnabled()) {
-						Log.debug(this,
-								"Posting request for file offset " + offset);
-					}
-					requests.addElement(postReadRequest(handle, offset,
-							blocksize));
-					offset += blocksize;
-				}
-				if (progress != null && progress.isCancelled()) {
-					throw new TransferCancelledException();
-				}
+		boolean completed = false;
+		try {
+			reader.read(position, end);
+			if (target.isRandomAccess()) {
+				target.truncate(reader.reached);
 			}
+			completed = true;
 		} catch (SshIOException ex) {
 			throw ex.getRealException();
 		} catch (EOFException ex) {
@@ -999,8 +1250,114 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 					"The SFTP channel terminated unexpectedly");
 		} catch (IOException ex) {
 			throw new SshException(ex);
+		} finally {
+			if (!completed && target.isRandomAccess()) {
+				try {
+					target.truncate(reader.reached);
+				} catch (IOException ex) {
+					if (Log.isDebugEnabled()) {
+						Log.debug(this, "Failed to truncate download target",
+								ex);
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Set the most data that read operations such as
+	 * {@link #performOptimizedRead(byte[], long, int, OutputStream, int, FileTransferProgress, long)}
+	 * will have requested and not yet received. This bounds the window of
+	 * outstanding requests on links with a high bandwidth-delay product, and
+	 * the memory used by responses that arrive before they are written out.
+	 * The default is 4MB.
+	 * 
+	 * @param maxReadAhead
+	 */
+	public void setMaxReadAhead(int maxReadAhead) {
+		if (maxReadAhead < SftpReadAhead.DEFAULT_READ_LENGTH) {
+			throw new IllegalArgumentException(
+					"Read ahead must be at least "
+							+ SftpReadAhead.DEFAULT_READ_LENGTH + " bytes");
 		}
+		this.maxReadAhead = maxReadAhead;
+	}
+
+	/**
+	 * Get the most data that read operations will have requested and not yet
+	 * received.
+	 * 
+	 * @return int
+	 */
+	public int getMaxReadAhead() {
+		return maxReadAhead;
+	}
+
+	/**
+	 * Cache the attributes of the files this channel looks at, or pass
+	 * <code>null</code> to stop caching. A cache may be shared by several
+	 * channels.
+	 * 
+	 * @param cache
+	 */
+	public void setAttributeCache(SftpAttributeCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Get the cache of file attributes, if any.
+	 * 
+	 * @return SftpAttributeCache
+	 */
+	public SftpAttributeCache getAttributeCache() {
+		return cache;
+	}
+
+	/**
+	 * Get the largest read the server has been found to support, or zero if
+	 * it is not yet known. The limit is discovered by the first optimized read
+	 * on the channel.
+	 * 
+	 * @return int
+	 */
+	public int getMaximumReadLength() {
+		return maxReadLength;
+	}
 
+	/**
+	 * Ask the server for its maximum read length if it supports the
+	 * <code>limits@openssh.com</code> extension.
+	 * 
+	 * @return the maximum read length, or zero if it could not be obtained
+	 */
+	int queryReadLimits() {
+		if (!supportsExtension("limits@openssh.com")) {
+			return 0;
+		}
+		try {
+			SftpMessage msg = sendExtensionMessage("limits@openssh.com", null);
+			try {
+				if (msg.getType() == SSH_FXP_EXTENDED_REPLY) {
+					msg.readUINT64(); // max-packet-length
+					long len = msg.readUINT64().longValue();
+					if (len > 0) {
+						maxReadLength = (int) Math.min(len,
+								SftpReadAhead.MAX_READ_LENGTH);
+					}
+				}
+			} finally {
+				msg.dispose();
+			}
+		} catch (Exception e) {
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Failed to obtain the server limits", e);
+			}
+		}
+		if (Log.isDebugEnabled()) {
+			Log.debug(this, "Server maximum read length is " + maxReadLength);
+		}
+		return maxReadLength;
 	}
 
 	/**
@@ -1138,9 +1495,11 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			SftpMessage bar = getResponse(requestId);
 
 			if (bar.getType() == SSH_FXP_DATA) {
-				byte[] msgdata = bar.readBinaryString();
-				System.arraycopy(msgdata, 0, output, off, msgdata.length);
-				return msgdata.length;
+				int count = (int) bar.readInt();
+				System.arraycopy(bar.array(), bar.getPosition(), output, off,
+						count);
+				bar.dispose();
+				return count;
 			} else if (bar.getType() == SSH_FXP_STATUS) {
 				int status = (int) bar.readInt();
 				if (status == SftpStatusException.SSH_FX_EOF)
@@ -1228,6 +1587,10 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			throw ex.getRealException();
 		} catch (IOException ex) {
 			throw new SshException(ex);
+		} finally {
+			if (cache != null) {
+				cache.changed(linkpath);
+			}
 		}
 
 	}
@@ -1378,16 +1741,8 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 		}
 
 		try {
-			UnsignedInteger32 requestId = nextRequestId();
-			Packet msg = createPacket();
-			msg.write(SSH_FXP_READDIR);
-			msg.writeInt(requestId.longValue());
-			msg.writeBinaryString(file.getHandle());
-
-			sendMessage(msg);
-			;
-
-			SftpMessage bar = getResponse(requestId);
+			SftpMessage bar = getResponse(postReadDirectoryRequest(file
+					.getHandle()));
 			if (bar.getType() == SSH_FXP_NAME) {
 				SftpFile[] files = extractFiles(bar, file.getAbsolutePath());
 
@@ -1422,6 +1777,85 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 
 	}
 
+	/**
+	 * Read the entries of a directory as a stream, keeping
+	 * <code>outstandingRequests</code> READDIR requests in flight. The
+	 * directory is opened without first resolving or checking the path, so
+	 * that the first entries arrive after a single round trip; the path is
+	 * used as given for the entries' absolute paths.
+	 * 
+	 * @param path
+	 *            the absolute path of the directory
+	 * @param outstandingRequests
+	 * @return SftpDirectoryReader
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public SftpDirectoryReader readDirectory(String path,
+			int outstandingRequests) throws SftpStatusException, SshException {
+
+		try {
+			UnsignedInteger32 requestId = nextRequestId();
+			Packet msg = createPacket();
+			msg.write(SSH_FXP_OPENDIR);
+			msg.writeInt(requestId.longValue());
+			msg.writeString(path, CHARSET_ENCODING);
+			sendMessage(msg);
+
+			SftpFile dir = new SftpFile(path, null);
+			dir.setHandle(getHandleResponse(requestId));
+			dir.setSFTPSubsystem(this);
+
+			return new SftpDirectoryReader(this, dir, true, outstandingRequests);
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
+		} catch (IOException ex) {
+			throw new SshException(ex);
+		}
+	}
+
+	/**
+	 * Read the entries of a directory as a stream, keeping
+	 * <code>outstandingRequests</code> READDIR requests in flight. If the
+	 * directory is not already open it is opened, and then closed once
+	 * all of the entries have been read.
+	 * 
+	 * @param file
+	 * @param outstandingRequests
+	 * @return SftpDirectoryReader
+	 * @throws SftpStatusException
+	 * @throws SshException
+	 */
+	public SftpDirectoryReader readDirectory(SftpFile file,
+			int outstandingRequests) throws SftpStatusException, SshException {
+		if (file.getHandle() != null) {
+			return new SftpDirectoryReader(this, file, false,
+					outstandingRequests);
+		}
+		return new SftpDirectoryReader(this,
+				openDirectory(file.getAbsolutePath()), true,
+				outstandingRequests);
+	}
+
+	UnsignedInteger32 postReadDirectoryRequest(byte[] handle)
+			throws SshException {
+		try {
+			UnsignedInteger32 requestId = nextRequestId();
+			Packet msg = createPacket();
+			msg.write(SSH_FXP_READDIR);
+			msg.writeInt(requestId.longValue());
+			msg.writeBinaryString(handle);
+
+			sendMessage(msg);
+
+			return requestId;
+		} catch (SshIOException ex) {
+			throw ex.getRealException();
+		} catch (IOException ex) {
+			throw new SshException(ex);
+		}
+	}
+
 	SftpFile[] extractFiles(SftpMessage bar, String parent) throws SshException {
 
 		try {
@@ -1445,8 +1879,9 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 					longname = bar.readString(CHARSET_ENCODING);
 				}
 
+				SftpFileAttributes attrs = new SftpFileAttributes(this, bar);
 				files[i] = new SftpFile(parent != null ? parent + shortname
-						: shortname, new SftpFileAttributes(this, bar));
+						: shortname, attrs);
 				files[i].longname = longname;
 
 				// Work out username/group from long name
@@ -1458,8 +1893,8 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 						String username = t.nextToken();
 						String group = t.nextToken();
 
-						files[i].getAttributes().setUsername(username);
-						files[i].getAttributes().setGroup(group);
+						attrs.setUsername(username);
+						attrs.setGroup(group);
 
 					} catch (Exception e) {
 
@@ -1468,6 +1903,11 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 				}
 
 				files[i].setSFTPSubsystem(this);
+
+				if (cache != null && parent != null
+						&& !shortname.equals(".") && !shortname.equals("..")) {
+					cache.put(files[i].getAbsolutePath(), true, attrs);
+				}
 			}
 
 			return files;
@@ -1559,6 +1999,11 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 
 			byte[] handle = getHandleResponse(requestId);
 
+			if (cache != null) {
+				cache.opened(handle, absolutePath, (flags & (OPEN_WRITE
+						| OPEN_APPEND | OPEN_CREATE | OPEN_TRUNCATE)) != 0);
+			}
+
 			SftpFile file = new SftpFile(absolutePath, null);
 			file.setHandle(handle);
 			file.setSFTPSubsystem(this);
@@ -1630,6 +2075,14 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 	}
 
 	void closeHandle(byte[] handle) throws SftpStatusException, SshException {
+		getOKRequestStatus(postCloseRequest(handle));
+	}
+
+	/**
+	 * Send a CLOSE request without waiting for the response, so that closing
+	 * one file can overlap with opening the next.
+	 */
+	UnsignedInteger32 postCloseRequest(byte[] handle) throws SshException {
 		try {
 			UnsignedInteger32 requestId = nextRequestId();
 			Packet msg = createPacket();
@@ -1639,11 +2092,15 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 
 			sendMessage(msg);
 
-			getOKRequestStatus(requestId);
+			return requestId;
 		} catch (SshIOException ex) {
 			throw ex.getRealException();
 		} catch (IOException ex) {
 			throw new SshException(ex);
+		} finally {
+			if (cache != null) {
+				cache.closed(handle);
+			}
 		}
 	}
 
@@ -1691,6 +2148,10 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			throw ex.getRealException();
 		} catch (IOException ex) {
 			throw new SshException(ex);
+		} finally {
+			if (cache != null) {
+				cache.removed(path);
+			}
 		}
 		EventServiceImplementation.getInstance().fireEvent(
 				(new Event(this, J2SSHEventCodes.EVENT_SFTP_DIRECTORY_DELETED,
@@ -1721,6 +2182,10 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			throw ex.getRealException();
 		} catch (IOException ex) {
 			throw new SshException(ex);
+		} finally {
+			if (cache != null) {
+				cache.changed(filename);
+			}
 		}
 		EventServiceImplementation.getInstance()
 				.fireEvent(
@@ -1763,6 +2228,11 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			throw ex.getRealException();
 		} catch (IOException ex) {
 			throw new SshException(ex);
+		} finally {
+			if (cache != null) {
+				cache.removed(oldpath);
+				cache.changed(newpath);
+			}
 		}
 		EventServiceImplementation
 				.getInstance()
@@ -1805,6 +2275,29 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 
 	protected SftpFileAttributes getAttributes(String path, int messageId)
 			throws SftpStatusException, SshException {
+		if (cache != null) {
+			SftpFileAttributes attrs = cache.get(path,
+					messageId == SSH_FXP_LSTAT);
+			if (attrs != null) {
+				return attrs;
+			}
+		}
+
+		SftpFileAttributes attrs = extractAttributes(getResponse(postAttributesRequest(
+				path, messageId)));
+
+		if (cache != null) {
+			cache.put(path, messageId == SSH_FXP_LSTAT, attrs);
+		}
+		return attrs;
+	}
+
+	/**
+	 * Send a STAT or LSTAT request without waiting for the response, which
+	 * can be collected with {@link #getResponseFuture(UnsignedInteger32)}.
+	 */
+	UnsignedInteger32 postAttributesRequest(String path, int messageId)
+			throws SshException {
 		try {
 			UnsignedInteger32 requestId = nextRequestId();
 			Packet msg = createPacket();
@@ -1826,9 +2319,7 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 
 			sendMessage(msg);
 
-			SftpMessage bar = getResponse(requestId);
-
-			return extractAttributes(bar);
+			return requestId;
 		} catch (SshIOException ex) {
 			throw ex.getRealException();
 		} catch (IOException ex) {
@@ -1946,6 +2437,10 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			throw ex.getRealException();
 		} catch (IOException ex) {
 			throw new SshException(ex);
+		} finally {
+			if (cache != null) {
+				cache.changed(path);
+			}
 		}
 	}
 
@@ -2015,82 +2510,227 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 	}
 
 	SftpMessage getResponse(UnsignedInteger32 requestId) throws SshException {
+		return getResponseFuture(requestId).get();
+	}
 
-		SftpMessage msg;
-		MessageHolder holder = new MessageHolder();
-		while (holder.msg == null) {
-			try {
-				// Read the next response message
-				if (sync.requestBlock(requestId, holder)) {
-					msg = new SftpMessage(nextMessage());
-					responses.put(new UnsignedInteger32(msg.getMessageId()),
-							msg);
-				}
-			} catch (InterruptedException e) {
-				try {
-					close();
-				} catch (SshIOException ex) {
-					throw ex.getRealException();
-				} catch (IOException ex1) {
-					throw new SshException(ex1.getMessage(),
-							SshException.CHANNEL_FAILURE);
-				}
-
-				throw new SshException("The thread was interrupted",
-						SshException.CHANNEL_FAILURE);
-			} catch (IOException ex) {
-				throw new SshException(SshException.INTERNAL_ERROR, ex);
-			} finally {
-				sync.releaseBlock();
+	/**
+	 * Get the future for the response to a request that has been sent, for
+	 * example by {@link #postReadRequest(byte[], long, int)} or
+	 * {@link #postWriteRequest(byte[], long, byte[], int, int)}. Each response
+	 * can be collected once, either from the future or a listener.
+	 * 
+	 * @param requestId
+	 * @return SftpResponseFuture
+	 */
+	public SftpResponseFuture getResponseFuture(UnsignedInteger32 requestId) {
+		SftpResponseFuture future = responses.get(requestId);
+		if (future == null) {
+			future = new SftpResponseFuture(this, requestId);
+			SftpResponseFuture existing = responses.putIfAbsent(requestId,
+					future);
+			if (existing != null) {
+				future = existing;
+			} else if (readError != null) {
+				future.fail(readError);
 			}
 		}
-
-		return (SftpMessage) responses.remove(requestId);
-
+		return future;
 	}
 
-	UnsignedInteger32 nextRequestId() {
-		requestId = UnsignedInteger32.add(requestId, 1);
-		return requestId;
-	}
+	/**
+	 * Wait for a response. Only one thread reads from the channel at a time;
+	 * it completes the future of each response it reads, waking just the
+	 * thread waiting for it, until its own response arrives. It then hands
+	 * the reader role to the next waiting thread.
+	 * 
+	 * A thread waiting with a timeout never takes the reader role, since a
+	 * read cannot be abandoned part way through a message; the responses are
+	 * read by the channel's response reader thread instead, so that the
+	 * waiting thread can give up when the timeout expires.
+	 */
+	SftpMessage awaitResponse(SftpResponseFuture future, long timeout)
+			throws SshException {
 
-	class SftpThreadSynchronizer {
+		long started = System.currentTimeMillis();
+		if (timeout > 0) {
+			future.timed = true;
+			startResponseReader();
+		}
+		waiters.add(future);
+		try {
+			while (!future.isDone()) {
 
-		boolean isBlocking = false;
+				if (readError != null) {
+					throw readError;
+				}
 
-		public boolean requestBlock(UnsignedInteger32 requestId,
-				MessageHolder holder) throws InterruptedException {
+				if (timeout > 0
+						&& System.currentTimeMillis() - started >= timeout) {
+					throw new SshException(
+							"The response was not received before the specified timeout period timeout="
+									+ timeout, SshException.MESSAGE_TIMEOUT);
+				}
 
-			if (responses.containsKey(requestId)) {
-				holder.msg = (Message) responses.get(requestId);
-				return false;
+				if (timeout <= 0 && reading.compareAndSet(false, true)) {
+					try {
+						while (!future.isDone()) {
+							readResponse();
+						}
+					} finally {
+						reading.set(false);
+					}
+				} else {
+					synchronized (future) {
+						if (!future.isDone() && !future.promoted
+								&& (timeout > 0 || reading.get())) {
+							long wait = 1000;
+							if (timeout > 0) {
+								wait = Math.min(wait, Math.max(1, timeout
+										- (System.currentTimeMillis() - started)));
+							}
+							future.wait(wait);
+						}
+						future.promoted = false;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			try {
+				close();
+			} catch (SshIOException ex) {
+				throw ex.getRealException();
+			} catch (IOException ex1) {
+				throw new SshException(ex1.getMessage(),
+						SshException.CHANNEL_FAILURE);
 			}
 
-			synchronized (SftpThreadSynchronizer.this) {
+			throw new SshException("The thread was interrupted",
+					SshException.CHANNEL_FAILURE);
+		} finally {
+			waiters.remove(future);
+			if (!reading.get()) {
+				promoteWaiter();
+			}
+		}
 
-				boolean canBlock = !isBlocking;
+		return future.take();
+	}
 
-				if (responses.containsKey(requestId)) {
-					holder.msg = (Message) responses.get(requestId);
-					return false;
-				}
+	/**
+	 * Collect and discard the responses to requests that are no longer
+	 * wanted, for example after a transfer fails part way, so that they are
+	 * not left on the channel. The futures are removed from the collection;
+	 * collection stops early if the channel closes or fails.
+	 * 
+	 * @param futures
+	 */
+	void discardResponses(Collection<SftpResponseFuture> futures) {
+		for (Iterator<SftpResponseFuture> it = futures.iterator(); it
+				.hasNext();) {
+			SftpResponseFuture future = it.next();
+			it.remove();
+			if (isClosed()) {
+				break;
+			}
+			try {
+				future.get().dispose();
+			} catch (SshException e) {
+				break;
+			}
+		}
+	}
 
-				if (canBlock) {
-					isBlocking = true;
-				} else {
-					wait();
-				}
+	private void readResponse() throws SshException {
+		try {
+			SftpMessage msg = new SftpMessage(nextPacket());
+			getResponseFuture(new UnsignedInteger32(msg.getMessageId()))
+					.complete(msg);
+		} catch (SshException ex) {
+			failResponses(ex);
+			throw ex;
+		} catch (IOException ex) {
+			SshException ex2 = new SshException(SshException.INTERNAL_ERROR, ex);
+			failResponses(ex2);
+			throw ex2;
+		}
+	}
 
-				return canBlock;
+	/**
+	 * Wake the first thread still waiting for a response so that it can take
+	 * over reading from the channel.
+	 */
+	private void promoteWaiter() {
+		for (Iterator<SftpResponseFuture> it = waiters.iterator(); it
+				.hasNext();) {
+			SftpResponseFuture waiter = it.next();
+			if (!waiter.isDone() && !waiter.timed) {
+				synchronized (waiter) {
+					waiter.promoted = true;
+					waiter.notifyAll();
+				}
+				return;
+			}
+		}
+	}
 
+	private void failResponses(SshException ex) {
+		if (readError == null) {
+			readError = ex;
+		}
+		for (Iterator<SftpResponseFuture> it = responses.values().iterator(); it
+				.hasNext();) {
+			it.next().fail(readError);
+		}
+		for (Iterator<SftpResponseFuture> it = waiters.iterator(); it
+				.hasNext();) {
+			SftpResponseFuture waiter = it.next();
+			synchronized (waiter) {
+				waiter.notifyAll();
 			}
+		}
+	}
 
+	/**
+	 * Start a thread to read responses for futures that have a listener and
+	 * no thread waiting on them. The thread runs until the channel closes.
+	 */
+	synchronized void startResponseReader() {
+		if (responseReader != null || readError != null) {
+			return;
 		}
+		Runnable r = new Runnable() {
+			public void run() {
+				try {
+					awaitResponse(new SftpResponseFuture(
+							SftpSubsystemChannel.this, null), 0);
+				} catch (SshException e) {
+					if (Log.isDebugEnabled()) {
+						Log.debug(this, "SFTP response reader exiting: "
+								+ e.getMessage());
+					}
+				}
+			}
+		};
+		responseReader = Ssh2Context.getThreadFactory(getContext()).newThread(
+				r);
+		responseReader.setName("SftpResponseReader");
+		responseReader.setDaemon(true);
+		responseReader.start();
+	}
 
-		public synchronized void releaseBlock() {
-			isBlocking = false;
-			notifyAll();
+	/**
+	 * Get the context of the connection this channel belongs to, if known.
+	 */
+	SshContext getContext() {
+		if (channel instanceof SshSession
+				&& ((SshSession) channel).getClient() != null) {
+			return ((SshSession) channel).getClient().getContext();
 		}
+		return null;
+	}
 
+	synchronized UnsignedInteger32 nextRequestId() {
+		requestId = UnsignedInteger32.add(requestId, 1);
+		return requestId;
 	}
 }
@@ -0,0 +1,890 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.Vector;
+
+import com.sshtools.logging.Log;
+import com.sshtools.ssh.SshClient;
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh2.Ssh2Context;
+import com.sshtools.util.IOUtil;
+import com.sshtools.util.UnsignedInteger32;
+import com.sshtools.util.UnsignedInteger64;
+
+/**
+ * <p>
+ * Copies a directory tree between the local and remote file systems for
+ * {@link SftpClient#copyLocalDirectory(String, String, boolean, boolean, boolean, FileTransferProgress)}
+ * and
+ * {@link SftpClient#copyRemoteDirectory(String, String, boolean, boolean, boolean, FileTransferProgress)}.
+ * </p>
+ * 
+ * <p>
+ * Each directory and each file to transfer is a task. Every worker owns a
+ * queue of tasks and an SFTP channel; a worker pushes the tasks it discovers
+ * onto the front of its own queue and, once that is empty, steals from the
+ * back of the others, so the walk stays depth first for each worker while
+ * idle workers take the largest remaining subtrees. The remote attributes of
+ * a directory's files are requested together, listings keep several
+ * <code>SSH_FXP_READDIR</code> requests in flight and downloaded files are
+ * closed without waiting, so small files cost little more than the round
+ * trips to open and read them.
+ * </p>
+ * 
+ * <p>
+ * The report is the same as that of a serial copy, although the order of the
+ * files within it depends on the order in which the transfers complete.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+class TreeSync {
+
+	SftpClient client;
+	DirectoryOperation op = new DirectoryOperation();
+	FileTransferProgress progress;
+	boolean recurse;
+	boolean sync;
+	boolean commit;
+
+	int streams = 1;
+	boolean separateConnections;
+	int blocksize;
+	int readBlocksize;
+	int outstandingRequests;
+	boolean textMode;
+	boolean mappedDownloads;
+	boolean deltaTransfers;
+
+	Worker[] workers;
+	Vector<SshClient> connections = new Vector<SshClient>();
+	Object lock = new Object();
+	int queued;
+	int pending;
+	volatile Throwable error;
+
+	TreeSync(SftpClient client, boolean recurse, boolean sync, boolean commit,
+			FileTransferProgress progress) {
+		this.client = client;
+		this.recurse = recurse;
+		this.sync = sync;
+		this.commit = commit;
+		this.progress = progress;
+	}
+
+	/**
+	 * Copy a local directory into a remote directory, which must end with a
+	 * '/'.
+	 */
+	DirectoryOperation copyLocalDirectory(File local, String remotedir,
+			boolean exists) throws SftpStatusException, SshException,
+			TransferCancelledException {
+		run(new LocalDirectoryTask(local, remotedir, exists, true));
+		return op;
+	}
+
+	/**
+	 * Copy a remote directory, given as an absolute path, into a local
+	 * directory.
+	 */
+	DirectoryOperation copyRemoteDirectory(String remotedir, File local)
+			throws SftpStatusException, SshException,
+			TransferCancelledException {
+		run(new RemoteDirectoryTask(remotedir, local, true));
+		return op;
+	}
+
+	/**
+	 * Run the workers until every task has completed. The first worker runs
+	 * on the calling thread and uses the client's own channel.
+	 */
+	void run(Task root) throws SftpStatusException, SshException,
+			TransferCancelledException {
+
+		if (streams > 1 && progress != null) {
+			progress = new SynchronizedProgress(progress);
+		}
+
+		workers = new Worker[streams];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(i);
+		}
+
+		submit(workers[0], root);
+
+		Thread[] threads = new Thread[workers.length];
+		try {
+			for (int i = 1; i < threads.length; i++) {
+				threads[i] = Ssh2Context.getThreadFactory(
+						client.sftp.getContext()).newThread(workers[i]);
+				threads[i].setName("SftpTreeSync-" + i);
+				threads[i].start();
+			}
+
+			workers[0].run();
+
+			for (int i = 1; i < threads.length; i++) {
+				try {
+					threads[i].join();
+				} catch (InterruptedException e) {
+					failed(new TransferCancelledException());
+					i--;
+				}
+			}
+		} finally {
+			closeChannels();
+		}
+
+		if (error != null) {
+			if (error instanceof SftpStatusException) {
+				throw (SftpStatusException) error;
+			} else if (error instanceof SshException) {
+				throw (SshException) error;
+			} else if (error instanceof TransferCancelledException) {
+				throw (TransferCancelledException) error;
+			}
+			throw new SshException(error);
+		}
+	}
+
+	void submit(Worker worker, Task task) {
+		synchronized (worker.tasks) {
+			worker.tasks.addFirst(task);
+		}
+		synchronized (lock) {
+			queued++;
+			pending++;
+			lock.notifyAll();
+		}
+	}
+
+	void failed(Throwable t) {
+		synchronized (lock) {
+			if (error == null) {
+				error = t;
+			}
+			lock.notifyAll();
+		}
+	}
+
+	void closeChannels() {
+		for (int i = 0; i < workers.length; i++) {
+			SftpSubsystemChannel channel = workers[i].channel;
+			if (channel != null && channel != client.sftp) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		for (int i = 0; i < connections.size(); i++) {
+			connections.elementAt(i).disconnect();
+		}
+		connections.removeAllElements();
+	}
+
+	/**
+	 * Get the attributes of a number of remote paths, keeping up to
+	 * <code>outstandingRequests</code> requests in flight for those that are
+	 * not cached. The attributes of a path that cannot be accessed are
+	 * returned as <code>null</code>.
+	 */
+	SftpFileAttributes[] getAttributes(SftpSubsystemChannel channel,
+			Vector<String> paths) throws SshException {
+
+		SftpFileAttributes[] attrs = new SftpFileAttributes[paths.size()];
+		SftpAttributeCache cache = channel.getAttributeCache();
+		Vector<Integer> uncached = new Vector<Integer>();
+		for (int i = 0; i < attrs.length; i++) {
+			if (cache != null) {
+				attrs[i] = cache.get(paths.elementAt(i), false);
+			}
+			if (attrs[i] == null) {
+				uncached.addElement(Integer.valueOf(i));
+			}
+		}
+
+		LinkedList<SftpResponseFuture> requests = new LinkedList<SftpResponseFuture>();
+		int posted = 0;
+		try {
+			for (int i = 0; i < uncached.size(); i++) {
+				while (posted < uncached.size()
+						&& requests.size() < outstandingRequests) {
+					requests.addLast(channel.getResponseFuture(channel
+							.postAttributesRequest(paths.elementAt(uncached
+									.elementAt(posted++).intValue()),
+									SftpSubsystemChannel.SSH_FXP_STAT)));
+				}
+				int index = uncached.elementAt(i).intValue();
+				SftpMessage bar = requests.removeFirst().get();
+				try {
+					attrs[index] = channel.extractAttributes(bar);
+					if (cache != null) {
+						cache.put(paths.elementAt(index), false, attrs[index]);
+					}
+				} catch (SftpStatusException ex) {
+					attrs[index] = null;
+				} finally {
+					bar.dispose();
+				}
+			}
+		} finally {
+			channel.discardResponses(requests);
+		}
+		return attrs;
+	}
+
+	abstract class Task {
+		abstract void run(Worker worker) throws Throwable;
+	}
+
+	/**
+	 * Compare a local directory with the remote directory, queueing a task
+	 * for each file to upload and each child directory. As with a serial
+	 * copy, only the directories directly beneath the top directory are
+	 * reported as recursed.
+	 */
+	class LocalDirectoryTask extends Task {
+		File local;
+		String remotedir;
+		boolean exists;
+		boolean top;
+
+		LocalDirectoryTask(File local, String remotedir, boolean exists,
+				boolean top) {
+			this.local = local;
+			this.remotedir = remotedir;
+			this.exists = exists;
+			this.top = top;
+		}
+
+		void run(Worker worker) throws Throwable {
+
+			SftpSubsystemChannel channel = worker.getChannel();
+			Hashtable<String, File> contained = new Hashtable<String, File>();
+			Vector<File> sources = new Vector<File>();
+			Vector<String> paths = new Vector<String>();
+
+			String[] ls = local.list();
+			if (ls != null) {
+				for (int i = 0; i < ls.length; i++) {
+					File source = new File(local, ls[i]);
+					if (source.isDirectory() ? recurse : source.isFile()) {
+						sources.addElement(source);
+						paths.addElement(remotedir + ls[i]);
+					}
+				}
+			}
+
+			for (int i = 0; i < sources.size(); i++) {
+				contained.put(sources.elementAt(i).getName(),
+						sources.elementAt(i));
+			}
+
+			// Listing the remote directory first means that its entries are
+			// cached by the time their attributes are needed
+			if (sync && exists) {
+				removeDeleted(channel, contained);
+			}
+
+			// The remote directory has just been created if it did not
+			// exist, so there is no need to ask about its contents
+			SftpFileAttributes[] attrs = exists ? getAttributes(channel, paths)
+					: new SftpFileAttributes[paths.size()];
+
+			for (int i = 0; i < sources.size(); i++) {
+				File source = sources.elementAt(i);
+				String remote = paths.elementAt(i);
+
+				if (source.isDirectory()) {
+					if (commit && attrs[i] == null) {
+						SftpFileAttributes newattrs = new SftpFileAttributes(
+								channel,
+								SftpFileAttributes.SSH_FILEXFER_TYPE_DIRECTORY);
+						newattrs.setPermissions(new UnsignedInteger32(
+								0777 ^ client.umask));
+						channel.makeDirectory(remote, newattrs);
+					}
+					if (top) {
+						op.addRecursedDirectory(source);
+					}
+					submit(worker, new LocalDirectoryTask(source, remote + "/",
+							attrs[i] != null, false));
+					continue;
+				}
+
+				boolean newFile = attrs[i] == null;
+				boolean unchangedFile = !newFile
+						&& source.length() == attrs[i].getSize().longValue()
+						&& (source.lastModified() / 1000) == attrs[i]
+								.getModifiedTime().longValue();
+
+				if (commit && !unchangedFile) {
+					submit(worker, new UploadTask(source, remote, attrs[i]));
+				} else if (unchangedFile) {
+					op.addUnchangedFile(source);
+				} else if (!newFile) {
+					op.addUpdatedFile(source);
+				} else {
+					op.addNewFile(source);
+				}
+			}
+		}
+
+		/**
+		 * Remove the remote files and directories that do not exist
+		 * locally.
+		 */
+		void removeDeleted(SftpSubsystemChannel channel,
+				Hashtable<String, File> contained) throws SshException {
+			try {
+				SftpDirectoryReader reader = channel.readDirectory(remotedir,
+						SftpDirectoryReader.DEFAULT_OUTSTANDING_REQUESTS);
+				try {
+					while (reader.hasNext()) {
+						SftpFile file = reader.next();
+						if (contained.containsKey(file.getFilename())
+								|| file.getFilename().equals(".")
+								|| file.getFilename().equals("..")) {
+							continue;
+						}
+
+						op.addDeletedFile(file);
+
+						if (commit) {
+							if (file.isDirectory()) {
+								client.recurseMarkForDeletion(file, op);
+								client.rm(file.getAbsolutePath(), true, true);
+							} else if (file.isFile()) {
+								client.rm(file.getAbsolutePath());
+							}
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (SftpStatusException ex) {
+				// Ignore since if it does not exist we cant delete it
+			}
+		}
+	}
+
+	/**
+	 * Upload a new or changed file and set its modification time to that of
+	 * the local file. A changed file is updated with a delta transfer when
+	 * enabled.
+	 */
+	class UploadTask extends Task {
+		File source;
+		String remote;
+		SftpFileAttributes existing;
+		boolean newFile;
+
+		UploadTask(File source, String remote, SftpFileAttributes existing) {
+			this.source = source;
+			this.remote = remote;
+			this.existing = existing;
+			this.newFile = existing == null;
+		}
+
+		void run(Worker worker) throws Throwable {
+			try {
+				if (textMode) {
+					client.put(source.getAbsolutePath(), remote, progress);
+					SftpFileAttributes attrs = client.sftp
+							.getAttributes(remote);
+					attrs.setTimes(
+							new UnsignedInteger64(source.lastModified() / 1000),
+							new UnsignedInteger64(source.lastModified() / 1000));
+					client.sftp.setAttributes(remote, attrs);
+				} else {
+					upload(worker.getChannel());
+				}
+
+				if (newFile) {
+					op.addNewFile(source);
+				} else {
+					op.addUpdatedFile(source);
+				}
+			} catch (SftpStatusException ex) {
+				op.addFailedTransfer(source, ex);
+			}
+		}
+
+		void upload(SftpSubsystemChannel channel) throws FileNotFoundException,
+				SftpStatusException, SshException, TransferCancelledException {
+
+			UploadSource data;
+			try {
+				data = new FileChannelUploadSource(source);
+			} catch (IOException ex) {
+				throw new SftpStatusException(
+						SftpStatusException.SSH_FX_FAILURE, "Failed to open "
+								+ source.getAbsolutePath());
+			}
+
+			try {
+				boolean delta = deltaTransfers && existing != null
+						&& existing.isFile();
+
+				SftpFile file;
+				if (delta) {
+					file = channel.openFile(remote,
+							SftpSubsystemChannel.OPEN_READ
+									| SftpSubsystemChannel.OPEN_WRITE);
+				} else {
+					SftpFileAttributes attrs = new SftpFileAttributes(channel,
+							SftpFileAttributes.SSH_FILEXFER_TYPE_REGULAR);
+					attrs.setPermissions(new UnsignedInteger32(
+							0666 ^ client.umask));
+					file = channel.openFile(remote,
+							SftpSubsystemChannel.OPEN_CREATE
+									| SftpSubsystemChannel.OPEN_TRUNCATE
+									| SftpSubsystemChannel.OPEN_WRITE, attrs);
+				}
+
+				UnsignedInteger32 setstat = null;
+				UnsignedInteger32 close = null;
+				try {
+					if (delta) {
+						client.createDeltaTransfer(channel, progress).upload(
+								source, data, file,
+								existing.getSize().longValue(), remote);
+					} else {
+						if (progress != null) {
+							progress.started(data.length(), remote);
+						}
+
+						channel.performOptimizedWrite(file.getHandle(),
+								blocksize, outstandingRequests, data,
+								progress, 0);
+					}
+
+					// Set the modification time and close the file together
+					SftpFileAttributes times = new SftpFileAttributes(channel,
+							SftpFileAttributes.SSH_FILEXFER_TYPE_REGULAR);
+					times.setTimes(
+							new UnsignedInteger64(source.lastModified() / 1000),
+							new UnsignedInteger64(source.lastModified() / 1000));
+					setstat = channel.postSetAttributesRequest(
+							file.getHandle(), times);
+				} catch (IOException ex) {
+					throw new SshException(
+							"Failed to determine local file size",
+							SshException.INTERNAL_ERROR);
+				} finally {
+					close = channel.postCloseRequest(file.getHandle());
+					file.setHandle(null);
+					try {
+						if (setstat != null) {
+							channel.getOKRequestStatus(setstat);
+						}
+					} finally {
+						channel.getOKRequestStatus(close);
+					}
+				}
+
+				if (progress != null) {
+					progress.completed();
+				}
+			} finally {
+				try {
+					data.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * List a remote directory, queueing a task for each file to download and
+	 * each child directory.
+	 */
+	class RemoteDirectoryTask extends Task {
+		String remotedir;
+		File local;
+		boolean top;
+
+		RemoteDirectoryTask(String remotedir, File local, boolean top) {
+			this.remotedir = remotedir;
+			this.local = local;
+			this.top = top;
+		}
+
+		void run(Worker worker) throws Throwable {
+
+			if (!local.exists() && commit) {
+				local.mkdir();
+			}
+
+			Hashtable<String, File> contained = new Hashtable<String, File>();
+
+			SftpDirectoryReader reader = worker.getChannel().readDirectory(
+					remotedir,
+					SftpDirectoryReader.DEFAULT_OUTSTANDING_REQUESTS);
+			try {
+				while (reader.hasNext()) {
+					SftpFile file = reader.next();
+					File f = new File(local, file.getFilename());
+
+					if (file.isDirectory() && !file.getFilename().equals(".")
+							&& !file.getFilename().equals("..")) {
+						if (recurse) {
+							contained.put(file.getFilename(), f);
+							if (top) {
+								op.addRecursedDirectory(f);
+							}
+							submit(worker, new RemoteDirectoryTask(
+									file.getAbsolutePath(), f, false));
+						}
+					} else if (file.isFile()) {
+
+						// Files are reported as local files only when
+						// committing, and only those count as present when
+						// synchronizing
+						if (commit) {
+							contained.put(file.getFilename(), f);
+						}
+
+						if (f.exists()
+								&& (f.length() == file.getAttributes()
+										.getSize().longValue())
+								&& ((f.lastModified() / 1000) == file
+										.getAttributes().getModifiedTime()
+										.longValue())) {
+							if (commit) {
+								op.addUnchangedFile(f);
+							} else {
+								op.addUnchangedFile(file);
+							}
+							continue;
+						}
+
+						if (f.exists()) {
+							if (commit) {
+								op.addUpdatedFile(f);
+							} else {
+								op.addUpdatedFile(file);
+							}
+						} else {
+							if (commit) {
+								op.addNewFile(f);
+							} else {
+								op.addNewFile(file);
+							}
+						}
+
+						if (commit) {
+							submit(worker, new DownloadTask(file, f));
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+
+			if (sync) {
+				removeDeleted(contained);
+			}
+		}
+
+		/**
+		 * Remove the local files and directories that do not exist on the
+		 * remote server.
+		 */
+		void removeDeleted(Hashtable<String, File> contained)
+				throws SftpStatusException, SshException {
+			String[] contents = local.list();
+			if (contents != null) {
+				for (int i = 0; i < contents.length; i++) {
+					if (contained.containsKey(contents[i])) {
+						continue;
+					}
+
+					File f2 = new File(local, contents[i]);
+					op.addDeletedFile(f2);
+
+					if (f2.isDirectory() && !f2.getName().equals(".")
+							&& !f2.getName().equals("..")) {
+						client.recurseMarkForDeletion(f2, op);
+
+						if (commit) {
+							IOUtil.recurseDeleteDirectory(f2);
+						}
+					} else if (commit) {
+						f2.delete();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Download a new or changed file and set its modification time to that
+	 * of the remote file. A changed file is updated with a delta transfer
+	 * when enabled.
+	 */
+	class DownloadTask extends Task {
+		SftpFile remote;
+		File local;
+
+		DownloadTask(SftpFile remote, File local) {
+			this.remote = remote;
+			this.local = local;
+		}
+
+		void run(Worker worker) throws Throwable {
+			try {
+				if (textMode) {
+					client.get(remote.getAbsolutePath(),
+							local.getAbsolutePath(), progress);
+				} else {
+					download(worker);
+				}
+			} catch (SftpStatusException ex) {
+				op.addFailedTransfer(local, ex);
+			}
+		}
+
+		void download(Worker worker) throws SftpStatusException,
+				SshException, TransferCancelledException {
+
+			SftpSubsystemChannel channel = worker.getChannel();
+			long length = remote.getAttributes().getSize().longValue();
+
+			if (deltaTransfers && local.isFile()) {
+				SftpFile file = channel.openFile(remote.getAbsolutePath(),
+						SftpSubsystemChannel.OPEN_READ);
+				try {
+					client.createDeltaTransfer(channel, progress).download(
+							file, length, local, remote.getAbsolutePath());
+				} finally {
+					worker.close(file);
+				}
+				local.setLastModified(remote.getAttributes()
+						.getModifiedTime().longValue() * 1000);
+				if (progress != null) {
+					progress.completed();
+				}
+				return;
+			}
+
+			DownloadTarget target;
+			try {
+				if (mappedDownloads) {
+					target = new MappedFileDownloadTarget(local, length, false);
+				} else {
+					target = new FileChannelDownloadTarget(local, false);
+				}
+			} catch (IOException ex) {
+				throw new SftpStatusException(
+						SftpStatusException.SSH_FX_FAILURE,
+						"Failed to open outputstream to " + local);
+			}
+
+			try {
+				SftpFile file = channel.openFile(remote.getAbsolutePath(),
+						SftpSubsystemChannel.OPEN_READ);
+				try {
+					if (progress != null) {
+						progress.started(length, remote.getAbsolutePath());
+					}
+					channel.performOptimizedRead(file.getHandle(), length,
+							readBlocksize, target, outstandingRequests,
+							progress, 0);
+				} finally {
+					// The response to the close is collected later so that
+					// the next file can be opened meanwhile
+					worker.close(file);
+				}
+			} finally {
+				try {
+					target.close();
+				} catch (IOException e) {
+				}
+			}
+
+			local.setLastModified(remote.getAttributes().getModifiedTime()
+					.longValue() * 1000);
+
+			if (progress != null) {
+				progress.completed();
+			}
+		}
+	}
+
+	class Worker implements Runnable {
+		int index;
+		LinkedList<Task> tasks = new LinkedList<Task>();
+		SftpSubsystemChannel channel;
+		LinkedList<UnsignedInteger32> closes = new LinkedList<UnsignedInteger32>();
+
+		Worker(int index) {
+			this.index = index;
+		}
+
+		SftpSubsystemChannel getChannel() throws SftpStatusException,
+				SshException {
+			if (channel == null) {
+				if (index == 0) {
+					channel = client.sftp;
+				} else {
+					SshClient ssh = client.ssh;
+					if (separateConnections) {
+						ssh = ssh.duplicate();
+						connections.addElement(ssh);
+					}
+					channel = client.openSubsystemChannel(ssh);
+				}
+			}
+			return channel;
+		}
+
+		void close(SftpFile file) throws SftpStatusException, SshException {
+			closes.addLast(channel.postCloseRequest(file.getHandle()));
+			file.setHandle(null);
+			while (closes.size() > outstandingRequests) {
+				collectClose();
+			}
+		}
+
+		void collectClose() throws SshException {
+			try {
+				channel.getOKRequestStatus(closes.removeFirst());
+			} catch (SftpStatusException e) {
+				// The file has been read so a failure to close it is ignored
+			}
+		}
+
+		public void run() {
+			Task task;
+			while ((task = take()) != null) {
+				try {
+					if (progress != null && progress.isCancelled()) {
+						throw new TransferCancelledException();
+					}
+					task.run(this);
+				} catch (Throwable t) {
+					if (Log.isDebugEnabled()) {
+						Log.debug(this, "Directory copy failed", t);
+					}
+					failed(t);
+				} finally {
+					synchronized (lock) {
+						if (--pending == 0) {
+							lock.notifyAll();
+						}
+					}
+				}
+			}
+
+			while (!closes.isEmpty() && !channel.isClosed()) {
+				try {
+					collectClose();
+				} catch (SshException e) {
+					failed(e);
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Take the next task from the front of this worker's queue, or steal
+		 * one from the back of another's. Returns <code>null</code> once
+		 * every task has completed or the copy has failed.
+		 */
+		Task take() {
+			while (true) {
+				if (error != null) {
+					return null;
+				}
+
+				Task task = null;
+				synchronized (tasks) {
+					if (!tasks.isEmpty()) {
+						task = tasks.removeFirst();
+					}
+				}
+
+				for (int i = 1; task == null && i < workers.length; i++) {
+					LinkedList<Task> other = workers[(index + i)
+							% workers.length].tasks;
+					synchronized (other) {
+						if (!other.isEmpty()) {
+							task = other.removeLast();
+						}
+					}
+				}
+
+				synchronized (lock) {
+					if (task != null) {
+						queued--;
+						return task;
+					}
+					if (pending == 0) {
+						return null;
+					}
+					if (queued == 0 && error == null) {
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							failed(new TransferCancelledException());
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serializes the progress callbacks of concurrent transfers. The
+	 * callbacks of different files may interleave.
+	 */
+	static class SynchronizedProgress implements FileTransferProgress {
+		FileTransferProgress progress;
+
+		SynchronizedProgress(FileTransferProgress progress) {
+			this.progress = progress;
+		}
+
+		public synchronized void started(long bytesTotal, String remoteFile) {
+			progress.started(bytesTotal, remoteFile);
+		}
+
+		public synchronized boolean isCancelled() {
+			return progress.isCancelled();
+		}
+
+		public synchronized void progressed(long bytesSoFar) {
+			progress.progressed(bytesSoFar);
+		}
+
+		public synchronized void completed() {
+			progress.completed();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * A local file being uploaded. The data of each write request is read from
+ * the source straight into the outgoing request, at any offset and from any
+ * number of threads.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public interface UploadSource {
+
+	/**
+	 * Get the length of the data.
+	 * 
+	 * @return long
+	 * @throws IOException
+	 */
+	public long length() throws IOException;
+
+	/**
+	 * Read exactly <code>len</code> bytes at <code>offset</code>.
+	 * 
+	 * @param offset
+	 *            the offset in the file
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 *             if the data cannot be read, including an
+	 *             <code>EOFException</code> if the source ends first
+	 */
+	public void read(long offset, byte[] buf, int off, int len)
+			throws IOException;
+
+	/**
+	 * Close the source.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
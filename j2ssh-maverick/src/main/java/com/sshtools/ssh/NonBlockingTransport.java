@@ -0,0 +1,49 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh;
+
+/**
+ * <p>
+ * An {@link SshTransport} whose data is read by an external I/O engine rather
+ * than by a thread blocking on its InputStream. Once the SSH connection has
+ * been established the API registers a listener and processes incoming
+ * messages as they are signalled, so no thread needs to be dedicated to the
+ * connection.
+ * </p>
+ * 
+ * <p>
+ * Until a listener is set the transport must continue to behave as a normal
+ * blocking transport, as the protocol negotiation and authentication are
+ * performed synchronously on the caller's thread.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public interface NonBlockingTransport extends SshTransport {
+
+	/**
+	 * Set the listener to be notified when data arrives on the transport. Set
+	 * to <code>null</code> to stop notifications.
+	 * 
+	 * @param listener
+	 */
+	public void setTransportListener(NonBlockingTransportListener listener);
+}
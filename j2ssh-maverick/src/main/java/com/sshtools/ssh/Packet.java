@@ -55,6 +55,21 @@ public class Packet extends ByteArrayWriter {
 		return count;
 	}
 
+	/**
+	 * Make room for <code>length</code> more bytes so that they can be
+	 * written directly into the array returned by {@link #array()} at
+	 * {@link #position()}, followed by a call to {@link #move(int)}.
+	 * 
+	 * @param length
+	 */
+	public void reserve(int length) {
+		if (count + length > buf.length) {
+			byte[] tmp = new byte[Math.max(buf.length << 1, count + length)];
+			System.arraycopy(buf, 0, tmp, 0, count);
+			buf = tmp;
+		}
+	}
+
 	public void finish() {
 
 		buf[0] = (byte) (count - 4 >> 24);
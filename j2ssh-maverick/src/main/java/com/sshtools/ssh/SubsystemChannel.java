@@ -26,6 +26,9 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.util.Vector;
 
+import com.sshtools.util.PacketBuffer;
+import com.sshtools.util.PacketBufferPool;
+
 /**
  * <p>
  * This class provides useful methods for implementing an SSH2 subsystem.
@@ -117,6 +120,18 @@ public class SubsystemChannel {
 		return reader.readMessage(in);
 	}
 
+	/**
+	 * Read a subsystem message into a buffer taken from the shared
+	 * {@link PacketBufferPool}. The caller must release the buffer once the
+	 * message has been processed.
+	 * 
+	 * @return PacketBuffer
+	 * @throws SshException
+	 */
+	public PacketBuffer nextPacket() throws SshException {
+		return reader.readPacket(in, true);
+	}
+
 	/**
 	 * Write a subsystem message to the channel outputstream.
 	 * 
@@ -205,7 +220,12 @@ public class SubsystemChannel {
 	}
 
 	class Reader {
-		synchronized byte[] readMessage(DataInputStream in) throws SshException {
+		byte[] readMessage(DataInputStream in) throws SshException {
+			return readPacket(in, false).array();
+		}
+
+		synchronized PacketBuffer readPacket(DataInputStream in, boolean pooled)
+				throws SshException {
 
 			int len = -1;
 			try {
@@ -221,8 +241,9 @@ public class SubsystemChannel {
 							"Invalid message length in SFTP protocol [" + len
 									+ "]", SshException.PROTOCOL_VIOLATION);
 
-				byte[] msg = new byte[len];
-				in.readFully(msg);
+				PacketBuffer msg = pooled ? PacketBufferPool.getInstance()
+						.acquire(len) : PacketBuffer.wrap(new byte[len]);
+				in.readFully(msg.array(), 0, len);
 
 				return msg;
 			} catch (OutOfMemoryError ex) {
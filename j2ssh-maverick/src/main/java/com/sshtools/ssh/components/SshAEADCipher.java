@@ -0,0 +1,122 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Base class for authenticated encryption ciphers such as
+ * <em>aes128-gcm@openssh.com</em> and
+ * <em>chacha20-poly1305@openssh.com</em>. These ciphers provide both the
+ * confidentiality and integrity of a packet so no separate MAC is negotiated
+ * when one is in use; instead an authentication tag of
+ * {@link #getTagLength()} bytes follows each packet.
+ * </p>
+ * 
+ * <p>
+ * Because the packet length field may be protected differently to the rest of
+ * the packet, the transport works on whole packets through
+ * {@link #readPacketLength(long, byte[], int)},
+ * {@link #encryptPacket(long, byte[], int, int)} and
+ * {@link #decryptPacket(long, byte[], int, int)} rather than the streaming
+ * {@link #transform(byte[], int, byte[], int, int)} method.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public abstract class SshAEADCipher extends SshCipher {
+
+	public SshAEADCipher(String algorithm) {
+		super(algorithm);
+	}
+
+	/**
+	 * Get the length of the authentication tag appended to each packet.
+	 * 
+	 * @return the tag length in bytes.
+	 */
+	public abstract int getTagLength();
+
+	/**
+	 * Obtain the packet length from the first bytes of an encrypted packet
+	 * without altering the data.
+	 * 
+	 * @param sequenceNo
+	 *            the packet sequence number
+	 * @param data
+	 *            the encrypted data
+	 * @param offset
+	 *            the offset of the 4 byte packet length field
+	 * @return the packet length
+	 * @throws IOException
+	 */
+	public abstract int readPacketLength(long sequenceNo, byte[] data,
+			int offset) throws IOException;
+
+	/**
+	 * Encrypt a whole packet in place, including its 4 byte length field, and
+	 * write the authentication tag at <code>offset + len</code>. The array
+	 * must have room for {@link #getTagLength()} bytes after the packet.
+	 * 
+	 * @param sequenceNo
+	 *            the packet sequence number
+	 * @param data
+	 *            the packet data
+	 * @param offset
+	 *            the offset of the packet length field
+	 * @param len
+	 *            the length of the packet including the length field
+	 * @throws IOException
+	 */
+	public abstract void encryptPacket(long sequenceNo, byte[] data,
+			int offset, int len) throws IOException;
+
+	/**
+	 * Verify the authentication tag found at <code>offset + len</code> and, if
+	 * it is valid, decrypt the whole packet in place including its 4 byte
+	 * length field.
+	 * 
+	 * @param sequenceNo
+	 *            the packet sequence number
+	 * @param data
+	 *            the packet data
+	 * @param offset
+	 *            the offset of the packet length field
+	 * @param len
+	 *            the length of the packet including the length field
+	 * @return <code>false</code> if the tag did not verify, in which case the
+	 *         data has not been decrypted
+	 * @throws IOException
+	 */
+	public abstract boolean decryptPacket(long sequenceNo, byte[] data,
+			int offset, int len) throws IOException;
+
+	/**
+	 * Authenticated ciphers operate on whole packets and cannot be used as a
+	 * stream cipher.
+	 */
+	public void transform(byte[] src, int start, byte[] dest, int offset,
+			int len) throws IOException {
+		throw new IOException(getAlgorithm()
+				+ " must be used through encryptPacket/decryptPacket");
+	}
+}
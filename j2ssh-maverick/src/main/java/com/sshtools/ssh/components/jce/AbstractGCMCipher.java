@@ -0,0 +1,175 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components.jce;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sshtools.ssh.components.SshAEADCipher;
+
+/**
+ * <p>
+ * An abstract base class for the AES-GCM ciphers defined by OpenSSH, which
+ * follow RFC 5647 except that the cipher alone is negotiated. The packet
+ * length is sent in the clear as additional authenticated data and the 12
+ * byte nonce is formed from a fixed 4 byte field and an 8 byte invocation
+ * counter that is incremented after every packet.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public abstract class AbstractGCMCipher extends SshAEADCipher {
+
+	static final int TAG_LENGTH = 16;
+	static final int NONCE_LENGTH = 12;
+
+	Cipher cipher;
+	SecretKeySpec key;
+	byte[] nonce = new byte[NONCE_LENGTH];
+	int keylength;
+	int mode;
+	byte[] scratch = new byte[0];
+
+	public AbstractGCMCipher(String algorithm, int keylength)
+			throws IOException {
+		super(algorithm);
+		this.keylength = keylength;
+
+		try {
+			cipher = JCEProvider
+					.getProviderForAlgorithm(JCEAlgorithms.JCE_AESGCMNOPADDING) == null ? Cipher
+					.getInstance(JCEAlgorithms.JCE_AESGCMNOPADDING) : Cipher
+					.getInstance(JCEAlgorithms.JCE_AESGCMNOPADDING, JCEProvider
+							.getProviderForAlgorithm(JCEAlgorithms.JCE_AESGCMNOPADDING));
+		} catch (NoSuchPaddingException nspe) {
+			throw new IOException("Padding type not supported");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException("Algorithm not supported:"
+					+ JCEAlgorithms.JCE_AESGCMNOPADDING);
+		}
+	}
+
+	public int getBlockSize() {
+		return 16;
+	}
+
+	public int getTagLength() {
+		return TAG_LENGTH;
+	}
+
+	public String getProvider() {
+		return cipher.getProvider().getName();
+	}
+
+	public void init(int mode, byte[] iv, byte[] keydata) throws IOException {
+		this.mode = mode;
+
+		byte[] actualKey = new byte[keylength];
+		System.arraycopy(keydata, 0, actualKey, 0, actualKey.length);
+		key = new SecretKeySpec(actualKey, "AES");
+
+		System.arraycopy(iv, 0, nonce, 0, NONCE_LENGTH);
+
+		// Check the key and nonce are acceptable to the provider now rather
+		// than on the first packet. Decrypt mode is used so that the provider
+		// does not treat the first packet as a reuse of the nonce.
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(
+					TAG_LENGTH * 8, nonce));
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Invalid encryption key or nonce: "
+					+ ex.getMessage());
+		}
+	}
+
+	public int readPacketLength(long sequenceNo, byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+				| ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	public void encryptPacket(long sequenceNo, byte[] data, int offset,
+			int len) throws IOException {
+		try {
+			initCipher();
+			cipher.updateAAD(data, offset, 4);
+			int count = cipher.doFinal(data, offset + 4, len - 4,
+					scratch(len - 4 + TAG_LENGTH), 0);
+			System.arraycopy(scratch, 0, data, offset + 4, count);
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Failed to encrypt packet: "
+					+ ex.getMessage());
+		} finally {
+			incrementNonce();
+		}
+	}
+
+	public boolean decryptPacket(long sequenceNo, byte[] data, int offset,
+			int len) throws IOException {
+		try {
+			initCipher();
+			cipher.updateAAD(data, offset, 4);
+			int count = cipher.doFinal(data, offset + 4, len - 4 + TAG_LENGTH,
+					scratch(len - 4 + TAG_LENGTH), 0);
+			System.arraycopy(scratch, 0, data, offset + 4, count);
+			return true;
+		} catch (AEADBadTagException ex) {
+			return false;
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Failed to decrypt packet: "
+					+ ex.getMessage());
+		} finally {
+			incrementNonce();
+		}
+	}
+
+	private byte[] scratch(int len) {
+		if (scratch.length < len) {
+			scratch = new byte[len];
+		}
+		return scratch;
+	}
+
+	private void initCipher() throws IOException {
+		try {
+			cipher.init(mode == ENCRYPT_MODE ? Cipher.ENCRYPT_MODE
+					: Cipher.DECRYPT_MODE, key, new GCMParameterSpec(
+					TAG_LENGTH * 8, nonce));
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Invalid encryption key or nonce: "
+					+ ex.getMessage());
+		}
+	}
+
+	private void incrementNonce() {
+		for (int i = NONCE_LENGTH - 1; i >= 4; i--) {
+			if (++nonce[i] != 0) {
+				break;
+			}
+		}
+	}
+}
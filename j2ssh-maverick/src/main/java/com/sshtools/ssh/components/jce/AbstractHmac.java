@@ -21,10 +21,12 @@
 package com.sshtools.ssh.components.jce;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.components.SshHmac;
+import com.sshtools.util.Arrays;
 
 /**
  * An abstract class that implements the
@@ -41,6 +43,10 @@ public abstract class AbstractHmac implements SshHmac {
 	protected int macLength;
 	protected String jceAlgorithm;
 
+	// Reused for every packet so that signing and verifying allocate nothing
+	private byte[] sequenceBytes = new byte[4];
+	private byte[] generated;
+
 	public AbstractHmac(String jceAlgorithm, int macLength) {
 		this(jceAlgorithm, macLength, macLength);
 	}
@@ -54,7 +60,6 @@ public abstract class AbstractHmac implements SshHmac {
 	public void generate(long sequenceNo, byte[] data, int offset, int len,
 			byte[] output, int start) {
 
-		byte[] sequenceBytes = new byte[4];
 		sequenceBytes[0] = (byte) (sequenceNo >> 24);
 		sequenceBytes[1] = (byte) (sequenceNo >> 16);
 		sequenceBytes[2] = (byte) (sequenceNo >> 8);
@@ -62,10 +67,19 @@ public abstract class AbstractHmac implements SshHmac {
 		mac.update(sequenceBytes);
 		mac.update(data, offset, len);
 
-		byte[] tmp = mac.doFinal();
-
-		System.arraycopy(tmp, 0, output, start, macLength);
-
+		try {
+			int fullLength = mac.getMacLength();
+			if (macLength == fullLength && output.length - start >= fullLength) {
+				mac.doFinal(output, start);
+			} else {
+				// Truncated MACs are computed in full and then cut down
+				byte[] tmp = generatedBuffer(fullLength);
+				mac.doFinal(tmp, 0);
+				System.arraycopy(tmp, 0, output, start, macLength);
+			}
+		} catch (ShortBufferException e) {
+			throw new IllegalStateException("MAC output buffer too short");
+		}
 	}
 
 	public void update(byte[] b) {
@@ -106,16 +120,16 @@ public abstract class AbstractHmac implements SshHmac {
 	public boolean verify(long sequenceNo, byte[] data, int start, int len,
 			byte[] mac, int offset) {
 
-		int length = getMacLength();
-		byte[] generated = new byte[length];
+		byte[] tmp = generatedBuffer(this.mac.getMacLength());
+		generate(sequenceNo, data, start, len, tmp, 0);
 
-		generate(sequenceNo, data, start, len, generated, 0);
+		return Arrays.constantTimeEquals(mac, offset, tmp, 0, getMacLength());
+	}
 
-		for (int i = 0; i < generated.length; i++) {
-			if (mac[i + offset] != generated[i])
-				return false;
+	private byte[] generatedBuffer(int length) {
+		if (generated == null || generated.length < length) {
+			generated = new byte[length];
 		}
-		return true;
+		return generated;
 	}
-
 }
@@ -27,6 +27,7 @@ import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -46,6 +47,7 @@ public class AbstractJCECipher extends SshCipher {
 	String spec;
 	String keyspec;
 	int keylength;
+	byte[] scratch = new byte[0];
 
 	/**
 	 * 
@@ -84,11 +86,28 @@ public class AbstractJCECipher extends SshCipher {
 	public void transform(byte[] buf, int start, byte[] output, int off, int len)
 			throws java.io.IOException {
 		if (len > 0) {
-			byte[] tmp = cipher.update(buf, start, len);
-			System.arraycopy(tmp, 0, output, off, len);
+			try {
+				if (buf != output) {
+					cipher.update(buf, start, len, output, off);
+				} else {
+					// Providers copy the input of an in-place update to a new
+					// array, so go through a buffer that is reused instead
+					cipher.update(buf, start, len, scratch(len), 0);
+					System.arraycopy(scratch, 0, output, off, len);
+				}
+			} catch (ShortBufferException sbe) {
+				throw new IOException("Output buffer too short");
+			}
 		}
 	}
 
+	byte[] scratch(int len) {
+		if (scratch.length < len) {
+			scratch = new byte[len];
+		}
+		return scratch;
+	}
+
 	public String getProvider() {
 		return cipher.getProvider().getName();
 	}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components.jce;
+
+/**
+ * The original ChaCha20 stream cipher with a 64 bit nonce and 64 bit block
+ * counter, as used by <em>chacha20-poly1305@openssh.com</em>. The IETF
+ * variant offered by newer JCE providers uses a different nonce layout so a
+ * compact implementation is kept here.
+ * 
+ * @author Lee David Painter
+ */
+class ChaCha20 {
+
+	private static final int[] SIGMA = { 0x61707865, 0x3320646e, 0x79622d32,
+			0x6b206574 };
+
+	private final int[] input = new int[16];
+	private final int[] x = new int[16];
+	private final byte[] keystream = new byte[64];
+
+	ChaCha20(byte[] key, int offset) {
+		input[0] = SIGMA[0];
+		input[1] = SIGMA[1];
+		input[2] = SIGMA[2];
+		input[3] = SIGMA[3];
+		for (int i = 0; i < 8; i++) {
+			input[4 + i] = littleEndian(key, offset + i * 4);
+		}
+	}
+
+	/**
+	 * XOR the keystream for the given nonce, starting at the given block
+	 * counter, into the data.
+	 */
+	void process(long nonce, long counter, byte[] data, int offset, int len) {
+
+		input[14] = Integer.reverseBytes((int) (nonce >>> 32));
+		input[15] = Integer.reverseBytes((int) nonce);
+
+		while (len > 0) {
+			input[12] = (int) counter;
+			input[13] = (int) (counter >>> 32);
+			block();
+
+			int count = Math.min(len, 64);
+			for (int i = 0; i < count; i++) {
+				data[offset + i] ^= keystream[i];
+			}
+			offset += count;
+			len -= count;
+			counter++;
+		}
+	}
+
+	private void block() {
+		System.arraycopy(input, 0, x, 0, 16);
+
+		for (int i = 0; i < 10; i++) {
+			quarterRound(0, 4, 8, 12);
+			quarterRound(1, 5, 9, 13);
+			quarterRound(2, 6, 10, 14);
+			quarterRound(3, 7, 11, 15);
+			quarterRound(0, 5, 10, 15);
+			quarterRound(1, 6, 11, 12);
+			quarterRound(2, 7, 8, 13);
+			quarterRound(3, 4, 9, 14);
+		}
+
+		for (int i = 0; i < 16; i++) {
+			int v = x[i] + input[i];
+			keystream[i * 4] = (byte) v;
+			keystream[i * 4 + 1] = (byte) (v >>> 8);
+			keystream[i * 4 + 2] = (byte) (v >>> 16);
+			keystream[i * 4 + 3] = (byte) (v >>> 24);
+		}
+	}
+
+	private void quarterRound(int a, int b, int c, int d) {
+		x[a] += x[b];
+		x[d] = Integer.rotateLeft(x[d] ^ x[a], 16);
+		x[c] += x[d];
+		x[b] = Integer.rotateLeft(x[b] ^ x[c], 12);
+		x[a] += x[b];
+		x[d] = Integer.rotateLeft(x[d] ^ x[a], 8);
+		x[c] += x[d];
+		x[b] = Integer.rotateLeft(x[b] ^ x[c], 7);
+	}
+
+	static int littleEndian(byte[] buf, int off) {
+		return (buf[off] & 0xFF) | ((buf[off + 1] & 0xFF) << 8)
+				| ((buf[off + 2] & 0xFF) << 16) | ((buf[off + 3] & 0xFF) << 24);
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components.jce;
+
+import java.io.IOException;
+
+import com.sshtools.ssh.components.SshAEADCipher;
+import com.sshtools.util.Arrays;
+
+/**
+ * <p>
+ * The <em>chacha20-poly1305@openssh.com</em> cipher. The 64 bytes of key data
+ * provide two ChaCha20 keys; the second is used only to encrypt the 4 byte
+ * packet length and the first encrypts the rest of the packet. The packet
+ * sequence number is the nonce for both and the first block of the main
+ * keystream provides the Poly1305 key used to authenticate the whole
+ * encrypted packet.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class ChaCha20Poly1305 extends SshAEADCipher {
+
+	static final int KEY_LENGTH = 64;
+
+	ChaCha20 mainCipher;
+	ChaCha20 headerCipher;
+	Poly1305 poly = new Poly1305();
+	byte[] polyKey = new byte[32];
+	byte[] length = new byte[4];
+	byte[] tag = new byte[Poly1305.TAG_LENGTH];
+
+	public ChaCha20Poly1305() {
+		super("chacha20-poly1305@openssh.com");
+	}
+
+	public int getBlockSize() {
+		return 8;
+	}
+
+	public int getTagLength() {
+		return Poly1305.TAG_LENGTH;
+	}
+
+	public void init(int mode, byte[] iv, byte[] keydata) throws IOException {
+		if (keydata.length < KEY_LENGTH) {
+			throw new IOException(getAlgorithm() + " requires "
+					+ KEY_LENGTH + " bytes of key data");
+		}
+		mainCipher = new ChaCha20(keydata, 0);
+		headerCipher = new ChaCha20(keydata, 32);
+	}
+
+	public int readPacketLength(long sequenceNo, byte[] data, int offset) {
+		System.arraycopy(data, offset, length, 0, 4);
+		headerCipher.process(sequenceNo, 0, length, 0, 4);
+		return ((length[0] & 0xFF) << 24) | ((length[1] & 0xFF) << 16)
+				| ((length[2] & 0xFF) << 8) | (length[3] & 0xFF);
+	}
+
+	public void encryptPacket(long sequenceNo, byte[] data, int offset,
+			int len) {
+		headerCipher.process(sequenceNo, 0, data, offset, 4);
+		mainCipher.process(sequenceNo, 1, data, offset + 4, len - 4);
+		generatePolyKey(sequenceNo);
+		poly.mac(polyKey, 0, data, offset, len, data, offset + len);
+	}
+
+	public boolean decryptPacket(long sequenceNo, byte[] data, int offset,
+			int len) {
+		generatePolyKey(sequenceNo);
+		poly.mac(polyKey, 0, data, offset, len, tag, 0);
+		if (!Arrays.constantTimeEquals(tag, 0, data, offset + len, tag.length)) {
+			return false;
+		}
+		headerCipher.process(sequenceNo, 0, data, offset, 4);
+		mainCipher.process(sequenceNo, 1, data, offset + 4, len - 4);
+		return true;
+	}
+
+	private void generatePolyKey(long sequenceNo) {
+		for (int i = 0; i < polyKey.length; i++) {
+			polyKey[i] = 0;
+		}
+		mainCipher.process(sequenceNo, 0, polyKey, 0, polyKey.length);
+	}
+}
@@ -74,6 +74,12 @@ public interface JCEAlgorithms {
 	/** AES in counter clock mode 'AES/CTR/NoPadding' **/
 	public static final String JCE_AESCTRNOPADDING = "AES/CTR/NoPadding";
 
+	/** AES in Galois/counter mode 'AES/GCM/NoPadding' **/
+	public static final String JCE_AESGCMNOPADDING = "AES/GCM/NoPadding";
+
+	/** ChaCha20 stream cipher 'ChaCha20' **/
+	public static final String JCE_CHACHA20 = "ChaCha20";
+
 	/** 3DES in counter clock mode 'DESede/CTR/NoPadding' **/
 	public static final String JCE_3DESCTRNOPADDING = "DESede/CTR/NoPadding";
 
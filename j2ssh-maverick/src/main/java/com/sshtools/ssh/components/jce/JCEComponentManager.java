@@ -345,6 +345,15 @@ public class JCEComponentManager extends ComponentManager implements
 			 hmacs.add("hmac-sha512@ssh.com", HmacSha512.class);
 		 }
 
+		if (testHMac("hmac-sha1-etm@openssh.com", HmacSha1ETM.class))
+			hmacs.add("hmac-sha1-etm@openssh.com", HmacSha1ETM.class);
+
+		if (testHMac("hmac-sha2-256-etm@openssh.com", HmacSha256ETM.class))
+			hmacs.add("hmac-sha2-256-etm@openssh.com", HmacSha256ETM.class);
+
+		if (testHMac("hmac-sha2-512-etm@openssh.com", HmacSha512ETM.class))
+			hmacs.add("hmac-sha2-512-etm@openssh.com", HmacSha512ETM.class);
+
 	}
 
 	protected void initializeKeyExchangeFactory(ComponentFactory keyexchange) {
@@ -431,6 +440,20 @@ public class JCEComponentManager extends ComponentManager implements
 		if (testJCECipher("aes256-ctr", AES256Ctr.class)) {
 			ciphers.add("aes256-ctr", AES256Ctr.class);
 		}
+
+		if (testJCECipher("aes128-gcm@openssh.com", AES128Gcm.class)) {
+			ciphers.add("aes128-gcm@openssh.com", AES128Gcm.class);
+		}
+
+		if (testJCECipher("aes256-gcm@openssh.com", AES256Gcm.class)) {
+			ciphers.add("aes256-gcm@openssh.com", AES256Gcm.class);
+		}
+
+		if (testJCECipher("chacha20-poly1305@openssh.com",
+				ChaCha20Poly1305.class)) {
+			ciphers.add("chacha20-poly1305@openssh.com",
+					ChaCha20Poly1305.class);
+		}
 	}
 	
 	/**
@@ -593,6 +616,10 @@ public class JCEComponentManager extends ComponentManager implements
 				Log.info(this, "   " + name
 						+ " will be supported using JCE Provider "
 						+ ((AbstractJCECipher) c).getProvider());
+			else if (c instanceof AbstractGCMCipher)
+				Log.info(this, "   " + name
+						+ " will be supported using JCE Provider "
+						+ ((AbstractGCMCipher) c).getProvider());
 
 			return true;
 		} catch (Throwable e) {
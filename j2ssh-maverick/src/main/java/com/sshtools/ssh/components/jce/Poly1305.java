@@ -0,0 +1,174 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components.jce;
+
+/**
+ * The Poly1305 one-time authenticator (RFC 8439), computed with 26 bit limbs.
+ * 
+ * @author Lee David Painter
+ */
+class Poly1305 {
+
+	static final int TAG_LENGTH = 16;
+
+	private static final long MASK = 0x3ffffff;
+
+	// Holds a padded final partial block so that no array is allocated per
+	// message
+	private final byte[] last = new byte[16];
+
+	/**
+	 * Generate the 16 byte tag for a message using a 32 byte one-time key.
+	 */
+	void mac(byte[] key, int keyOffset, byte[] msg, int offset,
+			int len, byte[] output, int outputOffset) {
+
+		long r0 = le32(key, keyOffset) & 0x3ffffff;
+		long r1 = (le32(key, keyOffset + 3) >>> 2) & 0x3ffff03;
+		long r2 = (le32(key, keyOffset + 6) >>> 4) & 0x3ffc0ff;
+		long r3 = (le32(key, keyOffset + 9) >>> 6) & 0x3f03fff;
+		long r4 = (le32(key, keyOffset + 12) >>> 8) & 0x00fffff;
+
+		long s1 = r1 * 5;
+		long s2 = r2 * 5;
+		long s3 = r3 * 5;
+		long s4 = r4 * 5;
+
+		long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+
+		while (len > 0) {
+			byte[] m = msg;
+			int off = offset;
+			long hibit = 1 << 24;
+
+			if (len < 16) {
+				// Pad the final partial block with a single 1 bit
+				System.arraycopy(msg, offset, last, 0, len);
+				last[len] = 1;
+				for (int i = len + 1; i < 16; i++) {
+					last[i] = 0;
+				}
+				m = last;
+				off = 0;
+				hibit = 0;
+			}
+
+			h0 += le32(m, off) & MASK;
+			h1 += (le32(m, off + 3) >>> 2) & MASK;
+			h2 += (le32(m, off + 6) >>> 4) & MASK;
+			h3 += (le32(m, off + 9) >>> 6) & MASK;
+			h4 += (le32(m, off + 12) >>> 8) | hibit;
+
+			long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+			long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+			long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+			long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+			long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+			long c = d0 >>> 26;
+			h0 = d0 & MASK;
+			d1 += c;
+			c = d1 >>> 26;
+			h1 = d1 & MASK;
+			d2 += c;
+			c = d2 >>> 26;
+			h2 = d2 & MASK;
+			d3 += c;
+			c = d3 >>> 26;
+			h3 = d3 & MASK;
+			d4 += c;
+			c = d4 >>> 26;
+			h4 = d4 & MASK;
+			h0 += c * 5;
+			c = h0 >>> 26;
+			h0 &= MASK;
+			h1 += c;
+
+			offset += 16;
+			len -= 16;
+		}
+
+		// Fully carry h
+		long c = h1 >>> 26;
+		h1 &= MASK;
+		h2 += c;
+		c = h2 >>> 26;
+		h2 &= MASK;
+		h3 += c;
+		c = h3 >>> 26;
+		h3 &= MASK;
+		h4 += c;
+		c = h4 >>> 26;
+		h4 &= MASK;
+		h0 += c * 5;
+		c = h0 >>> 26;
+		h0 &= MASK;
+		h1 += c;
+
+		// Compute h + -p and select it if h >= p
+		long g0 = h0 + 5;
+		c = g0 >>> 26;
+		g0 &= MASK;
+		long g1 = h1 + c;
+		c = g1 >>> 26;
+		g1 &= MASK;
+		long g2 = h2 + c;
+		c = g2 >>> 26;
+		g2 &= MASK;
+		long g3 = h3 + c;
+		c = g3 >>> 26;
+		g3 &= MASK;
+		long g4 = h4 + c - (1L << 26);
+
+		long select = (g4 >>> 63) - 1;
+		h0 = (h0 & ~select) | (g0 & select);
+		h1 = (h1 & ~select) | (g1 & select);
+		h2 = (h2 & ~select) | (g2 & select);
+		h3 = (h3 & ~select) | (g3 & select);
+		h4 = (h4 & ~select) | (g4 & MASK & select);
+
+		// h = h % 2^128 then add the second half of the key
+		h0 = (h0 | (h1 << 26)) & 0xffffffffL;
+		h1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+		h2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+		h3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+		long f = h0 + le32(key, keyOffset + 16);
+		writeLE32(output, outputOffset, f);
+		f = h1 + le32(key, keyOffset + 20) + (f >>> 32);
+		writeLE32(output, outputOffset + 4, f);
+		f = h2 + le32(key, keyOffset + 24) + (f >>> 32);
+		writeLE32(output, outputOffset + 8, f);
+		f = h3 + le32(key, keyOffset + 28) + (f >>> 32);
+		writeLE32(output, outputOffset + 12, f);
+	}
+
+	private static long le32(byte[] buf, int off) {
+		return ChaCha20.littleEndian(buf, off) & 0xffffffffL;
+	}
+
+	private static void writeLE32(byte[] buf, int off, long v) {
+		buf[off] = (byte) v;
+		buf[off + 1] = (byte) (v >>> 8);
+		buf[off + 2] = (byte) (v >>> 16);
+		buf[off + 3] = (byte) (v >>> 24);
+	}
+}
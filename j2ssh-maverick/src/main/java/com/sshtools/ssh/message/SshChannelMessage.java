@@ -23,6 +23,7 @@ package com.sshtools.ssh.message;
 import java.io.IOException;
 
 import com.sshtools.ssh.SshException;
+import com.sshtools.util.PacketBuffer;
 
 /**
  * @author Lee David Painter
@@ -46,6 +47,15 @@ public class SshChannelMessage extends SshMessage {
 		}
 	}
 
+	public SshChannelMessage(PacketBuffer packet) throws SshException {
+		super(packet);
+		try {
+			this.channelid = (int) readInt();
+		} catch (IOException ex) {
+			throw new SshException(SshException.INTERNAL_ERROR, ex);
+		}
+	}
+
 	int getChannelId() {
 		return channelid;
 	}
@@ -21,6 +21,7 @@
 package com.sshtools.ssh.message;
 
 import com.sshtools.util.ByteArrayReader;
+import com.sshtools.util.PacketBuffer;
 
 /**
  * 
@@ -30,13 +31,7 @@ public class SshMessage extends ByteArrayReader implements Message {
 
 	int messageid;
 	byte[] msg;
-	SshMessage next;
-	SshMessage previous;
-
-	// Private constrcutor for Linked List
-	SshMessage() {
-		super(new byte[] {});
-	}
+	PacketBuffer packet;
 
 	public SshMessage(byte[] msg, int off, int len) {
 		super(msg, off, len);
@@ -47,6 +42,33 @@ public class SshMessage extends ByteArrayReader implements Message {
 		this.messageid = read();
 	}
 
+	/**
+	 * Create a message that reads directly from a pooled packet buffer. The
+	 * message takes ownership of the buffer, which is returned to its pool
+	 * when {@link #release()} is called.
+	 * 
+	 * @param packet
+	 */
+	public SshMessage(PacketBuffer packet) {
+		super(packet.array(), packet.offset(), packet.length());
+		this.packet = packet;
+		this.messageid = read();
+	}
+
+	/**
+	 * Release the pooled buffer backing this message, if any. The message
+	 * must not be read after it has been released. Calling this method more
+	 * than once has no effect.
+	 */
+	public void release() {
+		PacketBuffer tmp = packet;
+		if (tmp != null) {
+			packet = null;
+			buf = null;
+			tmp.release();
+		}
+	}
+
 	public int getMessageId() {
 		return messageid;
 	}
@@ -50,7 +50,9 @@ public abstract class SshMessageRouter {
 	private int count = 0;
 	boolean buffered;
 	MessagePump messagePump;
-	boolean isClosing = false;
+	boolean eventDriven;
+	volatile Throwable dispatchError;
+	volatile boolean isClosing = false;
 	Vector<SshAbstractChannel> activeChannels = new Vector<SshAbstractChannel>();
 	Vector<Runnable> shutdownHooks = new Vector<Runnable>();
 	boolean verbose = Boolean.valueOf(
@@ -58,8 +60,26 @@ public abstract class SshMessageRouter {
 
 	public SshMessageRouter(SshMessageReader reader, int maxChannels,
 			boolean buffered) {
+		this(reader, maxChannels, buffered, false);
+	}
+
+	/**
+	 * Create a router. When <code>eventDriven</code> is <code>true</code> no
+	 * message pump thread is created; instead the owner of the router reads
+	 * messages as they arrive and delivers them through
+	 * {@link #dispatchMessage(SshMessage)}. No caller thread will ever block on the
+	 * message reader in this mode.
+	 * 
+	 * @param reader
+	 * @param maxChannels
+	 * @param buffered
+	 * @param eventDriven
+	 */
+	protected SshMessageRouter(SshMessageReader reader, int maxChannels,
+			boolean buffered, boolean eventDriven) {
 		this.reader = reader;
-		this.buffered = buffered;
+		this.buffered = buffered || eventDriven;
+		this.eventDriven = eventDriven;
 		this.channels = new SshAbstractChannel[maxChannels];
 		this.global = new SshMessageStore(this, null, new MessageObserver() {
 			public boolean wantsNotification(Message msg) {
@@ -67,12 +87,10 @@ public abstract class SshMessageRouter {
 			}
 		});
 
-		sync = new ThreadSynchronizer(buffered);
+		sync = new ThreadSynchronizer(this.buffered);
 
-		if (buffered) {
+		if (buffered && !eventDriven) {
 			messagePump = new MessagePump();
-			sync.blockingThread = messagePump;
-			// J2SE messagePump.setDaemon(true);
 		}
 
 	}
@@ -83,7 +101,7 @@ public abstract class SshMessageRouter {
 				Log.debug(this, "starting message pump");
 			}
 		}
-		if (messagePump != null && !messagePump.isRunning()) {
+		if (messagePump != null && messagePump.thread == null) {
 			String prefix = "";
 			String sourceThread = Thread.currentThread().getName();
 			if (sourceThread.indexOf('-') > -1) {
@@ -92,18 +110,32 @@ public abstract class SshMessageRouter {
 				// retrieve an event Listener
 				// pass the event to the listener to process
 			}
-			messagePump
-					.setName(prefix + "MessagePump_" + messagePump.getName());
-			messagePump.start();
+			Thread thread = createThread(messagePump);
+			thread.setName(prefix + "MessagePump_" + thread.getName());
+			messagePump.thread = thread;
+			sync.blockingThread = thread;
+			// J2SE thread.setDaemon(true);
+			thread.start();
 			if (Log.isDebugEnabled()) {
 				if (verbose) {
 					Log.debug(this, "message pump started thread name:"
-							+ messagePump.getName());
+							+ thread.getName());
 				}
 			}
 		}
 	}
 
+	/**
+	 * Create the thread that runs the message pump. Subclasses may override
+	 * this to supply threads from a configured factory.
+	 * 
+	 * @param r
+	 * @return Thread
+	 */
+	protected Thread createThread(Runnable r) {
+		return new Thread(r);
+	}
+
 	public void addShutdownHook(Runnable r) {
 		if (r != null)
 			shutdownHooks.addElement(r);
@@ -113,12 +145,18 @@ public abstract class SshMessageRouter {
 		return buffered;
 	}
 
+	public boolean isEventDriven() {
+		return eventDriven;
+	}
+
 	public void stop() {
 
 		signalClosingState();
 
 		if (messagePump != null)
 			messagePump.stopThread();
+		else if (eventDriven)
+			sync.releaseBlock();
 
 		if (shutdownHooks != null) {
 			for (int i = 0; i < shutdownHooks.size(); i++) {
@@ -135,7 +173,12 @@ public abstract class SshMessageRouter {
 			synchronized (messagePump) {
 				isClosing = true;
 			}
+		} else if (eventDriven) {
+			synchronized (this) {
+				isClosing = true;
+			}
 		}
+		signalAllStores();
 	}
 
 	protected SshMessageStore getGlobalMessages() {
@@ -210,6 +253,9 @@ public abstract class SshMessageRouter {
 		}
 		MessageHolder holder = new MessageHolder();
 
+		// Make sure anything we are waiting on a reply to has been sent
+		flushOutgoing();
+
 		while (holder.msg == null
 				&& (timeout == 0 || System.currentTimeMillis() - startTime < timeout)) {
 			/**
@@ -223,39 +269,38 @@ public abstract class SshMessageRouter {
 					}
 				}
 				synchronized (messagePump) {
-					if (!isClosing) {
-						if (messagePump.lastError != null) {
-							Throwable tmpEx = messagePump.lastError;
-							messagePump.lastError = null;
-							if (tmpEx instanceof SshException) {
-								if (Log.isDebugEnabled()) {
-									Log.debug(this,
-											"messagePump has SshException this will be caught by customer code");
-								}
-								throw (SshException) tmpEx;
-							} else if (tmpEx instanceof SshIOException) {
-								if (Log.isDebugEnabled()) {
-									Log.debug(this,
-											"messagePump has SshIOException this will be caught by customer code");
-								}
-								throw ((SshIOException) tmpEx)
-										.getRealException();
-							} else {
-								if (Log.isDebugEnabled()) {
-									Log.debug(this,
-											"messagePump has some other exception this will be caught by customer code");
-								}
-								throw new SshException(tmpEx);
-							}
-						}
+					if (!isClosing && messagePump.lastError != null) {
+						Throwable tmpEx = messagePump.lastError;
+						messagePump.lastError = null;
+						throwDispatchError(tmpEx);
+					}
+				}
+			} else if (eventDriven) {
+				synchronized (this) {
+					if (!isClosing && dispatchError != null) {
+						Throwable tmpEx = dispatchError;
+						dispatchError = null;
+						throwDispatchError(tmpEx);
 					}
 				}
 			}
 
-			/**
-			 * Request a block on the message reader
-			 */
-			if (sync.requestBlock(store, observer, holder)) {
+			if (isDispatching()) {
+				/**
+				 * Messages are being routed to the stores by the message pump
+				 * or event driven transport so we only need to wait on our
+				 * own store until one arrives.
+				 */
+				long wait = 1000;
+				if (timeout > 0) {
+					wait = Math.min(wait, Math.max(1, timeout
+							- (System.currentTimeMillis() - startTime)));
+				}
+				holder.msg = store.waitForMessage(observer, wait);
+			} else if (sync.requestBlock(store, observer, holder)) {
+				/**
+				 * Request a block on the message reader
+				 */
 
 				try {
 					if (Log.isDebugEnabled()) {
@@ -287,6 +332,56 @@ public abstract class SshMessageRouter {
 		return (SshMessage) holder.msg;
 	}
 
+	/**
+	 * Are messages being routed to the message stores by another thread?
+	 * When they are, callers wait on their own store instead of competing for
+	 * the message reader.
+	 */
+	boolean isDispatching() {
+		if (messagePump != null) {
+			return messagePump.isRunning();
+		}
+		return eventDriven && !isClosing && dispatchError == null;
+	}
+
+	/**
+	 * Wake every thread waiting on a message store so that they can notice
+	 * a change of state such as an error or the router closing.
+	 */
+	void signalAllStores() {
+		global.signal();
+		synchronized (channels) {
+			for (int i = 0; i < channels.length; i++) {
+				if (channels[i] != null && channels[i].ms != null) {
+					channels[i].ms.signal();
+				}
+			}
+		}
+		sync.releaseWaiting();
+	}
+
+	private void throwDispatchError(Throwable tmpEx) throws SshException {
+		if (tmpEx instanceof SshException) {
+			if (Log.isDebugEnabled()) {
+				Log.debug(this,
+						"messagePump has SshException this will be caught by customer code");
+			}
+			throw (SshException) tmpEx;
+		} else if (tmpEx instanceof SshIOException) {
+			if (Log.isDebugEnabled()) {
+				Log.debug(this,
+						"messagePump has SshIOException this will be caught by customer code");
+			}
+			throw ((SshIOException) tmpEx).getRealException();
+		} else {
+			if (Log.isDebugEnabled()) {
+				Log.debug(this,
+						"messagePump has some other exception this will be caught by customer code");
+			}
+			throw new SshException(tmpEx);
+		}
+	}
+
 	public boolean isBlockingThread(Thread thread) {
 		return sync.isBlockOwner(thread);
 	}
@@ -294,12 +389,61 @@ public abstract class SshMessageRouter {
 	private void blockForMessage() throws SshException {
 
 		// Read and create a message
-		SshMessage message = createMessage(reader.nextMessage());
+		SshMessage message = readMessage();
 		if (Log.isDebugEnabled()) {
 			if (verbose) {
 				Log.debug(this, "read next message");
 			}
 		}
+		routeMessage(message);
+	}
+
+	/**
+	 * Read the next message from the message reader. Subclasses whose reader
+	 * can supply pooled buffers may override this to avoid copying each
+	 * message.
+	 * 
+	 * @return SshMessage
+	 * @throws SshException
+	 */
+	protected SshMessage readMessage() throws SshException {
+		return createMessage(reader.nextMessage());
+	}
+
+	/**
+	 * Deliver a message that has been read by an event driven I/O engine. The
+	 * message must already have been passed to the transport so that it may
+	 * process its own messages.
+	 * 
+	 * @param message
+	 * @throws SshException
+	 */
+	protected void dispatchMessage(SshMessage message) throws SshException {
+		routeMessage(message);
+		sync.releaseWaiting();
+	}
+
+	/**
+	 * Called by an event driven I/O engine when reading or routing a message
+	 * fails. The error is saved and rethrown to the next caller waiting for a
+	 * message, as it would be had it occurred on the message pump.
+	 * 
+	 * @param t
+	 */
+	protected void dispatchFailed(Throwable t) {
+		synchronized (this) {
+			if (!isClosing) {
+				Log.info(this, "Message dispatch caught exception: "
+						+ t.getMessage());
+				dispatchError = t;
+			}
+		}
+		signalAllStores();
+		onThreadExit();
+	}
+
+	private void routeMessage(SshMessage message) throws SshException {
+
 		// Determine the destination channel (if any)
 		SshAbstractChannel destination = null;
 		if (message instanceof SshChannelMessage) {
@@ -312,8 +456,10 @@ public abstract class SshMessageRouter {
 						.processChannelMessage((SshChannelMessage) message);
 
 		// If the previous call did not process the message then add to the
-		// destinations message store
-		if (!processed) {
+		// destinations message store, otherwise we are done with it
+		if (processed) {
+			message.release();
+		} else {
 			SshMessageStore ms = destination == null ? global : destination
 					.getMessageStore();
 			// add new message to message stores linked list.
@@ -321,6 +467,16 @@ public abstract class SshMessageRouter {
 		}
 	}
 
+	/**
+	 * Called before a thread waits for a message so that any outgoing data
+	 * held back by the protocol is sent first. The default implementation
+	 * does nothing.
+	 * 
+	 * @throws SshException
+	 */
+	protected void flushOutgoing() throws SshException {
+	}
+
 	/**
 	 * Called when the threaded router closes.
 	 */
@@ -354,10 +510,11 @@ public abstract class SshMessageRouter {
 	protected abstract boolean processGlobalMessage(SshMessage msg)
 			throws SshException;
 
-	class MessagePump extends Thread {
+	class MessagePump implements Runnable {
 
+		Thread thread;
 		Throwable lastError;
-		boolean running = false;
+		volatile boolean running = false;
 
 		public void run() {
 
@@ -385,11 +542,13 @@ public abstract class SshMessageRouter {
 							}
 							stopThread();
 						}
+						signalAllStores();
 					}
 				}
 
 				// Finally release the block as we exit
 				sync.releaseBlock();
+				signalAllStores();
 
 			} finally {
 				onThreadExit();
@@ -398,8 +557,8 @@ public abstract class SshMessageRouter {
 
 		public void stopThread() {
 			running = false;
-			if (!Thread.currentThread().equals(this))
-				interrupt();
+			if (thread != null && !Thread.currentThread().equals(thread))
+				thread.interrupt();
 		}
 
 		public boolean isRunning() {
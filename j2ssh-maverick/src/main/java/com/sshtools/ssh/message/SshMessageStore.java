@@ -23,6 +23,9 @@ package com.sshtools.ssh.message;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.sshtools.logging.Log;
 import com.sshtools.ssh.SshException;
@@ -31,7 +34,9 @@ import com.sshtools.ssh.SshException;
  * <p>
  * This class is the central storage location for channel messages; each channel
  * has its own message store and the message pump delivers them here where they
- * are stored in a lightweight linked list.
+ * are stored in a lock-free queue. Threads waiting for a message on this
+ * store are parked on the store itself, so a message arriving for one
+ * channel only wakes the threads that are waiting on that channel.
  * </p>
  * 
  * @author Lee David Painter
@@ -41,9 +46,10 @@ public class SshMessageStore implements MessageStore {
 	public static final int NO_MESSAGES = -1;
 	SshAbstractChannel channel;
 	SshMessageRouter manager;
-	boolean closed = false;
-	SshMessage header = new SshMessage();
-	int size = 0;
+	volatile boolean closed = false;
+	ConcurrentLinkedQueue<SshMessage> messages = new ConcurrentLinkedQueue<SshMessage>();
+	AtomicInteger waiting = new AtomicInteger();
+	Object lock = new Object();
 	MessageObserver stickyMessageObserver;
 	boolean verbose = Boolean.valueOf(
 			System.getProperty("maverick.verbose", "false")).booleanValue();
@@ -53,7 +59,6 @@ public class SshMessageStore implements MessageStore {
 		this.manager = manager;
 		this.channel = channel;
 		this.stickyMessageObserver = stickyMessageObserver;
-		header.next = header.previous = header;
 	}
 
 	/**
@@ -68,24 +73,27 @@ public class SshMessageStore implements MessageStore {
 			throws SshException, EOFException {
 
 		try {
-			SshMessage msg = manager.nextMessage(channel, observer, timeout);
-			if (Log.isDebugEnabled()) {
-				if (verbose) {
-					Log.debug(this, "got managers next message");
+			SshMessage msg;
+			do {
+				msg = manager.nextMessage(channel, observer, timeout);
+				if (Log.isDebugEnabled()) {
+					if (verbose) {
+						Log.debug(this, "got managers next message");
+					}
 				}
-			}
 
-			if (msg != null) {
-				synchronized (header) {
+				if (msg != null) {
 
 					if (stickyMessageObserver.wantsNotification(msg)) {
 						return msg;
 					}
 
-					remove(msg);
-					return msg;
+					// Another thread may have taken the message first
+					if (messages.remove(msg)) {
+						return msg;
+					}
 				}
-			}
+			} while (msg != null);
 		} catch (InterruptedException ex) {
 			throw new SshException("The thread was interrupted",
 					SshException.INTERNAL_ERROR);
@@ -96,88 +104,87 @@ public class SshMessageStore implements MessageStore {
 	}
 
 	public boolean isClosed() {
-		synchronized (header) {
-			return closed;
-		}
+		return closed;
 	}
 
-	private void remove(SshMessage e) {
+	public Message hasMessage(MessageObserver observer) {
 
-		if (e == header) {
-			throw new IndexOutOfBoundsException();
+		// check each message in turn to see if it is of a type that the
+		// observer is interested in.
+		for (Iterator<SshMessage> it = messages.iterator(); it.hasNext();) {
+			SshMessage e = it.next();
+			if (observer.wantsNotification(e)) {
+				if (Log.isDebugEnabled()) {
+					if (verbose) {
+						Log.debug(this, "found message");
+					}
+				}
+				return e;
+			}
 		}
 
-		e.previous.next = e.next;
-		e.next.previous = e.previous;
-		size--;
-	}
-
-	public Message hasMessage(MessageObserver observer) {
 		if (Log.isDebugEnabled()) {
 			if (verbose) {
-				Log.debug(this, "waiting for header lock");
+				Log.debug(this, "no messages");
 			}
 		}
+		return null;
+	}
 
-		synchronized (header) {
+	/**
+	 * Wait for a message that the observer is interested in to arrive in this
+	 * store.
+	 * 
+	 * @param observer
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds
+	 * @return the message or <code>null</code> if none arrived before the
+	 *         timeout
+	 * @throws InterruptedException
+	 */
+	Message waitForMessage(MessageObserver observer, long timeout)
+			throws InterruptedException {
 
-			// this would not seem to take account of header being null, or
-			// header.next.next being null, perhaps because these states are not
-			// possible? if so document, if not fix.
-			SshMessage e = header.next;
-			if (e == null) {
-				if (Log.isDebugEnabled()) {
-					if (verbose) {
-						Log.debug(this, "header.next is null");
-					}
-				}
-				return null;
-			}
+		Message msg = hasMessage(observer);
+		if (msg != null) {
+			return msg;
+		}
 
-			// cycle through the linked list until we reach the start point
-			// (header),
-			// checking to see if the message is of a type that the observer is
-			// interested in.
-			// ??don't seem to look at header though!??
-			for (; e != header; e = e.next) {
-				if (observer.wantsNotification(e)) {
-					if (Log.isDebugEnabled()) {
-						if (verbose) {
-							Log.debug(this, "found message");
-						}
-					}
-					return e;
+		synchronized (lock) {
+			waiting.incrementAndGet();
+			try {
+				// Check again now we are registered as waiting so that a
+				// message added in the meantime cannot be missed
+				msg = hasMessage(observer);
+				if (msg == null) {
+					lock.wait(timeout);
 				}
+			} finally {
+				waiting.decrementAndGet();
 			}
+		}
 
-			if (Log.isDebugEnabled()) {
-				if (verbose) {
-					Log.debug(this, "no messages");
-				}
-			}
-			return null;
+		return msg != null ? msg : hasMessage(observer);
+	}
 
+	/**
+	 * Wake any threads waiting on this store.
+	 */
+	void signal() {
+		synchronized (lock) {
+			lock.notifyAll();
 		}
 	}
 
 	public void close() {
-
-		synchronized (header) {
-			closed = true;
-		}
+		closed = true;
+		signal();
 	}
 
 	void addMessage(SshMessage msg) {
-		synchronized (header) {
-			// insert this message between header and header.previous, and
-			// change their links appropriately
-			msg.next = header;
-			msg.previous = header.previous;
-			// change message before header
-			msg.previous.next = msg;
-			// change header
-			msg.next.previous = msg;
-			size++;
+		messages.offer(msg);
+		if (waiting.get() > 0) {
+			signal();
 		}
 	}
 }
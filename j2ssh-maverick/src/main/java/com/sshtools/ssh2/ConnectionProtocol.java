@@ -25,6 +25,8 @@ import java.util.Hashtable;
 
 import com.sshtools.logging.Log;
 import com.sshtools.ssh.ChannelOpenException;
+import com.sshtools.ssh.NonBlockingTransport;
+import com.sshtools.ssh.NonBlockingTransportListener;
 import com.sshtools.ssh.SshContext;
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.message.Message;
@@ -34,6 +36,7 @@ import com.sshtools.ssh.message.SshChannelMessage;
 import com.sshtools.ssh.message.SshMessage;
 import com.sshtools.ssh.message.SshMessageRouter;
 import com.sshtools.util.ByteArrayWriter;
+import com.sshtools.util.PacketBuffer;
 
 /**
  * 
@@ -85,11 +88,57 @@ class ConnectionProtocol extends SshMessageRouter implements
 
 	public ConnectionProtocol(TransportProtocol transport, SshContext context,
 			boolean buffered) {
-		super(transport, context.getChannelLimit(), buffered);
+		super(transport, context.getChannelLimit(), buffered, buffered
+				&& transport.getProvider() instanceof NonBlockingTransport);
 		this.transport = transport;
 		this.transport.addListener(this);
 	}
 
+	public void start() {
+		if (isEventDriven()) {
+			final NonBlockingTransport provider = (NonBlockingTransport) transport
+					.getProvider();
+			addShutdownHook(new Runnable() {
+				public void run() {
+					provider.setTransportListener(null);
+				}
+			});
+			provider.setTransportListener(new NonBlockingTransportListener() {
+				public void onDataAvailable() {
+					processAvailableMessages();
+				}
+
+				public void onClosed() {
+					if (transport.isConnected()) {
+						dispatchFailed(new SshException(
+								"EOF received from remote side",
+								SshException.UNEXPECTED_TERMINATION));
+					}
+				}
+			});
+		} else {
+			super.start();
+		}
+	}
+
+	/**
+	 * Decode and route every complete message the event driven transport has
+	 * buffered.
+	 */
+	void processAvailableMessages() {
+		try {
+			PacketBuffer packet;
+			while (transport.isConnected()
+					&& (packet = transport.pollPacket()) != null) {
+				if (!transport.processMessage(packet)) {
+					dispatchMessage(createMessage(packet));
+				}
+			}
+		} catch (Throwable t) {
+			dispatchFailed(t);
+		}
+	}
+
 	public void addChannelFactory(ChannelFactory factory) throws SshException {
 		String[] types = factory.supportedChannelTypes();
 		for (int i = 0; i < types.length; i++) {
@@ -292,6 +341,19 @@ class ConnectionProtocol extends SshMessageRouter implements
 		transport.sendMessage(msg, isActivity);
 	}
 
+	void sendMessage(TransportPacket packet, boolean isActivity)
+			throws SshException {
+		transport.sendMessage(packet, isActivity);
+	}
+
+	protected void flushOutgoing() throws SshException {
+		transport.flush();
+	}
+
+	protected Thread createThread(Runnable r) {
+		return transport.getContext().getThreadFactory().newThread(r);
+	}
+
 	protected SshMessage createMessage(byte[] msg) throws SshException {
 
 		if (msg[0] >= 91 && msg[0] <= 100) {
@@ -300,6 +362,25 @@ class ConnectionProtocol extends SshMessageRouter implements
 		return new SshMessage(msg);
 	}
 
+	protected SshMessage readMessage() throws SshException {
+		return createMessage(transport.nextPacket());
+	}
+
+	SshMessage createMessage(PacketBuffer packet) throws SshException {
+
+		if (packet.length() < 1) {
+			packet.release();
+			throw new SshException("Invalid message received",
+					SshException.PROTOCOL_VIOLATION);
+		}
+
+		byte id = packet.get(0);
+		if (id >= 91 && id <= 100) {
+			return new SshChannelMessage(packet);
+		}
+		return new SshMessage(packet);
+	}
+
 	protected boolean processGlobalMessage(SshMessage message)
 			throws SshException {
 
@@ -184,6 +184,7 @@ public class Ssh2Channel extends SshAbstractChannel {
 
 	DataWindow localwindow;
 	DataWindow remotewindow;
+	TransportPacket dataPacket;
 
 	boolean closing = false;
 	boolean free = false;
@@ -405,11 +406,15 @@ public class Ssh2Channel extends SshAbstractChannel {
 					}
 				}
 
-				for (Enumeration<ChannelEventListener> e = listeners.elements(); e
-						.hasMoreElements();) {
-					(e.nextElement()).dataReceived(Ssh2Channel.this,
-							msg.array(), msg.getPosition() + 4,
-							msg.available() - 4);
+				if (listeners.size() > 0) {
+					// The message buffer returns to the pool once the message
+					// has been processed, so listeners get their own copy
+					byte[] data = copyData(msg, 4);
+					for (Enumeration<ChannelEventListener> e = listeners
+							.elements(); e.hasMoreElements();) {
+						(e.nextElement()).dataReceived(Ssh2Channel.this, data,
+								0, data.length);
+					}
 				}
 
 				return autoConsumeInput;
@@ -435,11 +440,13 @@ public class Ssh2Channel extends SshAbstractChannel {
 					}
 				}
 
-				for (Enumeration<ChannelEventListener> e = listeners.elements(); e
-						.hasMoreElements();) {
-					(e.nextElement()).extendedDataReceived(Ssh2Channel.this,
-							msg.array(), msg.getPosition() + 8,
-							msg.available() - 8, type);
+				if (listeners.size() > 0) {
+					byte[] data = copyData(msg, 8);
+					for (Enumeration<ChannelEventListener> e = listeners
+							.elements(); e.hasMoreElements();) {
+						(e.nextElement()).extendedDataReceived(
+								Ssh2Channel.this, data, 0, data.length, type);
+					}
 				}
 
 				return autoConsumeInput;
@@ -496,6 +503,17 @@ public class Ssh2Channel extends SshAbstractChannel {
 
 	}
 
+	/**
+	 * Copy the data of a data message, which starts <code>skip</code> bytes
+	 * from the current position of the message.
+	 */
+	private byte[] copyData(SshChannelMessage msg, int skip) {
+		byte[] data = new byte[msg.available() - skip];
+		System.arraycopy(msg.array(), msg.getPosition() + skip, data, 0,
+				data.length);
+		return data;
+	}
+
 	SshChannelMessage processMessages(MessageObserver messagefilter)
 			throws SshException, EOFException {
 
@@ -513,6 +531,7 @@ public class Ssh2Channel extends SshAbstractChannel {
 			try {
 
 				remotewindow.adjust(msg.readInt());
+				msg.release();
 
 				if (Log.isDebugEnabled()) {
 					Log.debug(this, "Applied window adjust window="
@@ -616,10 +635,14 @@ public class Ssh2Channel extends SshAbstractChannel {
 		return new ChannelInputStream(EXTENDED_DATA_MESSAGES);
 	}
 
+	/**
+	 * Send channel data. The data is written straight into a packet buffer
+	 * owned by this channel so that it is copied only once on its way to the
+	 * socket. This is called by the channel OutputStream whilst it holds the
+	 * channel lock.
+	 */
 	void sendChannelData(byte[] buf, int offset, int len) throws SshException {
 
-		ByteArrayWriter msg = new ByteArrayWriter(len + 9);
-
 		try {
 			if (state != CHANNEL_OPEN) {
 				throw new SshException("The channel is closed",
@@ -627,9 +650,15 @@ public class Ssh2Channel extends SshAbstractChannel {
 			}
 
 			if (len > 0) {
-				msg.write(SSH_MSG_CHANNEL_DATA);
-				msg.writeInt(remoteid);
-				msg.writeBinaryString(buf, offset, len);
+
+				if (dataPacket == null) {
+					dataPacket = new TransportPacket(
+							remotewindow.getPacketSize() + 9);
+				}
+
+				dataPacket.write(SSH_MSG_CHANNEL_DATA);
+				dataPacket.writeInt(remoteid);
+				dataPacket.writeBinaryString(buf, offset, len);
 
 				if (Log.isDebugEnabled()) {
 					Log.debug(this, "Sending SSH_MSG_CHANNEL_DATA id="
@@ -637,7 +666,7 @@ public class Ssh2Channel extends SshAbstractChannel {
 							+ " window=" + remotewindow.available());
 				}
 
-				connection.sendMessage(msg.toByteArray(), true);
+				connection.sendMessage(dataPacket, true);
 			}
 
 			for (Enumeration<ChannelEventListener> e = listeners.elements(); e
@@ -647,9 +676,8 @@ public class Ssh2Channel extends SshAbstractChannel {
 		} catch (IOException ex) {
 			throw new SshException(ex, SshException.INTERNAL_ERROR);
 		} finally {
-			try {
-				msg.close();
-			} catch (IOException e) {
+			if (dataPacket != null) {
+				dataPacket.reset();
 			}
 		}
 
@@ -658,7 +686,7 @@ public class Ssh2Channel extends SshAbstractChannel {
 	void sendExtendedChannelData(byte[] buf, int offset, int len, int type)
 			throws SshException {
 
-		ByteArrayWriter msg = new ByteArrayWriter(len + 9);
+		TransportPacket msg = new TransportPacket(len + 13);
 
 		try {
 			if (state != CHANNEL_OPEN) {
@@ -673,7 +701,7 @@ public class Ssh2Channel extends SshAbstractChannel {
 				msg.writeInt(type);
 				msg.writeBinaryString(buf, offset, len);
 
-				connection.sendMessage(msg.toByteArray(), true);
+				connection.sendMessage(msg, true);
 			}
 
 			if (listeners != null) {
@@ -685,11 +713,6 @@ public class Ssh2Channel extends SshAbstractChannel {
 			}
 		} catch (IOException ex) {
 			throw new SshException(ex, SshException.INTERNAL_ERROR);
-		} finally {
-			try {
-				msg.close();
-			} catch (IOException e) {
-			}
 		}
 
 	}
@@ -1018,6 +1041,17 @@ public class Ssh2Channel extends SshAbstractChannel {
 
 		}
 
+		/**
+		 * Send any data held back by write coalescing immediately.
+		 */
+		public void flush() throws IOException {
+			try {
+				connection.transport.flush();
+			} catch (SshException ex) {
+				throw new SshIOException(ex);
+			}
+		}
+
 		public void close() throws IOException {
 			close(!isClosed() && !isLocalEOF && !closing);
 		}
@@ -1066,6 +1100,11 @@ public class Ssh2Channel extends SshAbstractChannel {
 		}
 
 		void addMessage(int length, SshChannelMessage msg) {
+			// The previous message has been fully read so its buffer can be
+			// returned to the pool
+			if (currentMessage != null && currentMessage != msg) {
+				currentMessage.release();
+			}
 			unread = length;
 			currentMessage = msg;
 		}
@@ -38,6 +38,7 @@ import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.SshSession;
 import com.sshtools.ssh.SshTransport;
 import com.sshtools.ssh.SshTunnel;
+import com.sshtools.ssh.components.SshAEADCipher;
 import com.sshtools.ssh.components.SshKeyExchangeClient;
 import com.sshtools.ssh.message.SshAbstractChannel;
 import com.sshtools.util.ByteArrayReader;
@@ -1059,6 +1060,9 @@ public class Ssh2Client implements SshClient {
 	 * @return String
 	 */
 	public String getMacInUseCS() {
+		if (transport.encryption instanceof SshAEADCipher) {
+			return TransportProtocol.IMPLICIT_MAC;
+		}
 		return (transport.outgoingMac == null ? "none" : transport.outgoingMac
 				.getAlgorithm());
 	}
@@ -1069,6 +1073,9 @@ public class Ssh2Client implements SshClient {
 	 * @return String
 	 */
 	public String getMacInUseSC() {
+		if (transport.decryption instanceof SshAEADCipher) {
+			return TransportProtocol.IMPLICIT_MAC;
+		}
 		return (transport.incomingMac == null ? "none" : transport.incomingMac
 				.getAlgorithm());
 	}
@@ -1108,8 +1115,7 @@ public class Ssh2Client implements SshClient {
 				+ (transport.encryption == null ? "none" : transport.encryption
 						.getAlgorithm())
 				+ ","
-				+ (transport.outgoingMac == null ? "none"
-						: transport.outgoingMac.getAlgorithm())
+				+ getMacInUseCS()
 				+ ","
 				+ (transport.outgoingCompression == null ? "none"
 						: transport.outgoingCompression.getAlgorithm())
@@ -1117,8 +1123,7 @@ public class Ssh2Client implements SshClient {
 				+ (transport.decryption == null ? "none" : transport.decryption
 						.getAlgorithm())
 				+ ","
-				+ (transport.incomingMac == null ? "none"
-						: transport.incomingMac.getAlgorithm())
+				+ getMacInUseSC()
 				+ ","
 				+ (transport.incomingCompression == null ? "none"
 						: transport.incomingCompression.getAlgorithm()) + "]";
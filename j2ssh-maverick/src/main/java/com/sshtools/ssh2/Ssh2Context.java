@@ -21,6 +21,7 @@
 package com.sshtools.ssh2;
 
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
 
 import com.sshtools.logging.Log;
 import com.sshtools.ssh.ForwardingRequestListener;
@@ -30,6 +31,7 @@ import com.sshtools.ssh.SshContext;
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.components.ComponentFactory;
 import com.sshtools.ssh.components.ComponentManager;
+import com.sshtools.util.VirtualThreadFactory;
 
 /**
  * <p>
@@ -90,6 +92,12 @@ public final class Ssh2Context implements SshContext {
 
 	public static final String CIPHER_AES256_CTR = "aes256-ctr";
 
+	public static final String CIPHER_AES128_GCM = "aes128-gcm@openssh.com";
+
+	public static final String CIPHER_AES256_GCM = "aes256-gcm@openssh.com";
+
+	public static final String CIPHER_CHACHA20_POLY1305 = "chacha20-poly1305@openssh.com";
+
 	public static final String CIPHER_ARCFOUR = "arcfour";
 
 	public static final String CIPHER_ARCFOUR_128 = "arcfour128";
@@ -110,6 +118,15 @@ public final class Ssh2Context implements SshContext {
 
 	public static final String HMAC_SHA256 = "hmac-sha256";
 
+	/** SHA1 encrypt-then-MAC message authentication **/
+	public static final String HMAC_SHA1_ETM = "hmac-sha1-etm@openssh.com";
+
+	/** SHA256 encrypt-then-MAC message authentication **/
+	public static final String HMAC_SHA256_ETM = "hmac-sha2-256-etm@openssh.com";
+
+	/** SHA512 encrypt-then-MAC message authentication **/
+	public static final String HMAC_SHA512_ETM = "hmac-sha2-512-etm@openssh.com";
+
 	/** Compression off **/
 	public static final String COMPRESSION_NONE = "none";
 
@@ -183,6 +200,22 @@ public final class Ssh2Context implements SshContext {
 	int socketTimeout = 0;
 	SshConnector con;
 
+	boolean writeCoalescing = false;
+	int writeCoalescingDelay = 5;
+	int writeCoalescingThreshold = 32768;
+
+	/**
+	 * The default thread factory, which starts each thread as a new platform
+	 * thread.
+	 */
+	public static final ThreadFactory PLATFORM_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			return new Thread(r);
+		}
+	};
+
+	ThreadFactory threadFactory = PLATFORM_THREADS;
+
 	/**
 	 * Contructs a default context
 	 * 
@@ -840,6 +873,100 @@ public final class Ssh2Context implements SshContext {
 		this.keyReExchangeDisabled = keyReExchangeDisabled;
 	}
 
+	/**
+	 * Enable write coalescing. When enabled, packets sent in quick succession
+	 * are gathered into a single socket write rather than being written and
+	 * flushed one at a time. A packet sent on an otherwise idle connection is
+	 * still written immediately.
+	 * 
+	 * @param writeCoalescing
+	 */
+	public void setWriteCoalescing(boolean writeCoalescing) {
+		this.writeCoalescing = writeCoalescing;
+	}
+
+	public boolean isWriteCoalescing() {
+		return writeCoalescing;
+	}
+
+	/**
+	 * Set the maximum time in milliseconds that a packet may be held back
+	 * when write coalescing is enabled. A value of zero gathers only the
+	 * packets of a single burst and never delays a write.
+	 * 
+	 * @param writeCoalescingDelay
+	 */
+	public void setWriteCoalescingDelay(int writeCoalescingDelay) {
+		this.writeCoalescingDelay = writeCoalescingDelay;
+	}
+
+	public int getWriteCoalescingDelay() {
+		return writeCoalescingDelay;
+	}
+
+	/**
+	 * Set the number of bytes that may be gathered before they are written
+	 * when write coalescing is enabled.
+	 * 
+	 * @param writeCoalescingThreshold
+	 */
+	public void setWriteCoalescingThreshold(int writeCoalescingThreshold) {
+		this.writeCoalescingThreshold = writeCoalescingThreshold;
+	}
+
+	public int getWriteCoalescingThreshold() {
+		return writeCoalescingThreshold;
+	}
+
+	/**
+	 * Set the factory used to create the threads started by the API. By
+	 * default each thread is a new platform thread.
+	 * 
+	 * @param threadFactory
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		if (threadFactory == null) {
+			throw new IllegalArgumentException(
+					"Thread factory cannot be null!");
+		}
+		this.threadFactory = threadFactory;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Get the factory for threads started on behalf of a connection with the
+	 * given context. Contexts other than an {@link Ssh2Context}, or no
+	 * context at all, use {@link #PLATFORM_THREADS}.
+	 * 
+	 * @param context
+	 * @return ThreadFactory
+	 */
+	public static ThreadFactory getThreadFactory(SshContext context) {
+		if (context instanceof Ssh2Context) {
+			return ((Ssh2Context) context).getThreadFactory();
+		}
+		return PLATFORM_THREADS;
+	}
+
+	/**
+	 * Run the threads started by the API on virtual threads. This requires a
+	 * Java 21 or later runtime.
+	 * 
+	 * @throws SshException
+	 *             if the runtime does not support virtual threads
+	 */
+	public void enableVirtualThreads() throws SshException {
+		if (!VirtualThreadFactory.isAvailable()) {
+			throw new SshException(
+					"Virtual threads are not supported by this Java runtime",
+					SshException.BAD_API_USAGE);
+		}
+		setThreadFactory(new VirtualThreadFactory());
+	}
+
 	public void setPublicKeyPreferredPosition(String name, int position)
 			throws SshException {
 		prefPublicKey = publicKeys.changePositionofAlgorithm(name, position);
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import com.sshtools.util.ByteArrayWriter;
+
+/**
+ * <p>
+ * A buffer in which a message payload can be written directly into its final
+ * position in an SSH packet. Space is reserved at the start of the buffer for
+ * the packet length and padding length fields, and {@link TransportProtocol}
+ * appends the padding and MAC before encrypting the packet in place, so the
+ * payload is never copied again on its way to the socket.
+ * </p>
+ * 
+ * <p>
+ * The contents of a packet are destroyed when it is sent; the packet is
+ * reset and may then be reused for the next message.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class TransportPacket extends ByteArrayWriter {
+
+	/**
+	 * The number of bytes reserved before the payload for the packet length
+	 * and padding length fields.
+	 */
+	public static final int HEADER_LENGTH = 5;
+
+	/**
+	 * The number of bytes reserved after the payload for padding and MAC.
+	 */
+	public static final int TRAILER_LENGTH = 128;
+
+	int padding;
+	long sequence;
+	long ticket;
+
+	/**
+	 * Create a packet with room for a payload of the given size. The packet
+	 * will grow if a larger payload is written.
+	 * 
+	 * @param payloadLength
+	 */
+	public TransportPacket(int payloadLength) {
+		super(HEADER_LENGTH + payloadLength + TRAILER_LENGTH);
+		count = HEADER_LENGTH;
+	}
+
+	/**
+	 * The offset of the payload within the array.
+	 * 
+	 * @return int
+	 */
+	public int getPayloadOffset() {
+		return HEADER_LENGTH;
+	}
+
+	/**
+	 * The number of payload bytes written so far.
+	 * 
+	 * @return int
+	 */
+	public int getPayloadLength() {
+		return count - HEADER_LENGTH;
+	}
+
+	/**
+	 * The message id of the payload.
+	 * 
+	 * @return int
+	 */
+	public int getMessageId() {
+		return buf[HEADER_LENGTH] & 0xFF;
+	}
+
+	/**
+	 * Copy the payload into a new array.
+	 * 
+	 * @return byte[]
+	 */
+	public byte[] getPayload() {
+		byte[] tmp = new byte[count - HEADER_LENGTH];
+		System.arraycopy(buf, HEADER_LENGTH, tmp, 0, tmp.length);
+		return tmp;
+	}
+
+	/**
+	 * Ensure there are at least <code>length</code> bytes available after the
+	 * current position.
+	 * 
+	 * @param length
+	 */
+	void reserve(int length) {
+		if (count + length > buf.length) {
+			byte[] tmp = new byte[count + length];
+			System.arraycopy(buf, 0, tmp, 0, count);
+			buf = tmp;
+		}
+	}
+
+	/**
+	 * Discard the payload so that the packet can be reused.
+	 */
+	public void reset() {
+		count = HEADER_LENGTH;
+	}
+}
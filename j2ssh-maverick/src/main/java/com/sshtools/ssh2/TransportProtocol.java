@@ -27,6 +27,11 @@ import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.sshtools.events.Event;
 import com.sshtools.events.EventServiceImplementation;
@@ -38,7 +43,9 @@ import com.sshtools.ssh.SshIOException;
 import com.sshtools.ssh.SshTransport;
 import com.sshtools.ssh.components.ComponentManager;
 import com.sshtools.ssh.components.Digest;
+import com.sshtools.ssh.components.SshAEADCipher;
 import com.sshtools.ssh.components.SshCipher;
+import com.sshtools.ssh.components.SshEtmHmac;
 import com.sshtools.ssh.components.SshHmac;
 import com.sshtools.ssh.components.SshKeyExchangeClient;
 import com.sshtools.ssh.components.SshPublicKey;
@@ -46,6 +53,8 @@ import com.sshtools.ssh.compression.SshCompression;
 import com.sshtools.ssh.message.SshMessageReader;
 import com.sshtools.util.ByteArrayReader;
 import com.sshtools.util.ByteArrayWriter;
+import com.sshtools.util.PacketBuffer;
+import com.sshtools.util.PacketBufferPool;
 
 /**
  * <p>
@@ -188,14 +197,39 @@ public class TransportProtocol implements SshMessageReader {
 	boolean ignoreHostKeyifEmpty = false;
 
 	byte[] incomingMessage;
-	ByteArrayWriter outgoingMessage;
+	PacketBuffer incomingPacket;
+	PacketBufferPool bufferPool = PacketBufferPool.getInstance();
+	ConcurrentLinkedQueue<TransportPacket> outgoingPackets = new ConcurrentLinkedQueue<TransportPacket>();
+	Object outgoingPipeline = new Object();
+	long nextOutgoingTicket = 0;
+	long outgoingEncryptTicket = 0;
+	long outgoingWriteTicket = 0;
+	boolean outgoingPipelineFailed = false;
+	Object coalescingLock = new Object();
+	ByteArrayWriter coalescingBuffer = new ByteArrayWriter();
+	long lastOutgoingFlush = 0;
+	boolean flushScheduled = false;
+
+	/**
+	 * Runs the delayed flushes of every connection that uses write
+	 * coalescing, so that no connection needs a thread of its own.
+	 */
+	static ScheduledExecutorService coalescingTimer;
 
 	int incomingCipherLength = 8;
 	int incomingMacLength = 0;
+	int pendingMessageRemaining = -1;
 
 	long outgoingSequence = 0;
 	long incomingSequence = 0;
 
+	/**
+	 * The MAC name reported when an authenticated cipher is in use.
+	 */
+	public static final String IMPLICIT_MAC = "<implicit>";
+
+	final static int MINIMUM_KEY_DATA = 64;
+
 	final static int MAX_NUM_PACKETS_BEFORE_REKEY = 2147483647;
 	final static int MAX_NUM_BYTES_BEFORE_REKEY = 1073741824;
 
@@ -333,10 +367,7 @@ public class TransportProtocol implements SshMessageReader {
 			this.localIdentification = localIdentification;
 			this.remoteIdentification = remoteIdentification;
 			this.transportContext = context;
-			this.incomingMessage = new byte[transportContext
-					.getMaximumPacketLength()];
-			this.outgoingMessage = new ByteArrayWriter(
-					transportContext.getMaximumPacketLength());
+			this.incomingMessage = new byte[incomingCipherLength];
 			this.client = client;
 
 			// Negotiate the protocol version
@@ -437,116 +468,411 @@ public class TransportProtocol implements SshMessageReader {
 	public void sendMessage(byte[] msgdata, boolean isActivity)
 			throws SshException {
 
+		TransportPacket packet = outgoingPackets.poll();
+		if (packet == null) {
+			packet = new TransportPacket(msgdata.length);
+		}
+
+		try {
+			packet.write(msgdata, 0, msgdata.length);
+			sendMessage(packet, isActivity);
+		} finally {
+			packet.reset();
+			outgoingPackets.offer(packet);
+		}
+	}
+
+	/**
+	 * Send a message whose payload has been written directly into a
+	 * {@link TransportPacket}. The packet is padded, signed and encrypted in
+	 * place so the payload is not copied again; once sent the packet is reset
+	 * and may be reused.
+	 * 
+	 * <p>
+	 * Only the assignment of the packet's sequence number is performed under
+	 * the transport lock. Signing and encryption, and then the socket write,
+	 * take place afterwards in sequence order, so one thread may be encrypting
+	 * its packet whilst another is blocked writing to the socket. The socket
+	 * is flushed only by the last packet of a burst.
+	 * </p>
+	 * 
+	 * @param packet
+	 * @param isActivity
+	 * @throws SshException
+	 */
+	public void sendMessage(TransportPacket packet, boolean isActivity)
+			throws SshException {
+
 		synchronized (kexqueue) {
 
 			if (currentState == PERFORMING_KEYEXCHANGE
-					&& !isTransportMessage(msgdata[0])) {
-				kexqueue.addElement(msgdata);
+					&& !isTransportMessage(packet.getMessageId())) {
+				kexqueue.addElement(packet.getPayload());
+				packet.reset();
 				return;
 			}
 
-			if (Log.isDebugEnabled()) {
-				if (verbose) {
-					Log.debug(this,
-							"Sending transport protocol message");
+			preparePacket(packet);
+		}
+
+		writePacket(packet, isActivity);
+
+		if (!transportContext.isKeyReExchangeDisabled()) {
+			synchronized (kexqueue) {
+				if (currentState != PERFORMING_KEYEXCHANGE
+						&& (numOutgoingBytesSinceKEX >= MAX_NUM_BYTES_BEFORE_REKEY || numOutgoingPacketsSinceKEX >= MAX_NUM_PACKETS_BEFORE_REKEY)) {
+
+					if (Log.isDebugEnabled()) {
+						Log.debug(this, "Requesting key re-exchange");
+					}
+					sendKeyExchangeInit(false);
 				}
 			}
+		}
+	}
 
-			try {
-				outgoingMessage.reset();
+	/**
+	 * Compress the payload and assign the packet its padding and sequence
+	 * number. Must be called whilst holding the kexqueue lock.
+	 */
+	private void preparePacket(TransportPacket packet) throws SshException {
 
-				int padding = 4;
+		if (Log.isDebugEnabled()) {
+			if (verbose) {
+				Log.debug(this, "Sending transport protocol message");
+			}
+		}
 
-				// Compress the payload if necersary
-				if (outgoingCompression != null && isOutgoingCompressing) {
-					msgdata = outgoingCompression.compress(msgdata, 0,
-							msgdata.length);
-				}
+		try {
+			int padding = 4;
+
+			// Compress the payload if necersary
+			if (outgoingCompression != null && isOutgoingCompressing) {
+				byte[] msgdata = packet.getPayload();
+				msgdata = outgoingCompression.compress(msgdata, 0,
+						msgdata.length);
+				packet.reset();
+				packet.write(msgdata, 0, msgdata.length);
+			}
 
-				// Determine the padding length
-				padding += ((outgoingCipherLength - ((msgdata.length + 5 + padding) % outgoingCipherLength)) % outgoingCipherLength);
+			int payloadLength = packet.getPayloadLength();
 
-				// Write the packet length field
-				outgoingMessage.writeInt(msgdata.length + 1 + padding);
+			// Determine the padding length; authenticated ciphers and
+			// encrypt-then-MAC leave the packet length field out of the block
+			// alignment
+			int aligned = payloadLength + 5 + padding;
+			if (encryption instanceof SshAEADCipher
+					|| outgoingMac instanceof SshEtmHmac) {
+				aligned -= 4;
+			}
+			padding += ((outgoingCipherLength - (aligned % outgoingCipherLength)) % outgoingCipherLength);
 
-				// Write the padding length
-				outgoingMessage.write(padding);
+			packet.reserve(padding + outgoingMacLength);
+			packet.padding = padding;
+			packet.sequence = outgoingSequence;
 
-				// Write the message payload
-				outgoingMessage.write(msgdata, 0, msgdata.length);
+			synchronized (outgoingPipeline) {
+				packet.ticket = nextOutgoingTicket++;
+			}
 
-				// Create some random data for the padding
-				ComponentManager
-						.getInstance()
-						.getRND()
-						.nextBytes(outgoingMessage.array(),
-								outgoingMessage.size(), padding);
-				outgoingMessage.move(padding);
+			outgoingSequence++;
+			numOutgoingBytesSinceKEX += payloadLength;
+			numOutgoingPacketsSinceKEX++;
 
-				// Generate the MAC
-				if (outgoingMac != null) {
-					outgoingMac.generate(outgoingSequence,
-							outgoingMessage.array(), 0, outgoingMessage.size(),
-							outgoingMessage.array(), outgoingMessage.size());
+			if (outgoingSequence >= 4294967296L) {
+				outgoingSequence = 0;
+			}
+		} catch (IOException ex) {
+			packet.reset();
+			internalDisconnect();
+			throw new SshException("Unexpected termination: "
+					+ ex.getMessage(), SshException.UNEXPECTED_TERMINATION);
+		}
+	}
 
-				}
+	/**
+	 * Sign, encrypt and write a packet that has been prepared by
+	 * {@link #preparePacket(TransportPacket)}, waiting for all packets with
+	 * earlier sequence numbers to pass through each stage first.
+	 */
+	private void writePacket(TransportPacket packet, boolean isActivity)
+			throws SshException {
 
-				// Perfrom encrpytion
-				if (encryption != null) {
-					encryption.transform(outgoingMessage.array(), 0,
-							outgoingMessage.array(), 0, outgoingMessage.size());
-				}
+		boolean completed = false;
 
-				outgoingMessage.move(outgoingMacLength);
-				outgoingBytes += outgoingMessage.size();
+		try {
+			byte[] buf = packet.array();
+			int payloadLength = packet.getPayloadLength();
+			int padding = packet.padding;
+			int messageid = packet.getMessageId();
 
-				// Send!
-				transportOut.write(outgoingMessage.array(), 0,
-						outgoingMessage.size());
-				transportOut.flush();
+			awaitOutgoingTurn(packet.ticket, false);
+			try {
+				// Write the packet length field and padding length
+				ByteArrayWriter.encodeInt(buf, 0, payloadLength + 1 + padding);
+				buf[4] = (byte) padding;
 
-				if (isActivity)
-					lastActivity = System.currentTimeMillis();
+				// Create some random data for the padding
+				ComponentManager.getInstance().getRND()
+						.nextBytes(buf, packet.size(), padding);
+				packet.move(padding);
+
+				if (encryption instanceof SshAEADCipher) {
+					// Encrypt and append the authentication tag
+					((SshAEADCipher) encryption).encryptPacket(
+							packet.sequence, buf, 0, packet.size());
+				} else if (outgoingMac instanceof SshEtmHmac) {
+					// Encrypt all but the packet length and then MAC the
+					// encrypted packet
+					if (encryption != null) {
+						encryption.transform(buf, 4, buf, 4, packet.size() - 4);
+					}
+					outgoingMac.generate(packet.sequence, buf, 0,
+							packet.size(), buf, packet.size());
+				} else {
+					// Generate the MAC
+					if (outgoingMac != null) {
+						outgoingMac.generate(packet.sequence, buf, 0,
+								packet.size(), buf, packet.size());
 
-				if (Log.isDebugEnabled()) {
-					if (verbose) {
-						Log.debug(
-								this,
-								"Sent "
-										+ outgoingMessage.size()
-										+ " bytes of transport data outgoingSequence="
-										+ outgoingSequence
-										+ " totalBytesSinceKEX="
-										+ numOutgoingBytesSinceKEX);
+					}
+
+					// Perfrom encrpytion
+					if (encryption != null) {
+						encryption.transform(buf, 0, buf, 0, packet.size());
 					}
 				}
 
-				outgoingSequence++;
-				numOutgoingBytesSinceKEX += msgdata.length;
-				numOutgoingPacketsSinceKEX++;
+				packet.move(outgoingMacLength);
+			} finally {
+				endOutgoingTurn(false);
+			}
+
+			boolean flush;
+			awaitOutgoingTurn(packet.ticket, true);
+			try {
+				// Send!
+				writeOutgoing(buf, packet.size());
+				outgoingBytes += packet.size();
+			} finally {
+				flush = endOutgoingTurn(true);
+			}
+
+			// Only the last packet of a burst needs to flush
+			if (flush) {
+				flushOutgoing(isTransportMessage(messageid));
+			}
+
+			if (isActivity)
+				lastActivity = System.currentTimeMillis();
+
+			if (Log.isDebugEnabled()) {
+				if (verbose) {
+					Log.debug(this, "Sent " + packet.size()
+							+ " bytes of transport data outgoingSequence="
+							+ packet.sequence);
+				}
+			}
 
-				if (outgoingSequence >= 4294967296L) {
-					outgoingSequence = 0;
+			completed = true;
+		} catch (IOException ex) {
+			internalDisconnect();
+			throw new SshException("Unexpected termination: "
+					+ ex.getMessage(), SshException.UNEXPECTED_TERMINATION);
+		} finally {
+			if (!completed) {
+				// The stream is now out of sequence so release any other
+				// threads waiting to send
+				synchronized (outgoingPipeline) {
+					outgoingPipelineFailed = true;
+					outgoingPipeline.notifyAll();
 				}
+			}
+			packet.reset();
+		}
+	}
+
+	/**
+	 * Write an encrypted packet to the socket, or to the coalescing buffer
+	 * when write coalescing is enabled.
+	 */
+	private void writeOutgoing(byte[] buf, int len) throws IOException {
 
-				if (!transportContext.isKeyReExchangeDisabled()) {
-					if (numOutgoingBytesSinceKEX >= MAX_NUM_BYTES_BEFORE_REKEY
-							|| numOutgoingPacketsSinceKEX >= MAX_NUM_PACKETS_BEFORE_REKEY) {
+		if (!transportContext.isWriteCoalescing()) {
+			transportOut.write(buf, 0, len);
+			return;
+		}
+
+		synchronized (coalescingLock) {
+			int threshold = transportContext.getWriteCoalescingThreshold();
+			if (coalescingBuffer.size() + len > threshold) {
+				drainOutgoing();
+			}
+			if (len >= threshold) {
+				transportOut.write(buf, 0, len);
+			} else {
+				coalescingBuffer.write(buf, 0, len);
+			}
+		}
+	}
+
+	/**
+	 * Flush the end of a burst of packets. With write coalescing enabled the
+	 * data is held back for up to the coalescing delay if another write took
+	 * place within that time, so that chatty traffic is gathered into fewer
+	 * writes whilst a packet sent on an idle connection goes out at once.
+	 */
+	private void flushOutgoing(boolean immediate) throws IOException {
+
+		if (!transportContext.isWriteCoalescing()) {
+			transportOut.flush();
+			return;
+		}
+
+		synchronized (coalescingLock) {
+			long now = System.currentTimeMillis();
+			int delay = transportContext.getWriteCoalescingDelay();
+			if (immediate || delay <= 0 || now - lastOutgoingFlush >= delay) {
+				drainOutgoing();
+				lastOutgoingFlush = now;
+			} else if (!flushScheduled) {
+				flushScheduled = true;
+				getCoalescingTimer().schedule(new CoalescingFlush(),
+						lastOutgoingFlush + delay - now, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Write any coalesced data to the socket and flush it. Must be called
+	 * whilst holding the coalescing lock.
+	 */
+	private void drainOutgoing() throws IOException {
+		if (coalescingBuffer.size() > 0) {
+			transportOut.write(coalescingBuffer.array(), 0,
+					coalescingBuffer.size());
+			coalescingBuffer.reset();
+		}
+		transportOut.flush();
+	}
+
+	/**
+	 * Write any packets held back by write coalescing immediately. Latency
+	 * sensitive callers may call this after sending a message to avoid the
+	 * coalescing delay.
+	 * 
+	 * @throws SshException
+	 */
+	public void flush() throws SshException {
+		if (!transportContext.isWriteCoalescing()) {
+			return;
+		}
+		try {
+			synchronized (coalescingLock) {
+				if (coalescingBuffer.size() == 0) {
+					return;
+				}
+				drainOutgoing();
+				lastOutgoingFlush = System.currentTimeMillis();
+				flushScheduled = false;
+			}
+		} catch (IOException ex) {
+			internalDisconnect();
+			throw new SshException("Unexpected termination: "
+					+ ex.getMessage(), SshException.UNEXPECTED_TERMINATION);
+		}
+	}
 
-						if (Log.isDebugEnabled()) {
-							Log.debug(this,
-									"Requesting key re-exchange");
+	static synchronized ScheduledExecutorService getCoalescingTimer() {
+		if (coalescingTimer == null) {
+			coalescingTimer = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "TransportProtocol-Flusher");
+							t.setDaemon(true);
+							return t;
 						}
-						sendKeyExchangeInit(false);
+					});
+		}
+		return coalescingTimer;
+	}
+
+	/**
+	 * Writes the coalesced data once the coalescing delay has passed since
+	 * the last flush, unless it has been flushed in the meantime.
+	 */
+	class CoalescingFlush implements Runnable {
+		public void run() {
+			try {
+				synchronized (coalescingLock) {
+					if (!flushScheduled || !isConnected()) {
+						return;
 					}
+					long wait = lastOutgoingFlush
+							+ transportContext.getWriteCoalescingDelay()
+							- System.currentTimeMillis();
+					if (wait > 0) {
+						getCoalescingTimer().schedule(this, wait,
+								TimeUnit.MILLISECONDS);
+						return;
+					}
+					flushScheduled = false;
+					drainOutgoing();
+					lastOutgoingFlush = System.currentTimeMillis();
 				}
 			} catch (IOException ex) {
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Failed to flush coalesced packets", ex);
+				}
 				internalDisconnect();
-				throw new SshException("Unexpected termination: "
-						+ ex.getMessage(), SshException.UNEXPECTED_TERMINATION);
 			}
 		}
+	}
 
+	private void awaitOutgoingTurn(long ticket, boolean write)
+			throws SshException {
+
+		boolean interrupted = false;
+		try {
+			synchronized (outgoingPipeline) {
+				while ((write ? outgoingWriteTicket : outgoingEncryptTicket) != ticket) {
+					if (outgoingPipelineFailed) {
+						throw new SshException(
+								"The transport failed whilst sending a message",
+								SshException.UNEXPECTED_TERMINATION);
+					}
+					try {
+						outgoingPipeline.wait();
+					} catch (InterruptedException e) {
+						// Our turn cannot be skipped so keep waiting
+						interrupted = true;
+					}
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Pass the turn at a stage to the next packet.
+	 * 
+	 * @return <code>true</code> if this was the last packet queued for the
+	 *         stage
+	 */
+	private boolean endOutgoingTurn(boolean write) {
+		synchronized (outgoingPipeline) {
+			long next;
+			if (write) {
+				next = ++outgoingWriteTicket;
+			} else {
+				next = ++outgoingEncryptTicket;
+			}
+			outgoingPipeline.notifyAll();
+			return next == nextOutgoingTicket;
+		}
 	}
 
 	/**
@@ -728,6 +1054,23 @@ public class TransportProtocol implements SshMessageReader {
 	}
 
 	byte[] readMessage() throws SshException {
+		PacketBuffer packet = readPacket();
+		try {
+			return packet.toByteArray();
+		} finally {
+			packet.release();
+		}
+	}
+
+	/**
+	 * Read the next packet into a buffer taken from the packet pool. The
+	 * returned buffer spans the message payload only and must be released by
+	 * the caller once the message has been processed.
+	 * 
+	 * @return PacketBuffer
+	 * @throws SshException
+	 */
+	PacketBuffer readPacket() throws SshException {
 		if (Log.isDebugEnabled()) {
 			if (verbose) {
 				Log.debug(this, "transport read message");
@@ -744,124 +1087,83 @@ public class TransportProtocol implements SshMessageReader {
 					}
 				}
 
-				readWithTimeout(incomingMessage, 0, incomingCipherLength,
-						transportContext.getPartialMessageTimeout(), false);
-
-				// Decrypt the data if we have a valid cipher
-				if (decryption != null) {
-					decryption.transform(incomingMessage, 0, incomingMessage,
-							0, incomingCipherLength);
-
-					// Preview the message length
-				}
-				int msglen = (int) ByteArrayReader.readInt(incomingMessage, 0);
+				readMessageBlock();
 
-				if (msglen <= 0)
-					throw new SshException(
-							"Server sent invalid message length of " + msglen
-									+ "!", SshException.PROTOCOL_VIOLATION);
+				return readMessageBody(readMessageHeader());
+			} catch (InterruptedIOException ex) {
+				throw new SshException(
+						"Interrupted IO; possible socket timeout detected?",
+						SshException.SOCKET_TIMEOUT);
+			} catch (IOException ex) {
+				internalDisconnect();
+				throw new SshException("Unexpected terminaton: "
+						+ (ex.getMessage() != null ? ex.getMessage() : ex
+								.getClass().getName()) + " sequenceNo = "
+						+ incomingSequence + " bytesIn = " + incomingBytes
+						+ " bytesOut = " + outgoingBytes,
+						SshException.UNEXPECTED_TERMINATION, ex);
+			}
+		}
 
-				int padlen = (incomingMessage[4] & 0xFF);
-				int remaining = (msglen - (incomingCipherLength - 4));
+	}
 
-				if (Log.isDebugEnabled()) {
-					if (verbose) {
-						Log.debug(this,
-								"Incoming transport message msglen=" + msglen
-										+ " padlen=" + padlen);
-					}
-				}
+	/**
+	 * Get the next packet that is not a transport protocol message. This is
+	 * the pooled counterpart of {@link #nextMessage()}; the caller owns the
+	 * returned buffer and must release it.
+	 * 
+	 * @return PacketBuffer
+	 * @throws SshException
+	 */
+	public PacketBuffer nextPacket() throws SshException {
+		if (Log.isDebugEnabled()) {
+			if (verbose) {
+				Log.debug(this, "transport next packet");
+			}
+		}
+		synchronized (transportIn) {
 
-				// Verify that the packet length is good
-				if (remaining < 0) {
-					internalDisconnect();
-					throw new SshException(
-							"EOF whilst reading message data block",
-							SshException.UNEXPECTED_TERMINATION);
-				} else if (remaining > incomingMessage.length
-						- incomingCipherLength) {
-
-					if (remaining + incomingCipherLength + incomingMacLength > transportContext
-							.getMaximumPacketLength()) {
-						internalDisconnect();
-						throw new SshException(
-								"Incoming packet length violates SSH protocol ["
-										+ remaining + incomingCipherLength
-										+ " bytes]",
-								SshException.UNEXPECTED_TERMINATION);
-					}
-					// Resize the incomingMessage buffer
-					byte[] tmp = new byte[remaining + incomingCipherLength
-							+ incomingMacLength];
-					System.arraycopy(incomingMessage, 0, tmp, 0,
-							incomingCipherLength);
-					incomingMessage = tmp;
+			PacketBuffer packet;
 
-				}
+			do {
+				packet = readPacket();
+			} while (processMessage(packet));
+			return packet;
+		}
+	}
 
-				// Read, decrypt and save the remaining data
-				if (remaining > 0) {
+	/**
+	 * Non-blocking counterpart of {@link #readPacket()} used by event driven
+	 * transports. The packet is assembled from whatever data the provider has
+	 * already buffered; if a complete packet is not yet available the partial
+	 * state is retained and <code>null</code> is returned so that the caller
+	 * can try again when more data arrives.
+	 * 
+	 * @return the next message payload or <code>null</code> if a complete
+	 *         packet has not yet been received
+	 * @throws SshException
+	 */
+	PacketBuffer pollPacket() throws SshException {
 
-					readWithTimeout(incomingMessage, incomingCipherLength,
-							remaining,
-							transportContext.getPartialMessageTimeout(), true);
+		synchronized (transportIn) {
 
-					if (decryption != null) {
-						decryption.transform(incomingMessage,
-								incomingCipherLength, incomingMessage,
-								incomingCipherLength, remaining);
-					}
-					// Verify the message
-				}
-				if (incomingMac != null) {
-					readWithTimeout(incomingMessage, incomingCipherLength
-							+ remaining, incomingMacLength,
-							transportContext.getPartialMessageTimeout(), true);
-
-					// Verify the mac
-					if (!incomingMac.verify(incomingSequence, incomingMessage,
-							0, incomingCipherLength + remaining,
-							incomingMessage, incomingCipherLength + remaining)) {
-						disconnect(TransportProtocol.MAC_ERROR,
-								"Corrupt Mac on input");
-						throw new SshException("Corrupt Mac on input",
-								SshException.PROTOCOL_VIOLATION);
+			try {
+				if (pendingMessageRemaining < 0) {
+					if (transportIn.available() < incomingCipherLength) {
+						return null;
 					}
+					readMessageBlock();
+					pendingMessageRemaining = readMessageHeader();
 				}
 
-				if (++incomingSequence >= 4294967296L) {
-					incomingSequence = 0;
+				if (transportIn.available() < pendingMessageRemaining
+						+ incomingMacLength) {
+					return null;
 				}
 
-				incomingBytes += incomingCipherLength + remaining
-						+ incomingMacLength;
-
-				byte[] payload = new byte[(msglen + 4) - padlen - 5];
-				System.arraycopy(incomingMessage, 5, payload, 0, payload.length);
-
-				// Uncompress the message payload if necersary
-				if (incomingCompression != null && isIncomingCompressing) {
-					return incomingCompression.uncompress(payload, 0,
-							payload.length);
-				}
-
-				numIncomingBytesSinceKEX += payload.length;
-				numIncomingPacketsSinceKEX++;
-
-				if (!transportContext.isKeyReExchangeDisabled()) {
-					if (numIncomingBytesSinceKEX >= MAX_NUM_BYTES_BEFORE_REKEY
-							|| numIncomingPacketsSinceKEX >= MAX_NUM_PACKETS_BEFORE_REKEY) {
-						sendKeyExchangeInit(false);
-					}
-				}
-
-				if (Log.isDebugEnabled()) {
-					if (verbose) {
-						Log.debug(this,
-								"Completed incoming transport message");
-					}
-				}
-				return payload;
+				int remaining = pendingMessageRemaining;
+				pendingMessageRemaining = -1;
+				return readMessageBody(remaining);
 			} catch (InterruptedIOException ex) {
 				throw new SshException(
 						"Interrupted IO; possible socket timeout detected?",
@@ -876,7 +1178,211 @@ public class TransportProtocol implements SshMessageReader {
 						SshException.UNEXPECTED_TERMINATION, ex);
 			}
 		}
+	}
+
+	/**
+	 * Read the first cipher block of a packet into the incoming block buffer.
+	 */
+	private void readMessageBlock() throws SshException {
+		if (incomingMessage.length < incomingCipherLength) {
+			incomingMessage = new byte[incomingCipherLength];
+		}
+		readWithTimeout(incomingMessage, 0, incomingCipherLength,
+				transportContext.getPartialMessageTimeout(), false);
+	}
+
+	/**
+	 * Decrypt and validate the first cipher block of a packet and acquire a
+	 * pooled buffer large enough to hold the whole packet.
+	 * 
+	 * @return the number of bytes of the packet remaining after the first
+	 *         block, excluding the MAC
+	 */
+	private int readMessageHeader() throws SshException, IOException {
+
+		int msglen;
+		if (decryption instanceof SshAEADCipher) {
+			// The block stays encrypted until the whole packet and its tag
+			// have been read and verified
+			msglen = ((SshAEADCipher) decryption).readPacketLength(
+					incomingSequence, incomingMessage, 0);
+		} else if (incomingMac instanceof SshEtmHmac) {
+			// The length is sent in the clear and the rest of the block is
+			// decrypted only once the MAC has been verified
+			msglen = (int) ByteArrayReader.readInt(incomingMessage, 0);
+
+			if (decryption != null
+					&& msglen % incomingCipherLength != 0) {
+				disconnect(TransportProtocol.PROTOCOL_ERROR,
+						"Invalid packet length");
+				throw new SshException("Packet length " + msglen
+						+ " is not a multiple of the cipher block size",
+						SshException.PROTOCOL_VIOLATION);
+			}
+		} else {
+			// Decrypt the data if we have a valid cipher
+			if (decryption != null) {
+				decryption.transform(incomingMessage, 0, incomingMessage, 0,
+						incomingCipherLength);
+			}
+
+			// Preview the message length
+			msglen = (int) ByteArrayReader.readInt(incomingMessage, 0);
+		}
+
+		if (msglen <= 0)
+			throw new SshException("Server sent invalid message length of "
+					+ msglen + "!", SshException.PROTOCOL_VIOLATION);
+
+		int remaining = (msglen - (incomingCipherLength - 4));
+
+		if (Log.isDebugEnabled()) {
+			if (verbose) {
+				Log.debug(this, "Incoming transport message msglen=" + msglen);
+			}
+		}
+
+		// Verify that the packet length is good
+		if (remaining < 0) {
+			internalDisconnect();
+			throw new SshException("EOF whilst reading message data block",
+					SshException.UNEXPECTED_TERMINATION);
+		} else if (remaining + incomingCipherLength > transportContext
+				.getMaximumPacketLength()) {
+			internalDisconnect();
+			throw new SshException(
+					"Incoming packet length violates SSH protocol ["
+							+ remaining + incomingCipherLength + " bytes]",
+					SshException.UNEXPECTED_TERMINATION);
+		}
+
+		// Take a buffer from the pool for the whole packet
+		incomingPacket = bufferPool.acquire(incomingCipherLength + remaining
+				+ incomingMacLength);
+		System.arraycopy(incomingMessage, 0, incomingPacket.array(), 0,
+				incomingCipherLength);
+
+		return remaining;
+	}
+
+	/**
+	 * Read, decrypt and verify the rest of a packet whose header has been
+	 * processed by {@link #readMessageHeader()}. The data is read directly
+	 * into the pooled packet buffer which is then returned narrowed to the
+	 * message payload.
+	 */
+	private PacketBuffer readMessageBody(int remaining) throws SshException,
+			IOException {
+
+		PacketBuffer packet = incomingPacket;
+		incomingPacket = null;
+
+		byte[] buf = packet.array();
+
+		if (decryption instanceof SshAEADCipher) {
+			// Read the rest of the packet and its tag, then verify and
+			// decrypt the whole packet together
+			readWithTimeout(buf, incomingCipherLength, remaining
+					+ incomingMacLength,
+					transportContext.getPartialMessageTimeout(), true);
+
+			if (!((SshAEADCipher) decryption).decryptPacket(incomingSequence,
+					buf, 0, incomingCipherLength + remaining)) {
+				disconnect(TransportProtocol.MAC_ERROR, "Corrupt Mac on input");
+				throw new SshException("Corrupt Mac on input",
+						SshException.PROTOCOL_VIOLATION);
+			}
+		} else if (incomingMac instanceof SshEtmHmac) {
+			// Verify the encrypted packet before decrypting any of it so
+			// that corrupt packets are rejected without the cipher work
+			readWithTimeout(buf, incomingCipherLength, remaining
+					+ incomingMacLength,
+					transportContext.getPartialMessageTimeout(), true);
+
+			if (!incomingMac.verify(incomingSequence, buf, 0,
+					incomingCipherLength + remaining, buf,
+					incomingCipherLength + remaining)) {
+				disconnect(TransportProtocol.MAC_ERROR, "Corrupt Mac on input");
+				throw new SshException("Corrupt Mac on input",
+						SshException.PROTOCOL_VIOLATION);
+			}
+
+			if (decryption != null) {
+				decryption.transform(buf, 4, buf, 4, incomingCipherLength
+						+ remaining - 4);
+			}
+		} else {
+			if (remaining > 0) {
+				// Read, decrypt and save the remaining data
+				readWithTimeout(buf, incomingCipherLength, remaining,
+						transportContext.getPartialMessageTimeout(), true);
+
+				if (decryption != null) {
+					decryption.transform(buf, incomingCipherLength, buf,
+							incomingCipherLength, remaining);
+				}
+			}
+
+			if (incomingMac != null) {
+				readWithTimeout(buf, incomingCipherLength + remaining,
+						incomingMacLength,
+						transportContext.getPartialMessageTimeout(), true);
+
+				// Verify the mac
+				if (!incomingMac.verify(incomingSequence, buf, 0,
+						incomingCipherLength + remaining, buf,
+						incomingCipherLength + remaining)) {
+					disconnect(TransportProtocol.MAC_ERROR,
+							"Corrupt Mac on input");
+					throw new SshException("Corrupt Mac on input",
+							SshException.PROTOCOL_VIOLATION);
+				}
+			}
+		}
+
+		if (++incomingSequence >= 4294967296L) {
+			incomingSequence = 0;
+		}
+
+		incomingBytes += incomingCipherLength + remaining + incomingMacLength;
+
+		int msglen = (int) ByteArrayReader.readInt(buf, 0);
+		int padlen = (buf[4] & 0xFF);
+		int payloadlen = (msglen + 4) - padlen - 5;
+		if (payloadlen < 0) {
+			disconnect(TransportProtocol.PROTOCOL_ERROR,
+					"Invalid padding length");
+			throw new SshException("Invalid padding length " + padlen,
+					SshException.PROTOCOL_VIOLATION);
+		}
+		packet.slice(5, payloadlen);
+
+		// Uncompress the message payload if necersary
+		if (incomingCompression != null && isIncomingCompressing) {
+			try {
+				return PacketBuffer.wrap(incomingCompression.uncompress(buf, 5,
+						payloadlen));
+			} finally {
+				packet.release();
+			}
+		}
 
+		numIncomingBytesSinceKEX += payloadlen;
+		numIncomingPacketsSinceKEX++;
+
+		if (!transportContext.isKeyReExchangeDisabled()) {
+			if (numIncomingBytesSinceKEX >= MAX_NUM_BYTES_BEFORE_REKEY
+					|| numIncomingPacketsSinceKEX >= MAX_NUM_PACKETS_BEFORE_REKEY) {
+				sendKeyExchangeInit(false);
+			}
+		}
+
+		if (Log.isDebugEnabled()) {
+			if (verbose) {
+				Log.debug(this, "Completed incoming transport message");
+			}
+		}
+		return packet;
 	}
 
 	public SshKeyExchangeClient getKeyExchange() {
@@ -1074,21 +1580,33 @@ public class TransportProtocol implements SshMessageReader {
 
 				SshCipher decryption = (SshCipher) transportContext
 						.supportedCiphersSC().getInstance(cipherSC);
-				String macCS = selectNegotiatedComponent(
-						transportContext.supportedMacsCS().list(
-								transportContext.getPreferredMacCS()),
-						checkValidString("client->server hmac", serverCSMacs));
-
-				String macSC = selectNegotiatedComponent(
-						transportContext.supportedMacsSC().list(
-								transportContext.getPreferredMacSC()),
-						checkValidString("server->client hmac", serverSCMacs));
-
-				SshHmac outgoingMac = (SshHmac) transportContext
-						.supportedMacsCS().getInstance(macCS);
+				// Authenticated ciphers provide their own integrity so no MAC
+				// is negotiated for a direction that uses one
+				String macCS = IMPLICIT_MAC;
+				SshHmac outgoingMac = null;
+
+				if (!(encryption instanceof SshAEADCipher)) {
+					macCS = selectNegotiatedComponent(
+							transportContext.supportedMacsCS().list(
+									transportContext.getPreferredMacCS()),
+							checkValidString("client->server hmac",
+									serverCSMacs));
+					outgoingMac = (SshHmac) transportContext
+							.supportedMacsCS().getInstance(macCS);
+				}
 
-				SshHmac incomingMac = (SshHmac) transportContext
-						.supportedMacsSC().getInstance(macSC);
+				String macSC = IMPLICIT_MAC;
+				SshHmac incomingMac = null;
+
+				if (!(decryption instanceof SshAEADCipher)) {
+					macSC = selectNegotiatedComponent(
+							transportContext.supportedMacsSC().list(
+									transportContext.getPreferredMacSC()),
+							checkValidString("server->client hmac",
+									serverSCMacs));
+					incomingMac = (SshHmac) transportContext
+							.supportedMacsSC().getInstance(macSC);
+				}
 
 				String compressionCS = selectNegotiatedComponent(
 						transportContext.supportedCompressionsCS().list(
@@ -1242,8 +1760,13 @@ public class TransportProtocol implements SshMessageReader {
 						makeSshKey('C'));
 				outgoingCipherLength = encryption.getBlockSize();
 
-				outgoingMac.init(makeSshKey('E'));
-				outgoingMacLength = outgoingMac.getMacLength();
+				if (encryption instanceof SshAEADCipher) {
+					outgoingMacLength = ((SshAEADCipher) encryption)
+							.getTagLength();
+				} else {
+					outgoingMac.init(makeSshKey('E'));
+					outgoingMacLength = outgoingMac.getMacLength();
+				}
 
 				this.encryption = encryption;
 				this.outgoingMac = outgoingMac;
@@ -1309,8 +1832,13 @@ public class TransportProtocol implements SshMessageReader {
 						makeSshKey('D'));
 				incomingCipherLength = decryption.getBlockSize();
 
-				incomingMac.init(makeSshKey('F'));
-				incomingMacLength = incomingMac.getMacLength();
+				if (decryption instanceof SshAEADCipher) {
+					incomingMacLength = ((SshAEADCipher) decryption)
+							.getTagLength();
+				} else {
+					incomingMac.init(makeSshKey('F'));
+					incomingMacLength = incomingMac.getMacLength();
+				}
 
 				this.decryption = decryption;
 				this.incomingMac = incomingMac;
@@ -1458,6 +1986,39 @@ public class TransportProtocol implements SshMessageReader {
 			shutdownHooks.addElement(r);
 	}
 
+	/**
+	 * Process a pooled message. Only transport protocol messages are copied
+	 * out of the buffer; if the message is processed by the transport the
+	 * buffer is released, otherwise ownership remains with the caller.
+	 * 
+	 * @param packet
+	 * @return <code>true</code> if the message was processed by the transport
+	 *         and has been released, otherwise <code>false</code>.
+	 * @throws SshException
+	 */
+	public boolean processMessage(PacketBuffer packet) throws SshException {
+
+		if (packet.length() > 0) {
+			switch (packet.get(0)) {
+			case SSH_MSG_DISCONNECT:
+			case SSH_MSG_IGNORE:
+			case SSH_MSG_DEBUG:
+			case SSH_MSG_NEWKEYS:
+			case SSH_MSG_KEX_INIT:
+				break;
+			default:
+				lastActivity = System.currentTimeMillis();
+				// Not a transport protocol message
+				return false;
+			}
+		}
+
+		// Transport messages are rare so copy them out and release the buffer
+		byte[] msg = packet.toByteArray();
+		packet.release();
+		return processMessage(msg);
+	}
+
 	/**
 	 * Process a message. This should be called when reading messages from
 	 * outside of the transport protocol so that the transport protocol can
@@ -1721,6 +2282,16 @@ public class TransportProtocol implements SshMessageReader {
 			// Put it all together
 			keydata.write(data);
 
+			// Some ciphers need more key data than two rounds provide, so
+			// keep extending with the hash of everything produced so far
+			while (keydata.size() < MINIMUM_KEY_DATA) {
+				hash.reset();
+				hash.putBigInteger(keyExchange.getSecret());
+				hash.putBytes(keyExchange.getExchangeHash());
+				hash.putBytes(keydata.toByteArray());
+				keydata.write(hash.doFinal());
+			}
+
 			// Return it
 			return keydata.toByteArray();
 		} catch (SshException e) {
@@ -22,6 +22,27 @@ package com.sshtools.util;
 
 public class Arrays {
 
+	/**
+	 * Compare two byte ranges in time that depends only on their length and
+	 * not on where they first differ, so that comparing a received MAC does
+	 * not reveal how much of it was correct.
+	 * 
+	 * @param a
+	 * @param aoff
+	 * @param b
+	 * @param boff
+	 * @param len
+	 * @return <code>true</code> if the ranges are equal
+	 */
+	public static boolean constantTimeEquals(byte[] a, int aoff, byte[] b,
+			int boff, int len) {
+		int result = 0;
+		for (int i = 0; i < len; i++) {
+			result |= a[aoff + i] ^ b[boff + i];
+		}
+		return result == 0;
+	}
+
 	/**
 	 * Returns the index of the median of the three indexed integers.
 	 */
@@ -25,6 +25,7 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Connects an input stream to an outputstream. Reads from in stream and writes
@@ -37,6 +38,7 @@ public class IOStreamConnector {
 	private InputStream in = null;
 	private OutputStream out = null;
 	private Thread thread;
+	private ThreadFactory threadFactory;
 	private long bytes;
 	private boolean closeInput = true;
 	private boolean closeOutput = true;
@@ -112,6 +114,16 @@ public class IOStreamConnector {
 		this.closeOutput = closeOutput;
 	}
 
+	/**
+	 * Set the factory used to create the thread that transfers the data. When
+	 * no factory is set a new platform thread is created.
+	 * 
+	 * @param threadFactory
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
 	public void setBufferSize(int numbytes) {
 		if (numbytes <= 0) {
 			throw new IllegalArgumentException(
@@ -131,7 +143,11 @@ public class IOStreamConnector {
 		this.in = in;
 		this.out = out;
 
-		thread = new Thread(new IOStreamConnectorThread());
+		if (threadFactory != null) {
+			thread = threadFactory.newThread(new IOStreamConnectorThread());
+		} else {
+			thread = new Thread(new IOStreamConnectorThread());
+		}
 		thread.setDaemon(true);
 		thread.setName("IOStreamConnector " + in.toString() + ">>"
 				+ out.toString());
@@ -189,8 +205,11 @@ public class IOStreamConnector {
 						// Record it
 						bytes += read;
 
-						// Flush it
-						out.flush();
+						// Flush it unless more data is already waiting, so
+						// that bursts can be coalesced into fewer writes
+						if (in.available() <= 0) {
+							out.flush();
+						}
 
 						// Inform all of the listeners
 						for (int i = 0; i < listenerList.size(); i++) {
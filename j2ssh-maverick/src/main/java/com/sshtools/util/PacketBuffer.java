@@ -0,0 +1,167 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A reference counted view onto a byte array that has been obtained from a
+ * {@link PacketBufferPool}. The buffer starts life with a single reference
+ * held by whoever acquired it; each additional holder must call
+ * {@link #retain()} and every holder must eventually call {@link #release()}.
+ * When the last reference is released the underlying array is returned to the
+ * pool and must no longer be accessed.
+ * </p>
+ * 
+ * <p>
+ * Buffers that are not released are simply garbage collected, so failing to
+ * release a buffer costs an allocation but is never unsafe.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class PacketBuffer {
+
+	byte[] buf;
+	int offset;
+	int length;
+	PacketBufferPool pool;
+	AtomicInteger references = new AtomicInteger(1);
+
+	PacketBuffer(byte[] buf, int offset, int length, PacketBufferPool pool) {
+		this.buf = buf;
+		this.offset = offset;
+		this.length = length;
+		this.pool = pool;
+	}
+
+	/**
+	 * Wrap an existing array in an unpooled buffer.
+	 * 
+	 * @param buf
+	 * @return PacketBuffer
+	 */
+	public static PacketBuffer wrap(byte[] buf) {
+		return new PacketBuffer(buf, 0, buf.length, null);
+	}
+
+	/**
+	 * Provides access to the underlying array.
+	 * 
+	 * @return byte[]
+	 */
+	public byte[] array() {
+		return buf;
+	}
+
+	/**
+	 * The offset of the first valid byte within the array.
+	 * 
+	 * @return int
+	 */
+	public int offset() {
+		return offset;
+	}
+
+	/**
+	 * The number of valid bytes in the buffer.
+	 * 
+	 * @return int
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Narrow the view of this buffer to a region of the underlying array.
+	 * 
+	 * @param offset
+	 * @param length
+	 */
+	public void slice(int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > buf.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Get the byte at an index relative to the start of the view.
+	 * 
+	 * @param index
+	 * @return byte
+	 */
+	public byte get(int index) {
+		return buf[offset + index];
+	}
+
+	/**
+	 * Copy the contents of the buffer into a new array.
+	 * 
+	 * @return byte[]
+	 */
+	public byte[] toByteArray() {
+		byte[] tmp = new byte[length];
+		System.arraycopy(buf, offset, tmp, 0, length);
+		return tmp;
+	}
+
+	/**
+	 * Add a reference to this buffer.
+	 * 
+	 * @return this buffer
+	 */
+	public PacketBuffer retain() {
+		if (references.getAndIncrement() <= 0) {
+			references.getAndDecrement();
+			throw new IllegalStateException("Buffer has already been released");
+		}
+		return this;
+	}
+
+	/**
+	 * Remove a reference from this buffer, returning the array to its pool
+	 * once no references remain.
+	 */
+	public void release() {
+		int count = references.decrementAndGet();
+		if (count == 0) {
+			if (pool != null) {
+				pool.recycle(buf);
+			}
+			buf = null;
+		} else if (count < 0) {
+			references.incrementAndGet();
+			throw new IllegalStateException("Buffer has already been released");
+		}
+	}
+
+	/**
+	 * The number of references currently held on this buffer.
+	 * 
+	 * @return int
+	 */
+	public int referenceCount() {
+		return references.get();
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A bounded pool of byte arrays used to hold incoming packets. Arrays are
+ * grouped into power of two size classes so that a buffer released by one
+ * packet can be reused by any later packet of a similar size. Each size class
+ * retains at most {@link #getMaximumPooledBuffers()} arrays; any more are left
+ * to the garbage collector, as are requests larger than
+ * {@link #getMaximumPooledSize()}.
+ * </p>
+ * 
+ * <p>
+ * The shared instance returned by {@link #getInstance()} is used by the
+ * transport and subsystem readers. The number of arrays retained per size
+ * class can be set with the <code>maverick.packetBufferPool.maxBuffers</code>
+ * system property, a value of zero disables pooling.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class PacketBufferPool {
+
+	static final int MINIMUM_SIZE_SHIFT = 8;
+	static final int MAXIMUM_SIZE_SHIFT = 18;
+
+	private static PacketBufferPool instance;
+
+	ConcurrentLinkedQueue<byte[]>[] free;
+	AtomicInteger[] freeCount;
+	int maximumPooledBuffers;
+
+	AtomicLong allocated = new AtomicLong();
+	AtomicLong allocatedBytes = new AtomicLong();
+	AtomicLong reused = new AtomicLong();
+
+	/**
+	 * Create a pool that retains up to <code>maximumPooledBuffers</code>
+	 * arrays in each size class.
+	 * 
+	 * @param maximumPooledBuffers
+	 */
+	public PacketBufferPool(int maximumPooledBuffers) {
+		this.maximumPooledBuffers = maximumPooledBuffers;
+		int classes = MAXIMUM_SIZE_SHIFT - MINIMUM_SIZE_SHIFT + 1;
+		@SuppressWarnings("unchecked")
+		ConcurrentLinkedQueue<byte[]>[] queues = (ConcurrentLinkedQueue<byte[]>[])
+				new ConcurrentLinkedQueue<?>[classes];
+		free = queues;
+		freeCount = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			free[i] = new ConcurrentLinkedQueue<byte[]>();
+			freeCount[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Get the shared pool.
+	 * 
+	 * @return PacketBufferPool
+	 */
+	public static synchronized PacketBufferPool getInstance() {
+		if (instance == null) {
+			instance = new PacketBufferPool(Integer.parseInt(System
+					.getProperty("maverick.packetBufferPool.maxBuffers", "64")));
+		}
+		return instance;
+	}
+
+	/**
+	 * Acquire a buffer with space for at least <code>length</code> bytes. The
+	 * view of the returned buffer starts at offset zero and spans
+	 * <code>length</code> bytes.
+	 * 
+	 * @param length
+	 * @return PacketBuffer
+	 */
+	public PacketBuffer acquire(int length) {
+
+		int idx = sizeClass(length);
+		if (idx < 0) {
+			return new PacketBuffer(allocate(length), 0, length, null);
+		}
+
+		byte[] buf = free[idx].poll();
+		if (buf != null) {
+			freeCount[idx].decrementAndGet();
+			reused.incrementAndGet();
+		} else {
+			buf = allocate(1 << (idx + MINIMUM_SIZE_SHIFT));
+		}
+		return new PacketBuffer(buf, 0, length, this);
+	}
+
+	void recycle(byte[] buf) {
+
+		int idx = sizeClass(buf.length);
+		if (idx < 0 || buf.length != 1 << (idx + MINIMUM_SIZE_SHIFT)) {
+			return;
+		}
+
+		if (freeCount[idx].incrementAndGet() > maximumPooledBuffers) {
+			freeCount[idx].decrementAndGet();
+			return;
+		}
+		free[idx].offer(buf);
+	}
+
+	private byte[] allocate(int length) {
+		allocated.incrementAndGet();
+		allocatedBytes.addAndGet(length);
+		return new byte[length];
+	}
+
+	private int sizeClass(int length) {
+		if (maximumPooledBuffers <= 0 || length > getMaximumPooledSize()) {
+			return -1;
+		}
+		int shift = MINIMUM_SIZE_SHIFT;
+		while ((1 << shift) < length) {
+			shift++;
+		}
+		return shift - MINIMUM_SIZE_SHIFT;
+	}
+
+	/**
+	 * The largest request that will be satisfied from the pool.
+	 * 
+	 * @return int
+	 */
+	public int getMaximumPooledSize() {
+		return 1 << MAXIMUM_SIZE_SHIFT;
+	}
+
+	/**
+	 * The maximum number of arrays retained in each size class.
+	 * 
+	 * @return int
+	 */
+	public int getMaximumPooledBuffers() {
+		return maximumPooledBuffers;
+	}
+
+	/**
+	 * The number of arrays this pool has had to allocate.
+	 * 
+	 * @return long
+	 */
+	public long getAllocationCount() {
+		return allocated.get();
+	}
+
+	/**
+	 * The total size of the arrays this pool has had to allocate.
+	 * 
+	 * @return long
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * The number of requests satisfied with a recycled array.
+	 * 
+	 * @return long
+	 */
+	public long getReuseCount() {
+		return reused.get();
+	}
+}
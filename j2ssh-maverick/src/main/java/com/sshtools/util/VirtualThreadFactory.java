@@ -0,0 +1,92 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * A {@link ThreadFactory} that creates virtual threads. Virtual threads are
+ * cheap to create and park, so the blocking threads used by the API for
+ * message pumps, port forwarding listeners and stream connectors no longer
+ * each hold a platform thread and its stack.
+ * </p>
+ * 
+ * <p>
+ * Virtual threads require a Java 21 or later runtime. The API is located by
+ * reflection so this class may be compiled and loaded on older runtimes; use
+ * {@link #isAvailable()} to check before constructing an instance.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class VirtualThreadFactory implements ThreadFactory {
+
+	private static Method ofVirtual;
+	private static Method factory;
+
+	static {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual", new Class<?>[0]);
+			factory = Class.forName("java.lang.Thread$Builder").getMethod(
+					"factory", new Class<?>[0]);
+		} catch (Throwable t) {
+			ofVirtual = null;
+			factory = null;
+		}
+	}
+
+	private ThreadFactory virtualFactory;
+
+	/**
+	 * Create a factory of virtual threads.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if the runtime does not support virtual threads
+	 */
+	public VirtualThreadFactory() {
+		if (!isAvailable()) {
+			throw new UnsupportedOperationException(
+					"Virtual threads are not supported by this Java runtime");
+		}
+		try {
+			virtualFactory = (ThreadFactory) factory.invoke(
+					ofVirtual.invoke(null, new Object[0]), new Object[0]);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException(
+					"Virtual threads could not be created: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Determine whether the runtime supports virtual threads.
+	 * 
+	 * @return boolean
+	 */
+	public static boolean isAvailable() {
+		return ofVirtual != null && factory != null;
+	}
+
+	public Thread newThread(Runnable r) {
+		return virtualFactory.newThread(r);
+	}
+}
@@ -34,6 +34,7 @@ import java.net.InetAddress;
 import java.net.NoRouteToHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 
 import socks.server.ServerAuthenticator;
 
@@ -45,6 +46,7 @@ import com.sshtools.ssh.SshChannel;
 import com.sshtools.ssh.SshClient;
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.SshIOException;
+import com.sshtools.ssh2.Ssh2Context;
 
 /**
     SOCKS4 and SOCKS5 proxy, handles both protocols simultaniously.
@@ -215,7 +217,7 @@ public class ProxyServer implements Runnable{
           log("Accepted from:"+s.getInetAddress().getHostName()+":"
                               +s.getPort());
           ProxyServer ps = new ProxyServer(auth,s, agent);
-          (new Thread(ps)).start();
+          newThread(ps).start();
         }
       }catch(IOException ioe){
         ioe.printStackTrace();
@@ -430,7 +432,7 @@ public class ProxyServer implements Runnable{
       mode = ACCEPT_MODE;
 
       pipe_thread1 = Thread.currentThread();
-      pipe_thread2 = new Thread(this);
+      pipe_thread2 = newThread(this);
       pipe_thread2.start();
 
       //Make timeout infinit.
@@ -473,6 +475,7 @@ public class ProxyServer implements Runnable{
       log("Creating UDP relay server for "+msg.ip+":"+msg.port);
       relayServer = new UDPRelayServer(msg.ip,msg.port,
                         Thread.currentThread(),sock,auth);
+      relayServer.threadFactory = getThreadFactory();
 
       ProxyMessage response;
 
@@ -573,7 +576,7 @@ public class ProxyServer implements Runnable{
          remote_in = s.getInputStream();
          remote_out = s.getOutputStream();
          pipe_thread1 = Thread.currentThread();
-         pipe_thread2 = new Thread(this);
+         pipe_thread2 = newThread(this);
          pipe_thread2.start();
          pipe(in,remote_out);
       }catch(IOException ioe){
@@ -605,6 +608,19 @@ public class ProxyServer implements Runnable{
       }catch(IOException ioe){}
    }
 
+   /**
+    Threads are created by the thread factory of the agent's context, so
+    that they follow the same policy as the rest of the API.
+   */
+   ThreadFactory getThreadFactory(){
+      return Ssh2Context.getThreadFactory(agent == null ? null
+                                          : agent.getContext());
+   }
+
+   Thread newThread(Runnable r){
+      return getThreadFactory().newThread(r);
+   }
+
    static final void log(String s){
      Log.info(ProxyServer.class, s);
    }
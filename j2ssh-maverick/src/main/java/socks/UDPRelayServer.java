@@ -26,6 +26,9 @@ package socks;
 import socks.server.*;
 import java.net.*;
 import java.io.*;
+import java.util.concurrent.ThreadFactory;
+
+import com.sshtools.ssh2.Ssh2Context;
 
 /**
  UDP Relay server, used by ProxyServer to perform udp forwarding.
@@ -45,6 +48,7 @@ class UDPRelayServer implements Runnable{
     Thread master_thread;
 
     ServerAuthenticator auth;
+    ThreadFactory threadFactory = Ssh2Context.PLATFORM_THREADS;
 
     long lastReadTime;
 
@@ -140,8 +144,10 @@ class UDPRelayServer implements Runnable{
        log("Remote socket "+remote_sock.getLocalAddress()+":"+
                             remote_sock.getLocalPort());
 
-       pipe_thread1 = new Thread(this,"pipe1");
-       pipe_thread2 = new Thread(this,"pipe2");
+       pipe_thread1 = threadFactory.newThread(this);
+       pipe_thread1.setName("pipe1");
+       pipe_thread2 = threadFactory.newThread(this);
+       pipe_thread2.setName("pipe2");
 
        lastReadTime = System.currentTimeMillis();
 
@@ -0,0 +1,272 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Method;
+import java.util.Vector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sshtools.ssh.ChannelOpenException;
+import com.sshtools.ssh.PasswordAuthentication;
+import com.sshtools.ssh.SshAuthentication;
+import com.sshtools.ssh.SshClient;
+import com.sshtools.ssh.SshConnector;
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.StubSshClient;
+import com.sshtools.ssh2.Ssh2Context;
+
+public class SshConnectionPoolTest {
+
+	static final String HOST = "localhost";
+	static final int PORT = 22;
+
+	Ssh2Context context;
+	SshAuthentication auth;
+	StubConnectionPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		SshConnector connector = SshConnector.createInstance();
+		context = connector.getContext();
+		context.setChannelLimit(2);
+		auth = new PasswordAuthentication();
+		pool = new StubConnectionPool(connector);
+		pool.setChannelHeadroom(0);
+		pool.setMaximumConnections(2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.close();
+	}
+
+	@Test(timeout = 30000)
+	public void testReuse() throws Exception {
+
+		SshClient ssh = pool.getConnection(HOST, PORT, "user", auth);
+		assertSame(ssh, pool.getConnection(HOST, PORT, "user", auth));
+		assertEquals(1, pool.getCreatedCount());
+		assertEquals(1, pool.getReusedCount());
+
+		// A different user gets a connection of their own
+		assertNotSame(ssh, pool.getConnection(HOST, PORT, "other", auth));
+		assertEquals(2, pool.getCreatedCount());
+		assertEquals(2, pool.getConnectionCount());
+	}
+
+	@Test(timeout = 30000)
+	public void testChannelLimit() throws Exception {
+
+		for (int i = 0; i < 4; i++) {
+			pool.openSessionChannel(HOST, PORT, "user", auth);
+		}
+		assertEquals(2, pool.getCreatedCount());
+		assertEquals(2, pool.clients.elementAt(0).channels);
+		assertEquals(2, pool.clients.elementAt(1).channels);
+
+		try {
+			pool.openSessionChannel(HOST, PORT, "user", auth);
+			fail("Every connection should be full");
+		} catch (SshException ex) {
+			assertEquals(SshException.CHANNEL_FAILURE, ex.getReason());
+		}
+
+		// Packs new channels onto the busiest connection with room
+		pool.clients.elementAt(1).channels = 0;
+		pool.clients.elementAt(0).channels = 1;
+		pool.openSessionChannel(HOST, PORT, "user", auth);
+		assertEquals(2, pool.clients.elementAt(0).channels);
+	}
+
+	@Test(timeout = 30000)
+	public void testResourceShortage() throws Exception {
+
+		context.setChannelLimit(10);
+		pool.openSessionChannel(HOST, PORT, "user", auth);
+		pool.clients.elementAt(0).refuse = true;
+
+		pool.openSessionChannel(HOST, PORT, "user", auth);
+		assertEquals(2, pool.getCreatedCount());
+		assertEquals(1, pool.clients.elementAt(0).channels);
+		assertEquals(1, pool.clients.elementAt(1).channels);
+
+		// The refusing connection is not asked again
+		pool.openSessionChannel(HOST, PORT, "user", auth);
+		assertEquals(2, pool.clients.elementAt(1).channels);
+	}
+
+	@Test(timeout = 30000)
+	public void testLostConnection() throws Exception {
+
+		SshClient ssh = pool.getConnection(HOST, PORT, "user", auth);
+		ssh.disconnect();
+
+		assertNotSame(ssh, pool.getConnection(HOST, PORT, "user", auth));
+		assertEquals(1, pool.getDiscardedCount());
+		assertEquals(1, pool.getConnectionCount());
+	}
+
+	@Test(timeout = 30000)
+	public void testIdleEviction() throws Exception {
+
+		pool.setMaximumIdleTime(50);
+		SshClient ssh = pool.getConnection(HOST, PORT, "user", auth);
+		pool.clients.elementAt(0).channels = 1;
+		Thread.sleep(150);
+
+		// A connection with channels open is never idle
+		pool.maintain();
+		assertEquals(1, pool.getConnectionCount());
+
+		pool.clients.elementAt(0).channels = 0;
+		Thread.sleep(150);
+		pool.maintain();
+		assertEquals(0, pool.getConnectionCount());
+		assertEquals(1, pool.getEvictedCount());
+		assertFalse(ssh.isConnected());
+	}
+
+	@Test(timeout = 30000)
+	public void testBackgroundConnect() throws Exception {
+
+		pool.setChannelHeadroom(2);
+		pool.openSessionChannel(HOST, PORT, "user", auth);
+		assertEquals(1, pool.getCreatedCount());
+
+		// Only one channel is free on the first connection, so the pool
+		// connects again in the background
+		pool.openSessionChannel(HOST, PORT, "user", auth);
+		while (pool.getCreatedCount() < 2) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, pool.clients.elementAt(0).channels);
+		assertEquals(0, pool.clients.elementAt(1).channels);
+	}
+
+	@Test(timeout = 30000)
+	public void testPrewarm() throws Exception {
+
+		pool.setPrewarmedConnections(2);
+		pool.prewarm(HOST, PORT, "user", auth);
+		assertEquals(2, pool.getConnectionCount());
+
+		// Prewarmed connections are kept even when idle
+		pool.setMaximumIdleTime(0);
+		pool.maintain();
+		assertEquals(2, pool.getConnectionCount());
+	}
+
+	@Test(timeout = 30000)
+	public void testFailedConnect() throws Exception {
+
+		pool.fail = true;
+		try {
+			pool.getConnection(HOST, PORT, "user", auth);
+			fail("The connection should fail");
+		} catch (SshException ex) {
+			assertEquals(SshException.CONNECT_FAILED, ex.getReason());
+		}
+		assertEquals(1, pool.getFailedCount());
+
+		pool.fail = false;
+		pool.getConnection(HOST, PORT, "user", auth);
+		assertEquals(1, pool.getConnectionCount());
+	}
+
+	@Test(timeout = 30000)
+	public void testClose() throws Exception {
+
+		SshClient ssh = pool.getConnection(HOST, PORT, "user", auth);
+		pool.close();
+		assertFalse(ssh.isConnected());
+		assertEquals(0, pool.getConnectionCount());
+
+		try {
+			pool.getConnection(HOST, PORT, "user", auth);
+			fail("The pool is closed");
+		} catch (SshException ex) {
+			assertEquals(SshException.BAD_API_USAGE, ex.getReason());
+		}
+		assertTrue(pool.getCreatedCount() == 1);
+	}
+
+	/**
+	 * A pool that makes stub connections instead of connecting.
+	 */
+	class StubConnectionPool extends SshConnectionPool {
+
+		Vector<ChannelCounter> clients = new Vector<ChannelCounter>();
+		volatile boolean fail;
+
+		StubConnectionPool(SshConnector connector) {
+			super(connector);
+		}
+
+		protected SshClient connect(String host, int port, String username,
+				SshAuthentication auth) throws SshException {
+			if (fail) {
+				throw new SshException("Connection refused",
+						SshException.CONNECT_FAILED);
+			}
+			ChannelCounter client = new ChannelCounter();
+			clients.addElement(client);
+			return client.createClient();
+		}
+	}
+
+	/**
+	 * A stub connection that counts the session channels opened on it, and
+	 * refuses them for want of resources while {@link #refuse} is set.
+	 */
+	class ChannelCounter extends StubSshClient {
+
+		volatile int channels;
+		volatile boolean refuse;
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (name.equals("getContext")) {
+				return context;
+			} else if (name.equals("getChannelCount")) {
+				return Integer.valueOf(channels);
+			} else if (name.equals("openSessionChannel")) {
+				if (refuse) {
+					throw new ChannelOpenException("Too many channels",
+							ChannelOpenException.RESOURCE_SHORTAGE);
+				}
+				channels++;
+				return null;
+			}
+			return super.invoke(proxy, method, args);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+
+import com.sshtools.ssh.SshClient;
+import com.sshtools.ssh.SshException;
+
+/**
+ * An {@link SftpClient} connected to a {@link LoopbackSftpServer}. Every
+ * additional channel the client opens, for example for the streams of a
+ * segmented transfer, is connected to its own server for the same directory.
+ * 
+ * @author Lee David Painter
+ */
+public class LoopbackSftpClient extends SftpClient {
+
+	File root;
+	LoopbackSftpSession session;
+
+	public LoopbackSftpClient(File root) throws SftpStatusException,
+			SshException {
+		this(new LoopbackSftpSession(root), root);
+	}
+
+	private LoopbackSftpClient(LoopbackSftpSession session, File root)
+			throws SftpStatusException, SshException {
+		super(session);
+		this.session = session;
+		this.root = root;
+	}
+
+	/**
+	 * Get the server the client's own channel is connected to.
+	 */
+	public LoopbackSftpServer getServer() {
+		return session.getServer();
+	}
+
+	SftpSubsystemChannel openSubsystemChannel(SshClient ssh)
+			throws SftpStatusException, SshException {
+		try {
+			SftpSubsystemChannel channel = new SftpSubsystemChannel(
+					new LoopbackSftpSession(root));
+			channel.initialize();
+			return channel;
+		} catch (UnsupportedEncodingException ex) {
+			throw new SshException(ex);
+		}
+	}
+}
@@ -0,0 +1,437 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import com.sshtools.util.ByteArrayReader;
+import com.sshtools.util.ByteArrayWriter;
+
+/**
+ * A minimal SFTP version 3 server that serves a local directory over a pair
+ * of streams. It understands the requests that {@link SftpClient} makes for
+ * transfers and directory operations and is intended only to give the tests
+ * and benchmarks an in-process peer; paths are resolved beneath the root
+ * directory and there is no access control.
+ * 
+ * @author Lee David Painter
+ */
+public class LoopbackSftpServer {
+
+	static final int VERSION = 3;
+	static final int MAX_READ = 262144;
+	static final int MAX_NAMES = 100;
+
+	static final int S_IFDIR = 0040000;
+	static final int S_IFREG = 0100000;
+
+	File root;
+	Hashtable<String, Object> handles = new Hashtable<String, Object>();
+	int nextHandle;
+	byte[] readBuffer = new byte[MAX_READ];
+	ByteArrayWriter reply = new ByteArrayWriter(MAX_READ + 64);
+
+	/**
+	 * Create a server for the files beneath a directory.
+	 * 
+	 * @param root
+	 *            the directory that is presented as "/"
+	 */
+	public LoopbackSftpServer(File root) {
+		this.root = root;
+	}
+
+	/**
+	 * Serve requests read from the input until it reaches EOF, writing the
+	 * responses to the output.
+	 * 
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	public void serve(InputStream in, OutputStream out) throws IOException {
+
+		DataInputStream data = new DataInputStream(in);
+		byte[] packet = new byte[MAX_READ + 1024];
+
+		try {
+			while (true) {
+				int len;
+				try {
+					len = data.readInt();
+				} catch (EOFException ex) {
+					return;
+				}
+
+				if (len > packet.length) {
+					packet = new byte[len];
+				}
+				data.readFully(packet, 0, len);
+
+				ByteArrayReader request = new ByteArrayReader(packet, 0, len);
+				try {
+					reply.reset();
+					reply.writeInt(0);
+					process(request);
+					byte[] buf = reply.array();
+					int size = reply.size();
+					ByteArrayWriter.encodeInt(buf, 0, size - 4);
+					out.write(buf, 0, size);
+					if (in.available() == 0) {
+						out.flush();
+					}
+				} finally {
+					request.close();
+				}
+			}
+		} finally {
+			closeHandles();
+		}
+	}
+
+	void process(ByteArrayReader request) throws IOException {
+
+		int type = request.read();
+
+		if (type == SftpSubsystemChannel.SSH_FXP_INIT) {
+			reply.write(SftpSubsystemChannel.SSH_FXP_VERSION);
+			reply.writeInt(VERSION);
+			return;
+		}
+
+		int id = (int) request.readInt();
+
+		try {
+			switch (type) {
+			case SftpSubsystemChannel.SSH_FXP_REALPATH:
+				String path = normalise(request.readString());
+				reply.write(SftpSubsystemChannel.SSH_FXP_NAME);
+				reply.writeInt(id);
+				reply.writeInt(1);
+				reply.writeString(path);
+				reply.writeString(path);
+				reply.writeInt(0);
+				break;
+			case SftpSubsystemChannel.SSH_FXP_OPEN:
+				open(id, request);
+				break;
+			case SftpSubsystemChannel.SSH_FXP_CLOSE:
+				String closed = request.readString();
+				Object handle = handles.remove(closed);
+				handles.remove(closed + ".path");
+				if (handle instanceof RandomAccessFile) {
+					((RandomAccessFile) handle).close();
+				}
+				status(id, handle == null ? SftpStatusException.SSH_FX_INVALID_HANDLE
+						: SftpStatusException.SSH_FX_OK);
+				break;
+			case SftpSubsystemChannel.SSH_FXP_READ:
+				read(id, request);
+				break;
+			case SftpSubsystemChannel.SSH_FXP_WRITE:
+				RandomAccessFile file = getFile(request.readString());
+				long offset = request.readUINT64().longValue();
+				int count = (int) request.readInt();
+				file.seek(offset);
+				file.write(request.array(), request.getPosition(), count);
+				status(id, SftpStatusException.SSH_FX_OK);
+				break;
+			case SftpSubsystemChannel.SSH_FXP_STAT:
+			case SftpSubsystemChannel.SSH_FXP_LSTAT:
+				File f = resolve(request.readString());
+				if (!f.exists()) {
+					status(id, SftpStatusException.SSH_FX_NO_SUCH_FILE);
+				} else {
+					reply.write(SftpSubsystemChannel.SSH_FXP_ATTRS);
+					reply.writeInt(id);
+					writeAttributes(f);
+				}
+				break;
+			case SftpSubsystemChannel.SSH_FXP_FSTAT:
+				String h = request.readString();
+				getFile(h);
+				reply.write(SftpSubsystemChannel.SSH_FXP_ATTRS);
+				reply.writeInt(id);
+				writeAttributes((File) handles.get(h + ".path"));
+				break;
+			case SftpSubsystemChannel.SSH_FXP_SETSTAT:
+				setAttributes(id, resolve(request.readString()), request);
+				break;
+			case SftpSubsystemChannel.SSH_FXP_FSETSTAT:
+				String fh = request.readString();
+				getFile(fh);
+				setAttributes(id, (File) handles.get(fh + ".path"), request);
+				break;
+			case SftpSubsystemChannel.SSH_FXP_OPENDIR:
+				openDirectory(id, resolve(request.readString()));
+				break;
+			case SftpSubsystemChannel.SSH_FXP_READDIR:
+				readDirectory(id, request.readString());
+				break;
+			case SftpSubsystemChannel.SSH_FXP_REMOVE:
+				File r = resolve(request.readString());
+				status(id, r.isFile() && r.delete() ? SftpStatusException.SSH_FX_OK
+						: SftpStatusException.SSH_FX_NO_SUCH_FILE);
+				break;
+			case SftpSubsystemChannel.SSH_FXP_MKDIR:
+				status(id, resolve(request.readString()).mkdir() ? SftpStatusException.SSH_FX_OK
+						: SftpStatusException.SSH_FX_FAILURE);
+				break;
+			case SftpSubsystemChannel.SSH_FXP_RMDIR:
+				File d = resolve(request.readString());
+				status(id, d.isDirectory() && d.delete() ? SftpStatusException.SSH_FX_OK
+						: SftpStatusException.SSH_FX_FAILURE);
+				break;
+			case SftpSubsystemChannel.SSH_FXP_RENAME:
+				File from = resolve(request.readString());
+				File to = resolve(request.readString());
+				status(id, !to.exists() && from.renameTo(to) ? SftpStatusException.SSH_FX_OK
+						: SftpStatusException.SSH_FX_FAILURE);
+				break;
+			default:
+				status(id, SftpStatusException.SSH_FX_OP_UNSUPPORTED);
+			}
+		} catch (SftpStatusException ex) {
+			reply.reset();
+			reply.writeInt(0);
+			status(id, ex.getStatus());
+		}
+	}
+
+	void open(int id, ByteArrayReader request) throws IOException {
+
+		File f = resolve(request.readString());
+		int flags = (int) request.readInt();
+
+		if ((flags & SftpSubsystemChannel.OPEN_CREATE) == 0 && !f.isFile()) {
+			status(id, SftpStatusException.SSH_FX_NO_SUCH_FILE);
+			return;
+		}
+		if (f.isDirectory()) {
+			status(id, SftpStatusException.SSH_FX_FAILURE);
+			return;
+		}
+		if ((flags & SftpSubsystemChannel.OPEN_EXCLUSIVE) != 0 && f.exists()) {
+			status(id, SftpStatusException.SSH_FX_FILE_ALREADY_EXISTS);
+			return;
+		}
+
+		RandomAccessFile file = new RandomAccessFile(f,
+				(flags & SftpSubsystemChannel.OPEN_WRITE) != 0 ? "rw" : "r");
+		if ((flags & SftpSubsystemChannel.OPEN_TRUNCATE) != 0) {
+			file.setLength(0);
+		}
+
+		String handle = String.valueOf(nextHandle++);
+		handles.put(handle, file);
+		handles.put(handle + ".path", f);
+
+		reply.write(SftpSubsystemChannel.SSH_FXP_HANDLE);
+		reply.writeInt(id);
+		reply.writeString(handle);
+	}
+
+	void read(int id, ByteArrayReader request) throws IOException,
+			SftpStatusException {
+
+		RandomAccessFile file = getFile(request.readString());
+		long offset = request.readUINT64().longValue();
+		int len = Math.min((int) request.readInt(), MAX_READ);
+
+		file.seek(offset);
+		int count = file.read(readBuffer, 0, len);
+
+		if (count <= 0) {
+			status(id, SftpStatusException.SSH_FX_EOF);
+			return;
+		}
+
+		reply.write(SftpSubsystemChannel.SSH_FXP_DATA);
+		reply.writeInt(id);
+		reply.writeBinaryString(readBuffer, 0, count);
+	}
+
+	void openDirectory(int id, File dir) throws IOException {
+
+		if (!dir.isDirectory()) {
+			status(id, SftpStatusException.SSH_FX_NO_SUCH_FILE);
+			return;
+		}
+
+		Vector<File> files = new Vector<File>();
+		String[] names = dir.list();
+		for (int i = 0; names != null && i < names.length; i++) {
+			files.addElement(new File(dir, names[i]));
+		}
+
+		String handle = String.valueOf(nextHandle++);
+		handles.put(handle, files);
+
+		reply.write(SftpSubsystemChannel.SSH_FXP_HANDLE);
+		reply.writeInt(id);
+		reply.writeString(handle);
+	}
+
+	@SuppressWarnings("unchecked")
+	void readDirectory(int id, String handle) throws IOException {
+
+		Object files = handles.get(handle);
+		if (!(files instanceof Vector)) {
+			status(id, SftpStatusException.SSH_FX_INVALID_HANDLE);
+			return;
+		}
+
+		Vector<File> remaining = (Vector<File>) files;
+		if (remaining.isEmpty()) {
+			status(id, SftpStatusException.SSH_FX_EOF);
+			return;
+		}
+
+		int count = Math.min(MAX_NAMES, remaining.size());
+		reply.write(SftpSubsystemChannel.SSH_FXP_NAME);
+		reply.writeInt(id);
+		reply.writeInt(count);
+
+		for (int i = 0; i < count; i++) {
+			File f = remaining.remove(0);
+			reply.writeString(f.getName());
+			reply.writeString((f.isDirectory() ? "drwxr-xr-x" : "-rw-r--r--")
+					+ "   1 user     group    " + f.length()
+					+ " Jan  1 00:00 " + f.getName());
+			writeAttributes(f);
+		}
+	}
+
+	void setAttributes(int id, File f, ByteArrayReader request)
+			throws IOException {
+
+		int flags = (int) request.readInt();
+
+		if ((flags & SftpFileAttributes.SSH_FILEXFER_ATTR_SIZE) != 0) {
+			long size = request.readUINT64().longValue();
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			try {
+				file.setLength(size);
+			} finally {
+				file.close();
+			}
+		}
+		if ((flags & SftpFileAttributes.SSH_FILEXFER_ATTR_UIDGID) != 0) {
+			request.readInt();
+			request.readInt();
+		}
+		if ((flags & SftpFileAttributes.SSH_FILEXFER_ATTR_PERMISSIONS) != 0) {
+			request.readInt();
+		}
+		if ((flags & SftpFileAttributes.SSH_FILEXFER_ATTR_ACCESSTIME) != 0) {
+			request.readInt();
+			f.setLastModified(request.readInt() * 1000L);
+		}
+
+		status(id, f.exists() ? SftpStatusException.SSH_FX_OK
+				: SftpStatusException.SSH_FX_NO_SUCH_FILE);
+	}
+
+	void writeAttributes(File f) throws IOException {
+		reply.writeInt(SftpFileAttributes.SSH_FILEXFER_ATTR_SIZE
+				| SftpFileAttributes.SSH_FILEXFER_ATTR_UIDGID
+				| SftpFileAttributes.SSH_FILEXFER_ATTR_PERMISSIONS
+				| SftpFileAttributes.SSH_FILEXFER_ATTR_ACCESSTIME);
+		reply.writeUINT64(f.isDirectory() ? 0 : f.length());
+		reply.writeInt(0);
+		reply.writeInt(0);
+		reply.writeInt(f.isDirectory() ? S_IFDIR | 0755 : S_IFREG | 0644);
+		int mtime = (int) (f.lastModified() / 1000);
+		reply.writeInt(mtime);
+		reply.writeInt(mtime);
+	}
+
+	void status(int id, int code) throws IOException {
+		reply.write(SftpSubsystemChannel.SSH_FXP_STATUS);
+		reply.writeInt(id);
+		reply.writeInt(code);
+		reply.writeString(code == SftpStatusException.SSH_FX_OK ? "OK"
+				: "Failed");
+		reply.writeString("");
+	}
+
+	RandomAccessFile getFile(String handle) throws SftpStatusException {
+		Object file = handles.get(handle);
+		if (!(file instanceof RandomAccessFile)) {
+			throw new SftpStatusException(
+					SftpStatusException.SSH_FX_INVALID_HANDLE, handle);
+		}
+		return (RandomAccessFile) file;
+	}
+
+	File resolve(String path) {
+		return new File(root, normalise(path));
+	}
+
+	/**
+	 * Reduce a path to an absolute path without "." or ".." elements, taking
+	 * relative paths to be relative to the root.
+	 */
+	static String normalise(String path) {
+
+		Vector<String> elements = new Vector<String>();
+		String[] parts = path.replace('\\', '/').split("/");
+
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i].length() == 0 || parts[i].equals(".")) {
+				continue;
+			}
+			if (parts[i].equals("..")) {
+				if (!elements.isEmpty()) {
+					elements.removeElementAt(elements.size() - 1);
+				}
+				continue;
+			}
+			elements.addElement(parts[i]);
+		}
+
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < elements.size(); i++) {
+			buf.append('/').append(elements.elementAt(i));
+		}
+		return buf.length() == 0 ? "/" : buf.toString();
+	}
+
+	void closeHandles() {
+		for (Object handle : handles.values()) {
+			if (handle instanceof RandomAccessFile) {
+				try {
+					((RandomAccessFile) handle).close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		handles.clear();
+	}
+}
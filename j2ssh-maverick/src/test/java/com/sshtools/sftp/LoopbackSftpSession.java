@@ -0,0 +1,163 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.sshtools.ssh.ChannelEventListener;
+import com.sshtools.ssh.PseudoTerminalModes;
+import com.sshtools.ssh.SshClient;
+import com.sshtools.ssh.SshSession;
+import com.sshtools.ssh.message.SshMessageRouter;
+import com.sshtools.util.LoopbackPipe;
+
+/**
+ * A session whose streams are connected through in-memory pipes to a
+ * {@link LoopbackSftpServer} running on its own thread, so that an
+ * {@link SftpClient} can be created with
+ * {@link SftpClient#SftpClient(SshSession)} without an SSH connection. Only
+ * the SFTP layer is exercised; there is no transport, encryption or channel
+ * flow control.
+ * 
+ * @author Lee David Painter
+ */
+public class LoopbackSftpSession implements SshSession {
+
+	LoopbackPipe toServer = new LoopbackPipe();
+	LoopbackPipe fromServer = new LoopbackPipe();
+	LoopbackSftpServer server;
+	Thread serverThread;
+
+	/**
+	 * Start a server for the files beneath a directory and connect to it.
+	 * 
+	 * @param root
+	 */
+	public LoopbackSftpSession(File root) {
+		this(new LoopbackSftpServer(root));
+	}
+
+	/**
+	 * Start a server and connect to it.
+	 * 
+	 * @param server
+	 */
+	public LoopbackSftpSession(final LoopbackSftpServer server) {
+
+		this.server = server;
+
+		serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.serve(toServer.getInputStream(),
+							fromServer.getOutputStream());
+				} catch (IOException e) {
+				} finally {
+					fromServer.close();
+				}
+			}
+		}, "LoopbackSftpServer");
+		serverThread.setDaemon(true);
+		serverThread.start();
+	}
+
+	public LoopbackSftpServer getServer() {
+		return server;
+	}
+
+	public InputStream getInputStream() {
+		return fromServer.getInputStream();
+	}
+
+	public OutputStream getOutputStream() {
+		return toServer.getOutputStream();
+	}
+
+	public InputStream getStderrInputStream() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	public void close() {
+		toServer.close();
+		fromServer.close();
+	}
+
+	public boolean isClosed() {
+		return fromServer.isClosed();
+	}
+
+	public SshClient getClient() {
+		return null;
+	}
+
+	public boolean startShell() {
+		return false;
+	}
+
+	public boolean executeCommand(String cmd) {
+		return false;
+	}
+
+	public boolean executeCommand(String cmd, String charset) {
+		return false;
+	}
+
+	public boolean requestPseudoTerminal(String term, int cols, int rows,
+			int width, int height, byte[] modes) {
+		return false;
+	}
+
+	public boolean requestPseudoTerminal(String term, int cols, int rows,
+			int width, int height, PseudoTerminalModes terminalModes) {
+		return false;
+	}
+
+	public boolean requestPseudoTerminal(String term, int cols, int rows,
+			int width, int height) {
+		return false;
+	}
+
+	public int exitCode() {
+		return EXITCODE_NOT_RECEIVED;
+	}
+
+	public void changeTerminalDimensions(int cols, int rows, int width,
+			int height) {
+	}
+
+	public int getChannelId() {
+		return 0;
+	}
+
+	public void addChannelEventListener(ChannelEventListener listener) {
+	}
+
+	public void setAutoConsumeInput(boolean autoConsumeInput) {
+	}
+
+	public SshMessageRouter getMessageRouter() {
+		return null;
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedDownloadTest {
+
+	static final int FILE_SIZE = 4194304;
+
+	File remote;
+	File local;
+	byte[] content;
+	LoopbackSftpClient sftp;
+
+	@Before
+	public void setUp() throws Exception {
+		remote = SftpTestFiles.createDirectory();
+		local = SftpTestFiles.createDirectory();
+		content = SftpTestFiles.createFile(new File(remote, "data"),
+				FILE_SIZE, 9);
+		sftp = new LoopbackSftpClient(remote);
+		sftp.setConcurrentStreams(4);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sftp.quit();
+		SftpTestFiles.delete(remote);
+		SftpTestFiles.delete(local);
+	}
+
+	@Test(timeout = 60000)
+	public void testDownload() throws Exception {
+
+		File file = new File(local, "data");
+		sftp.getSegmented("/data", file.getAbsolutePath(), null, false);
+
+		assertArrayEquals(content, SftpTestFiles.readFile(file));
+		assertFalse(stateFile(file).exists());
+	}
+
+	@Test(timeout = 60000)
+	public void testResume() throws Exception {
+
+		File file = new File(local, "data");
+
+		CancellingProgress cancelling = new CancellingProgress(FILE_SIZE / 2);
+		try {
+			sftp.getSegmented("/data", file.getAbsolutePath(), cancelling,
+					false);
+			fail("The transfer should have been cancelled");
+		} catch (TransferCancelledException ex) {
+		}
+		assertTrue(stateFile(file).exists());
+
+		CancellingProgress resumed = new CancellingProgress(Long.MAX_VALUE);
+		sftp.getSegmented("/data", file.getAbsolutePath(), resumed, true);
+
+		assertTrue("The transfer was restarted rather than resumed",
+				resumed.first > 0);
+		assertArrayEquals(content, SftpTestFiles.readFile(file));
+		assertFalse(stateFile(file).exists());
+	}
+
+	static File stateFile(File file) {
+		return new File(file.getPath() + SegmentedTransfer.STATE_SUFFIX);
+	}
+
+	/**
+	 * Cancels the transfer once a number of bytes have been transferred, and
+	 * records the first progress reported.
+	 */
+	static class CancellingProgress implements FileTransferProgress {
+
+		long limit;
+		volatile long transferred;
+		long first = -1;
+
+		CancellingProgress(long limit) {
+			this.limit = limit;
+		}
+
+		public void started(long bytesTotal, String remoteFile) {
+		}
+
+		public boolean isCancelled() {
+			return transferred >= limit;
+		}
+
+		public synchronized void progressed(long bytesSoFar) {
+			if (first < 0) {
+				first = bytesSoFar;
+			}
+			transferred = bytesSoFar;
+		}
+
+		public void completed() {
+		}
+	}
+}
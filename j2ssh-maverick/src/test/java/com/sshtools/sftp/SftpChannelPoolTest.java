@@ -0,0 +1,223 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sshtools.ssh.SshClient;
+import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.StubSshClient;
+import com.sshtools.util.ByteArrayReader;
+
+public class SftpChannelPoolTest {
+
+	File root;
+	StubSshClient connection;
+	volatile boolean failRealPath;
+	LoopbackChannelPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		root = SftpTestFiles.createDirectory();
+		connection = new StubSshClient();
+		pool = new LoopbackChannelPool(connection.createClient(), 2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.close();
+		SftpTestFiles.delete(root);
+	}
+
+	@Test(timeout = 30000)
+	public void testBoundedSize() throws Exception {
+
+		SftpSubsystemChannel first = pool.lease();
+		SftpSubsystemChannel second = pool.lease();
+		assertNotSame(first, second);
+		assertEquals(2, pool.getLeasedCount());
+
+		try {
+			pool.lease(100);
+			fail("The pool should be full");
+		} catch (SshException ex) {
+		}
+		assertEquals(1, pool.getLeaseTimeoutCount());
+		assertEquals(2, pool.getCreatedCount());
+
+		pool.release(first);
+		assertEquals(1, pool.getIdleCount());
+		assertSame(first, pool.lease());
+		assertEquals(2, pool.getCreatedCount());
+		assertEquals(3, pool.getLeaseCount());
+	}
+
+	@Test(timeout = 30000)
+	public void testWaitForRelease() throws Exception {
+
+		final SftpSubsystemChannel first = pool.lease();
+		pool.lease();
+
+		Thread releaser = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				pool.release(first);
+			}
+		});
+		releaser.start();
+
+		assertSame(first, pool.lease(10000));
+		releaser.join();
+		assertTrue(pool.getMaximumLeaseWaitTime() >= 150);
+		assertEquals(2, pool.getCreatedCount());
+	}
+
+	@Test(timeout = 30000)
+	public void testInvalidate() throws Exception {
+
+		SftpSubsystemChannel channel = pool.lease();
+		pool.invalidate(channel);
+		assertTrue(channel.isClosed());
+		assertEquals(0, pool.getLeasedCount());
+		assertEquals(1, pool.getDiscardedCount());
+
+		assertNotSame(channel, pool.lease());
+		assertEquals(2, pool.getCreatedCount());
+	}
+
+	@Test(timeout = 30000)
+	public void testIdleEviction() throws Exception {
+
+		pool.setMaximumIdleTime(50);
+		SftpSubsystemChannel channel = pool.lease();
+		pool.release(channel);
+		Thread.sleep(150);
+
+		pool.evictIdleChannels();
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(1, pool.getEvictedCount());
+		assertTrue(channel.isClosed());
+	}
+
+	@Test(timeout = 30000)
+	public void testValidation() throws Exception {
+
+		pool.setValidationInterval(0);
+
+		// A channel that still answers is leased again
+		SftpSubsystemChannel channel = pool.lease();
+		pool.release(channel);
+		assertSame(channel, pool.lease());
+		pool.release(channel);
+
+		// One that fails its check is discarded and replaced
+		failRealPath = true;
+		SftpSubsystemChannel replacement = pool.lease();
+		assertNotSame(channel, replacement);
+		assertTrue(channel.isClosed());
+		assertEquals(1, pool.getDiscardedCount());
+		failRealPath = false;
+		pool.release(replacement);
+
+		// As is one that has closed
+		replacement.close();
+		assertNotSame(replacement, pool.lease());
+		assertEquals(2, pool.getDiscardedCount());
+		assertEquals(3, pool.getCreatedCount());
+	}
+
+	@Test(timeout = 30000)
+	public void testClosedConnection() throws Exception {
+
+		SftpSubsystemChannel channel = pool.lease();
+		pool.release(channel);
+		connection.setConnected(false);
+
+		try {
+			pool.lease();
+			fail("There is no open connection");
+		} catch (SshException ex) {
+			assertEquals(SshException.CONNECTION_CLOSED, ex.getReason());
+		}
+		assertEquals(1, pool.getDiscardedCount());
+		assertFalse(pool.getIdleCount() > 0);
+	}
+
+	/**
+	 * A pool whose channels are connected to loopback SFTP servers.
+	 */
+	class LoopbackChannelPool extends SftpChannelPool {
+
+		LoopbackChannelPool(SshClient ssh, int maxChannels) {
+			super(ssh, maxChannels);
+		}
+
+		protected SftpSubsystemChannel openChannel(SshClient ssh)
+				throws SshException {
+			try {
+				SftpSubsystemChannel channel = new SftpSubsystemChannel(
+						new LoopbackSftpSession(new CheckedServer(root)));
+				channel.initialize();
+				return channel;
+			} catch (UnsupportedEncodingException ex) {
+				throw new SshException(ex);
+			}
+		}
+	}
+
+	/**
+	 * A server that fails REALPATH requests, which the pool uses to check
+	 * idle channels, while {@link #failRealPath} is set.
+	 */
+	class CheckedServer extends LoopbackSftpServer {
+
+		CheckedServer(File root) {
+			super(root);
+		}
+
+		void process(ByteArrayReader request) throws IOException {
+			if (failRealPath
+					&& request.array()[request.getPosition()] == SftpSubsystemChannel.SSH_FXP_REALPATH) {
+				request.read();
+				int id = (int) request.readInt();
+				status(id, SftpStatusException.SSH_FX_FAILURE);
+				return;
+			}
+			super.process(request);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SftpDirectoryReaderTest {
+
+	static final int FILE_COUNT = 1050;
+
+	File root;
+	Set<String> names = new HashSet<String>();
+	LoopbackSftpClient sftp;
+
+	@Before
+	public void setUp() throws Exception {
+		root = SftpTestFiles.createDirectory();
+		File dir = new File(root, "dir");
+		dir.mkdir();
+		for (int i = 0; i < FILE_COUNT; i++) {
+			String name = "file" + i;
+			SftpTestFiles.createFile(new File(dir, name), i % 16, i);
+			names.add(name);
+		}
+		sftp = new LoopbackSftpClient(root);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sftp.quit();
+		SftpTestFiles.delete(root);
+	}
+
+	@Test(timeout = 30000)
+	public void testListing() throws Exception {
+
+		SftpFile[] files = sftp.ls("/dir");
+
+		Set<String> listed = new HashSet<String>();
+		for (int i = 0; i < files.length; i++) {
+			assertTrue("Duplicate entry " + files[i].getFilename(),
+					listed.add(files[i].getFilename()));
+		}
+		assertEquals(names, listed);
+		assertTrue(sftp.getServer().handles.isEmpty());
+	}
+
+	@Test(timeout = 30000)
+	public void testStreamedListing() throws Exception {
+
+		SftpDirectoryReader reader = sftp.readDirectory("/dir");
+		Set<String> listed = new HashSet<String>();
+		try {
+			while (reader.hasNext()) {
+				listed.add(reader.next().getFilename());
+			}
+		} finally {
+			reader.close();
+		}
+
+		assertEquals(names, listed);
+		assertTrue(sftp.getServer().handles.isEmpty());
+	}
+
+	@Test(timeout = 30000)
+	public void testCloseBeforeEnd() throws Exception {
+
+		SftpDirectoryReader reader = sftp.readDirectory("/dir");
+		for (int i = 0; i < 150; i++) {
+			assertTrue(reader.hasNext());
+			reader.next();
+		}
+		reader.close();
+		assertFalse(reader.hasNext());
+		assertTrue(sftp.getServer().handles.isEmpty());
+
+		// Nothing may be left on the channel for the next request
+		assertEquals(names.size(), sftp.ls("/dir").length);
+	}
+}
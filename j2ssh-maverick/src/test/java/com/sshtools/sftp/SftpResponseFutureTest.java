@@ -0,0 +1,256 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sshtools.ssh.SshException;
+import com.sshtools.util.ByteArrayReader;
+import com.sshtools.util.UnsignedInteger32;
+
+public class SftpResponseFutureTest {
+
+	static final int FILE_SIZE = 1048576;
+	static final int BLOCK_SIZE = 4096;
+
+	File root;
+	byte[] content;
+	StallingServer server;
+	SftpSubsystemChannel sftp;
+	SftpFile file;
+
+	@Before
+	public void setUp() throws Exception {
+		root = File.createTempFile("sftp", "test");
+		root.delete();
+		root.mkdir();
+
+		content = new byte[FILE_SIZE];
+		new Random(1).nextBytes(content);
+		FileOutputStream out = new FileOutputStream(new File(root, "data"));
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+
+		server = new StallingServer(root);
+		sftp = new SftpSubsystemChannel(new LoopbackSftpSession(server));
+		sftp.initialize();
+		file = sftp.openFile("/data", SftpSubsystemChannel.OPEN_READ);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.release();
+		sftp.close();
+		new File(root, "data").delete();
+		root.delete();
+	}
+
+	@Test(timeout = 30000)
+	public void testConcurrentRequests() throws Exception {
+
+		final Vector<Throwable> errors = new Vector<Throwable>();
+		Thread[] threads = new Thread[8];
+
+		for (int i = 0; i < threads.length; i++) {
+			final Random random = new Random(i);
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int j = 0; j < 50; j++) {
+							long offset = random.nextInt(FILE_SIZE
+									/ BLOCK_SIZE) * (long) BLOCK_SIZE;
+							UnsignedInteger32 id = sftp.postReadRequest(
+									file.getHandle(), offset, BLOCK_SIZE);
+							checkData(sftp.getResponseFuture(id).get(), offset);
+						}
+					} catch (Throwable t) {
+						errors.add(t);
+					}
+				}
+			});
+			threads[i].start();
+		}
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertTrue(sftp.responses.isEmpty());
+	}
+
+	@Test(timeout = 30000)
+	public void testReaderHandOff() throws Exception {
+
+		final int count = 32;
+		final SftpResponseFuture[] futures = new SftpResponseFuture[count];
+		for (int i = 0; i < count; i++) {
+			futures[i] = sftp.getResponseFuture(sftp.postReadRequest(
+					file.getHandle(), i * (long) BLOCK_SIZE, BLOCK_SIZE));
+		}
+
+		/*
+		 * The thread waiting for the last response reads all of the others
+		 * first, then hands the reader role on; every thread must still
+		 * collect its own response.
+		 */
+		final Vector<Throwable> errors = new Vector<Throwable>();
+		Thread[] threads = new Thread[count];
+		for (int i = count - 1; i >= 0; i--) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						checkData(futures[index].get(), index
+								* (long) BLOCK_SIZE);
+					} catch (Throwable t) {
+						errors.add(t);
+					}
+				}
+			});
+			threads[i].start();
+		}
+
+		for (int i = 0; i < count; i++) {
+			threads[i].join();
+		}
+
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertTrue(sftp.waiters.isEmpty());
+	}
+
+	@Test(timeout = 30000)
+	public void testListeners() throws Exception {
+
+		final int count = 100;
+		final CountDownLatch latch = new CountDownLatch(count);
+		final Vector<Throwable> errors = new Vector<Throwable>();
+
+		for (int i = 0; i < count; i++) {
+			final long offset = i * (long) BLOCK_SIZE;
+			sftp.getResponseFuture(
+					sftp.postReadRequest(file.getHandle(), offset, BLOCK_SIZE))
+					.setListener(new SftpResponseListener() {
+						public void responseReceived(
+								UnsignedInteger32 requestId, SftpMessage response) {
+							try {
+								checkData(response, offset);
+							} catch (Throwable t) {
+								errors.add(t);
+							}
+							latch.countDown();
+						}
+
+						public void requestFailed(UnsignedInteger32 requestId,
+								SshException error) {
+							errors.add(error);
+							latch.countDown();
+						}
+					});
+		}
+
+		assertTrue(latch.await(20, TimeUnit.SECONDS));
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
+	@Test(timeout = 30000)
+	public void testTimeout() throws Exception {
+
+		server.stall();
+		SftpResponseFuture future = sftp.getResponseFuture(sftp
+				.postReadRequest(file.getHandle(), 0, BLOCK_SIZE));
+
+		long started = System.currentTimeMillis();
+		try {
+			future.get(250);
+			fail("The request should have timed out");
+		} catch (SshException ex) {
+			assertEquals(SshException.MESSAGE_TIMEOUT, ex.getReason());
+		}
+		long elapsed = System.currentTimeMillis() - started;
+		assertTrue("Timed out after " + elapsed + "ms", elapsed < 2000);
+
+		server.release();
+		checkData(future.get(5000), 0);
+
+		checkData(sftp.getResponseFuture(sftp.postReadRequest(
+				file.getHandle(), BLOCK_SIZE, BLOCK_SIZE)).get(), BLOCK_SIZE);
+	}
+
+	void checkData(SftpMessage msg, long offset) throws IOException {
+		try {
+			assertEquals(SftpSubsystemChannel.SSH_FXP_DATA, msg.getType());
+			byte[] data = msg.readBinaryString();
+			byte[] expected = new byte[BLOCK_SIZE];
+			System.arraycopy(content, (int) offset, expected, 0, BLOCK_SIZE);
+			assertArrayEquals(expected, data);
+		} finally {
+			msg.dispose();
+		}
+	}
+
+	/**
+	 * A server that can be made to stop answering until it is released.
+	 */
+	static class StallingServer extends LoopbackSftpServer {
+
+		volatile CountDownLatch stalled = new CountDownLatch(0);
+
+		StallingServer(File root) {
+			super(root);
+		}
+
+		void stall() {
+			stalled = new CountDownLatch(1);
+		}
+
+		void release() {
+			stalled.countDown();
+		}
+
+		void process(ByteArrayReader request) throws IOException {
+			try {
+				stalled.await();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			super.process(request);
+		}
+	}
+}
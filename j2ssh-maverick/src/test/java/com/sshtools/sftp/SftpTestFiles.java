@@ -0,0 +1,83 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Helpers for the files that the SFTP tests transfer.
+ * 
+ * @author Lee David Painter
+ */
+class SftpTestFiles {
+
+	static File createDirectory() throws IOException {
+		File dir = File.createTempFile("sftp", "test");
+		dir.delete();
+		if (!dir.mkdir()) {
+			throw new IOException("Failed to create " + dir);
+		}
+		return dir;
+	}
+
+	static byte[] createFile(File file, int length, long seed)
+			throws IOException {
+		byte[] content = new byte[length];
+		new Random(seed).nextBytes(content);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return content;
+	}
+
+	static byte[] readFile(File file) throws IOException {
+		byte[] content = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int off = 0;
+			while (off < content.length) {
+				int read = in.read(content, off, content.length - off);
+				if (read < 0) {
+					throw new IOException("Unexpected EOF reading " + file);
+				}
+				off += read;
+			}
+		} finally {
+			in.close();
+		}
+		return content;
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		for (int i = 0; children != null && i < children.length; i++) {
+			delete(children[i]);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.sftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TreeSyncTest {
+
+	File remote;
+	File local;
+	LoopbackSftpClient sftp;
+
+	@Before
+	public void setUp() throws Exception {
+		remote = SftpTestFiles.createDirectory();
+		local = SftpTestFiles.createDirectory();
+		sftp = new LoopbackSftpClient(remote);
+		sftp.setConcurrentStreams(4);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sftp.quit();
+		SftpTestFiles.delete(remote);
+		SftpTestFiles.delete(local);
+	}
+
+	@Test(timeout = 60000)
+	public void testUpload() throws Exception {
+
+		File src = new File(local, "src");
+		createTree(src, 3, 3, 5);
+
+		sftp.copyLocalDirectory(src.getAbsolutePath(), "/dst", true, false,
+				true, null);
+
+		assertSameTree(src, new File(remote, "dst"));
+		assertTrue(sftp.getServer().handles.isEmpty());
+	}
+
+	@Test(timeout = 60000)
+	public void testDownload() throws Exception {
+
+		File src = new File(remote, "src");
+		createTree(src, 3, 3, 5);
+
+		sftp.copyRemoteDirectory("/src", new File(local, "dst")
+				.getAbsolutePath(), true, false, true, null);
+
+		assertSameTree(src, new File(local, "dst"));
+		assertTrue(sftp.getServer().handles.isEmpty());
+	}
+
+	/**
+	 * A single deep chain of directories gives the workers almost nothing to
+	 * steal, so all but one of them are idle while the walk is still running.
+	 */
+	@Test(timeout = 60000)
+	public void testDeepTree() throws Exception {
+
+		File src = new File(local, "src");
+		createTree(src, 40, 1, 1);
+
+		sftp.copyLocalDirectory(src.getAbsolutePath(), "/dst", true, false,
+				true, null);
+
+		assertSameTree(src, new File(remote, "dst"));
+	}
+
+	@Test(timeout = 60000)
+	public void testEmptyTree() throws Exception {
+
+		File src = new File(local, "src");
+		src.mkdir();
+
+		sftp.copyLocalDirectory(src.getAbsolutePath(), "/dst", true, false,
+				true, null);
+
+		assertSameTree(src, new File(remote, "dst"));
+	}
+
+	@Test(timeout = 60000)
+	public void testSync() throws Exception {
+
+		File src = new File(local, "src");
+		createTree(src, 2, 3, 4);
+
+		sftp.copyLocalDirectory(src.getAbsolutePath(), "/dst", true, false,
+				true, null);
+
+		assertTrue(new File(src, "dir1/file2").delete());
+		SftpTestFiles.createFile(new File(src, "dir0/file0"), 100, 99);
+
+		sftp.copyLocalDirectory(src.getAbsolutePath(), "/dst", true, true,
+				true, null);
+
+		assertFalse(new File(remote, "dst/dir1/file2").exists());
+		assertSameTree(src, new File(remote, "dst"));
+	}
+
+	/**
+	 * Create a tree <code>depth</code> directories deep, each with
+	 * <code>dirs</code> child directories and <code>files</code> files.
+	 */
+	static void createTree(File dir, int depth, int dirs, int files)
+			throws IOException {
+		if (!dir.mkdir()) {
+			throw new IOException("Failed to create " + dir);
+		}
+		for (int i = 0; i < files; i++) {
+			SftpTestFiles.createFile(new File(dir, "file" + i), 1000 * i
+					+ depth, depth * 100 + i);
+		}
+		if (depth > 1) {
+			for (int i = 0; i < dirs; i++) {
+				createTree(new File(dir, "dir" + i), depth - 1, dirs, files);
+			}
+		}
+	}
+
+	static void assertSameTree(File expected, File actual) throws IOException {
+		assertTrue(actual + " is not a directory", actual.isDirectory());
+		String[] names = expected.list();
+		String[] copied = actual.list();
+		Arrays.sort(names);
+		Arrays.sort(copied);
+		assertEquals(Arrays.asList(names), Arrays.asList(copied));
+		for (int i = 0; i < names.length; i++) {
+			File f = new File(expected, names[i]);
+			if (f.isDirectory()) {
+				assertSameTree(f, new File(actual, names[i]));
+			} else {
+				assertArrayEquals(names[i], SftpTestFiles.readFile(f),
+						SftpTestFiles.readFile(new File(actual, names[i])));
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Creates {@link SshClient} stand-ins for tests of code that manages
+ * connections without using them. The client reports itself as connected
+ * until {@link SshClient#disconnect()} is called; any other method returns
+ * <code>null</code>, zero or <code>false</code> unless
+ * {@link #invoke(Object, Method, Object[])} is overridden.
+ * 
+ * @author Lee David Painter
+ */
+public class StubSshClient implements InvocationHandler {
+
+	volatile boolean connected = true;
+
+	/**
+	 * Create a client that is handled by this stub.
+	 * 
+	 * @return SshClient
+	 */
+	public SshClient createClient() {
+		return (SshClient) Proxy.newProxyInstance(
+				SshClient.class.getClassLoader(),
+				new Class<?>[] { SshClient.class }, this);
+	}
+
+	/**
+	 * Create a connected client.
+	 * 
+	 * @return SshClient
+	 */
+	public static SshClient create() {
+		return new StubSshClient().createClient();
+	}
+
+	public void setConnected(boolean connected) {
+		this.connected = connected;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		String name = method.getName();
+		if (name.equals("isConnected")) {
+			return Boolean.valueOf(connected);
+		} else if (name.equals("disconnect")) {
+			connected = false;
+			return null;
+		} else if (name.equals("equals")) {
+			return Boolean.valueOf(proxy == args[0]);
+		} else if (name.equals("hashCode")) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		} else if (name.equals("toString")) {
+			return "StubSshClient@"
+					+ Integer.toHexString(System.identityHashCode(proxy));
+		}
+
+		Class<?> type = method.getReturnType();
+		if (type == Boolean.TYPE) {
+			return Boolean.FALSE;
+		} else if (type == Integer.TYPE) {
+			return Integer.valueOf(0);
+		} else if (type == Long.TYPE) {
+			return Long.valueOf(0);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components.jce;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.sshtools.ssh.components.SshAEADCipher;
+import com.sshtools.ssh.components.SshCipher;
+
+public class AbstractGCMCipherTest {
+
+	/**
+	 * The packet from {@link CipherTestData} with sequence number 5, the
+	 * first encrypted with the key, as aes128-gcm@openssh.com.
+	 */
+	static final String AES128_PACKET =
+			"000000702eef55988439501a2671cf3ea25405afa7e2a69c50f7d4ad"
+			+ "9a84823705116904b7933d06e22120ec7262beaefbe0c8355aeb16b9"
+			+ "945048a1f2c3422ccdeb6029430a0f19508e41a4f46190530afe585a"
+			+ "4e97454bfeff8855491c1c448e05cc8df7c25a79bb31a80e1d93b0a7"
+			+ "64d34c8ad7571d8d8145faf3f8ab11b50e6306ac";
+
+	/**
+	 * The same packet as aes256-gcm@openssh.com.
+	 */
+	static final String AES256_PACKET =
+			"00000070703606d655faf96e6300f3a0866c1d6d5f124705d80345d5"
+			+ "70e32a1d07f862a2dfc938fcdf065d4e1c488fed24ff5ea84d044e26"
+			+ "064b0c24e3ca195b918acac075d8e7c0c9ea1ec46bc8457cb2db7093"
+			+ "3a6b6bdc165b23d6771d8b8ecc7620d6fdfd17b30f954633012ea19b"
+			+ "6aabc6d74a3259db8c01fab3a234d82f7abf0066";
+
+	@Test
+	public void testEncryptPacket() throws Exception {
+		assertEncrypts(new AES128Gcm(), AES128_PACKET);
+		assertEncrypts(new AES256Gcm(), AES256_PACKET);
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		assertRoundTrip(new AES128Gcm(), new AES128Gcm());
+		assertRoundTrip(new AES256Gcm(), new AES256Gcm());
+	}
+
+	@Test
+	public void testTamperedPacket() throws Exception {
+
+		AES128Gcm decrypt = new AES128Gcm();
+		decrypt.init(SshCipher.DECRYPT_MODE, CipherTestData.iv(),
+				CipherTestData.key());
+		byte[] packet = CipherTestData.hex(AES128_PACKET);
+		int length = packet.length - decrypt.getTagLength();
+
+		// The length is authenticated but not encrypted
+		packet[3] ^= 1;
+		assertFalse(decrypt.decryptPacket(0, packet, 0, length));
+
+		// Each packet uses the next nonce, so the packet no longer
+		// decrypts once one has been rejected
+		packet[3] ^= 1;
+		assertFalse(decrypt.decryptPacket(0, packet, 0, length));
+	}
+
+	void assertEncrypts(SshAEADCipher cipher, String expected)
+			throws Exception {
+		cipher.init(SshCipher.ENCRYPT_MODE, CipherTestData.iv(),
+				CipherTestData.key());
+		byte[] packet = CipherTestData.packet(5, 4 + 32 + 80,
+				cipher.getTagLength());
+
+		cipher.encryptPacket(0, packet, 0, packet.length
+				- cipher.getTagLength());
+
+		assertArrayEquals(CipherTestData.hex(expected), packet);
+	}
+
+	void assertRoundTrip(SshAEADCipher encrypt, SshAEADCipher decrypt)
+			throws Exception {
+		encrypt.init(SshCipher.ENCRYPT_MODE, CipherTestData.iv(),
+				CipherTestData.key());
+		decrypt.init(SshCipher.DECRYPT_MODE, CipherTestData.iv(),
+				CipherTestData.key());
+
+		for (int seq = 0; seq < 10; seq++) {
+			int length = 4 + 16 + seq * 32;
+			byte[] plain = CipherTestData.packet(seq, length,
+					encrypt.getTagLength());
+			byte[] packet = (byte[]) plain.clone();
+
+			encrypt.encryptPacket(seq, packet, 0, length);
+			assertEquals(length - 4, decrypt.readPacketLength(seq, packet, 0));
+			assertTrue(decrypt.decryptPacket(seq, packet, 0, length));
+
+			for (int i = 0; i < length; i++) {
+				assertEquals(plain[i], packet[i]);
+			}
+		}
+	}
+}
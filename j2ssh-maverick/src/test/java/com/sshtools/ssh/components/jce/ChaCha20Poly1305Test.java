@@ -0,0 +1,154 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components.jce;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.sshtools.ssh.components.SshCipher;
+
+public class ChaCha20Poly1305Test {
+
+	/**
+	 * The packet from {@link CipherTestData} with sequence number 5,
+	 * encrypted and tagged.
+	 */
+	static final String PACKET_5 =
+			"f65bcd3ca794beceb39ce0190105608d8b56dd7580076c0917823a75"
+			+ "edda30fe602a379ccc772bf61b7e55b14ea8c1a96a7851274914c03b"
+			+ "8e5b7b0e3d2d96f200e7b7c88fd59ac18aef73faa8f6d05bd364887c"
+			+ "ef515acd2187cc21034de34dbe7ce87caaf6a48a8060bd912ddd3cdb"
+			+ "16f72d242b64d5898c82e58039c8c0050d6eb19c68a0fa7f3a1b60b6"
+			+ "12af64ca1fc026e3";
+
+	/**
+	 * RFC 8439 section 2.4.2. The RFC uses a 32 bit counter and 96 bit
+	 * nonce; with the top word of the nonce zero that is the same state as
+	 * the original cipher's 64 bit counter and 64 bit nonce.
+	 */
+	@Test
+	public void testChaCha20() throws Exception {
+
+		byte[] key = new byte[32];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte) i;
+		}
+		byte[] data = ("Ladies and Gentlemen of the class of '99: If I could "
+				+ "offer you only one tip for the future, sunscreen would "
+				+ "be it.").getBytes("US-ASCII");
+
+		new ChaCha20(key, 0).process(0x0000004a00000000L, 1, data, 0,
+				data.length);
+
+		assertArrayEquals(CipherTestData.hex(
+				"6e2e359a2568f98041ba0728dd0d6981e97e7aec1d4360c20a27afcc"
+				+ "fd9fae0bf91b65c5524733ab8f593dabcd62b3571639d624e65152ab"
+				+ "8f530c359f0861d807ca0dbf500d6a6156a38e088a22b65e52bc514d"
+				+ "16ccf806818ce91ab77937365af90bbf74a35be6b40b8eedf2785e42"
+				+ "874d"), data);
+	}
+
+	/**
+	 * RFC 8439 section 2.5.2.
+	 */
+	@Test
+	public void testPoly1305() throws Exception {
+
+		byte[] key = CipherTestData.hex(
+				"85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af"
+				+ "4149f51b");
+		byte[] msg = "Cryptographic Forum Research Group".getBytes("US-ASCII");
+		byte[] tag = new byte[Poly1305.TAG_LENGTH];
+
+		new Poly1305().mac(key, 0, msg, 0, msg.length, tag, 0);
+
+		assertArrayEquals(CipherTestData.hex("a8061dc1305136c6c22b8baf0c0127a9"),
+				tag);
+	}
+
+	@Test
+	public void testEncryptPacket() throws Exception {
+
+		ChaCha20Poly1305 cipher = new ChaCha20Poly1305();
+		cipher.init(SshCipher.ENCRYPT_MODE, CipherTestData.iv(),
+				CipherTestData.key());
+		byte[] packet = CipherTestData.packet(5, 4 + 48 + 80,
+				cipher.getTagLength());
+
+		cipher.encryptPacket(5, packet, 0, packet.length
+				- cipher.getTagLength());
+
+		assertArrayEquals(CipherTestData.hex(PACKET_5), packet);
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+
+		ChaCha20Poly1305 encrypt = new ChaCha20Poly1305();
+		encrypt.init(SshCipher.ENCRYPT_MODE, CipherTestData.iv(),
+				CipherTestData.key());
+		ChaCha20Poly1305 decrypt = new ChaCha20Poly1305();
+		decrypt.init(SshCipher.DECRYPT_MODE, CipherTestData.iv(),
+				CipherTestData.key());
+
+		for (int seq = 0; seq < 10; seq++) {
+			int length = 4 + 16 + seq * 24;
+			byte[] plain = CipherTestData.packet(seq, length,
+					encrypt.getTagLength());
+			byte[] packet = (byte[]) plain.clone();
+
+			encrypt.encryptPacket(seq, packet, 0, length);
+			assertEquals(length - 4, decrypt.readPacketLength(seq, packet, 0));
+			assertTrue(decrypt.decryptPacket(seq, packet, 0, length));
+
+			for (int i = 0; i < length; i++) {
+				assertEquals(plain[i], packet[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testTamperedPacket() throws Exception {
+
+		ChaCha20Poly1305 decrypt = new ChaCha20Poly1305();
+		decrypt.init(SshCipher.DECRYPT_MODE, CipherTestData.iv(),
+				CipherTestData.key());
+		byte[] packet = CipherTestData.hex(PACKET_5);
+		int length = packet.length - decrypt.getTagLength();
+
+		// The right packet under the wrong sequence number
+		assertFalse(decrypt.decryptPacket(6, packet, 0, length));
+
+		packet[10] ^= 1;
+		assertFalse(decrypt.decryptPacket(5, packet, 0, length));
+		packet[10] ^= 1;
+
+		packet[length] ^= 1;
+		assertFalse(decrypt.decryptPacket(5, packet, 0, length));
+		packet[length] ^= 1;
+
+		assertTrue(decrypt.decryptPacket(5, packet, 0, length));
+	}
+}
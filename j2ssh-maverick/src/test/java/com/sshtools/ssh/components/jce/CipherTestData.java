@@ -0,0 +1,77 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components.jce;
+
+/**
+ * Test data shared by the cipher tests.
+ * 
+ * @author Lee David Painter
+ */
+class CipherTestData {
+
+	/**
+	 * The 64 bytes of key data used for the packet tests.
+	 */
+	static byte[] key() {
+		byte[] key = new byte[64];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte) (i * 7 + 3);
+		}
+		return key;
+	}
+
+	/**
+	 * The 16 byte IV used for the packet tests.
+	 */
+	static byte[] iv() {
+		byte[] iv = new byte[16];
+		for (int i = 0; i < iv.length; i++) {
+			iv[i] = (byte) (i + 100);
+		}
+		return iv;
+	}
+
+	/**
+	 * A packet of the given length whose first 4 bytes hold the length of
+	 * the rest, with room after it for a tag.
+	 */
+	static byte[] packet(int seed, int length, int tagLength) {
+		byte[] packet = new byte[length + tagLength];
+		for (int i = 0; i < length; i++) {
+			packet[i] = (byte) (i * 13 + seed);
+		}
+		int payload = length - 4;
+		packet[0] = (byte) (payload >> 24);
+		packet[1] = (byte) (payload >> 16);
+		packet[2] = (byte) (payload >> 8);
+		packet[3] = (byte) payload;
+		return packet;
+	}
+
+	static byte[] hex(String hex) {
+		byte[] data = new byte[hex.length() / 2];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) Integer.parseInt(
+					hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return data;
+	}
+}
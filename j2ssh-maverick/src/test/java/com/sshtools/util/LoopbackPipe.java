@@ -0,0 +1,165 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded in-memory pipe for connecting two threads in the same process.
+ * Unlike {@link java.io.PipedInputStream} it does not track the threads that
+ * use it and it allocates nothing once created, so it adds as little as
+ * possible to the figures of the tests and benchmarks that use it.
+ * 
+ * @author Lee David Painter
+ */
+public class LoopbackPipe {
+
+	public static final int DEFAULT_BUFFER_SIZE = 262144;
+
+	byte[] buffer;
+	int readPos;
+	int count;
+	boolean closed;
+
+	InputStream in = new PipeInputStream();
+	OutputStream out = new PipeOutputStream();
+
+	public LoopbackPipe() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	public LoopbackPipe(int bufferSize) {
+		buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Get the stream from which data written to the pipe is read.
+	 */
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	/**
+	 * Get the stream that writes to the pipe.
+	 */
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * Close the pipe. Any data already written may still be read after which
+	 * the input returns EOF; further writes fail.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	class PipeInputStream extends InputStream {
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			synchronized (LoopbackPipe.this) {
+				while (count == 0) {
+					if (closed) {
+						return -1;
+					}
+					waitForPipe();
+				}
+
+				int n = Math.min(len, count);
+				int first = Math.min(n, buffer.length - readPos);
+				System.arraycopy(buffer, readPos, b, off, first);
+				System.arraycopy(buffer, 0, b, off + first, n - first);
+				readPos = (readPos + n) % buffer.length;
+				count -= n;
+				LoopbackPipe.this.notifyAll();
+				return n;
+			}
+		}
+
+		public int available() {
+			synchronized (LoopbackPipe.this) {
+				return count;
+			}
+		}
+
+		public void close() {
+			LoopbackPipe.this.close();
+		}
+	}
+
+	class PipeOutputStream extends OutputStream {
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (LoopbackPipe.this) {
+				while (len > 0) {
+					if (closed) {
+						throw new IOException("Pipe closed");
+					}
+					if (count == buffer.length) {
+						waitForPipe();
+						continue;
+					}
+
+					int writePos = (readPos + count) % buffer.length;
+					int n = Math.min(len, Math.min(buffer.length - count,
+							buffer.length - writePos));
+					System.arraycopy(b, off, buffer, writePos, n);
+					count += n;
+					off += n;
+					len -= n;
+					LoopbackPipe.this.notifyAll();
+				}
+			}
+		}
+
+		public void close() {
+			LoopbackPipe.this.close();
+		}
+	}
+
+	void waitForPipe() throws InterruptedIOException {
+		try {
+			LoopbackPipe.this.wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+}